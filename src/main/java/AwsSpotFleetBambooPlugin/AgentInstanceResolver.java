@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+
+/**
+ * Plugin-scoped index from Bamboo agent IDs to the fleet instance running them. Agents started by the user data script
+ * report their instance ID as the {@link StringConstants#INSTANCE_ID_CAPABILITY} capability, which is used as is.
+ * Agents started by older scripts are only named after their instance's private DNS name, e.g.
+ * ip-172-31-68-230.ec2.internal, with a suffix such as " (2)" when an instance runs several agents. Each agent is
+ * resolved once and the result reused until the agent is renamed or removed, so the scaling and teardown paths
+ * resolve agents without string parsing in steady state.
+ */
+@Component
+public class AgentInstanceResolver {
+    private static final String PRIVATE_DNS_SUFFIX = ".internal";
+    // all supported regions have instances with private DNS names following this pattern
+    private static final Pattern PRIVATE_DNS_NAME = Pattern.compile("ip-.*\\.internal");
+
+    private final Map<Long, Resolution> resolutions = new ConcurrentHashMap<Long, Resolution>();
+
+    /**
+     * @param agent
+     * @return private DNS name of the instance running the agent, e.g. ip-172-31-66-67.ec2.internal for the agent
+     *         ip-172-31-66-67.ec2.internal (2)
+     */
+    public String getInstanceHostName(BuildAgent agent) {
+        return resolve(agent).hostName;
+    }
+
+    /**
+     * @param agent
+     * @return ID of the instance running the agent as reported by the agent, null for agents started by older user
+     *         data scripts
+     */
+    public String getInstanceId(BuildAgent agent) {
+        return resolve(agent).instanceId;
+    }
+
+    /**
+     * Key identifying the agent's instance in {@link FleetInventory} snapshots: the instance ID when the agent reports
+     * it, otherwise the instance's private DNS name
+     *
+     * @param agent
+     * @return instance key
+     */
+    public String getInstanceKey(BuildAgent agent) {
+        Resolution resolution = resolve(agent);
+        return resolution.instanceId != null ? resolution.instanceId : resolution.hostName;
+    }
+
+    /**
+     * @param agent
+     * @return agents the user data script started on the agent's instance as reported by the agent, 0 for agents
+     *         started by older user data scripts
+     */
+    public int getDeclaredSlots(BuildAgent agent) {
+        return resolve(agent).declaredSlots;
+    }
+
+    /**
+     * @param agent
+     * @param fleetInstanceIds
+     *            IDs of instances belonging to the fleets, see {@link FleetInventory#getFleetInstanceIds()}
+     * @return whether the agent reports the ID of one of the instances, or reports none and its name looks like one
+     *         given to agents on fleet instances
+     */
+    public boolean isFleetAgent(BuildAgent agent, Set<String> fleetInstanceIds) {
+        Resolution resolution = resolve(agent);
+        return resolution.instanceId != null ? fleetInstanceIds.contains(resolution.instanceId)
+                : resolution.fleetHostName;
+    }
+
+    /**
+     * @param agents
+     * @return instance IDs reported by the agents
+     */
+    public Set<String> getReportedInstanceIds(Collection<BuildAgent> agents) {
+        Set<String> instanceIds = new HashSet<String>();
+        for (BuildAgent agent : agents) {
+            String instanceId = getInstanceId(agent);
+            if (instanceId != null) {
+                instanceIds.add(instanceId);
+            }
+        }
+        return instanceIds;
+    }
+
+    /**
+     * @param agents
+     * @return whether any of the agents can only be matched to its instance through the private DNS name
+     */
+    public boolean hasAgentsWithoutInstanceId(Collection<BuildAgent> agents) {
+        for (BuildAgent agent : agents) {
+            Resolution resolution = resolve(agent);
+            if (resolution.instanceId == null && resolution.fleetHostName) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * drop cached resolutions of agents that no longer exist
+     *
+     * @param agents
+     *            all agents Bamboo currently knows of
+     */
+    public void retainAgents(Collection<BuildAgent> agents) {
+        Set<Long> agentIds = new HashSet<Long>();
+        for (BuildAgent agent : agents) {
+            agentIds.add(agent.getId());
+        }
+        resolutions.keySet().retainAll(agentIds);
+    }
+
+    /**
+     * forget an agent, e.g. after removing it
+     *
+     * @param agentId
+     */
+    public void forget(long agentId) {
+        resolutions.remove(agentId);
+    }
+
+    /**
+     * @return number of agents currently resolved
+     */
+    public int size() {
+        return resolutions.size();
+    }
+
+    private Resolution resolve(BuildAgent agent) {
+        String agentName = agent.getName();
+        Resolution resolution = resolutions.get(agent.getId());
+        // agent IDs are stable, but names can be edited in the Bamboo UI
+        if (resolution == null || !resolution.agentName.equals(agentName)) {
+            resolution = new Resolution(agentName, readCapability(agent, StringConstants.INSTANCE_ID_CAPABILITY),
+                    readDeclaredSlots(agent));
+            resolutions.put(agent.getId(), resolution);
+        }
+        return resolution;
+    }
+
+    private static String readCapability(BuildAgent agent, String key) {
+        PipelineDefinition definition = agent.getDefinition();
+        if (definition == null || definition.getCapabilitySet() == null) {
+            return null;
+        }
+        Capability capability = definition.getCapabilitySet().getCapability(key);
+        if (capability == null || StringUtils.isBlank(capability.getValue())) {
+            return null;
+        }
+        return capability.getValue().trim();
+    }
+
+    private static int readDeclaredSlots(BuildAgent agent) {
+        String declaredSlots = readCapability(agent, StringConstants.AGENT_SLOTS_CAPABILITY);
+        try {
+            return declaredSlots == null ? 0 : Math.max(0, Integer.parseInt(declaredSlots));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class Resolution {
+        private final String agentName;
+        private final String instanceId;
+        private final int declaredSlots;
+        private final String hostName;
+        private final boolean fleetHostName;
+
+        private Resolution(String agentName, String instanceId, int declaredSlots) {
+            this.agentName = agentName;
+            this.instanceId = instanceId;
+            this.declaredSlots = declaredSlots;
+            // in case of multiple agents per instance only the name up to the DNS suffix identifies the instance
+            int suffixIndex = agentName.indexOf(PRIVATE_DNS_SUFFIX);
+            this.hostName = (suffixIndex < 0 ? agentName : agentName.substring(0, suffixIndex)) + PRIVATE_DNS_SUFFIX;
+            this.fleetHostName = PRIVATE_DNS_NAME.matcher(hostName).matches();
+        }
+    }
+}
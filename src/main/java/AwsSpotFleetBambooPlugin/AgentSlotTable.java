@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+
+/**
+ * Agent slots of each instance of a fleet: the agents registered with Bamboo, how many of them are busy, and how many
+ * agents the instance is expected to run, along with when the instance joined the fleet and since when it has been
+ * idle. Instances don't all run the same number of agents, e.g. when the license
+ * ran out while their agents were starting or their instance types differ, so scaling works from per-instance counts
+ * rather than one fleet-wide ratio.
+ *
+ * Kept with the fleet's {@link FleetInventory} and updated every scaling cycle from the agent list the cycle reads
+ * anyway: entries of instances that left the fleet are dropped and new instances are added. An instance is expected
+ * to run the agents its user data script declared it started, see {@link AgentsPerInstancePolicy}. Instances whose
+ * agents don't declare their slots, started by older scripts, are expected to run the most agents they have been
+ * seen running. Until an instance's first agent registers, it is expected to run what the policy or earlier
+ * instances of its type declared. Instances are keyed like {@link FleetInventory#getInstanceKeys()}.
+ */
+public class AgentSlotTable {
+    private final Map<String, Slots> slots = new HashMap<String, Slots>();
+    // instance types to the agents their instances declared, for instances of the type without agents yet
+    private final Map<String, Integer> instanceTypeSlots = new HashMap<String, Integer>();
+
+    /**
+     * Agent slots of one instance
+     */
+    public static class Slots {
+        private int registered;
+        private int busy;
+        private int expected;
+        private int declared;
+        private long firstSeen;
+        private long idleSince;
+        private boolean hasBuilt;
+
+        public Slots(int registered, int busy, int expected, long firstSeen, long idleSince, boolean hasBuilt) {
+            this.registered = registered;
+            this.busy = busy;
+            this.expected = expected;
+            this.firstSeen = firstSeen;
+            this.idleSince = idleSince;
+            this.hasBuilt = hasBuilt;
+        }
+
+        private Slots(Slots slots) {
+            this(slots.registered, slots.busy, slots.expected, slots.firstSeen, slots.idleSince, slots.hasBuilt);
+            this.declared = slots.declared;
+        }
+
+        public int getRegistered() {
+            return registered;
+        }
+
+        public int getBusy() {
+            return busy;
+        }
+
+        /**
+         * @return agents the instance is expected to run, 0 if unknown until its first agent registers
+         */
+        public int getExpected() {
+            return expected;
+        }
+
+        /**
+         * @return agents the instance's user data script declared it started, 0 if none of its agents said
+         */
+        public int getDeclared() {
+            return declared;
+        }
+
+        public int getFree() {
+            return registered - busy;
+        }
+
+        /**
+         * @return time the instance was first seen in the fleet in milliseconds, within a scaling cycle of its launch
+         */
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        /**
+         * @return time the instance's last busy agent was seen going idle, or it joined the fleet if none ever was,
+         *         in milliseconds. 0 while an agent is busy
+         */
+        public long getIdleSince() {
+            return idleSince;
+        }
+
+        /**
+         * @return whether any of the instance's agents was ever seen building, leaving a populated working directory
+         */
+        public boolean hasBuilt() {
+            return hasBuilt;
+        }
+
+        @Override
+        public String toString() {
+            return registered + " registered, " + busy + " busy, " + expected + " expected";
+        }
+    }
+
+    /**
+     * bring the table up to date with the fleet's instances and the agents running on them
+     *
+     * @param instanceKeys
+     *            keys of the fleet's active instances
+     * @param agents
+     *            remote agents, agents of other instances are ignored
+     * @param agentInstanceResolver
+     * @param now
+     *            current time in milliseconds
+     */
+    public void update(Set<String> instanceKeys, Collection<BuildAgent> agents,
+            AgentInstanceResolver agentInstanceResolver, long now) {
+        update(instanceKeys, agents, agentInstanceResolver, now, Collections.<String, String>emptyMap(), null);
+    }
+
+    /**
+     * bring the table up to date with the fleet's instances and the agents running on them
+     *
+     * @param instanceKeys
+     *            keys of the fleet's active instances
+     * @param agents
+     *            remote agents, agents of other instances are ignored
+     * @param agentInstanceResolver
+     * @param now
+     *            current time in milliseconds
+     * @param instanceTypes
+     *            instance keys to instance types, instances not in the map have an unknown type
+     * @param agentsPerInstancePolicy
+     *            policy the fleet's user data script follows, null if unknown
+     */
+    public synchronized void update(Set<String> instanceKeys, Collection<BuildAgent> agents,
+            AgentInstanceResolver agentInstanceResolver, long now, Map<String, String> instanceTypes,
+            AgentsPerInstancePolicy agentsPerInstancePolicy) {
+        slots.keySet().retainAll(instanceKeys);
+        for (Slots instanceSlots : slots.values()) {
+            instanceSlots.registered = 0;
+            instanceSlots.busy = 0;
+        }
+        for (String instanceKey : instanceKeys) {
+            if (!slots.containsKey(instanceKey)) {
+                slots.put(instanceKey, new Slots(0, 0, 0, now, now, false));
+            }
+        }
+        for (BuildAgent agent : agents) {
+            Slots instanceSlots = slots.get(agentInstanceResolver.getInstanceKey(agent));
+            if (instanceSlots != null) {
+                instanceSlots.registered++;
+                int declared = agentInstanceResolver.getDeclaredSlots(agent);
+                if (declared > 0) {
+                    instanceSlots.declared = declared;
+                }
+                if (agent.isBusy()) {
+                    instanceSlots.busy++;
+                }
+            }
+        }
+        for (Map.Entry<String, Slots> entry : slots.entrySet()) {
+            String instanceType = instanceTypes.get(entry.getKey());
+            if (entry.getValue().declared > 0 && instanceType != null) {
+                instanceTypeSlots.put(instanceType, entry.getValue().declared);
+            }
+        }
+        for (Map.Entry<String, Slots> entry : slots.entrySet()) {
+            Slots instanceSlots = entry.getValue();
+            if (instanceSlots.declared > 0) {
+                // the script's count replaces what was assumed, e.g. under an earlier policy
+                instanceSlots.expected = Math.max(instanceSlots.declared, instanceSlots.registered);
+            } else if (instanceSlots.registered > 0 || agentsPerInstancePolicy == null) {
+                instanceSlots.expected = Math.max(instanceSlots.expected, instanceSlots.registered);
+            } else {
+                instanceSlots.expected = getPolicySlots(agentsPerInstancePolicy, instanceTypes.get(entry.getKey()));
+            }
+            if (instanceSlots.busy > 0) {
+                instanceSlots.idleSince = 0;
+                instanceSlots.hasBuilt = true;
+            } else if (instanceSlots.idleSince == 0) {
+                instanceSlots.idleSince = now;
+            }
+        }
+    }
+
+    /**
+     * move an instance's slots to its new key, e.g. once its agents report the instance ID it was keyed by DNS name
+     *
+     * @param oldKey
+     * @param newKey
+     */
+    public synchronized void rekey(String oldKey, String newKey) {
+        Slots instanceSlots = slots.remove(oldKey);
+        if (instanceSlots != null) {
+            slots.put(newKey, instanceSlots);
+        }
+    }
+
+    /**
+     * @param instanceKey
+     * @return copy of the instance's slots, empty slots for instances not in the table
+     */
+    public synchronized Slots get(String instanceKey) {
+        Slots instanceSlots = slots.get(instanceKey);
+        return instanceSlots == null ? new Slots(0, 0, 0, 0, 0, false) : new Slots(instanceSlots);
+    }
+
+    /**
+     * @return copy of the table for diagnostics, instance keys to slots
+     */
+    public synchronized Map<String, Slots> getSlots() {
+        Map<String, Slots> copy = new HashMap<String, Slots>();
+        for (String instanceKey : slots.keySet()) {
+            copy.put(instanceKey, get(instanceKey));
+        }
+        return copy;
+    }
+
+    /**
+     * @param instanceWeights
+     *            instance keys to capacity units, instances not in the map weigh 1
+     * @return agents per unit of capacity on instances that have run agents, 1 if none have
+     */
+    public synchronized double getAgentsPerUnit(Map<String, Double> instanceWeights) {
+        int agents = 0;
+        double weight = 0;
+        for (Map.Entry<String, Slots> instanceSlots : slots.entrySet()) {
+            if (instanceSlots.getValue().expected > 0) {
+                agents += instanceSlots.getValue().expected;
+                weight += getWeight(instanceWeights, instanceSlots.getKey());
+            }
+        }
+        return agents > 0 && weight > 0 ? agents / weight : 1;
+    }
+
+    /**
+     * Agents still to register on instances of the fleet, which will take up remote agent licenses when they do.
+     * Instances that haven't run any agents yet are expected to run as many per unit of capacity as the others
+     *
+     * @param instanceWeights
+     *            instance keys to capacity units, instances not in the map weigh 1
+     * @return agents expected but not registered
+     */
+    public synchronized int getPendingAgents(Map<String, Double> instanceWeights) {
+        double agentsPerUnit = getAgentsPerUnit(instanceWeights);
+        int pending = 0;
+        for (Map.Entry<String, Slots> instanceSlots : slots.entrySet()) {
+            Slots value = instanceSlots.getValue();
+            if (value.expected > 0) {
+                pending += value.expected - value.registered;
+            } else {
+                pending += (int) Math.ceil(getWeight(instanceWeights, instanceSlots.getKey()) * agentsPerUnit - 1e-9);
+            }
+        }
+        return pending;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int registered = 0;
+        int busy = 0;
+        int expected = 0;
+        for (Slots instanceSlots : slots.values()) {
+            registered += instanceSlots.registered;
+            busy += instanceSlots.busy;
+            expected += instanceSlots.expected;
+        }
+        return slots.size() + " instances, " + registered + " agents registered, " + busy + " busy, " + expected
+                + " expected";
+    }
+
+    // agents an instance without registered agents will run, 0 if it depends on a type not seen before
+    private int getPolicySlots(AgentsPerInstancePolicy agentsPerInstancePolicy, String instanceType) {
+        if (agentsPerInstancePolicy.getFixedAgents() > 0) {
+            return agentsPerInstancePolicy.getFixedAgents();
+        }
+        Integer typeSlots = instanceType == null ? null : instanceTypeSlots.get(instanceType);
+        return typeSlots == null ? 0 : typeSlots;
+    }
+
+    private static double getWeight(Map<String, Double> instanceWeights, String instanceKey) {
+        Double weight = instanceWeights.get(instanceKey);
+        return weight == null ? 1 : weight;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Removes dead agents and finishes the builds orphaned on them in parallel. At most the requested number of agents are
+ * torn down at once and the whole teardown is bounded by a deadline, so a wave of spot interruptions doesn't hold up
+ * the scaling cycle for minutes while each {@link AgentManager#removeAgent(long)} blocks. Agents that haven't finished
+ * by the deadline are left to the next cycle, which will find them dead again.
+ */
+@Component
+public class AgentTeardownExecutor implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(AgentTeardownExecutor.class);
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_DEADLINE_SECONDS = 120;
+
+    /**
+     * what happened to an agent during teardown
+     */
+    public enum Outcome {
+        // orphaned builds finished and agent removed
+        REMOVED,
+        // finishing a build or removing the agent threw
+        FAILED,
+        // Bamboo timed out removing the agent, or it was still being removed at the deadline
+        TIMED_OUT,
+        // deadline passed before the agent's turn came
+        SKIPPED
+    }
+
+    private AgentManager agentManager;
+    private BuildExecutionManager buildExecutionManager;
+    private AgentInstanceResolver agentInstanceResolver;
+    // shared by all teardowns, each teardown bounds its own parallelism by the number of workers it submits
+    private final ExecutorService teardownThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "spot-fleet-agent-teardown-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @Autowired
+    public AgentTeardownExecutor(@ComponentImport AgentManager agentManager,
+            @ComponentImport BuildExecutionManager buildExecutionManager, AgentInstanceResolver agentInstanceResolver) {
+        this.agentManager = agentManager;
+        this.buildExecutionManager = buildExecutionManager;
+        this.agentInstanceResolver = agentInstanceResolver;
+    }
+
+    @Override
+    public void destroy() {
+        teardownThreads.shutdownNow();
+    }
+
+    /**
+     * Tear down agents, finishing each agent's orphaned builds before removing it. Blocks until every agent is done or
+     * the deadline passes
+     *
+     * @param agents
+     *            agent IDs to the builds orphaned on them, possibly none
+     * @param concurrency
+     *            maximum number of agents torn down at once
+     * @param deadlineMilliseconds
+     *            time allowed for the whole teardown
+     * @return outcome per agent ID, in the order given
+     */
+    public Map<Long, Outcome> teardown(final Map<Long, List<PlanResultKey>> agents, int concurrency,
+            long deadlineMilliseconds) {
+        long deadline = System.currentTimeMillis() + deadlineMilliseconds;
+        final Queue<Long> pendingAgentIds = new LinkedList<Long>(agents.keySet());
+        // agents are skipped until a worker picks them up, and timed out until their removal returns. Guarded by
+        // itself, so results arriving after the deadline don't change the outcomes returned
+        final Map<Long, Outcome> outcomes = new LinkedHashMap<Long, Outcome>();
+        for (Long agentId : agents.keySet()) {
+            outcomes.put(agentId, Outcome.SKIPPED);
+        }
+        final AtomicBoolean expired = new AtomicBoolean(false);
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 0; i < Math.min(Math.max(1, concurrency), agents.size()); i++) {
+            workers.add(teardownThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        Long agentId;
+                        synchronized (outcomes) {
+                            if (expired.get() || (agentId = pendingAgentIds.poll()) == null) {
+                                return;
+                            }
+                            outcomes.put(agentId, Outcome.TIMED_OUT);
+                        }
+                        Outcome outcome = teardownAgent(agentId, agents.get(agentId));
+                        synchronized (outcomes) {
+                            if (!expired.get()) {
+                                outcomes.put(agentId, outcome);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            logger.warn("agent teardown did not finish within " + deadlineMilliseconds + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // teardownAgent catches everything an agent can throw
+            logger.error("agent teardown worker failed", e.getCause());
+        }
+        Map<Long, Outcome> orderedOutcomes;
+        synchronized (outcomes) {
+            expired.set(true);
+            orderedOutcomes = new LinkedHashMap<Long, Outcome>(outcomes);
+        }
+        // workers still inside Bamboo's removeAgent or finishBuild are left to finish rather than interrupted, their
+        // agents stay timed out and the next cycle sees whether they are gone
+        for (Future<?> worker : workers) {
+            worker.cancel(false);
+        }
+        return Collections.unmodifiableMap(orderedOutcomes);
+    }
+
+    private Outcome teardownAgent(long agentId, List<PlanResultKey> orphanedBuilds) {
+        try {
+            if (orphanedBuilds != null) {
+                for (PlanResultKey planResultKey : orphanedBuilds) {
+                    buildExecutionManager.finishBuild(planResultKey);
+                }
+            }
+            agentManager.removeAgent(agentId);
+            agentInstanceResolver.forget(agentId);
+            return Outcome.REMOVED;
+        } catch (TimeoutException e) {
+            return Outcome.TIMED_OUT;
+        } catch (RuntimeException e) {
+            logger.warn("failed to tear down agent with id: " + agentId, e);
+            return Outcome.FAILED;
+        }
+    }
+}
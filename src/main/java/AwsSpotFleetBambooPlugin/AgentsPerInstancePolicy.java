@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * How many remote agents each fleet instance runs: a fixed number, or one agent per so many vCPUs or GiB of memory so
+ * larger instance types run more agents. The user data script works the count out from the instance's own resources at
+ * boot and declares it to Bamboo as the {@link StringConstants#AGENT_SLOTS_CAPABILITY} capability of each agent, so
+ * scaling knows an instance's slots before all of its agents have registered.
+ */
+public class AgentsPerInstancePolicy {
+    public static final String FIXED = "fixed";
+    public static final String PER_VCPU = "perVcpu";
+    public static final String PER_GIB = "perGib";
+    public static final List<String> POLICIES = ImmutableList.of(FIXED, PER_VCPU, PER_GIB);
+    // two agents per instance, as the user data script always started before the policy was configurable
+    public static final AgentsPerInstancePolicy DEFAULT = new AgentsPerInstancePolicy(FIXED, 2);
+    private static final long KIB_PER_GIB = 1048576;
+
+    private final String policy;
+    private final int amount;
+
+    /**
+     * @param policy
+     *            one of {@link #POLICIES}
+     * @param amount
+     *            agents per instance for {@link #FIXED}, otherwise vCPUs or GiB of memory per agent
+     */
+    public AgentsPerInstancePolicy(String policy, int amount) {
+        if (!POLICIES.contains(policy) || amount < 1) {
+            throw new IllegalArgumentException("invalid agents per instance policy " + policy + " " + amount);
+        }
+        this.policy = policy;
+        this.amount = amount;
+    }
+
+    /**
+     * @param configuration
+     *            task configuration
+     * @return the configured policy, null for tasks saved before it was configurable
+     */
+    public static AgentsPerInstancePolicy fromConfiguration(Map<String, String> configuration) {
+        String policy = configuration.get(StringConstants.AGENTS_PER_INSTANCE_POLICY);
+        String amount = configuration.get(StringConstants.AGENTS_PER_INSTANCE);
+        if (policy == null || amount == null) {
+            return null;
+        }
+        return new AgentsPerInstancePolicy(policy, Integer.parseInt(amount));
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return agents every instance runs, 0 if the count depends on the instance type
+     */
+    public int getFixedAgents() {
+        return FIXED.equals(policy) ? amount : 0;
+    }
+
+    /**
+     * @return bash setting AGENT_COUNT to the number of agents to start on the instance running it, at least 1
+     */
+    public String getAgentCountCommand() {
+        if (FIXED.equals(policy)) {
+            return "AGENT_COUNT=" + amount;
+        }
+        String count;
+        if (PER_VCPU.equals(policy)) {
+            count = "AGENT_COUNT=$(( $(nproc) / " + amount + " ))";
+        } else {
+            // the kernel reports a little less memory than the instance type has, so round to the nearest agent
+            long kibPerAgent = amount * KIB_PER_GIB;
+            count = "AGENT_COUNT=$(( ($(awk '/^MemTotal:/ {print $2}' /proc/meminfo) + " + kibPerAgent / 2 + ") / "
+                    + kibPerAgent + " ))";
+        }
+        return count + "\n[ \"$AGENT_COUNT\" -ge 1 ] || AGENT_COUNT=1";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AgentsPerInstancePolicy)) {
+            return false;
+        }
+        AgentsPerInstancePolicy otherPolicy = (AgentsPerInstancePolicy) other;
+        return policy.equals(otherPolicy.policy) && amount == otherPolicy.amount;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * policy.hashCode() + amount;
+    }
+
+    @Override
+    public String toString() {
+        return policy + " " + amount;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.atlassian.bamboo.v2.build.agent.capability.Requirement;
+import com.atlassian.bamboo.v2.build.agent.capability.RequirementSet;
+
+/**
+ * The distinct capability sets of a fleet's agents. Agents launched from the same launch specification report the
+ * same capabilities, so a fleet usually has one or a handful regardless of its size. The instance ID and agent slot
+ * capabilities set by the user data script are left out, as they differ between instances and jobs don't require
+ * them. Profiles are immutable and compare by their capability sets, so a profile rebuilt from unchanged agents
+ * matches the one it replaces.
+ */
+public class CapabilityProfile {
+    private final Set<Map<String, String>> capabilitySets;
+    // profiles key memoized matches, so the hash is computed once
+    private final int hashCode;
+
+    public CapabilityProfile(Set<Map<String, String>> capabilitySets) {
+        this.capabilitySets = Collections.unmodifiableSet(new LinkedHashSet<Map<String, String>>(capabilitySets));
+        this.hashCode = this.capabilitySets.hashCode();
+    }
+
+    /**
+     * @param agents
+     *            agents of the fleet's instances
+     * @return profile of the agents, null if none of them reports capabilities
+     */
+    public static CapabilityProfile fromAgents(Collection<BuildAgent> agents) {
+        Set<Map<String, String>> capabilitySets = new LinkedHashSet<Map<String, String>>();
+        for (BuildAgent agent : agents) {
+            PipelineDefinition definition = agent.getDefinition();
+            CapabilitySet capabilitySet = definition == null ? null : definition.getCapabilitySet();
+            if (capabilitySet == null || capabilitySet.getCapabilities() == null) {
+                continue;
+            }
+            Map<String, String> capabilities = new HashMap<String, String>();
+            for (Capability capability : capabilitySet.getCapabilities()) {
+                if (!StringConstants.INSTANCE_ID_CAPABILITY.equals(capability.getKey())
+                        && !StringConstants.AGENT_SLOTS_CAPABILITY.equals(capability.getKey())) {
+                    capabilities.put(capability.getKey(), capability.getValue());
+                }
+            }
+            capabilitySets.add(capabilities);
+        }
+        return capabilitySets.isEmpty() ? null : new CapabilityProfile(capabilitySets);
+    }
+
+    /**
+     * @param requirementSet
+     *            requirements of a job
+     * @return whether one of the fleet's agents meets every requirement
+     */
+    public boolean canRun(RequirementSet requirementSet) {
+        if (requirementSet == null || requirementSet.getRequirements() == null) {
+            return true;
+        }
+        for (Map<String, String> capabilities : capabilitySets) {
+            if (meetsAll(capabilities, requirementSet.getRequirements())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean meetsAll(Map<String, String> capabilities, Collection<Requirement> requirements) {
+        for (Requirement requirement : requirements) {
+            String value = capabilities.get(requirement.getKey());
+            if (value == null || !matches(requirement, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Requirement requirement, String value) {
+        String matchValue = requirement.getMatchValue();
+        if (!requirement.isRegexMatch()) {
+            return matchValue == null || matchValue.equals(value);
+        }
+        try {
+            return matchValue == null || Pattern.matches(matchValue, value);
+        } catch (PatternSyntaxException e) {
+            // Bamboo can't dispatch to the agent either, but counting the job keeps a typo from hiding demand
+            return true;
+        }
+    }
+
+    /**
+     * @return number of distinct capability sets
+     */
+    public int size() {
+        return capabilitySets.size();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CapabilityProfile
+                && capabilitySets.equals(((CapabilityProfile) other).capabilitySets);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return capabilitySets.size() + " capability sets";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+/**
+ * Decides how many units of target capacity a fleet should add for the current build queue. Scale-down stays with the
+ * idle instance rule; controllers only size scale-ups. Implementations may keep state between scaling cycles of the
+ * same fleet.
+ */
+public interface CapacityController {
+
+    /**
+     * @param input
+     *            queue state and scaling settings of the current cycle
+     * @return capacity units to add, at most {@link ScalingInput#getMaxUnitsPerScale()}, 0 to leave the fleet as it is
+     */
+    int getUnitsToAdd(ScalingInput input);
+
+    /**
+     * called once the scaling policy raised the fleet's target capacity, which it may not do with the units asked for,
+     * e.g. right after a scale-down
+     *
+     * @param now
+     *            time of the scaling cycle in milliseconds
+     */
+    void scaledUp(long now);
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Plugin-scoped capacity controllers. Task executions are created per run, so controllers that keep state between
+ * scaling cycles are held here, one per fleet.
+ */
+@Component
+public class CapacityControllerRegistry {
+    // controllers a task can be configured with
+    public static final String PROPORTIONAL = "proportional";
+    public static final String PID = "pid";
+    public static final List<String> CONTROLLERS = ImmutableList.of(PROPORTIONAL, PID);
+
+    private final CapacityController proportionalController = new ProportionalCapacityController();
+    private final ConcurrentMap<String, PidCapacityController> pidControllers =
+            new ConcurrentHashMap<String, PidCapacityController>();
+
+    /**
+     * @param fleetID
+     * @param controller
+     *            one of {@link #CONTROLLERS}, the proportional controller for anything else
+     * @return the fleet's controller
+     */
+    public CapacityController getController(String fleetID, String controller) {
+        if (!PID.equals(controller)) {
+            // a fleet switching back starts afresh if it is switched to the PID controller again
+            pidControllers.remove(fleetID);
+            return proportionalController;
+        }
+        PidCapacityController pidController = pidControllers.get(fleetID);
+        if (pidController == null) {
+            pidControllers.putIfAbsent(fleetID, new PidCapacityController());
+            pidController = pidControllers.get(fleetID);
+        }
+        return pidController;
+    }
+}
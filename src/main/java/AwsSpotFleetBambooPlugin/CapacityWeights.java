@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.SpotFleetLaunchSpecification;
+
+/**
+ * Weighted capacity of a fleet's instance types, read from its launch specifications. Spot fleet target capacity is
+ * counted in these weights, so a c5.4xlarge weighted 8 fulfils 8 units of a target a c5.large weighted 1 fulfils one
+ * unit of. Instance types without a weight count as 1, as they do for the fleet.
+ */
+public class CapacityWeights {
+    private final Map<String, Double> instanceTypeWeights;
+
+    /**
+     * @param instanceTypeWeights
+     *            instance types to weights
+     */
+    public CapacityWeights(Map<String, Double> instanceTypeWeights) {
+        this.instanceTypeWeights = instanceTypeWeights;
+    }
+
+    /**
+     * @param launchSpecifications
+     *            may be null
+     * @return weights of the instance types, the first launch specification's weight if a type appears in several
+     */
+    public static CapacityWeights fromLaunchSpecifications(List<SpotFleetLaunchSpecification> launchSpecifications) {
+        Map<String, Double> instanceTypeWeights = new HashMap<String, Double>();
+        if (launchSpecifications != null) {
+            for (SpotFleetLaunchSpecification launchSpecification : launchSpecifications) {
+                Double weight = launchSpecification.getWeightedCapacity();
+                if (launchSpecification.getInstanceType() != null && weight != null && weight > 0
+                        && !instanceTypeWeights.containsKey(launchSpecification.getInstanceType())) {
+                    instanceTypeWeights.put(launchSpecification.getInstanceType(), weight);
+                }
+            }
+        }
+        return new CapacityWeights(instanceTypeWeights);
+    }
+
+    /**
+     * @param instanceType
+     *            may be null
+     * @return capacity units an instance of the type fulfils
+     */
+    public double getWeight(String instanceType) {
+        Double weight = instanceType == null ? null : instanceTypeWeights.get(instanceType);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @param instanceKeysToInstanceIds
+     * @param fleetInventory
+     *            knows the instances' types
+     * @return instance keys to weights
+     */
+    public Map<String, Double> weighInstances(Map<String, String> instanceKeysToInstanceIds,
+            FleetInventory fleetInventory) {
+        Map<String, Double> instanceWeights = new HashMap<String, Double>();
+        for (Map.Entry<String, String> instance : instanceKeysToInstanceIds.entrySet()) {
+            instanceWeights.put(instance.getKey(), getWeight(fleetInventory.getInstanceType(instance.getValue())));
+        }
+        return instanceWeights;
+    }
+}
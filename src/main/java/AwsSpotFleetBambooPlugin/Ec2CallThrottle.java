@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Client-side rate limit and retries for the EC2 calls of one account and region, shared by every plan and daemon
+ * cycle using them. Calls take a token from a bucket holding up to {@link #BUCKET_CAPACITY} tokens, refilled at
+ * {@link #MAXIMUM_CALLS_PER_SECOND}. Throttling responses halve the refill rate, which recovers gradually as calls
+ * succeed. Throttled and transient failures are retried with exponential backoff and full jitter; other errors are
+ * thrown straight away.
+ */
+public class Ec2CallThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(Ec2CallThrottle.class);
+    public static final int BUCKET_CAPACITY = 20;
+    public static final double MAXIMUM_CALLS_PER_SECOND = 10;
+    public static final double MINIMUM_CALLS_PER_SECOND = 1;
+    // calls per second regained with every successful call after throttling
+    public static final double RATE_RECOVERY = 0.5;
+    public static final int MAXIMUM_ATTEMPTS = 4;
+    public static final long INITIAL_BACKOFF_MILLISECONDS = 200;
+    public static final long MAXIMUM_BACKOFF_MILLISECONDS = 10000;
+    public static final Set<String> THROTTLING_ERROR_CODES = ImmutableSet.of("RequestLimitExceeded", "Throttling",
+            "ThrottlingException", "RequestThrottled");
+    public static final Set<String> TRANSIENT_ERROR_CODES = ImmutableSet.of("InternalError", "ServiceUnavailable",
+            "Unavailable");
+    // client methods that don't call the EC2 API
+    private static final Set<String> LOCAL_METHODS = ImmutableSet.of("shutdown", "setEndpoint", "setRegion",
+            "getCachedResponseMetadata");
+    private static final double NANOSECONDS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Random random = new Random();
+    private final AtomicLong throttledCalls = new AtomicLong();
+    private final AtomicLong retriedCalls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    // tokens left, negative when callers have reserved tokens that are yet to be refilled
+    private double tokens = BUCKET_CAPACITY;
+    private double callsPerSecond = MAXIMUM_CALLS_PER_SECOND;
+    private long lastRefill;
+
+    public Ec2CallThrottle() {
+        lastRefill = nanoTime();
+    }
+
+    /**
+     * @param client
+     * @return client whose API calls go through this throttle
+     */
+    public AmazonEC2 wrap(final AmazonEC2 client) {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class<?>[] { AmazonEC2.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName())) {
+                            try {
+                                return method.invoke(client, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        return call(client, method, args);
+                    }
+                });
+    }
+
+    private Object call(AmazonEC2 client, Method method, Object[] args) throws Throwable {
+        for (int attempt = 1;; attempt++) {
+            try {
+                acquire();
+            } catch (InterruptedException interrupted) {
+                // the proxy can only throw what the client method declares, so surface it as a client failure
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("interrupted waiting to call " + method.getName(), interrupted);
+            }
+            try {
+                Object result = method.invoke(client, args);
+                succeeded();
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (!isRetryable(cause) || attempt >= MAXIMUM_ATTEMPTS) {
+                    failedCalls.incrementAndGet();
+                    throw cause;
+                }
+                retriedCalls.incrementAndGet();
+                long backoff = getBackoff(attempt);
+                logger.info(method.getName() + " failed, retrying in " + backoff + "ms: " + cause.getMessage());
+                try {
+                    sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw cause;
+                }
+            }
+        }
+    }
+
+    // throttled, server-side and retryable client failures are worth another attempt
+    private boolean isRetryable(Throwable failure) {
+        if (failure instanceof AmazonServiceException) {
+            AmazonServiceException e = (AmazonServiceException) failure;
+            if (THROTTLING_ERROR_CODES.contains(e.getErrorCode())) {
+                throttled();
+                return true;
+            }
+            return TRANSIENT_ERROR_CODES.contains(e.getErrorCode()) || e.getStatusCode() >= 500;
+        }
+        return failure instanceof AmazonClientException && ((AmazonClientException) failure).isRetryable();
+    }
+
+    // random delay up to an exponentially growing cap, so callers throttled together don't retry together
+    private long getBackoff(int attempt) {
+        long cap = Math.min(MAXIMUM_BACKOFF_MILLISECONDS, INITIAL_BACKOFF_MILLISECONDS << (attempt - 1));
+        return 1 + (long) (random.nextDouble() * cap);
+    }
+
+    /**
+     * wait for a token, reserving it so concurrent callers queue up behind each other
+     *
+     * @throws InterruptedException
+     */
+    private void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            refill();
+            tokens--;
+            wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / callsPerSecond * 1000);
+        }
+        if (wait > 0) {
+            sleep(wait);
+        }
+    }
+
+    private void refill() {
+        long now = nanoTime();
+        tokens = Math.min(BUCKET_CAPACITY, tokens + (now - lastRefill) / NANOSECONDS_PER_SECOND * callsPerSecond);
+        lastRefill = now;
+    }
+
+    private synchronized void throttled() {
+        throttledCalls.incrementAndGet();
+        refill();
+        callsPerSecond = Math.max(MINIMUM_CALLS_PER_SECOND, callsPerSecond / 2);
+    }
+
+    private synchronized void succeeded() {
+        if (callsPerSecond < MAXIMUM_CALLS_PER_SECOND) {
+            refill();
+            callsPerSecond = Math.min(MAXIMUM_CALLS_PER_SECOND, callsPerSecond + RATE_RECOVERY);
+        }
+    }
+
+    /**
+     * @return calls answered with a throttling error
+     */
+    public long getThrottledCalls() {
+        return throttledCalls.get();
+    }
+
+    /**
+     * @return retries issued after failed calls
+     */
+    public long getRetriedCalls() {
+        return retriedCalls.get();
+    }
+
+    /**
+     * @return calls that failed after their last attempt or with an error not worth retrying
+     */
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    /**
+     * @return calls per second currently allowed
+     */
+    public synchronized double getCallsPerSecond() {
+        return callsPerSecond;
+    }
+
+    /**
+     * overridden by tests
+     *
+     * @return current time in nanoseconds
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * wait for a token or before retrying, overridden by tests
+     *
+     * @param milliseconds
+     * @throws InterruptedException
+     */
+    protected void sleep(long milliseconds) throws InterruptedException {
+        Thread.sleep(milliseconds);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Plugin-scoped cache of EC2 clients shared by every task execution and configurator validation. Clients are keyed by
+ * a fingerprint of the credentials plus the region, so plans pointing at the same account and region reuse one client
+ * and its warm HTTP connection pool instead of building a new one on every run.
+ *
+ * Clients are leased with {@link #acquire} and handed back with {@link #release}. An evicted client (size bound or
+ * idle timeout) is shut down once its last lease is released, and all clients when the plugin is disabled.
+ *
+ * Calls go through an {@link Ec2CallThrottle} per AWS account and region, which replaces the SDK's own retries. EC2
+ * rate limits apply per account, so every credential set of an account shares the throttle; the account is looked up
+ * once per client, from the owner of the account's default security groups. Throttles are never evicted, so a rebuilt
+ * client doesn't start with a full bucket, and a lease returns the client together with the throttle its calls go
+ * through.
+ */
+@Component
+public class Ec2ClientRegistry implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(Ec2ClientRegistry.class);
+    // enough for several accounts across every supported region
+    public static final int MAXIMUM_CACHED_CLIENTS = 32;
+    public static final int CLIENT_IDLE_TIMEOUT_MINUTES = 30;
+
+    private final LoadingCache<ClientKey, ThrottledClient> clients;
+    // account and region to the throttle shared by their clients
+    private final ConcurrentMap<String, Ec2CallThrottle> throttles = new ConcurrentHashMap<String, Ec2CallThrottle>();
+
+    public Ec2ClientRegistry() {
+        clients = CacheBuilder.newBuilder().maximumSize(MAXIMUM_CACHED_CLIENTS)
+                .expireAfterAccess(CLIENT_IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+                .removalListener(new RemovalListener<ClientKey, ThrottledClient>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<ClientKey, ThrottledClient> notification) {
+                        // release the connection pool and idle connection reaper once no cycle uses the client
+                        notification.getValue().evict();
+                    }
+                }).build(new CacheLoader<ClientKey, ThrottledClient>() {
+                    @Override
+                    public ThrottledClient load(ClientKey key) {
+                        AmazonEC2 client = createClient(key.credentials, key.region);
+                        String account = getAccount(client, key.credentials);
+                        return new ThrottledClient(client, getThrottle(account, key.region));
+                    }
+                });
+    }
+
+    /**
+     * Lease the cached client for the given credentials and region, creating it on first use. Every lease must be
+     * handed back with {@link #release}
+     *
+     * @param accessKey
+     * @param secretKey
+     * @param regionCode
+     *            region code name, e.g. us-east-1
+     * @return shared EC2 client and the throttle of its account and region. Callers must not shut the client down
+     */
+    public ThrottledClient acquire(String accessKey, String secretKey, String regionCode) {
+        // resolve the region before touching the cache so an invalid region surfaces as it did before
+        Regions region = Regions.fromName(regionCode);
+        ClientKey key = new ClientKey(new BasicAWSCredentials(accessKey, secretKey), region);
+        while (true) {
+            ThrottledClient throttledClient;
+            try {
+                throttledClient = clients.getUnchecked(key);
+            } catch (UncheckedExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            // a client evicted after the lookup is already shut down, the cache holds its replacement
+            if (throttledClient.lease()) {
+                return throttledClient;
+            }
+        }
+    }
+
+    /**
+     * hand back a lease from {@link #acquire}
+     *
+     * @param throttledClient
+     */
+    public void release(ThrottledClient throttledClient) {
+        throttledClient.release();
+    }
+
+    /**
+     * @return number of clients currently cached
+     */
+    public long size() {
+        clients.cleanUp();
+        return clients.size();
+    }
+
+    /**
+     * builds a new client. Overridable so tests can substitute a mock client
+     *
+     * @param credentials
+     * @param region
+     * @return new EC2 client bound to the region, without retries of its own
+     */
+    protected AmazonEC2 createClient(AWSCredentials credentials, Regions region) {
+        return new AmazonEC2Client(credentials,
+                new ClientConfiguration().withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY)).withRegion(region);
+    }
+
+    /**
+     * shut down all cached clients when the plugin is disabled or uninstalled
+     */
+    @Override
+    public void destroy() {
+        clients.invalidateAll();
+        clients.cleanUp();
+    }
+
+    private Ec2CallThrottle getThrottle(String account, Regions region) {
+        String key = account + ":" + region.getName();
+        Ec2CallThrottle throttle = throttles.get(key);
+        if (throttle == null) {
+            throttles.putIfAbsent(key, new Ec2CallThrottle());
+            throttle = throttles.get(key);
+        }
+        return throttle;
+    }
+
+    // every account has default security groups, owned by the account, so EC2 itself tells which account a key is of
+    private static String getAccount(AmazonEC2 client, AWSCredentials credentials) {
+        try {
+            DescribeSecurityGroupsResult result = client.describeSecurityGroups(new DescribeSecurityGroupsRequest()
+                    .withFilters(new Filter("group-name").withValues("default")));
+            List<SecurityGroup> securityGroups = result == null ? null : result.getSecurityGroups();
+            if (securityGroups != null && !securityGroups.isEmpty() && securityGroups.get(0).getOwnerId() != null) {
+                return securityGroups.get(0).getOwnerId();
+            }
+        } catch (AmazonClientException e) {
+            logger.warn("could not look up the account of access key " + credentials.getAWSAccessKeyId()
+                    + ", its EC2 calls are throttled on their own: " + e.getMessage());
+        }
+        // the access key ID still groups the credential sets that only differ in a rotated secret
+        return "key:" + credentials.getAWSAccessKeyId();
+    }
+
+    /**
+     * cached client together with the throttle its calls go through
+     */
+    public static final class ThrottledClient {
+        private final Ec2CallThrottle throttle;
+        private final AmazonEC2 client;
+        // cycles using the client, and whether the cache let go of it
+        private int leases = 0;
+        private boolean evicted = false;
+
+        private ThrottledClient(AmazonEC2 client, Ec2CallThrottle throttle) {
+            this.throttle = throttle;
+            this.client = throttle.wrap(client);
+        }
+
+        /**
+         * @return shared EC2 client whose calls go through {@link #getThrottle()}
+         */
+        public AmazonEC2 getClient() {
+            return client;
+        }
+
+        /**
+         * @return rate limit and call counters shared by the clients of the account and region
+         */
+        public Ec2CallThrottle getThrottle() {
+            return throttle;
+        }
+
+        private synchronized boolean lease() {
+            if (evicted) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        private synchronized void release() {
+            leases--;
+            if (evicted && leases == 0) {
+                client.shutdown();
+            }
+        }
+
+        private synchronized void evict() {
+            evicted = true;
+            if (leases == 0) {
+                client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * cache key holding a one-way fingerprint of the credentials so the secret key is not used for equality
+     */
+    private static final class ClientKey {
+        private final AWSCredentials credentials;
+        private final Regions region;
+        private final String fingerprint;
+
+        private ClientKey(AWSCredentials credentials, Regions region) {
+            this.credentials = credentials;
+            this.region = region;
+            this.fingerprint = Hashing.sha256().hashString(
+                    credentials.getAWSAccessKeyId() + ":" + credentials.getAWSSecretKey(), Charsets.UTF_8).toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return fingerprint.equals(other.fingerprint) && region == other.region;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fingerprint.hashCode() + region.hashCode();
+        }
+    }
+}
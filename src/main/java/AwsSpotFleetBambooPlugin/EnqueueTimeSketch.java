@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Sketch of the enqueue times of the builds currently queued, kept up to date as builds enter and leave the queue.
+ * Enqueue times are counted in buckets of {@link #RESOLUTION_MILLISECONDS}, so builds queued together share a bucket,
+ * and wait statistics are derived when read as now minus the matching enqueue time. Long waits, the ones scale-up
+ * rules care about, are found by walking from the oldest bucket and short ones from the newest, so a read never walks
+ * more than half the buckets. The mean is kept exactly.
+ */
+public class EnqueueTimeSketch {
+    // statistics a scale-up rule can target
+    public static final String MEAN = "mean";
+    public static final String P50 = "p50";
+    public static final String P90 = "p90";
+    public static final String P99 = "p99";
+    public static final String MAX = "max";
+    public static final List<String> STATISTICS = ImmutableList.of(MEAN, P50, P90, P99, MAX);
+
+    // far below the minutes scale-up thresholds are set in
+    public static final long RESOLUTION_MILLISECONDS = 1000;
+
+    // bucket start time to number of builds queued within the bucket
+    private final TreeMap<Long, Integer> buckets = new TreeMap<Long, Integer>();
+    private int count = 0;
+    private long enqueueTimeSum = 0;
+
+    /**
+     * @param enqueueTime
+     *            time a build entered the queue in milliseconds
+     */
+    public void add(long enqueueTime) {
+        long bucket = bucketOf(enqueueTime);
+        Integer builds = buckets.get(bucket);
+        buckets.put(bucket, builds == null ? 1 : builds + 1);
+        count++;
+        enqueueTimeSum += enqueueTime;
+    }
+
+    /**
+     * add every build of another sketch, e.g. to combine the builds of the jobs a fleet can run
+     *
+     * @param other
+     */
+    public void addAll(EnqueueTimeSketch other) {
+        for (Map.Entry<Long, Integer> bucket : other.buckets.entrySet()) {
+            Integer builds = buckets.get(bucket.getKey());
+            buckets.put(bucket.getKey(), builds == null ? bucket.getValue() : builds + bucket.getValue());
+        }
+        count += other.count;
+        enqueueTimeSum += other.enqueueTimeSum;
+    }
+
+    /**
+     * @param enqueueTime
+     *            enqueue time previously added for a build that left the queue
+     */
+    public void remove(long enqueueTime) {
+        long bucket = bucketOf(enqueueTime);
+        Integer builds = buckets.get(bucket);
+        if (builds == null) {
+            return;
+        }
+        if (builds == 1) {
+            buckets.remove(bucket);
+        } else {
+            buckets.put(bucket, builds - 1);
+        }
+        count--;
+        enqueueTimeSum -= enqueueTime;
+    }
+
+    /**
+     * @return number of queued builds
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param statistic
+     *            one of {@link #STATISTICS}
+     * @param now
+     *            current time in milliseconds
+     * @return the statistic over the time queued builds have waited, in milliseconds, 0 if the queue is empty
+     */
+    public long getWait(String statistic, long now) {
+        if (P50.equals(statistic)) {
+            return getWaitPercentile(0.5, now);
+        } else if (P90.equals(statistic)) {
+            return getWaitPercentile(0.9, now);
+        } else if (P99.equals(statistic)) {
+            return getWaitPercentile(0.99, now);
+        } else if (MAX.equals(statistic)) {
+            return getWaitPercentile(1, now);
+        }
+        return count == 0 ? 0 : Math.max(0, now - enqueueTimeSum / count);
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1, e.g. 0.9 for the 90th percentile
+     * @param now
+     *            current time in milliseconds
+     * @return wait at the given quantile in milliseconds, accurate to {@link #RESOLUTION_MILLISECONDS}
+     */
+    public long getWaitPercentile(double quantile, long now) {
+        if (count == 0) {
+            return 0;
+        }
+        // nearest-rank percentile of the waits is the rank-th newest enqueue time
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long rankFromOldest = count - rank + 1;
+        boolean fromOldest = rankFromOldest <= rank;
+        NavigableMap<Long, Integer> walk = fromOldest ? buckets : buckets.descendingMap();
+        long target = fromOldest ? rankFromOldest : rank;
+        long seen = 0;
+        for (Map.Entry<Long, Integer> bucket : walk.entrySet()) {
+            seen += bucket.getValue();
+            if (seen >= target) {
+                return Math.max(0, now - bucket.getKey());
+            }
+        }
+        return Math.max(0, now - buckets.firstKey());
+    }
+
+    private static long bucketOf(long enqueueTime) {
+        return enqueueTime - enqueueTime % RESOLUTION_MILLISECONDS;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
+import com.amazonaws.services.ec2.model.SpotFleetLaunchSpecification;
+import com.amazonaws.services.ec2.model.SpotFleetRequestConfigData;
+import com.atlassian.bamboo.ResultKey;
+
+/**
+ * Coordinates the fleets of a task configuring several, e.g. one per availability zone, instance family or operating
+ * system. Without it each fleet would see the whole build queue and scale up for all of it. Every cycle the fleets are
+ * described in parallel and the queued and predicted builds are split between them: each queued build goes to the
+ * cheapest fleet whose agents can run it and that has room for it below
+ * {@link SpotFleetTaskExecution#MAXIMUM_TARGET_CAPACITY}. Predicted builds fill the remaining room, cheapest fleet
+ * first. Each fleet then scales for its own share.
+ */
+@Component
+public class FleetCoordinator implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(FleetCoordinator.class);
+    // a describe taking longer leaves the fleet to describe itself during its cycle, which reports the error
+    public static final long DESCRIBE_TIMEOUT_MILLISECONDS = 30000;
+
+    /**
+     * Builds a fleet scales for
+     */
+    public static class DemandShare {
+        private final int queuedBuilds;
+        private final int predictedBuilds;
+
+        public DemandShare(int queuedBuilds, int predictedBuilds) {
+            this.queuedBuilds = queuedBuilds;
+            this.predictedBuilds = predictedBuilds;
+        }
+
+        public int getQueuedBuilds() {
+            return queuedBuilds;
+        }
+
+        public int getPredictedBuilds() {
+            return predictedBuilds;
+        }
+
+        @Override
+        public String toString() {
+            return queuedBuilds + " queued, " + predictedBuilds + " predicted builds";
+        }
+    }
+
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    private QueueRequirementMatcher queueRequirementMatcher;
+    private final ExecutorService describeThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "spot-fleet-describe-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @Autowired
+    public FleetCoordinator(FleetInventoryRegistry fleetInventoryRegistry,
+            QueueRequirementMatcher queueRequirementMatcher) {
+        this.fleetInventoryRegistry = fleetInventoryRegistry;
+        this.queueRequirementMatcher = queueRequirementMatcher;
+    }
+
+    @Override
+    public void destroy() {
+        describeThreads.shutdownNow();
+    }
+
+    /**
+     * @param fleetIdInput
+     *            fleet request IDs separated by commas or whitespace, may be null
+     * @return the fleet request IDs in the order given, without duplicates
+     */
+    public static List<String> parseFleetIds(String fleetIdInput) {
+        Set<String> fleetIds = new LinkedHashSet<String>();
+        if (fleetIdInput != null) {
+            for (String fleetId : fleetIdInput.split("[,\\s]+")) {
+                if (!StringUtils.isEmpty(fleetId)) {
+                    fleetIds.add(fleetId);
+                }
+            }
+        }
+        return new ArrayList<String>(fleetIds);
+    }
+
+    /**
+     * Describe the fleets in parallel. A fleet that can't be described is left out and logged to the server log
+     *
+     * @param EC2Client
+     * @param fleetIds
+     * @return fleet IDs to fleet configurations, in the order given
+     */
+    public Map<String, SpotFleetRequestConfigData> describeFleets(final AmazonEC2 EC2Client, List<String> fleetIds) {
+        Map<String, Future<SpotFleetRequestConfigData>> describes =
+                new LinkedHashMap<String, Future<SpotFleetRequestConfigData>>();
+        for (final String fleetId : fleetIds) {
+            describes.put(fleetId, describeThreads.submit(new Callable<SpotFleetRequestConfigData>() {
+                @Override
+                public SpotFleetRequestConfigData call() {
+                    return EC2Client
+                            .describeSpotFleetRequests(
+                                    new DescribeSpotFleetRequestsRequest().withSpotFleetRequestIds(fleetId))
+                            .getSpotFleetRequestConfigs().get(0).getSpotFleetRequestConfig();
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + DESCRIBE_TIMEOUT_MILLISECONDS;
+        Map<String, SpotFleetRequestConfigData> fleets = new LinkedHashMap<String, SpotFleetRequestConfigData>();
+        for (Map.Entry<String, Future<SpotFleetRequestConfigData>> describe : describes.entrySet()) {
+            try {
+                fleets.put(describe.getKey(), describe.getValue()
+                        .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                logger.warn("could not describe fleet " + describe.getKey() + ": " + e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                describe.getValue().cancel(true);
+                logger.warn("describing fleet " + describe.getKey() + " timed out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return fleets;
+    }
+
+    /**
+     * Split builds between fleets, cheapest capacity first and limited by how much each fleet can still grow. A queued
+     * build only goes to fleets whose agents can run it, to the cheapest of them if none has room left. Builds no
+     * fleet can run get none. Fleets that couldn't be described get an empty share, so they don't scale for the whole
+     * queue while the others scale for theirs
+     *
+     * @param fleetIds
+     *            all fleet IDs of the task
+     * @param fleets
+     *            fleet IDs to configurations of the fleets that were described, the order breaks ties in price
+     * @param queuedBuilds
+     *            result keys of the queued builds
+     * @param predictedBuilds
+     * @return fleet IDs to their shares, for every fleet ID given
+     */
+    public Map<String, DemandShare> splitDemand(List<String> fleetIds, Map<String, SpotFleetRequestConfigData> fleets,
+            Collection<ResultKey> queuedBuilds, int predictedBuilds) {
+        final Map<String, Double> unitPrices = new HashMap<String, Double>();
+        Map<String, Integer> headroom = new HashMap<String, Integer>();
+        Map<String, CapabilityProfile> capabilityProfiles = new HashMap<String, CapabilityProfile>();
+        for (Map.Entry<String, SpotFleetRequestConfigData> fleet : fleets.entrySet()) {
+            unitPrices.put(fleet.getKey(), getUnitPrice(fleet.getValue()));
+            headroom.put(fleet.getKey(), getBuildHeadroom(fleet.getKey(), fleet.getValue()));
+            capabilityProfiles.put(fleet.getKey(),
+                    fleetInventoryRegistry.getInventory(fleet.getKey()).getCapabilityProfile());
+        }
+        List<String> byPrice = new ArrayList<String>(fleets.keySet());
+        Collections.sort(byPrice, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                return Double.compare(unitPrices.get(first), unitPrices.get(second));
+            }
+        });
+        Map<String, Integer> queuedShares = new HashMap<String, Integer>();
+        for (String fleetId : byPrice) {
+            queuedShares.put(fleetId, 0);
+        }
+        for (ResultKey queuedBuild : queuedBuilds) {
+            String cheapestCapable = null;
+            String assignedFleet = null;
+            for (String fleetId : byPrice) {
+                if (!queueRequirementMatcher.canRun(queuedBuild, capabilityProfiles.get(fleetId))) {
+                    continue;
+                }
+                if (cheapestCapable == null) {
+                    cheapestCapable = fleetId;
+                }
+                if (headroom.get(fleetId) > 0) {
+                    assignedFleet = fleetId;
+                    headroom.put(fleetId, headroom.get(fleetId) - 1);
+                    break;
+                }
+            }
+            if (assignedFleet == null) {
+                assignedFleet = cheapestCapable;
+            }
+            if (assignedFleet != null) {
+                queuedShares.put(assignedFleet, queuedShares.get(assignedFleet) + 1);
+            }
+        }
+        Map<String, Integer> predictedShares = split(byPrice, headroom, predictedBuilds);
+        Map<String, DemandShare> shares = new LinkedHashMap<String, DemandShare>();
+        for (String fleetId : fleetIds) {
+            shares.put(fleetId, fleets.containsKey(fleetId)
+                    ? new DemandShare(queuedShares.get(fleetId), predictedShares.get(fleetId)) : new DemandShare(0, 0));
+        }
+        return shares;
+    }
+
+    // hands out predicted builds in price order, taking up the headroom it uses
+    private static Map<String, Integer> split(List<String> byPrice, Map<String, Integer> headroom, int builds) {
+        Map<String, Integer> shares = new HashMap<String, Integer>();
+        int remaining = builds;
+        for (String fleetId : byPrice) {
+            int share = Math.min(remaining, headroom.get(fleetId));
+            shares.put(fleetId, share);
+            headroom.put(fleetId, headroom.get(fleetId) - share);
+            remaining -= share;
+        }
+        if (remaining > 0 && !byPrice.isEmpty()) {
+            shares.put(byPrice.get(0), shares.get(byPrice.get(0)) + remaining);
+        }
+        return shares;
+    }
+
+    /**
+     * @param fleetConfig
+     * @return lowest price per capacity unit the fleet bids, unbounded if the fleet has no price. A launch
+     *         specification's own price is per instance hour and divided by its weight, the fleet's price is already
+     *         per unit hour and applies to launch specifications without a price of their own
+     */
+    public static double getUnitPrice(SpotFleetRequestConfigData fleetConfig) {
+        double fleetPrice = parsePrice(fleetConfig.getSpotPrice());
+        if (fleetConfig.getLaunchSpecifications() == null || fleetConfig.getLaunchSpecifications().isEmpty()) {
+            return fleetPrice;
+        }
+        double unitPrice = Double.POSITIVE_INFINITY;
+        for (SpotFleetLaunchSpecification launchSpecification : fleetConfig.getLaunchSpecifications()) {
+            double price = fleetPrice;
+            if (launchSpecification.getSpotPrice() != null) {
+                price = parsePrice(launchSpecification.getSpotPrice());
+                Double weight = launchSpecification.getWeightedCapacity();
+                if (weight != null && weight > 0) {
+                    price /= weight;
+                }
+            }
+            unitPrice = Math.min(unitPrice, price);
+        }
+        return unitPrice;
+    }
+
+    private static double parsePrice(String price) {
+        try {
+            return price == null ? Double.POSITIVE_INFINITY : Double.parseDouble(price);
+        } catch (NumberFormatException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    // builds the fleet can take before reaching the maximum target capacity, going by the agents its instances run
+    private int getBuildHeadroom(String fleetId, SpotFleetRequestConfigData fleetConfig) {
+        int targetCapacity = fleetConfig.getTargetCapacity() == null ? 0 : fleetConfig.getTargetCapacity();
+        int units = Math.max(0, SpotFleetTaskExecution.MAXIMUM_TARGET_CAPACITY - targetCapacity);
+        FleetInventory fleetInventory = fleetInventoryRegistry.getInventory(fleetId);
+        double agentsPerUnit = fleetInventory.getAgentSlots().getAgentsPerUnit(CapacityWeights
+                .fromLaunchSpecifications(fleetConfig.getLaunchSpecifications())
+                .weighInstances(fleetInventory.getInstanceKeys(), fleetInventory));
+        return (int) Math.floor(units * agentsPerUnit + 1e-9);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.ActiveInstance;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * Inventory of the instances of a single spot fleet, kept between task executions by {@link FleetInventoryRegistry}.
+ *
+ * Each refresh pages through DescribeSpotFleetInstances, forgets instances that left the fleet and only calls
+ * DescribeInstances for instances it has not seen before, so steady-state API calls scale with the number of changed
+ * instances rather than with fleet size. DescribeInstances results are written into the inventory a page at a time
+ * rather than collecting every Reservation first.
+ *
+ * Instances whose agents report their instance ID are keyed by that ID and never described. Private DNS names are
+ * only looked up while agents started by older user data scripts, which can only be matched by name, are around.
+ */
+public class FleetInventory {
+    // upper bound accepted by DescribeSpotFleetInstances
+    public static final int SPOT_FLEET_INSTANCES_PAGE_SIZE = 1000;
+    // instance IDs per DescribeInstances call, keeps request and response sizes bounded
+    public static final int DESCRIBE_INSTANCES_BATCH_SIZE = 100;
+
+    private final String fleetID;
+    // agents are named after their private DNS e.g. ip-172-31-68-230.ec2.internal
+    private final Map<String, String> instanceIdsToDnsNames = new HashMap<String, String>();
+    private final Set<String> activeInstanceIds = new LinkedHashSet<String>();
+    // instance IDs to instance types, which set the instances' weighted capacity
+    private final Map<String, String> instanceTypes = new HashMap<String, String>();
+    // copy of the active instance IDs readable without waiting for a scaling cycle holding the inventory's lock
+    private volatile Set<String> activeInstanceIdSnapshot = ImmutableSet.of();
+    // instances whose agents report their instance ID
+    private final Set<String> reportedInstanceIds = new HashSet<String>();
+    // instances that left the fleet while their agents were still registered, kept until the agents are gone
+    private final Set<String> departedInstanceIds = new HashSet<String>();
+    // agents registered, busy and expected on each instance, updated by scaling cycles
+    private final AgentSlotTable agentSlots = new AgentSlotTable();
+    // instance keys to IDs of instances draining ahead of termination, only changed by scaling cycles holding the lock
+    private final Map<String, String> retiringInstances = new HashMap<String, String>();
+    // instance keys to IDs of drained instances already taken off target capacity, terminated until EC2 confirms.
+    // Inventories are never evicted, so the retries carry over to the fleet's next cycle however late it runs
+    private final Map<String, String> pendingTerminations = new HashMap<String, String>();
+    // capabilities of the fleet's agents when it last had any, read by coordinators of other fleets' cycles
+    private volatile CapabilityProfile capabilityProfile = null;
+    // instance IDs to the tags applied to them, so only new instances and changed values are tagged
+    private final Map<String, Map<String, String>> appliedTags = new HashMap<String, Map<String, String>>();
+    // key of the plan whose task last scaled the fleet, kept for background cycles
+    private volatile String planKey = null;
+
+    public FleetInventory(String fleetID) {
+        this.fleetID = fleetID;
+    }
+
+    public String getFleetID() {
+        return fleetID;
+    }
+
+    /**
+     * bring the inventory up to date with the fleet, describing only instances that joined since the last refresh
+     *
+     * @param EC2Client
+     * @return snapshot of private DNS names to instance IDs of the active instances
+     */
+    public synchronized Map<String, String> refresh(AmazonEC2 EC2Client) {
+        return refresh(EC2Client, Collections.<String>emptySet(), true);
+    }
+
+    /**
+     * Bring the inventory up to date with the fleet. Instances whose agents report their instance ID are never
+     * described; the others are described once if agents can only be matched by private DNS name
+     *
+     * @param EC2Client
+     * @param agentInstanceIds
+     *            instance IDs reported by agents
+     * @param matchByDnsName
+     *            whether agents without a reported instance ID are around
+     * @return snapshot of instance keys to instance IDs of the active instances, see {@link #getInstanceKeys()}
+     */
+    public synchronized Map<String, String> refresh(AmazonEC2 EC2Client, Set<String> agentInstanceIds,
+            boolean matchByDnsName) {
+        Map<String, String> previousInstanceKeys = getInstanceKeys();
+        Map<String, String> activeInstances = describeActiveInstances(EC2Client, fleetID);
+        departedInstanceIds.addAll(Sets.difference(activeInstanceIds, activeInstances.keySet()));
+        departedInstanceIds.retainAll(agentInstanceIds);
+        activeInstanceIds.clear();
+        activeInstanceIds.addAll(activeInstances.keySet());
+        instanceTypes.clear();
+        instanceTypes.putAll(activeInstances);
+        activeInstanceIdSnapshot = ImmutableSet.copyOf(activeInstanceIds);
+        // drop instances that are no longer part of the fleet
+        instanceIdsToDnsNames.keySet().retainAll(activeInstanceIds);
+        retiringInstances.values().retainAll(activeInstanceIds);
+        pendingTerminations.values().retainAll(activeInstanceIds);
+        appliedTags.keySet().retainAll(activeInstanceIds);
+        reportedInstanceIds.clear();
+        reportedInstanceIds.addAll(Sets.intersection(activeInstanceIds, agentInstanceIds));
+        if (matchByDnsName) {
+            List<String> newInstanceIds = new ArrayList<String>();
+            for (String instanceId : activeInstanceIds) {
+                if (!reportedInstanceIds.contains(instanceId) && !instanceIdsToDnsNames.containsKey(instanceId)) {
+                    newInstanceIds.add(instanceId);
+                }
+            }
+            describePrivateDnsNames(EC2Client, newInstanceIds, instanceIdsToDnsNames);
+        }
+        Map<String, String> instanceKeys = getInstanceKeys();
+        migrateInstanceKeys(previousInstanceKeys, instanceKeys);
+        return instanceKeys;
+    }
+
+    // carry the slots, retirement and pending termination of instances over to their new key, e.g. once agents
+    // report the instance ID
+    private void migrateInstanceKeys(Map<String, String> previousInstanceKeys, Map<String, String> instanceKeys) {
+        Map<String, String> instanceIdsToKeys = new HashMap<String, String>();
+        for (Map.Entry<String, String> instanceKey : instanceKeys.entrySet()) {
+            instanceIdsToKeys.put(instanceKey.getValue(), instanceKey.getKey());
+        }
+        for (Map.Entry<String, String> previousKey : previousInstanceKeys.entrySet()) {
+            String newKey = instanceIdsToKeys.get(previousKey.getValue());
+            if (newKey == null || newKey.equals(previousKey.getKey())) {
+                continue;
+            }
+            agentSlots.rekey(previousKey.getKey(), newKey);
+            rekey(retiringInstances, previousKey.getKey(), newKey);
+            rekey(pendingTerminations, previousKey.getKey(), newKey);
+        }
+    }
+
+    private static void rekey(Map<String, String> instances, String oldKey, String newKey) {
+        String instanceId = instances.remove(oldKey);
+        if (instanceId != null) {
+            instances.put(newKey, instanceId);
+        }
+    }
+
+    /**
+     * @return agent slots of the fleet's instances
+     */
+    public AgentSlotTable getAgentSlots() {
+        return agentSlots;
+    }
+
+    /**
+     * @return instance keys to IDs of the instances whose agents are disabled ahead of termination, for scaling cycles
+     *         holding the inventory's lock to modify
+     */
+    public Map<String, String> getRetiringInstances() {
+        return retiringInstances;
+    }
+
+    /**
+     * @return instance keys to IDs of drained instances no longer in the fleet's target capacity whose termination
+     *         hasn't succeeded yet, for scaling cycles holding the inventory's lock to retry and modify
+     */
+    public Map<String, String> getPendingTerminations() {
+        return pendingTerminations;
+    }
+
+    /**
+     * @return capabilities of the fleet's agents when it last had any, null if it never had
+     */
+    public CapabilityProfile getCapabilityProfile() {
+        return capabilityProfile;
+    }
+
+    /**
+     * @param capabilityProfile
+     *            capabilities of the fleet's current agents
+     */
+    public void setCapabilityProfile(CapabilityProfile capabilityProfile) {
+        this.capabilityProfile = capabilityProfile;
+    }
+
+    /**
+     * @return key of the plan whose task last scaled the fleet, null if only the background daemon has
+     */
+    public String getPlanKey() {
+        return planKey;
+    }
+
+    /**
+     * @param planKey
+     *            key of the plan whose task is scaling the fleet
+     */
+    public void setPlanKey(String planKey) {
+        this.planKey = planKey;
+    }
+
+    /**
+     * @param instanceId
+     * @param tags
+     *            tags the instance should have
+     * @return the tags the instance doesn't have yet, or has with a different value
+     */
+    public synchronized Map<String, String> getTagChanges(String instanceId, Map<String, String> tags) {
+        Map<String, String> applied = appliedTags.get(instanceId);
+        if (applied == null) {
+            return tags;
+        }
+        Map<String, String> changes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (!tag.getValue().equals(applied.get(tag.getKey()))) {
+                changes.put(tag.getKey(), tag.getValue());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * record tags applied to active instances
+     *
+     * @param instanceIds
+     * @param tags
+     */
+    public synchronized void tagsApplied(Collection<String> instanceIds, Map<String, String> tags) {
+        for (String instanceId : instanceIds) {
+            if (!activeInstanceIds.contains(instanceId)) {
+                continue;
+            }
+            Map<String, String> applied = appliedTags.get(instanceId);
+            if (applied == null) {
+                applied = new HashMap<String, String>();
+                appliedTags.put(instanceId, applied);
+            }
+            applied.putAll(tags);
+        }
+    }
+
+    /**
+     * @return number of active instances reported by the fleet on the last refresh
+     */
+    public synchronized int getActiveInstanceCount() {
+        return activeInstanceIds.size();
+    }
+
+    /**
+     * @param instanceId
+     * @return type of the active instance, null if unknown
+     */
+    public synchronized String getInstanceType(String instanceId) {
+        return instanceTypes.get(instanceId);
+    }
+
+    /**
+     * @param instanceId
+     * @return whether the instance was active in the fleet on the last refresh, doesn't wait for a running refresh
+     */
+    public boolean containsInstance(String instanceId) {
+        return activeInstanceIdSnapshot.contains(instanceId);
+    }
+
+    /**
+     * @return IDs of the active instances and of instances that left the fleet while agents still report them, safe
+     *         for the caller to modify
+     */
+    public synchronized Set<String> getFleetInstanceIds() {
+        Set<String> fleetInstanceIds = new HashSet<String>(activeInstanceIds);
+        fleetInstanceIds.addAll(departedInstanceIds);
+        return fleetInstanceIds;
+    }
+
+    /**
+     * @return snapshot of private DNS names to instance IDs, safe for the caller to modify
+     */
+    public synchronized Map<String, String> getDnsNamesToInstanceIds() {
+        Map<String, String> dnsNamesToInstanceIds = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : instanceIdsToDnsNames.entrySet()) {
+            dnsNamesToInstanceIds.put(entry.getValue(), entry.getKey());
+        }
+        return dnsNamesToInstanceIds;
+    }
+
+    /**
+     * Snapshot of the active instances keyed the way {@link AgentInstanceResolver#getInstanceKey} keys their agents:
+     * by instance ID if an agent reported it or no private DNS name is known, otherwise by private DNS name
+     *
+     * @return instance keys to instance IDs, safe for the caller to modify
+     */
+    public synchronized Map<String, String> getInstanceKeys() {
+        Map<String, String> instanceKeys = new HashMap<String, String>();
+        for (String instanceId : activeInstanceIds) {
+            String dnsName = instanceIdsToDnsNames.get(instanceId);
+            if (reportedInstanceIds.contains(instanceId) || dnsName == null) {
+                instanceKeys.put(instanceId, instanceId);
+            } else {
+                instanceKeys.put(dnsName, instanceId);
+            }
+        }
+        return instanceKeys;
+    }
+
+    /**
+     * list the IDs of all active instances in the fleet, across every page of results
+     *
+     * @param EC2Client
+     * @param fleetID
+     * @return active instance IDs
+     */
+    public static List<String> describeActiveInstanceIds(AmazonEC2 EC2Client, String fleetID) {
+        return new ArrayList<String>(describeActiveInstances(EC2Client, fleetID).keySet());
+    }
+
+    /**
+     * list all active instances in the fleet with their instance types, across every page of results
+     *
+     * @param EC2Client
+     * @param fleetID
+     * @return active instance IDs to instance types, in the order the fleet lists them
+     */
+    public static Map<String, String> describeActiveInstances(AmazonEC2 EC2Client, String fleetID) {
+        Map<String, String> instances = new LinkedHashMap<String, String>();
+        String nextToken = null;
+        do {
+            DescribeSpotFleetInstancesRequest describeSpotFleetInstancesRequest = new DescribeSpotFleetInstancesRequest()
+                    .withSpotFleetRequestId(fleetID).withMaxResults(SPOT_FLEET_INSTANCES_PAGE_SIZE)
+                    .withNextToken(nextToken);
+            DescribeSpotFleetInstancesResult describeSpotFleetInstancesResult = EC2Client
+                    .describeSpotFleetInstances(describeSpotFleetInstancesRequest);
+            for (ActiveInstance activeInstance : describeSpotFleetInstancesResult.getActiveInstances()) {
+                instances.put(activeInstance.getInstanceId(), activeInstance.getInstanceType());
+            }
+            nextToken = describeSpotFleetInstancesResult.getNextToken();
+        } while (nextToken != null && !nextToken.isEmpty());
+        return instances;
+    }
+
+    /**
+     * Describe the given instances in batches and put each instance's private DNS name into the map as its page is
+     * read
+     *
+     * @param EC2Client
+     * @param instanceIds
+     * @param instanceIdsToDnsNames
+     *            map receiving instance ID to private DNS name entries
+     */
+    public static void describePrivateDnsNames(AmazonEC2 EC2Client, Collection<String> instanceIds,
+            Map<String, String> instanceIdsToDnsNames) {
+        // an empty instance ID list would describe every instance in the account
+        for (List<String> batch : Iterables.partition(instanceIds, DESCRIBE_INSTANCES_BATCH_SIZE)) {
+            String nextToken = null;
+            do {
+                DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest()
+                        .withInstanceIds(batch).withNextToken(nextToken);
+                DescribeInstancesResult describeInstancesResult = EC2Client.describeInstances(describeInstancesRequest);
+                for (Reservation reservation : describeInstancesResult.getReservations()) {
+                    for (Instance instance : reservation.getInstances()) {
+                        instanceIdsToDnsNames.put(instance.getInstanceId(), instance.getPrivateDnsName());
+                    }
+                }
+                nextToken = describeInstancesResult.getNextToken();
+            } while (nextToken != null && !nextToken.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Plugin-scoped holder of {@link FleetInventory} instances so fleet state survives between task executions.
+ * Inventories are keyed by fleet request ID: pointing a task at a different fleet starts from an empty inventory.
+ *
+ * An inventory is the fleet's lock and the only record of instances draining or waiting for termination, so it is
+ * never evicted, however rarely the fleet's task runs. It is only dropped once the fleet is cancelled.
+ */
+@Component
+public class FleetInventoryRegistry {
+    private final ConcurrentMap<String, FleetInventory> inventories = new ConcurrentHashMap<String, FleetInventory>();
+
+    /**
+     * @param fleetID
+     * @return inventory of the fleet, empty if the fleet has not been seen before
+     */
+    public FleetInventory getInventory(String fleetID) {
+        FleetInventory inventory = inventories.get(fleetID);
+        if (inventory == null) {
+            FleetInventory created = new FleetInventory(fleetID);
+            inventory = inventories.putIfAbsent(fleetID, created);
+            if (inventory == null) {
+                inventory = created;
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * @param instanceId
+     * @return whether the instance was active in any known fleet on that fleet's last refresh
+     */
+    public boolean isFleetInstance(String instanceId) {
+        for (FleetInventory inventory : inventories.values()) {
+            if (inventory.containsInstance(instanceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param instanceId
+     * @param fleetIDs
+     * @return whether the instance was active in one of the given fleets on that fleet's last refresh
+     */
+    public boolean isFleetInstance(String instanceId, Collection<String> fleetIDs) {
+        for (String fleetID : fleetIDs) {
+            FleetInventory inventory = inventories.get(fleetID);
+            if (inventory != null && inventory.containsInstance(instanceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * forget everything known about a fleet, e.g. after it was cancelled
+     *
+     * @param fleetID
+     */
+    public void invalidate(String fleetID) {
+        inventories.remove(fleetID);
+    }
+}
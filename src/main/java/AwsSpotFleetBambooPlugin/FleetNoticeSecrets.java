@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.ApplicationProperties;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+
+/**
+ * Secrets the user data script sends with the notices it reports, so only instances launched with a task's script
+ * can drain agents of the task's fleets. A task's secret is an HMAC of its fleet IDs under a random key kept in the
+ * Bamboo home directory, so it needs no storage of its own, stays the same across restarts and changes with the
+ * fleets. Without a home directory the key lives in memory and scripts must be copied again after a restart.
+ */
+@Component
+public class FleetNoticeSecrets {
+    private static final Logger logger = LoggerFactory.getLogger(FleetNoticeSecrets.class);
+    public static final String KEY_FILE_NAME = "spot-fleet-notice.key";
+    public static final int KEY_BYTES = 32;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private ApplicationProperties applicationProperties;
+    private byte[] key;
+
+    @Autowired
+    public FleetNoticeSecrets(@ComponentImport ApplicationProperties applicationProperties) {
+        this.applicationProperties = applicationProperties;
+    }
+
+    /**
+     * @param fleetIds
+     *            the task's fleet IDs, comma separated as stored in its configuration
+     * @return secret for the task's user data script, empty if the task has no fleets yet
+     */
+    public String getSecret(String fleetIds) {
+        if (StringUtils.isBlank(fleetIds)) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(getKey(), HMAC_ALGORITHM));
+            return HEX.encode(mac.doFinal(fleetIds.getBytes(Charsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @param fleetIds
+     *            fleet IDs the script was rendered for
+     * @param secret
+     *            secret the script sent
+     * @return whether the secret is the one rendered into the fleets' script
+     */
+    public boolean isValid(String fleetIds, String secret) {
+        if (StringUtils.isBlank(fleetIds) || StringUtils.isBlank(secret)) {
+            return false;
+        }
+        // constant time, so the secret can't be guessed a byte at a time
+        return MessageDigest.isEqual(getSecret(fleetIds).getBytes(Charsets.UTF_8),
+                secret.trim().getBytes(Charsets.UTF_8));
+    }
+
+    // read the key kept by previous server runs, or create it
+    private synchronized byte[] getKey() {
+        if (key != null) {
+            return key;
+        }
+        File homeDirectory = applicationProperties.getHomeDirectory();
+        File keyFile = homeDirectory == null ? null : new File(homeDirectory, KEY_FILE_NAME);
+        try {
+            if (keyFile != null && keyFile.length() == KEY_BYTES) {
+                key = Files.toByteArray(keyFile);
+                return key;
+            }
+        } catch (IOException e) {
+            logger.warn("could not read notice key " + keyFile + ", creating a new one", e);
+        }
+        key = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        if (keyFile == null) {
+            logger.warn("no Bamboo home directory, notice secrets change when the server restarts");
+            return key;
+        }
+        try {
+            Files.write(key, keyFile);
+            keyFile.setReadable(false, false);
+            keyFile.setReadable(true, true);
+        } catch (IOException e) {
+            logger.warn("could not save notice key " + keyFile + ", notice secrets change when the server restarts",
+                    e);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.collect.Iterables;
+
+/**
+ * Tags fleet instances for cost attribution. The tags are configured in the task, one key=value per line, and values
+ * can include {@link #FLEET_ID}, {@link #PLAN_KEY}, {@link #AGENT_IDS} and {@link #LAUNCH_TIME}, filled in per
+ * instance. The fleet's {@link FleetInventory} remembers the tags applied to each instance, so only new instances and
+ * changed values are sent. Instances needing the same tags share CreateTags requests of up to
+ * {@link #RESOURCES_PER_REQUEST} instances; throttled requests are retried by the client's {@link Ec2CallThrottle}.
+ */
+public class InstanceTagger {
+    private static final Logger logger = LoggerFactory.getLogger(InstanceTagger.class);
+    // tag every version of the plugin has put on the instances it scales
+    public static final String DEFAULT_TAGS = "Bamboo-Spot-Fleet-Plugin-0811=";
+    public static final String FLEET_ID = "{fleetId}";
+    public static final String PLAN_KEY = "{planKey}";
+    public static final String AGENT_IDS = "{agentIds}";
+    public static final String LAUNCH_TIME = "{launchTime}";
+    public static final int RESOURCES_PER_REQUEST = 100;
+    public static final int MAXIMUM_TAGS = 50;
+    public static final int MAXIMUM_KEY_LENGTH = 127;
+    public static final int MAXIMUM_VALUE_LENGTH = 255;
+    private static final String LAUNCH_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    // tag keys to value templates
+    private final Map<String, String> tagTemplates = new LinkedHashMap<String, String>();
+
+    /**
+     * @param tags
+     *            one key=value per line, null or blank for {@link #DEFAULT_TAGS}
+     * @throws IllegalArgumentException
+     *             if a line isn't a valid tag
+     */
+    public InstanceTagger(String tags) {
+        for (String line : StringUtils.defaultIfBlank(tags, DEFAULT_TAGS).split("\\r?\\n")) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            int separator = line.indexOf('=');
+            String key = separator < 0 ? "" : line.substring(0, separator).trim();
+            if (key.isEmpty() || key.length() > MAXIMUM_KEY_LENGTH || key.startsWith("aws:")) {
+                throw new IllegalArgumentException("Not a key=value tag: " + line.trim());
+            }
+            tagTemplates.put(key, line.substring(separator + 1).trim());
+        }
+        if (tagTemplates.size() > MAXIMUM_TAGS) {
+            throw new IllegalArgumentException("At most " + MAXIMUM_TAGS + " tags");
+        }
+    }
+
+    /**
+     * @return whether a tag value includes the instance's agent IDs
+     */
+    public boolean usesAgentIds() {
+        for (String template : tagTemplates.values()) {
+            if (template.contains(AGENT_IDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param fleetId
+     * @param planKey
+     *            key of the plan whose task scales the fleet, null if not known yet
+     * @param agentIds
+     *            IDs of the instance's agents
+     * @param launchTime
+     *            time the instance joined the fleet in milliseconds
+     * @return tags for the instance
+     */
+    public Map<String, String> render(String fleetId, String planKey, Collection<Long> agentIds, long launchTime) {
+        SimpleDateFormat format = new SimpleDateFormat(LAUNCH_TIME_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<Long> sortedAgentIds = new ArrayList<Long>(agentIds);
+        Collections.sort(sortedAgentIds);
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> template : tagTemplates.entrySet()) {
+            String value = template.getValue().replace(FLEET_ID, fleetId)
+                    .replace(PLAN_KEY, StringUtils.defaultString(planKey))
+                    .replace(AGENT_IDS, StringUtils.join(sortedAgentIds, ","))
+                    .replace(LAUNCH_TIME, format.format(new Date(launchTime)));
+            tags.put(template.getKey(), StringUtils.left(value, MAXIMUM_VALUE_LENGTH));
+        }
+        return tags;
+    }
+
+    /**
+     * Apply tags that instances don't have yet. Instances whose request fails keep their old tags in the inventory
+     * and are tried again next cycle
+     *
+     * @param EC2Client
+     * @param fleetInventory
+     *            remembers the tags applied to the fleet's instances
+     * @param instanceTags
+     *            instance IDs to the tags they should have
+     * @return number of instances tagged
+     */
+    public int tagInstances(AmazonEC2 EC2Client, FleetInventory fleetInventory,
+            Map<String, Map<String, String>> instanceTags) {
+        // instances needing the same changes are tagged together
+        Map<Map<String, String>, List<String>> changes = new LinkedHashMap<Map<String, String>, List<String>>();
+        for (Map.Entry<String, Map<String, String>> instance : instanceTags.entrySet()) {
+            Map<String, String> tagChanges = fleetInventory.getTagChanges(instance.getKey(), instance.getValue());
+            if (tagChanges.isEmpty()) {
+                continue;
+            }
+            List<String> instanceIds = changes.get(tagChanges);
+            if (instanceIds == null) {
+                instanceIds = new ArrayList<String>();
+                changes.put(tagChanges, instanceIds);
+            }
+            instanceIds.add(instance.getKey());
+        }
+        int tagged = 0;
+        for (Map.Entry<Map<String, String>, List<String>> change : changes.entrySet()) {
+            List<Tag> tags = new ArrayList<Tag>();
+            for (Map.Entry<String, String> tag : change.getKey().entrySet()) {
+                tags.add(new Tag().withKey(tag.getKey()).withValue(tag.getValue()));
+            }
+            for (List<String> batch : Iterables.partition(change.getValue(), RESOURCES_PER_REQUEST)) {
+                if (createTags(EC2Client, new CreateTagsRequest().withResources(batch).withTags(tags))) {
+                    fleetInventory.tagsApplied(batch, change.getKey());
+                    tagged += batch.size();
+                }
+            }
+        }
+        return tagged;
+    }
+
+    private boolean createTags(AmazonEC2 EC2Client, CreateTagsRequest createTagsRequest) {
+        try {
+            EC2Client.createTags(createTagsRequest);
+            return true;
+        } catch (AmazonServiceException e) {
+            logger.warn("CreateTagsRequest failed with amazon service exception code: " + e.getErrorCode());
+        } catch (AmazonClientException e) {
+            logger.warn("CreateTagsRequest failed with amazon client exception: " + e.getMessage());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Collects how long fleet instances take from boot to their first agent accepting builds, per launch mode, so the
+ * install-at-boot and pre-baked image scripts can be compared. The user data script reports its own timings through
+ * {@link LaunchTimingServlet} once an agent's log shows it is ready.
+ */
+@Component
+public class LaunchTimingRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(LaunchTimingRecorder.class);
+    public static final String INSTALL_MODE = "install";
+    public static final String PREBAKED_MODE = "prebaked";
+    // a restarted script may report the same instance again, only its first report counts
+    private static final int REPORTED_INSTANCES = 10000;
+
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    private final Cache<String, Boolean> reportedInstances = CacheBuilder.newBuilder()
+            .maximumSize(REPORTED_INSTANCES).expireAfterWrite(1, TimeUnit.DAYS).build();
+    // launch mode to its timings, in the order modes were first reported
+    private final Map<String, ModeTimings> timings = new LinkedHashMap<String, ModeTimings>();
+
+    @Autowired
+    public LaunchTimingRecorder(FleetInventoryRegistry fleetInventoryRegistry) {
+        this.fleetInventoryRegistry = fleetInventoryRegistry;
+    }
+
+    /**
+     * Record an instance's launch. Like interruption notices, only instances of scaled fleets are accepted since the
+     * endpoint is unauthenticated
+     *
+     * @param instanceId
+     * @param mode
+     *            {@link #INSTALL_MODE} or {@link #PREBAKED_MODE}
+     * @param scriptSeconds
+     *            seconds from boot to the user data script starting
+     * @param onlineSeconds
+     *            seconds from boot to the first agent being ready for builds
+     * @return whether the instance is a fleet instance
+     */
+    public boolean launchReported(String instanceId, String mode, double scriptSeconds, double onlineSeconds) {
+        if (!fleetInventoryRegistry.isFleetInstance(instanceId)) {
+            logger.warn("ignoring launch timing for unknown instance " + instanceId);
+            return false;
+        }
+        if (reportedInstances.asMap().putIfAbsent(instanceId, Boolean.TRUE) != null) {
+            return true;
+        }
+        logger.info("instance " + instanceId + " launched in " + mode + " mode: script started " + scriptSeconds
+                + "s and first agent online " + onlineSeconds + "s after boot");
+        synchronized (timings) {
+            ModeTimings modeTimings = timings.get(mode);
+            if (modeTimings == null) {
+                modeTimings = new ModeTimings();
+                timings.put(mode, modeTimings);
+            }
+            modeTimings.add(scriptSeconds, onlineSeconds);
+        }
+        return true;
+    }
+
+    /**
+     * @return one line per launch mode with the number of launches and their boot to online times
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (timings) {
+            for (Map.Entry<String, ModeTimings> entry : timings.entrySet()) {
+                ModeTimings modeTimings = entry.getValue();
+                summary.append(String.format(
+                        "%s: %d launches, script start mean %.1fs, agent online mean %.1fs max %.1fs", entry.getKey(),
+                        modeTimings.launches, modeTimings.scriptSeconds / modeTimings.launches,
+                        modeTimings.onlineSeconds / modeTimings.launches, modeTimings.maxOnlineSeconds));
+                summary.append(System.lineSeparator());
+            }
+        }
+        return summary.toString();
+    }
+
+    // running totals of one launch mode
+    private static class ModeTimings {
+        private int launches;
+        private double scriptSeconds;
+        private double onlineSeconds;
+        private double maxOnlineSeconds;
+
+        private void add(double script, double online) {
+            launches++;
+            scriptSeconds += script;
+            onlineSeconds += online;
+            maxOnlineSeconds = Math.max(maxOnlineSeconds, online);
+        }
+    }
+}
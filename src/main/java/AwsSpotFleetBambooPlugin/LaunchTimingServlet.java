@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Endpoint the user data script reports launch timings to, at SERVER_URL/plugins/servlet/spotfleet/launch-timing.
+ * Takes the instance ID, launch mode and seconds since boot as POST parameters; a GET returns the timings per mode.
+ */
+public class LaunchTimingServlet extends HttpServlet {
+    public static final String INSTANCE_ID_PARAMETER = "instanceId";
+    public static final String MODE_PARAMETER = "mode";
+    public static final String SCRIPT_SECONDS_PARAMETER = "scriptSeconds";
+    public static final String ONLINE_SECONDS_PARAMETER = "onlineSeconds";
+
+    private LaunchTimingRecorder launchTimingRecorder;
+
+    @Autowired
+    public LaunchTimingServlet(LaunchTimingRecorder launchTimingRecorder) {
+        this.launchTimingRecorder = launchTimingRecorder;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String instanceId = request.getParameter(INSTANCE_ID_PARAMETER);
+        String mode = request.getParameter(MODE_PARAMETER);
+        if (StringUtils.isBlank(instanceId) || !(LaunchTimingRecorder.INSTALL_MODE.equals(mode)
+                || LaunchTimingRecorder.PREBAKED_MODE.equals(mode))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Missing " + INSTANCE_ID_PARAMETER + " or unknown " + MODE_PARAMETER);
+            return;
+        }
+        double scriptSeconds;
+        double onlineSeconds;
+        try {
+            scriptSeconds = parseSeconds(request.getParameter(SCRIPT_SECONDS_PARAMETER));
+            onlineSeconds = parseSeconds(request.getParameter(ONLINE_SECONDS_PARAMETER));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    SCRIPT_SECONDS_PARAMETER + " and " + ONLINE_SECONDS_PARAMETER + " must be numbers");
+            return;
+        }
+        if (launchTimingRecorder.launchReported(instanceId.trim(), mode, scriptSeconds, onlineSeconds)) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Not an instance of a scaled fleet");
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain");
+        response.getWriter().write(launchTimingRecorder.getSummary());
+    }
+
+    // uptime in seconds as read from /proc/uptime, e.g. 41.72
+    private static double parseSeconds(String seconds) {
+        double parsed = Double.parseDouble(StringUtils.defaultString(seconds).trim());
+        if (parsed < 0 || Double.isNaN(parsed) || Double.isInfinite(parsed)) {
+            throw new NumberFormatException("not a time since boot: " + seconds);
+        }
+        return parsed;
+    }
+}
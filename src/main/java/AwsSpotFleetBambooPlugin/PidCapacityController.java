@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+/**
+ * PID-style controller for a single fleet. The error is the queue backlog in capacity units; the integral term keeps
+ * adding capacity while a backlog persists and the derivative term reacts to a quickly growing queue. It engages once
+ * the queue exceeds a threshold and only releases once the queue is back within {@link #RELEASE_FRACTION} of both
+ * thresholds, so a queue hovering around a threshold doesn't flap. After the policy scales up it waits
+ * {@link #COOLDOWN_MILLISECONDS} for the new instances to register agents before asking for more.
+ */
+public class PidCapacityController implements CapacityController {
+    public static final double PROPORTIONAL_GAIN = 1.0;
+    // per minute the backlog persists
+    public static final double INTEGRAL_GAIN = 0.1;
+    // per unit of backlog growth per minute
+    public static final double DERIVATIVE_GAIN = 0.5;
+    // caps the integral term so a long backlog doesn't keep requesting capacity after it clears
+    public static final double MAXIMUM_INTEGRAL = 20;
+    public static final double RELEASE_FRACTION = 0.5;
+    public static final long COOLDOWN_MILLISECONDS = 3 * 60000;
+    private static final double MILLISECONDS_PER_MINUTE = 60000;
+
+    private boolean engaged = false;
+    private double integral = 0;
+    private double lastError = 0;
+    private long lastUpdate = 0;
+    private long lastScaleUp = Long.MIN_VALUE;
+
+    @Override
+    public synchronized int getUnitsToAdd(ScalingInput input) {
+        long now = input.getNow();
+        double error = input.getQueuedBuilds() / input.getAgentsPerUnit();
+        if (!engaged) {
+            if (!input.isOverThreshold()) {
+                return 0;
+            }
+            engaged = true;
+            integral = 0;
+            lastError = error;
+            lastUpdate = now;
+        } else if (input.isWithinFractionOfThreshold(RELEASE_FRACTION)) {
+            engaged = false;
+            return 0;
+        }
+        double minutes = (now - lastUpdate) / MILLISECONDS_PER_MINUTE;
+        double derivative = 0;
+        if (minutes > 0) {
+            integral = Math.min(MAXIMUM_INTEGRAL, integral + error * minutes);
+            derivative = (error - lastError) / minutes;
+        }
+        lastError = error;
+        lastUpdate = now;
+        if (lastScaleUp != Long.MIN_VALUE && now - lastScaleUp < COOLDOWN_MILLISECONDS) {
+            return 0;
+        }
+        double output = PROPORTIONAL_GAIN * error + INTEGRAL_GAIN * integral + DERIVATIVE_GAIN * derivative;
+        return Math.max(0, Math.min(input.getMaxUnitsPerScale(), (int) Math.ceil(output)));
+    }
+
+    @Override
+    public synchronized void scaledUp(long now) {
+        lastScaleUp = now;
+    }
+}
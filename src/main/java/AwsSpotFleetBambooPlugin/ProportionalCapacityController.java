@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+/**
+ * Once the queue exceeds a threshold, adds the capacity needed to give every queued build an agent in one step, e.g.
+ * 17 units for 34 queued builds at 2 agents per unit, capped by the maximum units per scaling action. Keeps no state,
+ * so one instance serves every fleet.
+ */
+public class ProportionalCapacityController implements CapacityController {
+
+    @Override
+    public int getUnitsToAdd(ScalingInput input) {
+        if (!input.isOverThreshold()) {
+            return 0;
+        }
+        // a queue over the wait threshold needs at least one more instance, even if it is short
+        return Math.min(input.getMaxUnitsPerScale(), Math.max(1, input.getBacklogUnits()));
+    }
+
+    @Override
+    public void scaledUp(long now) {
+        // nothing to remember
+    }
+}
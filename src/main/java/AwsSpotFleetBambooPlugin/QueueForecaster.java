@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.ApplicationProperties;
+
+/**
+ * Forecasts build queue load from the same hour of previous weeks, so fleets can be warmed up before a recurring rush
+ * instead of after builds have started queueing. Every hour gets a slot recording the builds that arrived in the queue
+ * and the deepest the queue got. Slots form a ring buffer of {@link #WEEKS_OF_HISTORY} weeks, kept in memory and
+ * mirrored to a small fixed-size file in the Bamboo home directory so history survives restarts. Slots changed since
+ * the last flush are written when the hour rolls over and on shutdown, not every scaling cycle.
+ */
+@Component
+public class QueueForecaster implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(QueueForecaster.class);
+    public static final int HOURS_PER_WEEK = 168;
+    public static final int WEEKS_OF_HISTORY = 4;
+    public static final int SLOT_COUNT = HOURS_PER_WEEK * WEEKS_OF_HISTORY;
+    public static final long MILLISECONDS_PER_HOUR = 3600000;
+    public static final String FORECAST_FILE_NAME = "spot-fleet-queue-forecast.bin";
+    // file layout: magic number and slot count, then per slot the hour it holds, arrivals and peak queue depth
+    private static final int FILE_MAGIC = 0x53465146;
+    private static final int HEADER_BYTES = 8;
+    private static final int SLOT_BYTES = 16;
+    private static final long EMPTY_SLOT = -1;
+
+    private ApplicationProperties applicationProperties;
+    // hours since the epoch each slot holds, EMPTY_SLOT if none
+    private final long[] slotHours = new long[SLOT_COUNT];
+    private final int[] arrivals = new int[SLOT_COUNT];
+    private final int[] peakDepths = new int[SLOT_COUNT];
+    private final BitSet dirtySlots = new BitSet(SLOT_COUNT);
+    // hour since the epoch of the last recorded queue depth, EMPTY_SLOT before the first
+    private long recordedHour = EMPTY_SLOT;
+    // null keeps history in memory only
+    private File forecastFile;
+
+    @Autowired
+    public QueueForecaster(@ComponentImport ApplicationProperties applicationProperties) {
+        this.applicationProperties = applicationProperties;
+        Arrays.fill(slotHours, EMPTY_SLOT);
+    }
+
+    /**
+     * load the history kept by previous server runs
+     */
+    @Override
+    public synchronized void afterPropertiesSet() {
+        File homeDirectory = applicationProperties.getHomeDirectory();
+        if (homeDirectory == null) {
+            return;
+        }
+        forecastFile = new File(homeDirectory, FORECAST_FILE_NAME);
+        if (forecastFile.isFile()) {
+            load();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flush();
+    }
+
+    /**
+     * @param now
+     *            time a build entered the queue in milliseconds
+     */
+    public synchronized void recordArrival(long now) {
+        arrivals[slotFor(now)]++;
+    }
+
+    /**
+     * record the current queue depth, called once per scaling cycle. Writes changed slots to disk once the hour
+     * rolls over, so the finished hour is saved
+     *
+     * @param now
+     *            current time in milliseconds
+     * @param depth
+     *            number of queued builds
+     */
+    public void recordQueueDepth(long now, int depth) {
+        boolean rolledOver;
+        synchronized (this) {
+            int slot = slotFor(now);
+            peakDepths[slot] = Math.max(peakDepths[slot], depth);
+            long hour = now / MILLISECONDS_PER_HOUR;
+            rolledOver = recordedHour != EMPTY_SLOT && hour != recordedHour;
+            recordedHour = hour;
+        }
+        if (rolledOver) {
+            flush();
+        }
+    }
+
+    /**
+     * Builds expected to need an agent over the coming window: the larger of the deepest queue seen at those hours in
+     * previous weeks and the builds that arrived during the window, averaged over the weeks on record
+     *
+     * @param now
+     *            current time in milliseconds
+     * @param windowMilliseconds
+     *            how far ahead to look, at least the time a new instance takes to start taking builds
+     * @return predicted builds, 0 without history for the window
+     */
+    public synchronized int getPredictedDemand(long now, long windowMilliseconds) {
+        long end = now + windowMilliseconds;
+        double peakDepth = 0;
+        double windowArrivals = 0;
+        for (long hour = now / MILLISECONDS_PER_HOUR; hour <= end / MILLISECONDS_PER_HOUR; hour++) {
+            int weeks = 0;
+            long hourArrivals = 0;
+            long hourPeakDepth = 0;
+            for (int week = 1; week <= WEEKS_OF_HISTORY; week++) {
+                long pastHour = hour - (long) week * HOURS_PER_WEEK;
+                int slot = (int) (pastHour % SLOT_COUNT);
+                if (slotHours[slot] == pastHour) {
+                    weeks++;
+                    hourArrivals += arrivals[slot];
+                    hourPeakDepth += peakDepths[slot];
+                }
+            }
+            if (weeks > 0) {
+                peakDepth = Math.max(peakDepth, (double) hourPeakDepth / weeks);
+                // only the part of the hour inside the window counts
+                long overlap = Math.min(end, (hour + 1) * MILLISECONDS_PER_HOUR)
+                        - Math.max(now, hour * MILLISECONDS_PER_HOUR);
+                windowArrivals += (double) hourArrivals / weeks * overlap / MILLISECONDS_PER_HOUR;
+            }
+        }
+        return (int) Math.ceil(Math.max(peakDepth, windowArrivals));
+    }
+
+    /**
+     * write slots changed since the last flush to disk
+     */
+    public synchronized void flush() {
+        if (forecastFile == null || dirtySlots.isEmpty()) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(forecastFile, "rw");
+            if (file.length() != HEADER_BYTES + (long) SLOT_COUNT * SLOT_BYTES) {
+                // new or foreign file, lay it out from scratch
+                file.setLength(0);
+                file.writeInt(FILE_MAGIC);
+                file.writeInt(SLOT_COUNT);
+                file.setLength(HEADER_BYTES + (long) SLOT_COUNT * SLOT_BYTES);
+                dirtySlots.set(0, SLOT_COUNT);
+            }
+            for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1)) {
+                file.seek(HEADER_BYTES + (long) slot * SLOT_BYTES);
+                file.writeLong(slotHours[slot]);
+                file.writeInt(arrivals[slot]);
+                file.writeInt(peakDepths[slot]);
+            }
+            dirtySlots.clear();
+        } catch (IOException e) {
+            logger.warn("could not save queue forecast history to " + forecastFile, e);
+        } finally {
+            close(file);
+        }
+    }
+
+    private void load() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(forecastFile, "r");
+            if (file.length() != HEADER_BYTES + (long) SLOT_COUNT * SLOT_BYTES || file.readInt() != FILE_MAGIC
+                    || file.readInt() != SLOT_COUNT) {
+                logger.warn("ignoring queue forecast history in unexpected format: " + forecastFile);
+                return;
+            }
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                slotHours[slot] = file.readLong();
+                arrivals[slot] = file.readInt();
+                peakDepths[slot] = file.readInt();
+            }
+        } catch (IOException e) {
+            logger.warn("could not read queue forecast history from " + forecastFile, e);
+            Arrays.fill(slotHours, EMPTY_SLOT);
+        } finally {
+            close(file);
+        }
+    }
+
+    // slot of the hour containing the given time, cleared if it still holds the same hour of an old week
+    private int slotFor(long now) {
+        long hour = now / MILLISECONDS_PER_HOUR;
+        int slot = (int) (hour % SLOT_COUNT);
+        if (slotHours[slot] != hour) {
+            slotHours[slot] = hour;
+            arrivals[slot] = 0;
+            peakDepths[slot] = 0;
+        }
+        dirtySlots.set(slot);
+        return slot;
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing left to do with the file
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.atlassian.bamboo.v2.build.CommonContext;
+import com.atlassian.bamboo.v2.build.CurrentResult;
+import com.atlassian.bamboo.v2.build.CurrentlyBuilding;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueueItemView;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Running aggregate of the build queue: the number of queued builds and a sketch of their enqueue times per job, so
+ * queue depth is read in constant time and wait statistics, also for just the jobs a fleet can run, without visiting
+ * every queued build. The aggregate follows queue events: {@link QueuePressureTracker} adds builds as they are queued
+ * and removes them when they complete, and scaling cycles remove the builds agents have picked up.
+ * {@link #reconcile()} is a periodic safety net, not part of reading: it drops builds whose events were missed and
+ * picks up any that were queued without an event (e.g. before the plugin was enabled).
+ */
+@Component
+public class QueueMetrics {
+    private BuildQueueManager buildQueueManager;
+    // result key to enqueue time in milliseconds
+    private final Map<ResultKey, Long> enqueueTimes = new HashMap<ResultKey, Long>();
+    // same enqueue times, bucketed for wait statistics
+    private final EnqueueTimeSketch enqueueTimeSketch = new EnqueueTimeSketch();
+    // job plan key to the enqueue times of its queued builds, builds of no known job under null
+    private final Map<PlanKey, EnqueueTimeSketch> jobEnqueueTimes = new HashMap<PlanKey, EnqueueTimeSketch>();
+
+    @Autowired
+    public QueueMetrics(@ComponentImport BuildQueueManager buildQueueManager) {
+        this.buildQueueManager = buildQueueManager;
+    }
+
+    /**
+     * record a build entering the queue. Builds already tracked keep their original enqueue time
+     *
+     * @param resultKey
+     * @param enqueueTime
+     */
+    public synchronized void enqueued(ResultKey resultKey, long enqueueTime) {
+        if (!enqueueTimes.containsKey(resultKey)) {
+            enqueueTimes.put(resultKey, enqueueTime);
+            enqueueTimeSketch.add(enqueueTime);
+            PlanKey jobKey = getJobKey(resultKey);
+            EnqueueTimeSketch jobSketch = jobEnqueueTimes.get(jobKey);
+            if (jobSketch == null) {
+                jobSketch = new EnqueueTimeSketch();
+                jobEnqueueTimes.put(jobKey, jobSketch);
+            }
+            jobSketch.add(enqueueTime);
+        }
+    }
+
+    /**
+     * record a build leaving the queue. Builds not tracked are ignored
+     *
+     * @param resultKey
+     */
+    public synchronized void dequeued(ResultKey resultKey) {
+        Long enqueueTime = enqueueTimes.remove(resultKey);
+        if (enqueueTime == null) {
+            return;
+        }
+        enqueueTimeSketch.remove(enqueueTime);
+        PlanKey jobKey = getJobKey(resultKey);
+        EnqueueTimeSketch jobSketch = jobEnqueueTimes.get(jobKey);
+        jobSketch.remove(enqueueTime);
+        if (jobSketch.getCount() == 0) {
+            jobEnqueueTimes.remove(jobKey);
+        }
+    }
+
+    /**
+     * record the builds agents have picked up as leaving the queue
+     *
+     * @param currentlyBuilding
+     *            builds Bamboo is executing, those not yet on an agent are still queued
+     */
+    public void dequeueStarted(Collection<CurrentlyBuilding> currentlyBuilding) {
+        for (CurrentlyBuilding build : currentlyBuilding) {
+            if (build.getBuildAgentId() != null && build.getBuildIdentifier() != null) {
+                dequeued(build.getBuildIdentifier().getPlanResultKey());
+            }
+        }
+    }
+
+    /**
+     * bring the aggregate in line with the build queue, walking every queued build
+     */
+    public synchronized void reconcile() {
+        Set<ResultKey> queuedKeys = new HashSet<ResultKey>();
+        for (QueuedResultKey queuedResultKey : buildQueueManager.getQueuedExecutables()) {
+            ResultKey resultKey = queuedResultKey.getResultKey();
+            queuedKeys.add(resultKey);
+            if (!enqueueTimes.containsKey(resultKey)) {
+                enqueued(resultKey, getEnqueueTime(resultKey));
+            }
+        }
+        Iterator<ResultKey> trackedBuilds = new HashSet<ResultKey>(enqueueTimes.keySet()).iterator();
+        while (trackedBuilds.hasNext()) {
+            ResultKey trackedBuild = trackedBuilds.next();
+            if (!queuedKeys.contains(trackedBuild)) {
+                dequeued(trackedBuild);
+            }
+        }
+    }
+
+    /**
+     * @return number of builds in the queue
+     */
+    public synchronized int getQueuedBuildCount() {
+        return enqueueTimes.size();
+    }
+
+    /**
+     * @return result keys of the queued builds to their enqueue times, safe for the caller to modify
+     */
+    public synchronized Map<ResultKey, Long> getQueuedBuilds() {
+        return new HashMap<ResultKey, Long>(enqueueTimes);
+    }
+
+    /**
+     * @param queueRequirementMatcher
+     * @param capabilityProfile
+     *            profile of the fleet's agents, null if not known yet
+     * @return enqueue times of the queued builds the fleet's agents could run, combined per job rather than per build
+     */
+    public synchronized EnqueueTimeSketch getRunnableBuilds(QueueRequirementMatcher queueRequirementMatcher,
+            CapabilityProfile capabilityProfile) {
+        EnqueueTimeSketch runnableBuilds = new EnqueueTimeSketch();
+        for (Map.Entry<PlanKey, EnqueueTimeSketch> job : jobEnqueueTimes.entrySet()) {
+            if (queueRequirementMatcher.canRun(job.getKey(), capabilityProfile)) {
+                runnableBuilds.addAll(job.getValue());
+            }
+        }
+        return runnableBuilds;
+    }
+
+    /**
+     * @param now
+     *            current time in milliseconds
+     * @return average time queued builds have waited in milliseconds, 0 if the queue is empty
+     */
+    public long getAverageWaitMilliseconds(long now) {
+        return getWaitMilliseconds(EnqueueTimeSketch.MEAN, now);
+    }
+
+    /**
+     * @param statistic
+     *            one of {@link EnqueueTimeSketch#STATISTICS}
+     * @param now
+     *            current time in milliseconds
+     * @return the statistic over the time queued builds have waited, in milliseconds
+     */
+    public synchronized long getWaitMilliseconds(String statistic, long now) {
+        return enqueueTimeSketch.getWait(statistic, now);
+    }
+
+    // builds of the same job share its requirements
+    private static PlanKey getJobKey(ResultKey resultKey) {
+        return resultKey instanceof PlanResultKey ? ((PlanResultKey) resultKey).getPlanKey() : null;
+    }
+
+    private long getEnqueueTime(ResultKey resultKey) {
+        QueueItemView<CommonContext> queueItem = buildQueueManager.peekContext(resultKey);
+        return getEnqueueTime(queueItem == null ? null : queueItem.getView());
+    }
+
+    /**
+     * @param context
+     *            context of a queued build
+     * @return time the build was queued, or now if the context doesn't say
+     */
+    public static long getEnqueueTime(CommonContext context) {
+        if (context != null) {
+            CurrentResult currentResult = context.getCurrentResult();
+            if (currentResult != null) {
+                Date tasksStartDate = currentResult.getTasksStartDate();
+                if (tasksStartDate != null) {
+                    return tasksStartDate.getTime();
+                }
+            }
+        }
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.v2.build.BuildContext;
+import com.atlassian.bamboo.v2.build.events.AgentOfflineEvent;
+import com.atlassian.bamboo.v2.build.events.BuildCompletedEvent;
+import com.atlassian.bamboo.v2.build.events.BuildQueuedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Listens for Bamboo events that add pressure on the build queue and asks {@link SpotFleetScalingDaemon} to evaluate
+ * every fleet on its next tick, instead of waiting for the fleet's scaling interval. Events arriving within the
+ * debounce window are coalesced into a single evaluation, so a burst of queued builds results in one fleet
+ * modification rather than one per build. Queued and completed builds also keep {@link QueueMetrics} up to date.
+ */
+@Component
+public class QueuePressureTracker implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(QueuePressureTracker.class);
+    // how long to collect events before evaluating
+    public static final long DEBOUNCE_MILLISECONDS = 5000;
+
+    private EventPublisher eventPublisher;
+    private SpotFleetScalingDaemon scalingDaemon;
+    private QueueMetrics queueMetrics;
+    private QueueForecaster queueForecaster;
+    private final ScheduledExecutorService debounceExecutor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "spot-fleet-queue-pressure");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicBoolean evaluationPending = new AtomicBoolean(false);
+    // events seen since the last evaluation, for logging
+    private final AtomicInteger queuedBuilds = new AtomicInteger();
+    private final AtomicInteger offlineAgents = new AtomicInteger();
+
+    @Autowired
+    public QueuePressureTracker(@ComponentImport EventPublisher eventPublisher,
+            SpotFleetScalingDaemon scalingDaemon, QueueMetrics queueMetrics, QueueForecaster queueForecaster) {
+        this.eventPublisher = eventPublisher;
+        this.scalingDaemon = scalingDaemon;
+        this.queueMetrics = queueMetrics;
+        this.queueForecaster = queueForecaster;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        debounceExecutor.shutdownNow();
+    }
+
+    /**
+     * a new build in the queue may need capacity the fleet doesn't have yet
+     *
+     * @param event
+     */
+    @EventListener
+    public void onBuildQueued(BuildQueuedEvent event) {
+        BuildContext context = event.getContext();
+        if (context != null && context.getResultKey() != null) {
+            queueMetrics.enqueued(context.getResultKey(), QueueMetrics.getEnqueueTime(context));
+        }
+        queueForecaster.recordArrival(System.currentTimeMillis());
+        queuedBuilds.incrementAndGet();
+        requestEvaluation();
+    }
+
+    /**
+     * a finished build has left the queue, if an agent picking it up didn't already take it off
+     *
+     * @param event
+     */
+    @EventListener
+    public void onBuildCompleted(BuildCompletedEvent event) {
+        BuildContext context = event.getContext();
+        if (context != null && context.getResultKey() != null) {
+            queueMetrics.dequeued(context.getResultKey());
+        }
+    }
+
+    /**
+     * an agent going away leaves the queue with fewer executors, e.g. when a spot instance is reclaimed
+     *
+     * @param event
+     */
+    @EventListener
+    public void onAgentOffline(AgentOfflineEvent event) {
+        offlineAgents.incrementAndGet();
+        requestEvaluation();
+    }
+
+    /**
+     * @return whether an evaluation is waiting for the debounce window to close
+     */
+    public boolean isEvaluationPending() {
+        return evaluationPending.get();
+    }
+
+    /**
+     * @return delay between the first event of a burst and the evaluation it triggers
+     */
+    protected long getDebounceMilliseconds() {
+        return DEBOUNCE_MILLISECONDS;
+    }
+
+    private void requestEvaluation() {
+        // only the first event of a burst schedules an evaluation, the rest are picked up by it
+        if (evaluationPending.compareAndSet(false, true)) {
+            debounceExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evaluate();
+                }
+            }, getDebounceMilliseconds(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void evaluate() {
+        evaluationPending.set(false);
+        logger.info("Requesting fleet evaluation after " + queuedBuilds.getAndSet(0) + " queued builds and "
+                + offlineAgents.getAndSet(0) + " offline agents");
+        // only flags the fleets, their cycles run on the scheduler's thread rather than this one
+        scalingDaemon.requestEvaluation();
+    }
+}
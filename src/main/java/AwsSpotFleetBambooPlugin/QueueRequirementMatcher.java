@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+import com.atlassian.bamboo.v2.build.agent.capability.RequirementSet;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Decides which queued builds a fleet's agents could run, so builds needing e.g. a Windows or GPU agent don't make a
+ * Linux fleet scale up. Queued builds of the same job share its requirements, so requirements are looked up once per
+ * job plan key and the outcome against each {@link CapabilityProfile} memoized with them; {@link QueueMetrics} keeps
+ * the queue per job, so a large queue of a few jobs costs a map lookup per job. Entries are dropped
+ * {@link #REQUIREMENTS_TIMEOUT_MINUTES} after they were loaded so edited requirements are picked up.
+ */
+@Component
+public class QueueRequirementMatcher {
+    public static final int MAXIMUM_CACHED_JOBS = 1000;
+    public static final int REQUIREMENTS_TIMEOUT_MINUTES = 5;
+
+    private CachedPlanManager cachedPlanManager;
+    private final LoadingCache<PlanKey, JobRequirements> jobRequirements = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_JOBS).expireAfterWrite(REQUIREMENTS_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+            .build(new CacheLoader<PlanKey, JobRequirements>() {
+                @Override
+                public JobRequirements load(PlanKey planKey) {
+                    ImmutableJob job = cachedPlanManager.getPlanByKey(planKey, ImmutableJob.class);
+                    return new JobRequirements(job == null ? null : job.getEffectiveRequirementSet());
+                }
+            });
+
+    @Autowired
+    public QueueRequirementMatcher(@ComponentImport CachedPlanManager cachedPlanManager) {
+        this.cachedPlanManager = cachedPlanManager;
+    }
+
+    /**
+     * @param resultKey
+     *            key of a queued build
+     * @param capabilityProfile
+     *            profile of the fleet's agents, null if not known yet
+     * @return whether the fleet's agents could run the build. Builds are assumed runnable when the profile or the
+     *         job's requirements aren't known
+     */
+    public boolean canRun(ResultKey resultKey, CapabilityProfile capabilityProfile) {
+        return canRun(resultKey instanceof PlanResultKey ? ((PlanResultKey) resultKey).getPlanKey() : null,
+                capabilityProfile);
+    }
+
+    /**
+     * @param jobKey
+     *            plan key of a queued build's job, null if the build isn't a job's
+     * @param capabilityProfile
+     *            profile of the fleet's agents, null if not known yet
+     * @return whether the fleet's agents could run the job's builds. Builds are assumed runnable when the profile or
+     *         the job's requirements aren't known
+     */
+    public boolean canRun(PlanKey jobKey, CapabilityProfile capabilityProfile) {
+        if (capabilityProfile == null || jobKey == null) {
+            return true;
+        }
+        return jobRequirements.getUnchecked(jobKey).canRun(capabilityProfile);
+    }
+
+    // a job's requirements and how they fared against the profiles they were checked against
+    private static class JobRequirements {
+        private final RequirementSet requirementSet;
+        private final Map<CapabilityProfile, Boolean> matches = new ConcurrentHashMap<CapabilityProfile, Boolean>();
+
+        private JobRequirements(RequirementSet requirementSet) {
+            this.requirementSet = requirementSet;
+        }
+
+        private boolean canRun(CapabilityProfile capabilityProfile) {
+            Boolean match = matches.get(capabilityProfile);
+            if (match == null) {
+                match = capabilityProfile.canRun(requirementSet);
+                matches.put(capabilityProfile, match);
+            }
+            return match;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a {@link ScalingPolicy}: the fleet's new target capacity, the idle instances to terminate to get there,
+ * and notes for the build log explaining the decision.
+ */
+public class ScalingDecision {
+    private final int targetCapacity;
+    private final List<String> instancesToTerminate;
+    private final List<String> notes = new ArrayList<String>();
+
+    /**
+     * @param targetCapacity
+     * @param instancesToTerminate
+     *            instance keys taken from {@link ScalingState#getTerminationCandidates()}
+     */
+    public ScalingDecision(int targetCapacity, List<String> instancesToTerminate) {
+        this.targetCapacity = targetCapacity;
+        this.instancesToTerminate = Collections.unmodifiableList(new ArrayList<String>(instancesToTerminate));
+    }
+
+    public int getTargetCapacity() {
+        return targetCapacity;
+    }
+
+    public List<String> getInstancesToTerminate() {
+        return instancesToTerminate;
+    }
+
+    public List<String> getNotes() {
+        return Collections.unmodifiableList(notes);
+    }
+
+    public ScalingDecision withNote(String note) {
+        notes.add(note);
+        return this;
+    }
+}
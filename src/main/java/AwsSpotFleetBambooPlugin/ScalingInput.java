@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+/**
+ * Queue state and scaling settings a {@link CapacityController} sizes a scale-up from.
+ */
+public class ScalingInput {
+    private final int queuedBuilds;
+    private final long queueWaitMilliseconds;
+    private final int maxQueuedBuilds;
+    private final long maxQueueWaitMilliseconds;
+    private final double agentsPerUnit;
+    private final int maxUnitsPerScale;
+    private final long now;
+
+    /**
+     * @param queuedBuilds
+     * @param queueWaitMilliseconds
+     *            queue wait statistic the task is configured with
+     * @param maxQueuedBuilds
+     *            queued builds threshold
+     * @param maxQueueWaitMilliseconds
+     *            queue wait threshold
+     * @param agentsPerUnit
+     *            agents per unit of target capacity, agents per instance unless launch specifications are weighted
+     * @param maxUnitsPerScale
+     * @param now
+     *            current time in milliseconds
+     */
+    public ScalingInput(int queuedBuilds, long queueWaitMilliseconds, int maxQueuedBuilds,
+            long maxQueueWaitMilliseconds, double agentsPerUnit, int maxUnitsPerScale, long now) {
+        this.queuedBuilds = queuedBuilds;
+        this.queueWaitMilliseconds = queueWaitMilliseconds;
+        this.maxQueuedBuilds = maxQueuedBuilds;
+        this.maxQueueWaitMilliseconds = maxQueueWaitMilliseconds;
+        this.agentsPerUnit = agentsPerUnit > 0 ? agentsPerUnit : 1;
+        this.maxUnitsPerScale = maxUnitsPerScale;
+        this.now = now;
+    }
+
+    public int getQueuedBuilds() {
+        return queuedBuilds;
+    }
+
+    public long getQueueWaitMilliseconds() {
+        return queueWaitMilliseconds;
+    }
+
+    public double getAgentsPerUnit() {
+        return agentsPerUnit;
+    }
+
+    public int getMaxUnitsPerScale() {
+        return maxUnitsPerScale;
+    }
+
+    public long getNow() {
+        return now;
+    }
+
+    /**
+     * @return whether the queue exceeds either scale-up threshold
+     */
+    public boolean isOverThreshold() {
+        return queuedBuilds > maxQueuedBuilds || queueWaitMilliseconds > maxQueueWaitMilliseconds;
+    }
+
+    /**
+     * @param fraction
+     *            of the thresholds, e.g. 0.5
+     * @return whether the queue is within the given fraction of both scale-up thresholds
+     */
+    public boolean isWithinFractionOfThreshold(double fraction) {
+        return queuedBuilds <= maxQueuedBuilds * fraction
+                && queueWaitMilliseconds <= maxQueueWaitMilliseconds * fraction;
+    }
+
+    /**
+     * @return capacity units needed to give every queued build an agent
+     */
+    public int getBacklogUnits() {
+        return getUnitsFor(queuedBuilds, agentsPerUnit);
+    }
+
+    /**
+     * @param builds
+     * @param agentsPerUnit
+     * @return capacity units whose agents can run the given builds at once
+     */
+    public static int getUnitsFor(int builds, double agentsPerUnit) {
+        // tolerate rounding in the agents per unit ratio, e.g. 3 agents on 3 units of weight 1/3
+        return (int) Math.ceil(builds / agentsPerUnit - 1e-9);
+    }
+}
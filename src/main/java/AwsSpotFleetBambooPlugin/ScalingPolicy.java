@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+/**
+ * Decides a fleet's target capacity from a snapshot of the fleet and the build queue. Policies must not call Bamboo
+ * or EC2 themselves: the scaling cycle gathers the state and applies the decision, within the license and the fleet's
+ * capacity bounds, so the same policy can be replayed offline by {@link ScalingSimulator}. Policies are created with
+ * a public no-argument constructor by the simulator.
+ */
+public interface ScalingPolicy {
+
+    /**
+     * @param state
+     *            fleet, queue and scaling settings of the current cycle
+     * @return new target capacity and the idle instances to terminate for it
+     */
+    ScalingDecision decide(ScalingState state);
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * The Bamboo and plugin services a scaling cycle works with, injected once and handed to every
+ * {@link SpotFleetTaskExecution}, whether built by Bamboo for a task run or by {@link SpotFleetScalingDaemon} for a
+ * background cycle. Tests assemble one with {@link #builder()}.
+ */
+@Component
+public class ScalingServices {
+    private final AdministrationConfigurationAccessor administrationConfigurationAccessor;
+    private final BuildQueueManager buildQueueManager;
+    private final AgentManager agentManager;
+    private final BuildExecutionManager buildExecutionManager;
+    private final Ec2ClientRegistry ec2ClientRegistry;
+    private final FleetInventoryRegistry fleetInventoryRegistry;
+    private final QueueMetrics queueMetrics;
+    private final AgentInstanceResolver agentInstanceResolver;
+    private final AgentTeardownExecutor agentTeardownExecutor;
+    private final SpotInterruptionDrainer spotInterruptionDrainer;
+    private final QueueForecaster queueForecaster;
+    private final CapacityControllerRegistry capacityControllerRegistry;
+    private final FleetCoordinator fleetCoordinator;
+    private final QueueRequirementMatcher queueRequirementMatcher;
+
+    @Autowired
+    public ScalingServices(
+            @ComponentImport AdministrationConfigurationAccessor administrationConfigurationAccessor,
+            @ComponentImport BuildQueueManager buildQueueManager, @ComponentImport AgentManager agentManager,
+            @ComponentImport BuildExecutionManager buildExecutionManager, Ec2ClientRegistry ec2ClientRegistry,
+            FleetInventoryRegistry fleetInventoryRegistry, QueueMetrics queueMetrics,
+            AgentInstanceResolver agentInstanceResolver, AgentTeardownExecutor agentTeardownExecutor,
+            SpotInterruptionDrainer spotInterruptionDrainer, QueueForecaster queueForecaster,
+            CapacityControllerRegistry capacityControllerRegistry, FleetCoordinator fleetCoordinator,
+            QueueRequirementMatcher queueRequirementMatcher) {
+        this.administrationConfigurationAccessor = administrationConfigurationAccessor;
+        this.buildQueueManager = buildQueueManager;
+        this.agentManager = agentManager;
+        this.buildExecutionManager = buildExecutionManager;
+        this.ec2ClientRegistry = ec2ClientRegistry;
+        this.fleetInventoryRegistry = fleetInventoryRegistry;
+        this.queueMetrics = queueMetrics;
+        this.agentInstanceResolver = agentInstanceResolver;
+        this.agentTeardownExecutor = agentTeardownExecutor;
+        this.spotInterruptionDrainer = spotInterruptionDrainer;
+        this.queueForecaster = queueForecaster;
+        this.capacityControllerRegistry = capacityControllerRegistry;
+        this.fleetCoordinator = fleetCoordinator;
+        this.queueRequirementMatcher = queueRequirementMatcher;
+    }
+
+    /**
+     * @return builder leaving every service it isn't given null
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public AdministrationConfigurationAccessor getAdministrationConfigurationAccessor() {
+        return administrationConfigurationAccessor;
+    }
+
+    public BuildQueueManager getBuildQueueManager() {
+        return buildQueueManager;
+    }
+
+    public AgentManager getAgentManager() {
+        return agentManager;
+    }
+
+    public BuildExecutionManager getBuildExecutionManager() {
+        return buildExecutionManager;
+    }
+
+    public Ec2ClientRegistry getEc2ClientRegistry() {
+        return ec2ClientRegistry;
+    }
+
+    public FleetInventoryRegistry getFleetInventoryRegistry() {
+        return fleetInventoryRegistry;
+    }
+
+    public QueueMetrics getQueueMetrics() {
+        return queueMetrics;
+    }
+
+    public AgentInstanceResolver getAgentInstanceResolver() {
+        return agentInstanceResolver;
+    }
+
+    public AgentTeardownExecutor getAgentTeardownExecutor() {
+        return agentTeardownExecutor;
+    }
+
+    public SpotInterruptionDrainer getSpotInterruptionDrainer() {
+        return spotInterruptionDrainer;
+    }
+
+    public QueueForecaster getQueueForecaster() {
+        return queueForecaster;
+    }
+
+    public CapacityControllerRegistry getCapacityControllerRegistry() {
+        return capacityControllerRegistry;
+    }
+
+    public FleetCoordinator getFleetCoordinator() {
+        return fleetCoordinator;
+    }
+
+    public QueueRequirementMatcher getQueueRequirementMatcher() {
+        return queueRequirementMatcher;
+    }
+
+    public static class Builder {
+        private AdministrationConfigurationAccessor administrationConfigurationAccessor;
+        private BuildQueueManager buildQueueManager;
+        private AgentManager agentManager;
+        private BuildExecutionManager buildExecutionManager;
+        private Ec2ClientRegistry ec2ClientRegistry;
+        private FleetInventoryRegistry fleetInventoryRegistry;
+        private QueueMetrics queueMetrics;
+        private AgentInstanceResolver agentInstanceResolver;
+        private AgentTeardownExecutor agentTeardownExecutor;
+        private SpotInterruptionDrainer spotInterruptionDrainer;
+        private QueueForecaster queueForecaster;
+        private CapacityControllerRegistry capacityControllerRegistry;
+        private FleetCoordinator fleetCoordinator;
+        private QueueRequirementMatcher queueRequirementMatcher;
+
+        private Builder() {
+        }
+
+        public Builder withAdministrationConfigurationAccessor(
+                AdministrationConfigurationAccessor administrationConfigurationAccessor) {
+            this.administrationConfigurationAccessor = administrationConfigurationAccessor;
+            return this;
+        }
+
+        public Builder withBuildQueueManager(BuildQueueManager buildQueueManager) {
+            this.buildQueueManager = buildQueueManager;
+            return this;
+        }
+
+        public Builder withAgentManager(AgentManager agentManager) {
+            this.agentManager = agentManager;
+            return this;
+        }
+
+        public Builder withBuildExecutionManager(BuildExecutionManager buildExecutionManager) {
+            this.buildExecutionManager = buildExecutionManager;
+            return this;
+        }
+
+        public Builder withEc2ClientRegistry(Ec2ClientRegistry ec2ClientRegistry) {
+            this.ec2ClientRegistry = ec2ClientRegistry;
+            return this;
+        }
+
+        public Builder withFleetInventoryRegistry(FleetInventoryRegistry fleetInventoryRegistry) {
+            this.fleetInventoryRegistry = fleetInventoryRegistry;
+            return this;
+        }
+
+        public Builder withQueueMetrics(QueueMetrics queueMetrics) {
+            this.queueMetrics = queueMetrics;
+            return this;
+        }
+
+        public Builder withAgentInstanceResolver(AgentInstanceResolver agentInstanceResolver) {
+            this.agentInstanceResolver = agentInstanceResolver;
+            return this;
+        }
+
+        public Builder withAgentTeardownExecutor(AgentTeardownExecutor agentTeardownExecutor) {
+            this.agentTeardownExecutor = agentTeardownExecutor;
+            return this;
+        }
+
+        public Builder withSpotInterruptionDrainer(SpotInterruptionDrainer spotInterruptionDrainer) {
+            this.spotInterruptionDrainer = spotInterruptionDrainer;
+            return this;
+        }
+
+        public Builder withQueueForecaster(QueueForecaster queueForecaster) {
+            this.queueForecaster = queueForecaster;
+            return this;
+        }
+
+        public Builder withCapacityControllerRegistry(CapacityControllerRegistry capacityControllerRegistry) {
+            this.capacityControllerRegistry = capacityControllerRegistry;
+            return this;
+        }
+
+        public Builder withFleetCoordinator(FleetCoordinator fleetCoordinator) {
+            this.fleetCoordinator = fleetCoordinator;
+            return this;
+        }
+
+        public Builder withQueueRequirementMatcher(QueueRequirementMatcher queueRequirementMatcher) {
+            this.queueRequirementMatcher = queueRequirementMatcher;
+            return this;
+        }
+
+        public ScalingServices build() {
+            return new ScalingServices(administrationConfigurationAccessor, buildQueueManager, agentManager,
+                    buildExecutionManager, ec2ClientRegistry, fleetInventoryRegistry, queueMetrics,
+                    agentInstanceResolver, agentTeardownExecutor, spotInterruptionDrainer, queueForecaster,
+                    capacityControllerRegistry, fleetCoordinator, queueRequirementMatcher);
+        }
+    }
+}
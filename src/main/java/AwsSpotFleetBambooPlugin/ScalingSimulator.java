@@ -0,0 +1,484 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Replays a recorded trace of builds and spot interruptions through a {@link ScalingPolicy}, so thresholds can be
+ * compared offline instead of on a production fleet. Time advances a minute at a time and nothing is random, so the
+ * same trace, policy and settings always give the same report.
+ * <p>
+ * The trace has one event per line, comma separated, blank lines and lines starting with # are skipped:
+ *
+ * <pre>
+ * minute,build,durationMinutes   a build is queued
+ * minute,interruption            the oldest instance is reclaimed, its builds are queued again
+ * </pre>
+ *
+ * Usage: {@code java AwsSpotFleetBambooPlugin.ScalingSimulator trace.csv [--option=value ...]} with the options
+ * queuedBuilds, averageQueueTime, idleInstances, maxUnitsPerScale, queueTimeStatistic, controller, policy (class name
+ * of a {@link ScalingPolicy}), agentsPerInstance, bootMinutes, scalingInterval (minutes) and initialCapacity.
+ */
+public class ScalingSimulator {
+    public static final String BUILD_EVENT = "build";
+    public static final String INTERRUPTION_EVENT = "interruption";
+    private static final long MILLISECONDS_PER_MINUTE = 60000;
+    // stop replaying this long after the last event if the queue never drains
+    private static final long DRAIN_LIMIT_MINUTES = 7 * 24 * 60;
+
+    private ScalingPolicy scalingPolicy = new ThresholdScalingPolicy();
+    private int maxQueuedBuilds = 2;
+    private int maxAverageQueueTime = 5;
+    private int maxIdleInstances = 1;
+    private int maxUnitsPerScale = 2;
+    private String queueTimeStatistic = EnqueueTimeSketch.MEAN;
+    private int agentsPerInstance = 1;
+    private int bootMinutes = 5;
+    private int scalingIntervalMinutes = 1;
+    private int initialCapacity = 1;
+
+    public ScalingSimulator withScalingPolicy(ScalingPolicy scalingPolicy) {
+        this.scalingPolicy = scalingPolicy;
+        return this;
+    }
+
+    public ScalingSimulator withThresholds(int maxQueuedBuilds, int maxAverageQueueTime, int maxIdleInstances,
+            int maxUnitsPerScale) {
+        this.maxQueuedBuilds = maxQueuedBuilds;
+        this.maxAverageQueueTime = maxAverageQueueTime;
+        this.maxIdleInstances = maxIdleInstances;
+        this.maxUnitsPerScale = maxUnitsPerScale;
+        return this;
+    }
+
+    public ScalingSimulator withQueueTimeStatistic(String queueTimeStatistic) {
+        this.queueTimeStatistic = queueTimeStatistic;
+        return this;
+    }
+
+    public ScalingSimulator withAgentsPerInstance(int agentsPerInstance) {
+        this.agentsPerInstance = agentsPerInstance;
+        return this;
+    }
+
+    /**
+     * @param bootMinutes
+     *            time from launching an instance to its agents taking builds
+     */
+    public ScalingSimulator withBootMinutes(int bootMinutes) {
+        this.bootMinutes = bootMinutes;
+        return this;
+    }
+
+    public ScalingSimulator withScalingIntervalMinutes(int scalingIntervalMinutes) {
+        this.scalingIntervalMinutes = scalingIntervalMinutes;
+        return this;
+    }
+
+    /**
+     * @param initialCapacity
+     *            instances running and ready when the trace starts
+     */
+    public ScalingSimulator withInitialCapacity(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        return this;
+    }
+
+    /**
+     * @param trace
+     *            events ordered by minute, see {@link #parseTrace}
+     * @return cost, queue wait and churn of the replay
+     */
+    public Report run(List<Event> trace) {
+        Report report = new Report();
+        LinkedList<Build> queue = new LinkedList<Build>();
+        List<Instance> instances = new ArrayList<Instance>();
+        int nextInstance = 0;
+        for (; nextInstance < initialCapacity; nextInstance++) {
+            instances.add(new Instance(nextInstance, 0, agentsPerInstance));
+        }
+        int targetCapacity = initialCapacity;
+        long lastEventMinute = trace.isEmpty() ? 0 : trace.get(trace.size() - 1).minute;
+        Iterator<Event> events = trace.iterator();
+        Event nextEvent = events.hasNext() ? events.next() : null;
+        for (long minute = 0; minute <= lastEventMinute + DRAIN_LIMIT_MINUTES; minute++) {
+            while (nextEvent != null && nextEvent.minute <= minute) {
+                if (nextEvent.duration >= 0) {
+                    queue.add(new Build(minute, nextEvent.duration));
+                } else if (!instances.isEmpty()) {
+                    report.interruptions++;
+                    queue.addAll(0, instances.remove(0).release(minute));
+                }
+                nextEvent = events.hasNext() ? events.next() : null;
+            }
+            for (Instance instance : instances) {
+                instance.finishBuilds(minute, report);
+            }
+            // the fleet launches replacements and sheds instances above target, newest and idle first
+            while (instances.size() < targetCapacity) {
+                instances.add(new Instance(nextInstance++, minute + bootMinutes, agentsPerInstance));
+                report.instancesLaunched++;
+            }
+            for (int i = instances.size() - 1; i >= 0 && instances.size() > targetCapacity; i--) {
+                if (!instances.get(i).isBusy()) {
+                    instances.remove(i);
+                }
+            }
+            while (instances.size() > targetCapacity) {
+                queue.addAll(0, instances.remove(instances.size() - 1).release(minute));
+            }
+            dispatch(queue, instances, minute, report);
+            if (minute % scalingIntervalMinutes == 0) {
+                int newTargetCapacity = decide(targetCapacity, queue, instances, minute, report);
+                if (newTargetCapacity != targetCapacity) {
+                    report.scalingActions++;
+                    targetCapacity = newTargetCapacity;
+                }
+            }
+            report.instanceMinutes += instances.size();
+            report.minutes = minute + 1;
+            if (nextEvent == null && queue.isEmpty() && !isAnyBusy(instances)) {
+                break;
+            }
+        }
+        report.unfinishedBuilds = queue.size();
+        for (Instance instance : instances) {
+            report.unfinishedBuilds += instance.release(report.minutes).size();
+        }
+        return report;
+    }
+
+    private void dispatch(LinkedList<Build> queue, List<Instance> instances, long minute, Report report) {
+        for (Instance instance : instances) {
+            if (instance.readyMinute > minute) {
+                continue;
+            }
+            for (int slot = 0; slot < instance.builds.length && !queue.isEmpty(); slot++) {
+                if (instance.builds[slot] == null) {
+                    Build build = queue.removeFirst();
+                    report.waits.add((minute - build.queuedMinute) * MILLISECONDS_PER_MINUTE);
+                    build.finishMinute = minute + build.duration;
+                    instance.builds[slot] = build;
+                }
+            }
+        }
+    }
+
+    private int decide(int targetCapacity, List<Build> queue, List<Instance> instances, long minute, Report report) {
+        long now = minute * MILLISECONDS_PER_MINUTE;
+        EnqueueTimeSketch queuedBuilds = new EnqueueTimeSketch();
+        for (Build build : queue) {
+            queuedBuilds.add(build.queuedMinute * MILLISECONDS_PER_MINUTE);
+        }
+        int busyInstances = 0;
+        List<String> terminationCandidates = new ArrayList<String>();
+        for (Instance instance : instances) {
+            if (instance.isBusy()) {
+                busyInstances++;
+            } else {
+                terminationCandidates.add(instance.key);
+            }
+        }
+        ScalingDecision decision = scalingPolicy.decide(new ScalingState().withCurrentTargetCapacity(targetCapacity)
+                .withActiveCapacity(instances.size()).withBusyCapacity(busyInstances)
+                .withTerminationCandidates(terminationCandidates).withAgentsPerUnit(agentsPerInstance)
+                .withQueuedBuilds(queue.size()).withQueueWaitMilliseconds(queuedBuilds.getWait(queueTimeStatistic, now))
+                .withMaxQueuedBuilds(maxQueuedBuilds)
+                .withMaxQueueWaitMilliseconds(maxAverageQueueTime * MILLISECONDS_PER_MINUTE)
+                .withMaxIdleInstances(maxIdleInstances).withMaxUnitsPerScale(maxUnitsPerScale).withNow(now));
+        Iterator<Instance> instanceIterator = instances.iterator();
+        while (instanceIterator.hasNext()) {
+            if (decision.getInstancesToTerminate().contains(instanceIterator.next().key)) {
+                instanceIterator.remove();
+                report.instancesTerminated++;
+            }
+        }
+        return Math.min(SpotFleetTaskExecution.MAXIMUM_TARGET_CAPACITY,
+                Math.max(SpotFleetTaskExecution.MINIMUM_TARGET_CAPACITY, decision.getTargetCapacity()));
+    }
+
+    private static boolean isAnyBusy(List<Instance> instances) {
+        for (Instance instance : instances) {
+            if (instance.isBusy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param reader
+     *            trace in the format described above
+     * @return events ordered by minute
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             for a malformed line
+     */
+    public static List<Event> parseTrace(Reader reader) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s*,\\s*");
+            try {
+                long minute = Long.parseLong(fields[0]);
+                if (fields.length == 3 && BUILD_EVENT.equals(fields[1])) {
+                    events.add(new Event(minute, Math.max(1, Long.parseLong(fields[2]))));
+                    continue;
+                } else if (fields.length == 2 && INTERRUPTION_EVENT.equals(fields[1])) {
+                    events.add(new Event(minute, -1));
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("malformed trace line " + lineNumber + ": " + line);
+        }
+        Collections.sort(events);
+        return events;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: ScalingSimulator trace.csv [--option=value ...]");
+            System.exit(2);
+        }
+        ScalingSimulator simulator = new ScalingSimulator();
+        String controller = CapacityControllerRegistry.PROPORTIONAL;
+        String policy = null;
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].replaceFirst("^--", "").split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+            if ("queuedBuilds".equals(option[0])) {
+                simulator.maxQueuedBuilds = Integer.parseInt(value);
+            } else if ("averageQueueTime".equals(option[0])) {
+                simulator.maxAverageQueueTime = Integer.parseInt(value);
+            } else if ("idleInstances".equals(option[0])) {
+                simulator.maxIdleInstances = Integer.parseInt(value);
+            } else if ("maxUnitsPerScale".equals(option[0])) {
+                simulator.maxUnitsPerScale = Integer.parseInt(value);
+            } else if ("queueTimeStatistic".equals(option[0])) {
+                simulator.queueTimeStatistic = value;
+            } else if ("controller".equals(option[0])) {
+                controller = value;
+            } else if ("policy".equals(option[0])) {
+                policy = value;
+            } else if ("agentsPerInstance".equals(option[0])) {
+                simulator.agentsPerInstance = Integer.parseInt(value);
+            } else if ("bootMinutes".equals(option[0])) {
+                simulator.bootMinutes = Integer.parseInt(value);
+            } else if ("scalingInterval".equals(option[0])) {
+                simulator.scalingIntervalMinutes = Math.max(1, Integer.parseInt(value));
+            } else if ("initialCapacity".equals(option[0])) {
+                simulator.initialCapacity = Integer.parseInt(value);
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (policy != null) {
+            simulator.scalingPolicy = (ScalingPolicy) Class.forName(policy).newInstance();
+        } else {
+            simulator.scalingPolicy = new ThresholdScalingPolicy(
+                    new CapacityControllerRegistry().getController("simulation", controller));
+        }
+        Reader trace = new FileReader(args[0]);
+        try {
+            System.out.print(simulator.run(parseTrace(trace)));
+        } finally {
+            trace.close();
+        }
+    }
+
+    /**
+     * A queued build or a spot interruption
+     */
+    public static class Event implements Comparable<Event> {
+        private final long minute;
+        // build duration in minutes, negative for an interruption
+        private final long duration;
+
+        private Event(long minute, long duration) {
+            this.minute = minute;
+            this.duration = duration;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return minute < other.minute ? -1 : (minute == other.minute ? 0 : 1);
+        }
+    }
+
+    /**
+     * Outcome of a replay
+     */
+    public static class Report {
+        private long minutes;
+        private long instanceMinutes;
+        // waits of the builds dispatched, in milliseconds
+        private final List<Long> waits = new ArrayList<Long>();
+        private int buildsCompleted;
+        private int unfinishedBuilds;
+        private int interruptions;
+        private int scalingActions;
+        private int instancesLaunched;
+        private int instancesTerminated;
+
+        public long getMinutes() {
+            return minutes;
+        }
+
+        /**
+         * @return instance-minutes paid for, booting instances included
+         */
+        public long getInstanceMinutes() {
+            return instanceMinutes;
+        }
+
+        public long getMeanWaitMilliseconds() {
+            long sum = 0;
+            for (long wait : waits) {
+                sum += wait;
+            }
+            return waits.isEmpty() ? 0 : sum / waits.size();
+        }
+
+        public long getP95WaitMilliseconds() {
+            if (waits.isEmpty()) {
+                return 0;
+            }
+            // nearest-rank percentile
+            List<Long> sortedWaits = new ArrayList<Long>(waits);
+            Collections.sort(sortedWaits);
+            return sortedWaits.get((int) Math.ceil(0.95 * sortedWaits.size()) - 1);
+        }
+
+        public int getBuildsCompleted() {
+            return buildsCompleted;
+        }
+
+        /**
+         * @return builds still queued or running when the replay gave up
+         */
+        public int getUnfinishedBuilds() {
+            return unfinishedBuilds;
+        }
+
+        public int getInterruptions() {
+            return interruptions;
+        }
+
+        /**
+         * @return target capacity changes
+         */
+        public int getScalingActions() {
+            return scalingActions;
+        }
+
+        public int getInstancesLaunched() {
+            return instancesLaunched;
+        }
+
+        /**
+         * @return idle instances terminated by the policy
+         */
+        public int getInstancesTerminated() {
+            return instancesTerminated;
+        }
+
+        @Override
+        public String toString() {
+            return "simulated minutes: " + minutes + "\n"
+                    + "instance minutes: " + instanceMinutes + "\n"
+                    + "builds completed: " + buildsCompleted + "\n"
+                    + "builds unfinished: " + unfinishedBuilds + "\n"
+                    + "mean queue wait seconds: " + getMeanWaitMilliseconds() / 1000 + "\n"
+                    + "p95 queue wait seconds: " + getP95WaitMilliseconds() / 1000 + "\n"
+                    + "spot interruptions: " + interruptions + "\n"
+                    + "scaling actions: " + scalingActions + "\n"
+                    + "instances launched: " + instancesLaunched + "\n"
+                    + "instances terminated: " + instancesTerminated + "\n";
+        }
+    }
+
+    private static class Build {
+        private long queuedMinute;
+        private final long duration;
+        private long finishMinute;
+
+        private Build(long queuedMinute, long duration) {
+            this.queuedMinute = queuedMinute;
+            this.duration = duration;
+        }
+    }
+
+    private static class Instance {
+        private final String key;
+        private final long readyMinute;
+        // build running on each agent, null when the agent is idle
+        private final Build[] builds;
+
+        private Instance(int number, long readyMinute, int agents) {
+            this.key = "i-" + number;
+            this.readyMinute = readyMinute;
+            this.builds = new Build[Math.max(1, agents)];
+        }
+
+        private boolean isBusy() {
+            for (Build build : builds) {
+                if (build != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void finishBuilds(long minute, Report report) {
+            for (int slot = 0; slot < builds.length; slot++) {
+                if (builds[slot] != null && builds[slot].finishMinute <= minute) {
+                    builds[slot] = null;
+                    report.buildsCompleted++;
+                }
+            }
+        }
+
+        // builds that were running, queued again in their original order from the given minute
+        private List<Build> release(long minute) {
+            List<Build> running = new ArrayList<Build>();
+            for (int slot = 0; slot < builds.length; slot++) {
+                if (builds[slot] != null) {
+                    builds[slot].queuedMinute = minute;
+                    running.add(builds[slot]);
+                    builds[slot] = null;
+                }
+            }
+            return running;
+        }
+    }
+}
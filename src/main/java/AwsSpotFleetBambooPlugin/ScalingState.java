@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of a fleet, its build queue and the task's scaling settings that a {@link ScalingPolicy} decides from.
+ * Instances are identified by their instance keys, see {@link AgentInstanceResolver#getInstanceKey}. Capacity is
+ * counted in units of target capacity: instances, or the launch specifications' weights if they are weighted.
+ */
+public class ScalingState {
+    private int currentTargetCapacity;
+    private int activeCapacity;
+    private int busyCapacity;
+    private List<String> terminationCandidates = Collections.emptyList();
+    // instance keys to weights, instances not in the map weigh 1
+    private Map<String, Double> instanceWeights = Collections.emptyMap();
+    private double agentsPerUnit = 1;
+    private int queuedBuilds;
+    private long queueWaitMilliseconds;
+    private int predictedBuilds;
+    private int maxQueuedBuilds;
+    private long maxQueueWaitMilliseconds;
+    private int maxIdleInstances;
+    private int maxUnitsPerScale;
+    private long now;
+
+    public int getCurrentTargetCapacity() {
+        return currentTargetCapacity;
+    }
+
+    public ScalingState withCurrentTargetCapacity(int currentTargetCapacity) {
+        this.currentTargetCapacity = currentTargetCapacity;
+        return this;
+    }
+
+    /**
+     * @return fulfilled capacity, not counting instances about to be reclaimed
+     */
+    public int getActiveCapacity() {
+        return activeCapacity;
+    }
+
+    public ScalingState withActiveCapacity(int activeCapacity) {
+        this.activeCapacity = activeCapacity;
+        return this;
+    }
+
+    /**
+     * @return capacity of the instances with at least one busy agent
+     */
+    public int getBusyCapacity() {
+        return busyCapacity;
+    }
+
+    public ScalingState withBusyCapacity(int busyCapacity) {
+        this.busyCapacity = busyCapacity;
+        return this;
+    }
+
+    /**
+     * @return idle instances that may be terminated, most preferred first
+     */
+    public List<String> getTerminationCandidates() {
+        return terminationCandidates;
+    }
+
+    public ScalingState withTerminationCandidates(List<String> terminationCandidates) {
+        this.terminationCandidates = terminationCandidates;
+        return this;
+    }
+
+    /**
+     * @param instanceKey
+     * @return capacity units the instance counts for
+     */
+    public double getWeight(String instanceKey) {
+        Double weight = instanceWeights.get(instanceKey);
+        return weight == null ? 1 : weight;
+    }
+
+    public ScalingState withInstanceWeights(Map<String, Double> instanceWeights) {
+        this.instanceWeights = instanceWeights;
+        return this;
+    }
+
+    /**
+     * @return agents per unit of capacity, agents per instance unless launch specifications are weighted
+     */
+    public double getAgentsPerUnit() {
+        return agentsPerUnit;
+    }
+
+    /**
+     * @param agentsPerUnit
+     *            1 if not positive
+     */
+    public ScalingState withAgentsPerUnit(double agentsPerUnit) {
+        this.agentsPerUnit = agentsPerUnit > 0 ? agentsPerUnit : 1;
+        return this;
+    }
+
+    public int getQueuedBuilds() {
+        return queuedBuilds;
+    }
+
+    public ScalingState withQueuedBuilds(int queuedBuilds) {
+        this.queuedBuilds = queuedBuilds;
+        return this;
+    }
+
+    /**
+     * @return queue wait statistic the task is configured with
+     */
+    public long getQueueWaitMilliseconds() {
+        return queueWaitMilliseconds;
+    }
+
+    public ScalingState withQueueWaitMilliseconds(long queueWaitMilliseconds) {
+        this.queueWaitMilliseconds = queueWaitMilliseconds;
+        return this;
+    }
+
+    /**
+     * @return builds expected to need an agent soon, 0 if the task doesn't predict load
+     */
+    public int getPredictedBuilds() {
+        return predictedBuilds;
+    }
+
+    public ScalingState withPredictedBuilds(int predictedBuilds) {
+        this.predictedBuilds = predictedBuilds;
+        return this;
+    }
+
+    public int getMaxQueuedBuilds() {
+        return maxQueuedBuilds;
+    }
+
+    public ScalingState withMaxQueuedBuilds(int maxQueuedBuilds) {
+        this.maxQueuedBuilds = maxQueuedBuilds;
+        return this;
+    }
+
+    public long getMaxQueueWaitMilliseconds() {
+        return maxQueueWaitMilliseconds;
+    }
+
+    public ScalingState withMaxQueueWaitMilliseconds(long maxQueueWaitMilliseconds) {
+        this.maxQueueWaitMilliseconds = maxQueueWaitMilliseconds;
+        return this;
+    }
+
+    public int getMaxIdleInstances() {
+        return maxIdleInstances;
+    }
+
+    public ScalingState withMaxIdleInstances(int maxIdleInstances) {
+        this.maxIdleInstances = maxIdleInstances;
+        return this;
+    }
+
+    public int getMaxUnitsPerScale() {
+        return maxUnitsPerScale;
+    }
+
+    public ScalingState withMaxUnitsPerScale(int maxUnitsPerScale) {
+        this.maxUnitsPerScale = maxUnitsPerScale;
+        return this;
+    }
+
+    /**
+     * @return current time in milliseconds, simulated time when replayed
+     */
+    public long getNow() {
+        return now;
+    }
+
+    public ScalingState withNow(long now) {
+        this.now = now;
+        return this;
+    }
+}
@@ -14,11 +14,6 @@
  */
 package AwsSpotFleetBambooPlugin;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -32,10 +27,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.Request;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CancelSpotFleetRequestsRequest;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
@@ -51,11 +43,9 @@ import com.amazonaws.services.ec2.model.transform.CreateTagsRequestMarshaller;
 import com.amazonaws.services.ec2.model.transform.ModifySpotFleetRequestRequestMarshaller;
 import com.amazonaws.services.ec2.model.transform.TerminateInstancesRequestMarshaller;
 import com.atlassian.bamboo.collections.ActionParametersMap;
-import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.task.AbstractTaskConfigurator;
 import com.atlassian.bamboo.task.TaskDefinition;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
-import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.user.UserManager;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -74,18 +64,23 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
     public final int EC2REQUEST_SUCCESS_CODE = 412;
     public final int EC2REQUEST_ERROR_CODE = 403;
     public final int EMPTY_INTEGER_VALUE = -1;
+    public final int DISABLED_SCALING_INTERVAL = 0;
+    // background scaling intervals shorter than the daemon's tick would not run any more often
+    public final int MINIMUM_SCALING_INTERVAL = (int) (SpotFleetScalingDaemon.TICK_INTERVAL_MILLISECONDS
+            / SpotFleetScalingDaemon.MILLISECONDS_PER_SECOND);
 
     private TextProvider textProvider;
-    private AdministrationConfigurationAccessor administrationConfigurationAccessor;
+    private UserDataScriptRenderer userDataScriptRenderer;
+    private Ec2ClientRegistry ec2ClientRegistry;
     private Set<String> regionCodeAndNamesSet = ImmutableSet.of("us-east-1 (N. Virginia)", "us-west-1 (N. California)",
             "us-west-2 (Oregon)", "eu-west-1 (Ireland)", "eu-central-1 (Frankfurt)", "ap-southeast-1 (Singapore)",
             "ap-southeast-2 (Sydney)", "ap-northeast-1 (Tokyo)", "ap-northeast-2 (Seoul)", "sa-east-1 (São Paulo)");
 
     // any components imported here must be present in main class as well
     @Autowired
-    public SpotFleetConfigurator(
-            @ComponentImport AdministrationConfigurationAccessor administrationConfigurationAccessor) {
-        this.administrationConfigurationAccessor = administrationConfigurationAccessor;
+    public SpotFleetConfigurator(UserDataScriptRenderer userDataScriptRenderer, Ec2ClientRegistry ec2ClientRegistry) {
+        this.userDataScriptRenderer = userDataScriptRenderer;
+        this.ec2ClientRegistry = ec2ClientRegistry;
     }
 
     /**
@@ -99,7 +94,9 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
         final Map<String, String> config = super.generateTaskConfigMap(params, previousTaskDefinition);
         config.put(StringConstants.ACCESS_KEY, params.getString(StringConstants.ACCESS_KEY));
         config.put(StringConstants.SECRET_KEY, params.getString(StringConstants.SECRET_KEY));
-        config.put(StringConstants.FLEET_ID, params.getString(StringConstants.FLEET_ID));
+        // several fleets are stored as a comma separated list
+        config.put(StringConstants.FLEET_ID,
+                StringUtils.join(FleetCoordinator.parseFleetIds(params.getString(StringConstants.FLEET_ID)), ","));
         String regionName = params.getString(StringConstants.REGION);
         String regionCode = regionName.split(" \\(")[0];
         config.put(StringConstants.REGION, regionCode);
@@ -115,6 +112,31 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
                 Integer.toString(params.getInt(StringConstants.IDLE_INSTANCES, EMPTY_INTEGER_VALUE)));
         config.put(StringConstants.MAXIMUM_UNITS_PER_SCALE,
                 Integer.toString(params.getInt(StringConstants.MAXIMUM_UNITS_PER_SCALE, EMPTY_INTEGER_VALUE)));
+        config.put(StringConstants.SCALING_INTERVAL,
+                Integer.toString(params.getInt(StringConstants.SCALING_INTERVAL, DISABLED_SCALING_INTERVAL)));
+        String queueTimeStatistic = params.getString(StringConstants.QUEUE_TIME_STATISTIC);
+        config.put(StringConstants.QUEUE_TIME_STATISTIC,
+                StringUtils.isEmpty(queueTimeStatistic) ? EnqueueTimeSketch.MEAN : queueTimeStatistic);
+        String capacityController = params.getString(StringConstants.CAPACITY_CONTROLLER);
+        config.put(StringConstants.CAPACITY_CONTROLLER, StringUtils.isEmpty(capacityController)
+                ? CapacityControllerRegistry.PROPORTIONAL : capacityController);
+        config.put(StringConstants.PREDICTIVE_SCALING,
+                Boolean.toString(params.getBoolean(StringConstants.PREDICTIVE_SCALING)));
+        config.put(StringConstants.TEARDOWN_CONCURRENCY, Integer.toString(
+                params.getInt(StringConstants.TEARDOWN_CONCURRENCY, AgentTeardownExecutor.DEFAULT_CONCURRENCY)));
+        config.put(StringConstants.TEARDOWN_DEADLINE, Integer.toString(
+                params.getInt(StringConstants.TEARDOWN_DEADLINE, AgentTeardownExecutor.DEFAULT_DEADLINE_SECONDS)));
+        String launchMode = params.getString(StringConstants.LAUNCH_MODE);
+        config.put(StringConstants.LAUNCH_MODE,
+                StringUtils.isEmpty(launchMode) ? LaunchTimingRecorder.INSTALL_MODE : launchMode);
+        String agentsPerInstancePolicy = params.getString(StringConstants.AGENTS_PER_INSTANCE_POLICY);
+        config.put(StringConstants.AGENTS_PER_INSTANCE_POLICY, StringUtils.isEmpty(agentsPerInstancePolicy)
+                ? AgentsPerInstancePolicy.DEFAULT.getPolicy() : agentsPerInstancePolicy);
+        config.put(StringConstants.AGENTS_PER_INSTANCE, Integer.toString(params.getInt(
+                StringConstants.AGENTS_PER_INSTANCE, AgentsPerInstancePolicy.DEFAULT.getAmount())));
+        String instanceTags = params.getString(StringConstants.INSTANCE_TAGS);
+        config.put(StringConstants.INSTANCE_TAGS,
+                StringUtils.isBlank(instanceTags) ? InstanceTagger.DEFAULT_TAGS : instanceTags.trim());
         return config;
     }
 
@@ -134,7 +156,15 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
     public void populateContextForEdit(@NotNull final Map<String, Object> context,
             @NotNull final TaskDefinition taskDefinition) {
         super.populateContextForEdit(context, taskDefinition);
-        context.put(StringConstants.USER_DATA, generateUserDataScript());
+        context.put(StringConstants.USER_DATA,
+                generateUserDataScript(taskDefinition.getConfiguration().get(StringConstants.LAUNCH_MODE),
+                        AgentsPerInstancePolicy.fromConfiguration(taskDefinition.getConfiguration()),
+                        taskDefinition.getConfiguration().get(StringConstants.FLEET_ID)));
+        context.put(StringConstants.LAUNCH_MODE, taskDefinition.getConfiguration().get(StringConstants.LAUNCH_MODE));
+        context.put(StringConstants.AGENTS_PER_INSTANCE_POLICY,
+                taskDefinition.getConfiguration().get(StringConstants.AGENTS_PER_INSTANCE_POLICY));
+        context.put(StringConstants.AGENTS_PER_INSTANCE,
+                taskDefinition.getConfiguration().get(StringConstants.AGENTS_PER_INSTANCE));
         context.put(StringConstants.ACCESS_KEY, taskDefinition.getConfiguration().get(StringConstants.ACCESS_KEY));
         context.put(StringConstants.SECRET_KEY, taskDefinition.getConfiguration().get(StringConstants.SECRET_KEY));
         context.put(StringConstants.FLEET_ID, taskDefinition.getConfiguration().get(StringConstants.FLEET_ID));
@@ -153,6 +183,20 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
                 taskDefinition.getConfiguration().get(StringConstants.IDLE_INSTANCES));
         context.put(StringConstants.MAXIMUM_UNITS_PER_SCALE,
                 taskDefinition.getConfiguration().get(StringConstants.MAXIMUM_UNITS_PER_SCALE));
+        context.put(StringConstants.SCALING_INTERVAL,
+                taskDefinition.getConfiguration().get(StringConstants.SCALING_INTERVAL));
+        context.put(StringConstants.QUEUE_TIME_STATISTIC,
+                taskDefinition.getConfiguration().get(StringConstants.QUEUE_TIME_STATISTIC));
+        context.put(StringConstants.CAPACITY_CONTROLLER,
+                taskDefinition.getConfiguration().get(StringConstants.CAPACITY_CONTROLLER));
+        context.put(StringConstants.PREDICTIVE_SCALING,
+                taskDefinition.getConfiguration().get(StringConstants.PREDICTIVE_SCALING));
+        context.put(StringConstants.TEARDOWN_CONCURRENCY,
+                taskDefinition.getConfiguration().get(StringConstants.TEARDOWN_CONCURRENCY));
+        context.put(StringConstants.TEARDOWN_DEADLINE,
+                taskDefinition.getConfiguration().get(StringConstants.TEARDOWN_DEADLINE));
+        context.put(StringConstants.INSTANCE_TAGS,
+                taskDefinition.getConfiguration().get(StringConstants.INSTANCE_TAGS));
     }
 
     /**
@@ -162,7 +206,15 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
     public void populateContextForView(@NotNull final Map<String, Object> context,
             @NotNull final TaskDefinition taskDefinition) {
         super.populateContextForView(context, taskDefinition);
-        context.put(StringConstants.USER_DATA, generateUserDataScript());
+        context.put(StringConstants.USER_DATA,
+                generateUserDataScript(taskDefinition.getConfiguration().get(StringConstants.LAUNCH_MODE),
+                        AgentsPerInstancePolicy.fromConfiguration(taskDefinition.getConfiguration()),
+                        taskDefinition.getConfiguration().get(StringConstants.FLEET_ID)));
+        context.put(StringConstants.LAUNCH_MODE, taskDefinition.getConfiguration().get(StringConstants.LAUNCH_MODE));
+        context.put(StringConstants.AGENTS_PER_INSTANCE_POLICY,
+                taskDefinition.getConfiguration().get(StringConstants.AGENTS_PER_INSTANCE_POLICY));
+        context.put(StringConstants.AGENTS_PER_INSTANCE,
+                taskDefinition.getConfiguration().get(StringConstants.AGENTS_PER_INSTANCE));
         context.put(StringConstants.ACCESS_KEY, taskDefinition.getConfiguration().get(StringConstants.ACCESS_KEY));
         context.put(StringConstants.SECRET_KEY, taskDefinition.getConfiguration().get(StringConstants.SECRET_KEY));
         context.put(StringConstants.FLEET_ID, taskDefinition.getConfiguration().get(StringConstants.FLEET_ID));
@@ -181,6 +233,20 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
                 taskDefinition.getConfiguration().get(StringConstants.IDLE_INSTANCES));
         context.put(StringConstants.MAXIMUM_UNITS_PER_SCALE,
                 taskDefinition.getConfiguration().get(StringConstants.MAXIMUM_UNITS_PER_SCALE));
+        context.put(StringConstants.SCALING_INTERVAL,
+                taskDefinition.getConfiguration().get(StringConstants.SCALING_INTERVAL));
+        context.put(StringConstants.QUEUE_TIME_STATISTIC,
+                taskDefinition.getConfiguration().get(StringConstants.QUEUE_TIME_STATISTIC));
+        context.put(StringConstants.CAPACITY_CONTROLLER,
+                taskDefinition.getConfiguration().get(StringConstants.CAPACITY_CONTROLLER));
+        context.put(StringConstants.PREDICTIVE_SCALING,
+                taskDefinition.getConfiguration().get(StringConstants.PREDICTIVE_SCALING));
+        context.put(StringConstants.TEARDOWN_CONCURRENCY,
+                taskDefinition.getConfiguration().get(StringConstants.TEARDOWN_CONCURRENCY));
+        context.put(StringConstants.TEARDOWN_DEADLINE,
+                taskDefinition.getConfiguration().get(StringConstants.TEARDOWN_DEADLINE));
+        context.put(StringConstants.INSTANCE_TAGS,
+                taskDefinition.getConfiguration().get(StringConstants.INSTANCE_TAGS));
     }
 
     /**
@@ -191,7 +257,7 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
         super.validate(params, errorCollection);
         final String accessKeyInput = params.getString(StringConstants.ACCESS_KEY);
         final String secretKeyInput = params.getString(StringConstants.SECRET_KEY);
-        final String fleetIdInput = params.getString(StringConstants.FLEET_ID);
+        final List<String> fleetIdInputs = FleetCoordinator.parseFleetIds(params.getString(StringConstants.FLEET_ID));
         String regionName = params.getString(StringConstants.REGION);
         final String regionInput = regionName.split(" \\(")[0];
         final boolean terminateFleetInput = Boolean.parseBoolean(params.getString(StringConstants.TERMINATE_FLEET));
@@ -205,7 +271,7 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
         if (StringUtils.isEmpty(secretKeyInput)) {
             errorCollection.addError(StringConstants.SECRET_KEY, "Can't be empty");
         }
-        if (StringUtils.isEmpty(fleetIdInput)) {
+        if (fleetIdInputs.isEmpty()) {
             errorCollection.addError(StringConstants.FLEET_ID, "Can't be empty");
         }
         if (enableAutoscalingInput) {
@@ -234,88 +300,162 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
                         "Autoscaling inputs must be positive integers");
             }
         }
+        final String queueTimeStatisticInput = params.getString(StringConstants.QUEUE_TIME_STATISTIC);
+        if (!StringUtils.isEmpty(queueTimeStatisticInput)
+                && !EnqueueTimeSketch.STATISTICS.contains(queueTimeStatisticInput)) {
+            errorCollection.addError(StringConstants.QUEUE_TIME_STATISTIC,
+                    "Must be one of " + StringUtils.join(EnqueueTimeSketch.STATISTICS, ", "));
+        }
+        final String launchModeInput = params.getString(StringConstants.LAUNCH_MODE);
+        if (!StringUtils.isEmpty(launchModeInput) && !LaunchTimingRecorder.INSTALL_MODE.equals(launchModeInput)
+                && !LaunchTimingRecorder.PREBAKED_MODE.equals(launchModeInput)) {
+            errorCollection.addError(StringConstants.LAUNCH_MODE, "Must be one of " + LaunchTimingRecorder.INSTALL_MODE
+                    + ", " + LaunchTimingRecorder.PREBAKED_MODE);
+        }
+        final String capacityControllerInput = params.getString(StringConstants.CAPACITY_CONTROLLER);
+        if (!StringUtils.isEmpty(capacityControllerInput)
+                && !CapacityControllerRegistry.CONTROLLERS.contains(capacityControllerInput)) {
+            errorCollection.addError(StringConstants.CAPACITY_CONTROLLER,
+                    "Must be one of " + StringUtils.join(CapacityControllerRegistry.CONTROLLERS, ", "));
+        }
+        // background scaling is optional, an empty interval leaves it disabled
+        final String scalingIntervalInput = params.getString(StringConstants.SCALING_INTERVAL);
+        if (!StringUtils.isEmpty(scalingIntervalInput)) {
+            try {
+                final int scalingInterval = Integer.parseInt(scalingIntervalInput);
+                if (scalingInterval != DISABLED_SCALING_INTERVAL && scalingInterval < MINIMUM_SCALING_INTERVAL) {
+                    errorCollection.addError(StringConstants.SCALING_INTERVAL,
+                            "Must be 0 or at least " + MINIMUM_SCALING_INTERVAL + " seconds");
+                }
+            } catch (NumberFormatException e) {
+                errorCollection.addError(StringConstants.SCALING_INTERVAL, "Must be an integer number of seconds");
+            }
+        }
+        final String agentsPerInstancePolicyInput = params.getString(StringConstants.AGENTS_PER_INSTANCE_POLICY);
+        if (!StringUtils.isEmpty(agentsPerInstancePolicyInput)
+                && !AgentsPerInstancePolicy.POLICIES.contains(agentsPerInstancePolicyInput)) {
+            errorCollection.addError(StringConstants.AGENTS_PER_INSTANCE_POLICY,
+                    "Must be one of " + StringUtils.join(AgentsPerInstancePolicy.POLICIES, ", "));
+        }
+        validateOptionalPositiveInteger(params, errorCollection, StringConstants.AGENTS_PER_INSTANCE);
+        try {
+            new InstanceTagger(params.getString(StringConstants.INSTANCE_TAGS));
+        } catch (IllegalArgumentException e) {
+            errorCollection.addError(StringConstants.INSTANCE_TAGS, e.getMessage());
+        }
+        // teardown settings are optional, empty values keep the defaults
+        validateOptionalPositiveInteger(params, errorCollection, StringConstants.TEARDOWN_CONCURRENCY);
+        validateOptionalPositiveInteger(params, errorCollection, StringConstants.TEARDOWN_DEADLINE);
         if (!errorCollection.hasAnyErrors()) {
             // server-side validation. Test that user-provided credentials/fleet ID
             // are valid, active, and have necessary permissions
-            BasicAWSCredentials awsCredentials = new BasicAWSCredentials(accessKeyInput, secretKeyInput);
-            AmazonEC2 EC2Client = new AmazonEC2Client(awsCredentials).withRegion(Regions.fromName(regionInput));
-            // TODO: refactor into a single IAM policy call.
-            DescribeSpotFleetRequestsRequest describeSpotFleetRequestsRequest = new DescribeSpotFleetRequestsRequest();
-            describeSpotFleetRequestsRequest.withSpotFleetRequestIds(fleetIdInput);
+            Ec2ClientRegistry.ThrottledClient throttledClient = ec2ClientRegistry.acquire(accessKeyInput,
+                    secretKeyInput, regionInput);
             try {
-                DescribeSpotFleetRequestsResult describeSpotFleetRequestsResult = EC2Client
-                        .describeSpotFleetRequests(describeSpotFleetRequestsRequest);
-                String fleetRequestState = describeSpotFleetRequestsResult.getSpotFleetRequestConfigs().get(0)
-                        .getSpotFleetRequestState();
-                // ensure fleet request is active
-                if (!fleetRequestState.contains("active")) {
-                    errorCollection.addError(StringConstants.FLEET_ID,
-                            "Provided fleet needs to be active, fleet status is: " + fleetRequestState);
+                for (String fleetIdInput : fleetIdInputs) {
+                    validateFleet(throttledClient.getClient(), fleetIdInput, terminateFleetInput, errorCollection);
+                }
+            } finally {
+                ec2ClientRegistry.release(throttledClient);
+            }
+        }
+    }
+
+    /**
+     * server-side validation of one fleet: it must exist, be active and be modifiable with the given client
+     */
+    private void validateFleet(AmazonEC2 EC2Client, final String fleetIdInput, boolean terminateFleetInput,
+            ErrorCollection errorCollection) {
+        // TODO: refactor into a single IAM policy call.
+        DescribeSpotFleetRequestsRequest describeSpotFleetRequestsRequest = new DescribeSpotFleetRequestsRequest();
+        describeSpotFleetRequestsRequest.withSpotFleetRequestIds(fleetIdInput);
+        try {
+            DescribeSpotFleetRequestsResult describeSpotFleetRequestsResult = EC2Client
+                    .describeSpotFleetRequests(describeSpotFleetRequestsRequest);
+            String fleetRequestState = describeSpotFleetRequestsResult.getSpotFleetRequestConfigs().get(0)
+                    .getSpotFleetRequestState();
+            // ensure fleet request is active
+            if (!fleetRequestState.contains("active")) {
+                errorCollection.addError(StringConstants.FLEET_ID,
+                        "Provided fleet needs to be active, fleet status is: " + fleetRequestState);
+            }
+            // check user has DescribeSpotFleetInstances permissions
+            DescribeSpotFleetInstancesRequest describeSpotfleetInstancesRequest = new DescribeSpotFleetInstancesRequest()
+                    .withSpotFleetRequestId(fleetIdInput);
+            DescribeSpotFleetInstancesResult describeSpotFleetInstancesResult = EC2Client
+                    .describeSpotFleetInstances(describeSpotfleetInstancesRequest);
+            // check user has modify spot fleet permissions
+            DryRunSupportedRequest<ModifySpotFleetRequestRequest> tryFleetModification = new DryRunSupportedRequest<ModifySpotFleetRequestRequest>() {
+                // create dry run request - check for modify spot fleet
+                // permissions without actually placing request
+                @Override
+                public Request<ModifySpotFleetRequestRequest> getDryRunRequest() {
+                    ModifySpotFleetRequestRequest modifySpotFleetRequestRequest = new ModifySpotFleetRequestRequest()
+                            .withSpotFleetRequestId(fleetIdInput);
+                    Request<ModifySpotFleetRequestRequest> request = new ModifySpotFleetRequestRequestMarshaller()
+                            .marshall(modifySpotFleetRequestRequest);
+                    request.addParameter("DryRun", Boolean.toString(true));
+                    return request;
                 }
-                // check user has DescribeSpotFleetInstances permissions
-                DescribeSpotFleetInstancesRequest describeSpotfleetInstancesRequest = new DescribeSpotFleetInstancesRequest()
-                        .withSpotFleetRequestId(fleetIdInput);
-                DescribeSpotFleetInstancesResult describeSpotFleetInstancesResult = EC2Client
-                        .describeSpotFleetInstances(describeSpotfleetInstancesRequest);
-                // check user has modify spot fleet permissions
-                DryRunSupportedRequest<ModifySpotFleetRequestRequest> tryFleetModification = new DryRunSupportedRequest<ModifySpotFleetRequestRequest>() {
-                    // create dry run request - check for modify spot fleet
-                    // permissions without actually placing request
+            };
+            DryRunResult modifyDryRunResult = EC2Client.dryRun(tryFleetModification);
+            if (modifyDryRunResult.getDryRunResponse().getStatusCode() == EC2REQUEST_ERROR_CODE) {
+                errorCollection.addError(StringConstants.ACCESS_KEY, "ModifySpotFleetRequest failed with error: "
+                        + modifyDryRunResult.getDryRunResponse().getErrorMessage());
+            }
+            // check user has cancel spot fleet permissions if they want fleet to terminate after builds finish
+            if (terminateFleetInput) {
+                DryRunSupportedRequest<CancelSpotFleetRequestsRequest> tryFleetCancellation = new DryRunSupportedRequest<CancelSpotFleetRequestsRequest>() {
                     @Override
-                    public Request<ModifySpotFleetRequestRequest> getDryRunRequest() {
-                        ModifySpotFleetRequestRequest modifySpotFleetRequestRequest = new ModifySpotFleetRequestRequest()
-                                .withSpotFleetRequestId(fleetIdInput);
-                        Request<ModifySpotFleetRequestRequest> request = new ModifySpotFleetRequestRequestMarshaller()
-                                .marshall(modifySpotFleetRequestRequest);
+                    public Request<CancelSpotFleetRequestsRequest> getDryRunRequest() {
+                        CancelSpotFleetRequestsRequest cancelSpotFleetRequestRequest = new CancelSpotFleetRequestsRequest()
+                                .withSpotFleetRequestIds(fleetIdInput);
+                        Request<CancelSpotFleetRequestsRequest> request = new CancelSpotFleetRequestsRequestMarshaller()
+                                .marshall(cancelSpotFleetRequestRequest);
                         request.addParameter("DryRun", Boolean.toString(true));
                         return request;
                     }
                 };
-                DryRunResult modifyDryRunResult = EC2Client.dryRun(tryFleetModification);
-                if (modifyDryRunResult.getDryRunResponse().getStatusCode() == EC2REQUEST_ERROR_CODE) {
-                    errorCollection.addError(StringConstants.ACCESS_KEY, "ModifySpotFleetRequest failed with error: "
-                            + modifyDryRunResult.getDryRunResponse().getErrorMessage());
-                }
-                // check user has cancel spot fleet permissions if they want fleet to terminate after builds finish
-                if (terminateFleetInput) {
-                    DryRunSupportedRequest<CancelSpotFleetRequestsRequest> tryFleetCancellation = new DryRunSupportedRequest<CancelSpotFleetRequestsRequest>() {
-                        @Override
-                        public Request<CancelSpotFleetRequestsRequest> getDryRunRequest() {
-                            CancelSpotFleetRequestsRequest cancelSpotFleetRequestRequest = new CancelSpotFleetRequestsRequest()
-                                    .withSpotFleetRequestIds(fleetIdInput);
-                            Request<CancelSpotFleetRequestsRequest> request = new CancelSpotFleetRequestsRequestMarshaller()
-                                    .marshall(cancelSpotFleetRequestRequest);
-                            request.addParameter("DryRun", Boolean.toString(true));
-                            return request;
-                        }
-                    };
-                    DryRunResult cancelDryRunResult = EC2Client.dryRun(tryFleetCancellation);
-                    if (cancelDryRunResult.getDryRunResponse().getStatusCode() == EC2REQUEST_ERROR_CODE) {
-                        errorCollection.addError(StringConstants.ACCESS_KEY,
-                                "CancelSpotFleetRequest failed with error: "
-                                        + cancelDryRunResult.getDryRunResponse().getErrorMessage());
-                    }
-                }
-            } catch (AmazonServiceException e) {
-                if (e.getErrorCode().equals("AuthFailure")) {
-                    errorCollection.addError(StringConstants.ACCESS_KEY, "Provided credentials could not be validated in selected Region");
-                } else if (e.getErrorCode().equals("UnauthorizedOperation")) {
+                DryRunResult cancelDryRunResult = EC2Client.dryRun(tryFleetCancellation);
+                if (cancelDryRunResult.getDryRunResponse().getStatusCode() == EC2REQUEST_ERROR_CODE) {
                     errorCollection.addError(StringConstants.ACCESS_KEY,
-                            "These credentials do not have ec2: DescribeSpotFleetRequest permissions: "
-                                    + e.getErrorMessage());
-                } else if (e.getErrorCode().equals("InvalidParameterValue")) {
-                    errorCollection.addError(StringConstants.FLEET_ID,
-                            "Provided fleet ID does not match regex: " + e.getErrorMessage());
-                } else if (e.getErrorCode().equals("InvalidSpotFleetRequestId.NotFound")) {
-                    errorCollection.addError(StringConstants.FLEET_ID,
-                            "Fleet ID not valid in current region: " + e.getErrorMessage());
-                } else {
-                    errorCollection.addError(StringConstants.ACCESS_KEY, e.getErrorMessage());
-                    errorCollection.addError(StringConstants.SECRET_KEY, e.getErrorMessage());
+                            "CancelSpotFleetRequest failed with error: "
+                                    + cancelDryRunResult.getDryRunResponse().getErrorMessage());
                 }
-            } catch (AmazonClientException e) {
-                errorCollection.addError(StringConstants.ACCESS_KEY, e.getMessage());
-                errorCollection.addError(StringConstants.SECRET_KEY, e.getMessage());
+            }
+        } catch (AmazonServiceException e) {
+            if (e.getErrorCode().equals("AuthFailure")) {
+                errorCollection.addError(StringConstants.ACCESS_KEY, "Provided credentials could not be validated in selected Region");
+            } else if (e.getErrorCode().equals("UnauthorizedOperation")) {
+                errorCollection.addError(StringConstants.ACCESS_KEY,
+                        "These credentials do not have ec2: DescribeSpotFleetRequest permissions: "
+                                + e.getErrorMessage());
+            } else if (e.getErrorCode().equals("InvalidParameterValue")) {
+                errorCollection.addError(StringConstants.FLEET_ID,
+                        "Provided fleet ID does not match regex: " + e.getErrorMessage());
+            } else if (e.getErrorCode().equals("InvalidSpotFleetRequestId.NotFound")) {
+                errorCollection.addError(StringConstants.FLEET_ID,
+                        "Fleet ID not valid in current region: " + e.getErrorMessage());
+            } else {
+                errorCollection.addError(StringConstants.ACCESS_KEY, e.getErrorMessage());
+                errorCollection.addError(StringConstants.SECRET_KEY, e.getErrorMessage());
+            }
+        } catch (AmazonClientException e) {
+            errorCollection.addError(StringConstants.ACCESS_KEY, e.getMessage());
+            errorCollection.addError(StringConstants.SECRET_KEY, e.getMessage());
+        }
+    }
+
+    private static void validateOptionalPositiveInteger(ActionParametersMap params, ErrorCollection errorCollection,
+            String key) {
+        final String input = params.getString(key);
+        if (!StringUtils.isEmpty(input)) {
+            try {
+                if (Integer.parseInt(input) <= 0) {
+                    errorCollection.addError(key, "Integer value must be positive");
+                }
+            } catch (NumberFormatException e) {
+                errorCollection.addError(key, "Integer value must be positive");
             }
         }
     }
@@ -324,31 +464,26 @@ public class SpotFleetConfigurator extends AbstractTaskConfigurator {
      * method to generate bash script for agent installation on instance launch via user data.
      *
      * @return agent installation script
-     * @throws IOException
      */
     public String generateUserDataScript() {
-        // retrieve bamboo server URL
-        String serverURL = administrationConfigurationAccessor.getAdministrationConfiguration().getBaseUrl();
-        // get current file path
-        // (AwsSpotFleetBambooPlugin/target/container/tomcat8x/cargo-bamboo-home)
-        String filePath = new File("").getAbsolutePath();
-        StringBuilder script = new StringBuilder();
-        try {
-            BufferedReader br = new BufferedReader(
-                    new FileReader(filePath + "/../../../classes/scripts/UserDataLaunchScript"));
-            String currentLine;
-            while ((currentLine = br.readLine()) != null) {
-                // replace placeholder with server's URL
-                currentLine = currentLine.replace("SERVER_URL", serverURL);
-                script.append(currentLine + System.lineSeparator());
-            }
-        } catch (FileNotFoundException e) {
-            return "User data script not found";
-        } catch (IOException e) {
-            return "IO error while reading User data script";
-        }
-        return script.toString();
+        return generateUserDataScript(LaunchTimingRecorder.INSTALL_MODE, AgentsPerInstancePolicy.DEFAULT, null);
     }
+
+    /**
+     * @param launchMode
+     *            {@link LaunchTimingRecorder#PREBAKED_MODE} for images with the JDK and build tools already installed,
+     *            anything else installs them at boot
+     * @param agentsPerInstancePolicy
+     *            how many agents the script starts on an instance, null for the default
+     * @param fleetIds
+     *            the task's fleet IDs, null before the task is saved
+     * @return agent installation script for the launch mode
+     */
+    public String generateUserDataScript(String launchMode, AgentsPerInstancePolicy agentsPerInstancePolicy,
+            String fleetIds) {
+        return userDataScriptRenderer.render(launchMode, agentsPerInstancePolicy, fleetIds);
+    }
+
     /**
      * Retrieve a region's full name from its code name
      */
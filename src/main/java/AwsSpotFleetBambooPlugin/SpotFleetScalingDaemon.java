@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+import com.atlassian.bamboo.task.TaskDefinition;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.scheduling.PluginScheduler;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Server-side scheduled job running the monitoring, scaling and teardown cycle of {@link SpotFleetTaskExecution}
+ * without occupying a build executor. Fleets are registered from the saved task definitions only, read again every
+ * {@link #RECONCILE_INTERVAL_MILLISECONDS}, so saved and edited tasks are picked up, fleets of deleted or disabled
+ * tasks, jobs and plans stop being scaled and configured fleets resume after a restart. Registered fleets are evaluated
+ * on the interval configured in the task. The task itself remains usable as a manual trigger.
+ * {@link QueueMetrics} is reconciled with the build queue on the same interval.
+ */
+@Component
+public class SpotFleetScalingDaemon implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SpotFleetScalingDaemon.class);
+    public static final String JOB_KEY = SpotFleetScalingDaemon.class.getName() + ":job";
+    public static final String DAEMON_KEY = "scalingDaemon";
+    // how often the scheduler wakes up to look for fleets that are due
+    public static final long TICK_INTERVAL_MILLISECONDS = 10000;
+    public static final int MILLISECONDS_PER_SECOND = 1000;
+    // how often registrations are checked against the saved task definitions
+    public static final long RECONCILE_INTERVAL_MILLISECONDS = 60000;
+    // plugin key built from the pom's groupId and artifactId, plus the taskType key in atlassian-plugin.xml
+    public static final String TASK_PLUGIN_KEY = "AwsSpotFleetBambooPlugin.AwsSpotFleetBambooPlugin:test";
+
+    private PluginScheduler pluginScheduler;
+    private CachedPlanManager cachedPlanManager;
+    private ScalingServices services;
+    // fleet ID to task configuration, and fleet ID to time of the last background cycle
+    private final Map<String, Map<String, String>> registeredFleets = new ConcurrentHashMap<String, Map<String, String>>();
+    private final Map<String, Long> lastCycleTimes = new ConcurrentHashMap<String, Long>();
+    // scheduler ticks must not pile up behind a slow cycle
+    private final AtomicBoolean cycleRunning = new AtomicBoolean(false);
+    // set by event-triggered evaluations, makes every registered fleet due on the next tick
+    private final AtomicBoolean evaluationRequested = new AtomicBoolean(false);
+    // time registrations and queue metrics were last reconciled, only touched by running cycles
+    private long lastReconcileTime = 0;
+
+    @Autowired
+    public SpotFleetScalingDaemon(@ComponentImport PluginScheduler pluginScheduler,
+            @ComponentImport CachedPlanManager cachedPlanManager, ScalingServices services) {
+        this.pluginScheduler = pluginScheduler;
+        this.cachedPlanManager = cachedPlanManager;
+        this.services = services;
+    }
+
+    /**
+     * start ticking once the plugin's components are wired
+     */
+    @Override
+    public void afterPropertiesSet() {
+        pluginScheduler.scheduleJob(JOB_KEY, SpotFleetScalingJob.class,
+                ImmutableMap.<String, Object>of(DAEMON_KEY, this), new Date(), TICK_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * stop ticking when the plugin is disabled or uninstalled
+     */
+    @Override
+    public void destroy() {
+        try {
+            pluginScheduler.unscheduleJob(JOB_KEY);
+        } catch (IllegalArgumentException e) {
+            // job was never scheduled
+        }
+        registeredFleets.clear();
+        lastCycleTimes.clear();
+    }
+
+    /**
+     * Stop scaling a fleet in the background until the next reconcile, e.g. because it was cancelled. Also stops the
+     * other fleets registered together with it
+     *
+     * @param fleetID
+     *            fleet ID or list of fleet IDs
+     */
+    public void unregisterFleet(String fleetID) {
+        Iterator<String> registrations = registeredFleets.keySet().iterator();
+        while (registrations.hasNext()) {
+            String registration = registrations.next();
+            if (registration.equals(fleetID) || FleetCoordinator.parseFleetIds(registration).contains(fleetID)) {
+                registrations.remove();
+                lastCycleTimes.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * @param fleetID
+     * @return whether the fleet is scaled in the background
+     */
+    public boolean isRegistered(String fleetID) {
+        for (String registration : registeredFleets.keySet()) {
+            if (registration.equals(fleetID) || FleetCoordinator.parseFleetIds(registration).contains(fleetID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make every registered fleet due on the next scheduler tick, regardless of its interval. Cycles only run on the
+     * scheduler's thread, never on the caller's. Called by {@link QueuePressureTracker}
+     */
+    public void requestEvaluation() {
+        evaluationRequested.set(true);
+    }
+
+    /**
+     * run a scaling cycle for every registered fleet whose interval has elapsed. Called by {@link SpotFleetScalingJob}
+     */
+    public void runDueFleets() {
+        if (!cycleRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            boolean evaluateAll = evaluationRequested.getAndSet(false);
+            long now = System.currentTimeMillis();
+            if (now - lastReconcileTime >= RECONCILE_INTERVAL_MILLISECONDS) {
+                lastReconcileTime = now;
+                if (cachedPlanManager != null) {
+                    reconcile();
+                }
+                // catches up on queue events that were missed, reading the queue doesn't
+                services.getQueueMetrics().reconcile();
+            }
+            for (Map.Entry<String, Map<String, String>> fleet : registeredFleets.entrySet()) {
+                Long lastCycleTime = lastCycleTimes.get(fleet.getKey());
+                long intervalMilliseconds = getScalingIntervalSeconds(fleet.getValue()) * MILLISECONDS_PER_SECOND;
+                if (evaluateAll || lastCycleTime == null || now - lastCycleTime >= intervalMilliseconds) {
+                    lastCycleTimes.put(fleet.getKey(), now);
+                    runFleet(fleet.getKey(), fleet.getValue());
+                }
+            }
+        } finally {
+            cycleRunning.set(false);
+        }
+    }
+
+    /**
+     * Replace the registrations with the fleets of enabled scaling tasks in enabled jobs of enabled plans. The only
+     * way fleets are registered
+     */
+    public void reconcile() {
+        Map<String, Map<String, String>> configuredFleets = new HashMap<String, Map<String, String>>();
+        try {
+            for (ImmutableJob job : cachedPlanManager.getPlans(ImmutableJob.class)) {
+                if (job.isSuspendedFromBuilding()
+                        || (job.getParent() != null && job.getParent().isSuspendedFromBuilding())) {
+                    continue;
+                }
+                for (TaskDefinition taskDefinition : job.getBuildDefinition().getTaskDefinitions()) {
+                    Map<String, String> configuration = taskDefinition.getConfiguration();
+                    String fleetID = configuration.get(StringConstants.FLEET_ID);
+                    if (taskDefinition.isEnabled() && TASK_PLUGIN_KEY.equals(taskDefinition.getPluginKey())
+                            && !StringUtils.isEmpty(fleetID) && getScalingIntervalSeconds(configuration) > 0) {
+                        configuredFleets.put(fleetID,
+                                Collections.unmodifiableMap(new HashMap<String, String>(configuration)));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // keep the current registrations rather than stopping every fleet
+            logger.warn("could not read the saved scaling tasks", e);
+            return;
+        }
+        for (String fleetID : registeredFleets.keySet()) {
+            if (!configuredFleets.containsKey(fleetID)) {
+                logger.info("fleet " + fleetID + " no longer belongs to an enabled task, stopping background scaling");
+            }
+        }
+        registeredFleets.keySet().retainAll(configuredFleets.keySet());
+        lastCycleTimes.keySet().retainAll(configuredFleets.keySet());
+        registeredFleets.putAll(configuredFleets);
+    }
+
+    private void runFleet(String fleetID, Map<String, String> configuration) {
+        try {
+            // task instances hold per-cycle state, so each cycle gets its own, as a build would
+            new SpotFleetTaskExecution(services, this).runScalingCycle(configuration);
+        } catch (RuntimeException e) {
+            // one broken fleet configuration must not stop the others from scaling
+            logger.error("background scaling cycle failed for fleet " + fleetID, e);
+        }
+    }
+
+    private static int getScalingIntervalSeconds(Map<String, String> configuration) {
+        try {
+            return Integer.parseInt(configuration.get(StringConstants.SCALING_INTERVAL));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -15,45 +15,36 @@
 package AwsSpotFleetBambooPlugin;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeoutException;
-import java.util.regex.Pattern;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.ActiveInstance;
 import com.amazonaws.services.ec2.model.CancelSpotFleetRequestsRequest;
 import com.amazonaws.services.ec2.model.CancelSpotFleetRequestsResult;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsResult;
-import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.ExcessCapacityTerminationPolicy;
 import com.amazonaws.services.ec2.model.ModifySpotFleetRequestRequest;
 import com.amazonaws.services.ec2.model.ModifySpotFleetRequestResult;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SpotFleetRequestConfigData;
-import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.atlassian.bamboo.ResultKey;
 import com.atlassian.bamboo.build.BuildExecutionManager;
 import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
 import com.atlassian.bamboo.buildqueue.manager.AgentManager;
 import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.plan.PlanResultKey;
@@ -66,9 +57,6 @@ import com.atlassian.bamboo.v2.build.BuildIdentifier;
 import com.atlassian.bamboo.v2.build.CurrentlyBuilding;
 import com.atlassian.bamboo.v2.build.agent.BuildAgent;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
-import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
-import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
-import com.google.common.collect.Sets.SetView;
 
 /**
  * Task execution class allows Bamboo managers (which allow access to Bamboo components) to be injected via constructor.
@@ -79,6 +67,8 @@ import com.google.common.collect.Sets.SetView;
  */
 @Component
 public class SpotFleetTaskExecution implements TaskType {
+    // server log, used when a cycle runs outside of a build (background scaling daemon)
+    private static final Logger logger = LoggerFactory.getLogger(SpotFleetTaskExecution.class);
     // Bamboo component to access server URL. Used in configurator class.
     private AdministrationConfigurationAccessor administrationConfigurationAccessor;
     // Bamboo component to access Build queue
@@ -87,31 +77,96 @@ public class SpotFleetTaskExecution implements TaskType {
     private AgentManager agentManager;
     // Bamboo component to access currently executing builds
     private BuildExecutionManager buildExecutionManager;
+    // plugin-scoped cache of EC2 clients, shared between task executions
+    private Ec2ClientRegistry ec2ClientRegistry;
+    // plugin-scoped fleet inventories, refreshed incrementally between task executions
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    // server-side scheduler running scaling cycles between task executions
+    private SpotFleetScalingDaemon scalingDaemon;
+    // running aggregate of the build queue, read instead of walking the queue
+    private QueueMetrics queueMetrics;
+    // cached agent name parsing, shared by the scaling and teardown paths
+    private AgentInstanceResolver agentInstanceResolver;
+    // removes dead agents in parallel, bounded by the task's teardown settings
+    private AgentTeardownExecutor agentTeardownExecutor;
+    // instances that received a spot interruption notice
+    private SpotInterruptionDrainer spotInterruptionDrainer;
+    // queue history by hour of the week, used to warm up the fleet ahead of recurring load
+    private QueueForecaster queueForecaster;
+    // per-fleet capacity controllers, which may keep state between scaling cycles
+    private CapacityControllerRegistry capacityControllerRegistry;
+    // splits the build queue between the fleets of a task configuring several
+    private FleetCoordinator fleetCoordinator;
+    // decides which queued builds the fleet's agents could run
+    private QueueRequirementMatcher queueRequirementMatcher;
     private AmazonEC2 EC2Client = null;
     private BuildLogger buildLogger = null;
+    // instance keys (private DNS name, or instance ID for agents reporting it) to instance IDs
     private Map<String, String> activeInstanceDnsNamesToInstanceIdsMap;
+    // IDs of the instances the task's fleets have, or had while agents still report them
+    private Set<String> fleetInstanceIds = new HashSet<String>();
+    // instance keys to the capacity units they fulfil, instances not in the map weigh 1
+    private Map<String, Double> instanceWeights = new HashMap<String, Double>();
+    // agent slots of the fleet's instances, kept by its inventory between cycles
+    private AgentSlotTable agentSlots = new AgentSlotTable();
+    // instance keys to instance types, which the slots of instances without agents yet are predicted from
+    private Map<String, String> instanceTypes = new HashMap<String, String>();
+    // agents the user data script starts per instance, null for tasks saved before it was configurable
+    private AgentsPerInstancePolicy agentsPerInstancePolicy = null;
+    // tags applied to the fleet's instances
+    private InstanceTagger instanceTagger = new InstanceTagger(null);
+    // key of the plan running the task, null in background daemon cycles
+    private String planKey = null;
+    // instances whose agents are disabled ahead of termination, kept by the fleet's inventory between cycles
+    private Map<String, String> retiringInstances = new HashMap<String, String>();
+    // retiring instances without busy agents, terminated once target capacity has been lowered
+    private Map<String, String> drainedInstances = new HashMap<String, String>();
+    // drained instances taken off target capacity, kept by the fleet's inventory until their termination succeeds
+    private Map<String, String> pendingTerminations = new HashMap<String, String>();
+    // configurations of fleets the coordinator already described this cycle
+    private Map<String, SpotFleetRequestConfigData> describedFleets = new HashMap<String, SpotFleetRequestConfigData>();
+    // builds the fleet scales for when the task configures several fleets, null for the whole queue
+    private FleetCoordinator.DemandShare demandShare = null;
+    // capabilities of the fleet's agents when it last had any, kept by its inventory; null counts every queued build
+    private CapabilityProfile capabilityProfile = null;
+    // queue wait statistic compared against the queue time threshold, the mean for tasks saved before it existed
+    private String queueTimeStatistic = EnqueueTimeSketch.MEAN;
+    // scaling rules, scale-ups proportional to the queue for tasks saved before controllers were configurable
+    private ScalingPolicy scalingPolicy = new ThresholdScalingPolicy();
+    // teardown settings, the defaults for tasks saved before they existed
+    private boolean predictiveScaling = false;
+    private int teardownConcurrency = AgentTeardownExecutor.DEFAULT_CONCURRENCY;
+    private int teardownDeadlineSeconds = AgentTeardownExecutor.DEFAULT_DEADLINE_SECONDS;
     // cap for target capacity (according to spot fleet console)
     public static final int MAXIMUM_TARGET_CAPACITY = 250;
     public static final int MINIMUM_TARGET_CAPACITY = 1;
     public static final int MILLISECONDS_PER_MINUTE = 60000;
+    public static final int MILLISECONDS_PER_SECOND = 1000;
+    // instances take several minutes to boot and install their agents, so load is predicted this far ahead
+    public static final long PREDICTION_WINDOW_MILLISECONDS = 20 * MILLISECONDS_PER_MINUTE;
 
     /**
-     * must include the component imports here to make available to configurator class
-     *
-     * @param administrationConfigurationAccessor
-     * @param buildQueueManager
-     * @param agentManager
-     * @param buildExecutionManager
+     * @param services
+     *            services shared by every scaling cycle
+     * @param scalingDaemon
      */
     @Autowired
-    public SpotFleetTaskExecution(
-            @ComponentImport AdministrationConfigurationAccessor administrationConfigurationAccessor,
-            @ComponentImport BuildQueueManager buildQueueManager, @ComponentImport AgentManager agentManager,
-            @ComponentImport BuildExecutionManager buildExecutionManager) {
-        this.administrationConfigurationAccessor = administrationConfigurationAccessor;
-        this.agentManager = agentManager;
-        this.buildQueueManager = buildQueueManager;
-        this.buildExecutionManager = buildExecutionManager;
+    public SpotFleetTaskExecution(ScalingServices services, SpotFleetScalingDaemon scalingDaemon) {
+        this.administrationConfigurationAccessor = services.getAdministrationConfigurationAccessor();
+        this.agentManager = services.getAgentManager();
+        this.buildQueueManager = services.getBuildQueueManager();
+        this.buildExecutionManager = services.getBuildExecutionManager();
+        this.ec2ClientRegistry = services.getEc2ClientRegistry();
+        this.fleetInventoryRegistry = services.getFleetInventoryRegistry();
+        this.scalingDaemon = scalingDaemon;
+        this.queueMetrics = services.getQueueMetrics();
+        this.agentInstanceResolver = services.getAgentInstanceResolver();
+        this.agentTeardownExecutor = services.getAgentTeardownExecutor();
+        this.spotInterruptionDrainer = services.getSpotInterruptionDrainer();
+        this.queueForecaster = services.getQueueForecaster();
+        this.capacityControllerRegistry = services.getCapacityControllerRegistry();
+        this.fleetCoordinator = services.getFleetCoordinator();
+        this.queueRequirementMatcher = services.getQueueRequirementMatcher();
     }
 
     /**
@@ -121,37 +176,137 @@ public class SpotFleetTaskExecution implements TaskType {
     public TaskResult execute(final TaskContext taskContext) throws TaskException {
         TaskResultBuilder builder = TaskResultBuilder.newBuilder(taskContext);
         buildLogger = taskContext.getBuildLogger();
+        planKey = getPlanKey(taskContext);
+        runScalingCycle(taskContext.getConfigurationMap());
+        return builder.success().build();
+    }
+
+    /**
+     * Run one monitoring, scaling and teardown cycle for the configured fleets. Called by task executions and by the
+     * background scaling daemon; cycles for the same fleet never overlap.
+     *
+     * @param configuration
+     *            task configuration map
+     */
+    public void runScalingCycle(Map<String, String> configuration) {
         // retrieve user-inputted values
         // error validation from configurator has run on these
-        final String accessKeyInput = taskContext.getConfigurationMap().get(StringConstants.ACCESS_KEY);
-        final String secretKeyInput = taskContext.getConfigurationMap().get(StringConstants.SECRET_KEY);
-        final String fleetIdInput = taskContext.getConfigurationMap().get(StringConstants.FLEET_ID);
-        final String regionInput = taskContext.getConfigurationMap().get(StringConstants.REGION);
-        final boolean terminateFleetInput = Boolean
-                .parseBoolean(taskContext.getConfigurationMap().get(StringConstants.TERMINATE_FLEET));
+        final String accessKeyInput = configuration.get(StringConstants.ACCESS_KEY);
+        final String secretKeyInput = configuration.get(StringConstants.SECRET_KEY);
+        final List<String> fleetIdInput = FleetCoordinator.parseFleetIds(configuration.get(StringConstants.FLEET_ID));
+        final String regionInput = configuration.get(StringConstants.REGION);
+        final boolean terminateFleetInput = Boolean.parseBoolean(configuration.get(StringConstants.TERMINATE_FLEET));
         final boolean enableAutoscalingInput = Boolean
-                .parseBoolean(taskContext.getConfigurationMap().get(StringConstants.ENABLE_AUTOSCALING));
-        final int queuedBuildsInput = Integer
-                .parseInt(taskContext.getConfigurationMap().get(StringConstants.QUEUED_BUILDS));
-        final int averageQueueTimeInput = Integer
-                .parseInt(taskContext.getConfigurationMap().get(StringConstants.AVERAGE_QUEUE_TIME));
-        final int idleInstancesInput = Integer
-                .parseInt(taskContext.getConfigurationMap().get(StringConstants.IDLE_INSTANCES));
+                .parseBoolean(configuration.get(StringConstants.ENABLE_AUTOSCALING));
+        final int queuedBuildsInput = Integer.parseInt(configuration.get(StringConstants.QUEUED_BUILDS));
+        final int averageQueueTimeInput = Integer.parseInt(configuration.get(StringConstants.AVERAGE_QUEUE_TIME));
+        final int idleInstancesInput = Integer.parseInt(configuration.get(StringConstants.IDLE_INSTANCES));
         final int maxUnitsPerScaleInput = Integer
-                .parseInt(taskContext.getConfigurationMap().get(StringConstants.MAXIMUM_UNITS_PER_SCALE));
-        BasicAWSCredentials awsCredentials = new BasicAWSCredentials(accessKeyInput, secretKeyInput);
-        EC2Client = new AmazonEC2Client(awsCredentials).withRegion(Regions.fromName(regionInput));
-        // handle autoscaling and instance cleanup
-        makeScalingDecision(fleetIdInput, queuedBuildsInput, averageQueueTimeInput, idleInstancesInput,
-                maxUnitsPerScaleInput, enableAutoscalingInput);
-        tagInstances();
-        // remove offline spot instances
-        agentTeardown();
-        // cancel fleet if all builds have finished
-        if (terminateFleetInput) {
-            terminateFleet(fleetIdInput);
+                .parseInt(configuration.get(StringConstants.MAXIMUM_UNITS_PER_SCALE));
+        if (configuration.get(StringConstants.QUEUE_TIME_STATISTIC) != null) {
+            queueTimeStatistic = configuration.get(StringConstants.QUEUE_TIME_STATISTIC);
+        }
+        predictiveScaling = Boolean.parseBoolean(configuration.get(StringConstants.PREDICTIVE_SCALING));
+        agentsPerInstancePolicy = AgentsPerInstancePolicy.fromConfiguration(configuration);
+        instanceTagger = new InstanceTagger(configuration.get(StringConstants.INSTANCE_TAGS));
+        if (configuration.get(StringConstants.TEARDOWN_CONCURRENCY) != null) {
+            teardownConcurrency = Integer.parseInt(configuration.get(StringConstants.TEARDOWN_CONCURRENCY));
+        }
+        if (configuration.get(StringConstants.TEARDOWN_DEADLINE) != null) {
+            teardownDeadlineSeconds = Integer.parseInt(configuration.get(StringConstants.TEARDOWN_DEADLINE));
+        }
+        // the client is leased for the cycle, so it isn't shut down under it if the registry evicts it
+        Ec2ClientRegistry.ThrottledClient throttledClient = ec2ClientRegistry.acquire(accessKeyInput, secretKeyInput,
+                regionInput);
+        try {
+            EC2Client = throttledClient.getClient();
+            // the throttle is shared with other plans, so its counters are compared before and after the cycle
+            Ec2CallThrottle throttle = throttledClient.getThrottle();
+            long throttledCalls = throttle.getThrottledCalls();
+            long retriedCalls = throttle.getRetriedCalls();
+            // builds agents have picked up have left the queue, Bamboo raises no event for it
+            queueMetrics.dequeueStarted(buildExecutionManager.getCurrentlyExecuting());
+            Map<String, FleetCoordinator.DemandShare> demandShares =
+                    new HashMap<String, FleetCoordinator.DemandShare>();
+            if (fleetIdInput.size() > 1) {
+                // fleets each scale for their share of the queue instead of all of it
+                describedFleets = fleetCoordinator.describeFleets(EC2Client, fleetIdInput);
+                demandShares = fleetCoordinator.splitDemand(fleetIdInput, describedFleets,
+                        queueMetrics.getQueuedBuilds().keySet(),
+                        predictiveScaling ? queueForecaster.getPredictedDemand(System.currentTimeMillis(),
+                                PREDICTION_WINDOW_MILLISECONDS) : 0);
+            }
+            // instances of all the task's fleets, so agents of one fleet aren't torn down as strangers by another
+            Map<String, String> instanceKeysToInstanceIds = new HashMap<String, String>();
+            boolean allFleetsKnown = true;
+            for (String fleetId : fleetIdInput) {
+                demandShare = demandShares.get(fleetId);
+                if (demandShare != null) {
+                    log("fleet " + fleetId + " scales for " + demandShare);
+                }
+                scalingPolicy = new ThresholdScalingPolicy(capacityControllerRegistry.getController(fleetId,
+                        configuration.get(StringConstants.CAPACITY_CONTROLLER)));
+                // the inventory doubles as the fleet's lock so a task run and the daemon can't scale it at once
+                synchronized (fleetInventoryRegistry.getInventory(fleetId)) {
+                    activeInstanceDnsNamesToInstanceIdsMap = null;
+                    // handle autoscaling and instance cleanup
+                    makeScalingDecision(fleetId, queuedBuildsInput, averageQueueTimeInput, idleInstancesInput,
+                            maxUnitsPerScaleInput, enableAutoscalingInput);
+                    tagInstances(fleetId);
+                }
+                if (activeInstanceDnsNamesToInstanceIdsMap != null) {
+                    instanceKeysToInstanceIds.putAll(activeInstanceDnsNamesToInstanceIdsMap);
+                } else {
+                    allFleetsKnown = false;
+                }
+            }
+            if (allFleetsKnown && !fleetIdInput.isEmpty()) {
+                activeInstanceDnsNamesToInstanceIdsMap = instanceKeysToInstanceIds;
+                // remove offline spot instances, holding every fleet's inventory as teardown works across them
+                List<String> lockOrder = new ArrayList<String>(fleetIdInput);
+                Collections.sort(lockOrder);
+                agentTeardown(lockOrder, 0);
+            } else {
+                log("skipping agent teardown, the instances of a fleet could not be listed");
+            }
+            // cancel fleet if all builds have finished
+            if (terminateFleetInput) {
+                for (String fleetId : fleetIdInput) {
+                    terminateFleet(fleetId);
+                }
+            }
+            if (throttle.getThrottledCalls() > throttledCalls || throttle.getRetriedCalls() > retriedCalls) {
+                log(String.format("EC2 calls of the account and region were throttled %d times and retried %d times "
+                        + "during the cycle, now limited to %.1f calls per second",
+                        throttle.getThrottledCalls() - throttledCalls, throttle.getRetriedCalls() - retriedCalls,
+                        throttle.getCallsPerSecond()));
+            }
+        } finally {
+            ec2ClientRegistry.release(throttledClient);
+        }
+    }
+
+    /**
+     * lock the fleets' inventories one at a time in fleet ID order, so cycles of tasks sharing fleets can't deadlock,
+     * then tear down agents
+     *
+     * @param lockOrder
+     *            fleet IDs sorted
+     * @param locked
+     *            number of inventories locked so far
+     */
+    private void agentTeardown(List<String> lockOrder, int locked) {
+        if (locked == lockOrder.size()) {
+            fleetInstanceIds = new HashSet<String>();
+            for (String fleetId : lockOrder) {
+                fleetInstanceIds.addAll(fleetInventoryRegistry.getInventory(fleetId).getFleetInstanceIds());
+            }
+            agentTeardown();
+            return;
+        }
+        synchronized (fleetInventoryRegistry.getInventory(lockOrder.get(locked))) {
+            agentTeardown(lockOrder, locked + 1);
         }
-        return builder.success().build();
     }
 
     /**
@@ -167,84 +322,105 @@ public class SpotFleetTaskExecution implements TaskType {
     private void makeScalingDecision(String fleetID, int maxQueuedBuilds, int maxAverageQueueTime, int maxIdleInstances,
             int unitsPerScale, boolean enableAutoscalingInput) {
         // check current status of fleet
-        DescribeSpotFleetRequestsRequest describeSpotFleetRequestsRequest = new DescribeSpotFleetRequestsRequest()
-                .withSpotFleetRequestIds(fleetID);
         try {
-            DescribeSpotFleetRequestsResult describeSpotFleetRequestsResult = EC2Client
-                    .describeSpotFleetRequests(describeSpotFleetRequestsRequest);
-            SpotFleetRequestConfigData bambooFleetConfig = describeSpotFleetRequestsResult.getSpotFleetRequestConfigs()
-                    .get(0).getSpotFleetRequestConfig();
+            SpotFleetRequestConfigData bambooFleetConfig = describedFleets.get(fleetID);
+            if (bambooFleetConfig == null) {
+                DescribeSpotFleetRequestsRequest describeSpotFleetRequestsRequest =
+                        new DescribeSpotFleetRequestsRequest().withSpotFleetRequestIds(fleetID);
+                DescribeSpotFleetRequestsResult describeSpotFleetRequestsResult = EC2Client
+                        .describeSpotFleetRequests(describeSpotFleetRequestsRequest);
+                bambooFleetConfig = describeSpotFleetRequestsResult.getSpotFleetRequestConfigs().get(0)
+                        .getSpotFleetRequestConfig();
+            }
             int currentTargetCapacity = bambooFleetConfig.getTargetCapacity();
             // TODO: If dependency issues are resolved refactor this into a SpotFleetRequestConfigData method call
-            DescribeSpotFleetInstancesRequest describeSpotfleetInstancesRequest = new DescribeSpotFleetInstancesRequest()
-                    .withSpotFleetRequestId(fleetID);
-            DescribeSpotFleetInstancesResult describeSpotFleetInstancesResult = EC2Client
-                    .describeSpotFleetInstances(describeSpotfleetInstancesRequest);
-            List<ActiveInstance> instanceList = describeSpotFleetInstancesResult.getActiveInstances();
-            // agents are named after their private DNS e.g. ip-172-31-68-230.ec2.internal
+            // only instances that joined the fleet since the last execution are described
+            FleetInventory fleetInventory = fleetInventoryRegistry.getInventory(fleetID);
+            // agents report their instance ID as a capability, agents started by older user data scripts are
+            // named after their private DNS e.g. ip-172-31-68-230.ec2.internal
             // with multiple agents per instance this name will act as a shared prefix
             // e.g. ip-172-31-68-230.ec2.internal (2)
-            activeInstanceDnsNamesToInstanceIdsMap = new HashMap<String, String>();
-            List<String> instanceIds = new ArrayList<String>();
-            for (ActiveInstance activeInstance : instanceList) {
-                instanceIds.add(activeInstance.getInstanceId());
+            List<BuildAgent> agents = agentManager.getAllNonElasticAgents();
+            activeInstanceDnsNamesToInstanceIdsMap = fleetInventory.refresh(EC2Client,
+                    agentInstanceResolver.getReportedInstanceIds(agents),
+                    agentInstanceResolver.hasAgentsWithoutInstanceId(agents));
+            // target capacity is counted in the launch specifications' weights if they have any
+            instanceWeights = CapacityWeights.fromLaunchSpecifications(bambooFleetConfig.getLaunchSpecifications())
+                    .weighInstances(activeInstanceDnsNamesToInstanceIdsMap, fleetInventory);
+            agentSlots = fleetInventory.getAgentSlots();
+            instanceTypes = new HashMap<String, String>();
+            for (Map.Entry<String, String> instance : activeInstanceDnsNamesToInstanceIdsMap.entrySet()) {
+                instanceTypes.put(instance.getKey(), fleetInventory.getInstanceType(instance.getValue()));
             }
-            DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest()
-                    .withInstanceIds(instanceIds);
-            DescribeInstancesResult describeInstancesResult = EC2Client.describeInstances(describeInstancesRequest);
-            for (Reservation reservation : describeInstancesResult.getReservations()) {
-                for (Instance instance : reservation.getInstances()) {
-                    activeInstanceDnsNamesToInstanceIdsMap.put(instance.getPrivateDnsName(), instance.getInstanceId());
+            retiringInstances = fleetInventory.getRetiringInstances();
+            pendingTerminations = fleetInventory.getPendingTerminations();
+            capabilityProfile = fleetInventory.getCapabilityProfile();
+            // instances about to be reclaimed or terminated no longer count as capacity
+            double activeWeight = 0;
+            for (Map.Entry<String, String> instance : activeInstanceDnsNamesToInstanceIdsMap.entrySet()) {
+                if (!spotInterruptionDrainer.isDraining(instance.getValue())
+                        && !pendingTerminations.containsKey(instance.getKey())) {
+                    activeWeight += getWeight(instance.getKey());
                 }
             }
-            int activeCapacity = instanceList.size();
+            int activeCapacity = toUnits(activeWeight);
             // check bamboo metrics against user-provided autoscaling settings
             if (enableAutoscalingInput) {
                 int newTargetCapacity = determineTargetCapacity(currentTargetCapacity, activeCapacity,
                         maxQueuedBuilds, maxAverageQueueTime, maxIdleInstances, unitsPerScale,
                         activeInstanceDnsNamesToInstanceIdsMap);
+                fleetInventory.setCapabilityProfile(capabilityProfile);
                 // modify fleet request if scaling decision was made
                 if (currentTargetCapacity != newTargetCapacity) {
                     ModifySpotFleetRequestRequest modifySpotFleetRequestRequest = new ModifySpotFleetRequestRequest()
                             .withSpotFleetRequestId(fleetID).withTargetCapacity(newTargetCapacity);
+                    if (newTargetCapacity < currentTargetCapacity) {
+                        // the fleet mustn't pick instances to terminate itself, the drained instances are terminated
+                        modifySpotFleetRequestRequest
+                                .setExcessCapacityTerminationPolicy(ExcessCapacityTerminationPolicy.NoTermination);
+                    }
                     ModifySpotFleetRequestResult modifySpotFleetRequestResult = EC2Client
                             .modifySpotFleetRequest(modifySpotFleetRequestRequest);
                     if (!modifySpotFleetRequestResult.isReturn()) {
-                        // request did not succeed
-                        buildLogger.addBuildLogEntry("modify spot fleet request failed");
+                        // request did not succeed, drained instances are kept until the next cycle
+                        log("modify spot fleet request failed");
                     } else {
-                        buildLogger
-                                .addBuildLogEntry("modify spot fleet request succeeded, target capacity changed from "
-                                        + Integer.toString(currentTargetCapacity) + " to "
-                                        + Integer.toString(newTargetCapacity));
+                        log("modify spot fleet request succeeded, target capacity changed from "
+                                + Integer.toString(currentTargetCapacity) + " to "
+                                + Integer.toString(newTargetCapacity));
+                        scheduleDrainedTermination();
                     }
                 } else {
-                    buildLogger.addBuildLogEntry("No scaling decision made");
+                    log("No scaling decision made");
+                    // the target already leaves the drained instances out
+                    scheduleDrainedTermination();
                 }
             } else {
-                buildLogger.addBuildLogEntry("WARNING: autoscaling was not enabled");
+                log("WARNING: autoscaling was not enabled");
             }
+            terminatePendingInstances();
         } catch (AmazonServiceException e) {
-            buildLogger.addBuildLogEntry("ERROR occurred during Fleet monitoring");
+            log("ERROR occurred during Fleet monitoring");
             if (e.getErrorCode().equals("AuthFailure")) {
-                buildLogger.addBuildLogEntry("provided credentials could not be validated");
+                log("provided credentials could not be validated");
             } else if (e.getErrorCode().equals("UnauthorizedOperation")) {
-                buildLogger.addBuildLogEntry("provided credentials lack permissions for operation");
+                log("provided credentials lack permissions for operation");
             } else if (e.getErrorCode().equals("InvalidParameterValue")) {
-                buildLogger.addBuildLogEntry("provided fleet ID does not match regex: " + e.getErrorMessage());
+                log("provided fleet ID does not match regex: " + e.getErrorMessage());
             } else if (e.getErrorCode().equals("InvalidSpotFleetRequestId.NotFound")) {
-                buildLogger.addBuildLogEntry("fleet ID not valid in current region: " + e.getErrorMessage());
+                log("fleet ID not valid in current region: " + e.getErrorMessage());
             } else {
-                buildLogger.addBuildLogEntry("amazon service exception code: " + e.getErrorCode());
-                buildLogger.addBuildLogEntry("with message: " + e.getErrorMessage());
+                log("amazon service exception code: " + e.getErrorCode());
+                log("with message: " + e.getErrorMessage());
             }
         } catch (AmazonClientException e) {
-            buildLogger.addBuildLogEntry("amazon client exception: " + e.getMessage());
+            log("amazon client exception: " + e.getMessage());
         }
     }
 
     /**
-     * Method to calculate the new target capacity by comparing user-provided inputs against bamboo metrics and
+     * Gather the fleet and queue state, let the scaling policy decide on the new target capacity, and start draining
+     * the idle instances it picked. Scale-ups are limited by the Bamboo license.
      *
      * @param currentTargetCapacity
      * @param activeFulfilledCapacity
@@ -252,154 +428,325 @@ public class SpotFleetTaskExecution implements TaskType {
      * @param maxAverageQueueTime
      * @param maxIdleInstances
      * @param unitsPerScale
-     * @param activeInstanceDnsNamesToInstanceIdsMap.keySet()
-     * @return
+     * @param instanceDnsNamesToInstanceIdsMap
+     *            instance keys to instance IDs
+     * @return new target capacity
      */
     private int determineTargetCapacity(int currentTargetCapacity, int activeFulfilledCapacity, int maxQueuedBuilds,
             int maxAverageQueueTime, int maxIdleInstances, int unitsPerScale,
             Map<String, String> instanceDnsNamesToInstanceIdsMap) {
-        int modifier = 0;
-        int queuedBuildCounter = 0;
-        double totalQueueTime = 0;
-        Date now = new Date();
-        Iterator<QueuedResultKey> queueIterator = buildQueueManager.getQueuedExecutables().iterator();
-        QueuedResultKey currentBuild;
-        while (queueIterator.hasNext()) {
-            queuedBuildCounter++;
-            currentBuild = queueIterator.next();
-            totalQueueTime += (now.getTime() - buildQueueManager.peekContext(currentBuild.getResultKey()).getView()
-                    .getCurrentResult().getTasksStartDate().getTime());
-        }
-        int averageQueueTime = ((int) (totalQueueTime / queuedBuildCounter / MILLISECONDS_PER_MINUTE));
-        // convert milliseconds to minutes and compute average queue time (truncated to nearest minute)
-        if (queuedBuildCounter > maxQueuedBuilds || averageQueueTime > maxAverageQueueTime) {
-            // scale up
-            modifier = 1;
+        int queuedBuildCounter = queueMetrics.getQueuedBuildCount();
+        long now = System.currentTimeMillis();
+        queueForecaster.recordQueueDepth(now, queuedBuildCounter);
+        List<BuildAgent> agents = agentManager.getAllNonElasticAgents();
+        List<BuildAgent> fleetAgents = new ArrayList<BuildAgent>();
+        for (BuildAgent agent : agents) {
+            if (instanceDnsNamesToInstanceIdsMap.containsKey(agentInstanceResolver.getInstanceKey(agent))) {
+                fleetAgents.add(agent);
+            }
+        }
+        // the last known profile is kept while the fleet has no agents, e.g. after scaling down to zero
+        CapabilityProfile currentProfile = CapabilityProfile.fromAgents(fleetAgents);
+        if (currentProfile != null) {
+            capabilityProfile = currentProfile;
+        }
+        // compared at millisecond resolution, the threshold is configured in minutes
+        // builds the fleet's agents could never run don't count as demand for it
+        EnqueueTimeSketch runnableBuilds = queueMetrics.getRunnableBuilds(queueRequirementMatcher, capabilityProfile);
+        if (runnableBuilds.getCount() < queuedBuildCounter) {
+            log((queuedBuildCounter - runnableBuilds.getCount())
+                    + " queued builds have requirements the fleet's agents don't meet");
+        }
+        queuedBuildCounter = runnableBuilds.getCount();
+        // compared at millisecond resolution, the threshold is configured in minutes
+        long queueWaitMilliseconds = runnableBuilds.getWait(queueTimeStatistic, now);
+        int predictedBuilds = predictiveScaling
+                ? queueForecaster.getPredictedDemand(now, PREDICTION_WINDOW_MILLISECONDS) : 0;
+        if (demandShare != null) {
+            // the other fleets of the task take the rest of the queue, and its wait unless this fleet has a share
+            queuedBuildCounter = demandShare.getQueuedBuilds();
+            predictedBuilds = demandShare.getPredictedBuilds();
+            if (queuedBuildCounter == 0) {
+                queueWaitMilliseconds = 0;
+            }
         }
+        agentSlots.update(instanceDnsNamesToInstanceIdsMap.keySet(), agents, agentInstanceResolver, now,
+                instanceTypes, agentsPerInstancePolicy);
+        retiringInstances.keySet().retainAll(instanceDnsNamesToInstanceIdsMap.keySet());
         int fleetAgentCounter = 0;
-        // avoid iterating over local/elastic agents to avoid similar names and save time
-        Iterator<BuildAgent> agentIterator = agentManager.getAllNonElasticAgents().iterator();
-        Set<String> fleetBusyInstanceSet = new HashSet<String>();
-        while (agentIterator.hasNext()) {
-            BuildAgent currentAgent = agentIterator.next();
-            String agentName = currentAgent.getName();
-            // in the case of multiple agents per instance
-            String trueAgentName = agentName.split("\\.internal")[0] + ".internal";
-            if (instanceDnsNamesToInstanceIdsMap.keySet().contains(trueAgentName)) {
-                fleetAgentCounter++;
-                // map instance to number of idle agents
-                if (currentAgent.isBusy()) {
-                    fleetBusyInstanceSet.add(trueAgentName);
-                }
+        double busyWeight = 0;
+        // instances draining for a spot interruption or a scale-down are going away regardless, so they aren't idle
+        // capacity to terminate either
+        List<String> instanceTerminationCandidates = new ArrayList<String>();
+        for (Map.Entry<String, String> instance : instanceDnsNamesToInstanceIdsMap.entrySet()) {
+            AgentSlotTable.Slots slots = agentSlots.get(instance.getKey());
+            fleetAgentCounter += slots.getRegistered();
+            if (slots.getBusy() > 0) {
+                busyWeight += getWeight(instance.getKey());
+            } else if (!spotInterruptionDrainer.isDraining(instance.getValue())
+                    && !retiringInstances.containsKey(instance.getKey())
+                    && !pendingTerminations.containsKey(instance.getKey())) {
+                instanceTerminationCandidates.add(instance.getKey());
             }
         }
         if (fleetAgentCounter < instanceDnsNamesToInstanceIdsMap.keySet().size()) {
-            buildLogger.addBuildLogEntry(
-                    "WARNING: detected fewer fleet agents than instances. Something may have gone wrong during "
+            log("WARNING: detected fewer fleet agents than instances. Something may have gone wrong during "
                     + "installation or this task schedule may not be allowing for enough time between executions.");
         }
-        int agentsPerInstance = Integer.MAX_VALUE;
-        // this number is only correct if user doesn't initially go over their allowed instances
-        // as if they do, it's possible to have varying numbers of agents per instance
-        if (instanceDnsNamesToInstanceIdsMap.keySet().size() > 0) {
-            agentsPerInstance = fleetAgentCounter / instanceDnsNamesToInstanceIdsMap.keySet().size();
-        }
-        SetView<String> instanceTerminationCandidates = com.google.common.collect.Sets
-                .difference(instanceDnsNamesToInstanceIdsMap.keySet(), fleetBusyInstanceSet);
-        int numberOfInstancesToTerminate = 0;
-        // scale down if we exceed maxIdleInstances threshold
-        if (instanceTerminationCandidates.size() > maxIdleInstances) {
-            numberOfInstancesToTerminate = Math.min(instanceTerminationCandidates.size(), unitsPerScale);
-            int terminationCounter = 0;
-            Iterator<String> terminateInstancesIterator = instanceTerminationCandidates.iterator();
-            LinkedList<String> instancesToTerminate = new LinkedList<String>();
-            LinkedList<String> entriesToRemoveFromMap = new LinkedList<String>();
+        log("agent slots: " + agentSlots);
+        // instances run different numbers of agents, so agents per unit comes from the slots instances declared or
+        // have run
+        double agentsPerUnit = agentSlots.getAgentsPerUnit(instanceWeights);
+        // the longest idle instances are terminated first, warming up and cache-hot ones last
+        instanceTerminationCandidates = new TerminationRanker(agentSlots, now).rank(instanceTerminationCandidates);
+        ScalingState state = new ScalingState().withCurrentTargetCapacity(currentTargetCapacity)
+                .withActiveCapacity(activeFulfilledCapacity).withBusyCapacity((int) Math.ceil(busyWeight))
+                .withTerminationCandidates(instanceTerminationCandidates).withInstanceWeights(instanceWeights)
+                .withAgentsPerUnit(agentsPerUnit)
+                .withQueuedBuilds(queuedBuildCounter).withQueueWaitMilliseconds(queueWaitMilliseconds)
+                .withPredictedBuilds(predictedBuilds)
+                .withMaxQueuedBuilds(maxQueuedBuilds)
+                .withMaxQueueWaitMilliseconds((long) maxAverageQueueTime * MILLISECONDS_PER_MINUTE)
+                .withMaxIdleInstances(maxIdleInstances).withMaxUnitsPerScale(unitsPerScale).withNow(now);
+        ScalingDecision decision = scalingPolicy.decide(state);
+        for (String note : decision.getNotes()) {
+            log(note);
+        }
+        int newCapacity = decision.getTargetCapacity();
+        drainedInstances = new HashMap<String, String>();
+        for (String instanceKey : decision.getInstancesToTerminate()) {
+            retiringInstances.put(instanceKey, instanceDnsNamesToInstanceIdsMap.get(instanceKey));
+        }
+        if (!retiringInstances.isEmpty() && newCapacity > currentTargetCapacity) {
+            // the queue grew again, keeping the instances is quicker than launching new ones
+            log("reinstating " + retiringInstances.size() + " instances that were draining for termination");
+            setAgentsEnabled(agentManager.getAllNonElasticAgents(), retiringInstances.keySet(), true);
+            retiringInstances.clear();
+        } else if (!retiringInstances.isEmpty()) {
+            newCapacity = drainRetiringInstances(currentTargetCapacity, activeFulfilledCapacity);
+        }
+        if (newCapacity > currentTargetCapacity) {
+            // only scale up within the license restrictions. dont change target capacity if changing
+            // activeFulfilledCapacity would not result in a change relative to the currentTargetCapacity
+            // agents still registering on existing instances will take up licenses too
+            int pendingAgents = agentSlots.getPendingAgents(instanceWeights);
+            newCapacity = Math.max(currentTargetCapacity, activeFulfilledCapacity
+                    + getLicensedUnits(newCapacity - activeFulfilledCapacity, agentsPerUnit, pendingAgents));
+        }
+        // enforce lower bound of 1
+        newCapacity = Math.max(newCapacity, MINIMUM_TARGET_CAPACITY);
+        // enforce upper bound of 250, the maximum amount of Remote agent allowed by Bamboo
+        newCapacity = Math.min(newCapacity, MAXIMUM_TARGET_CAPACITY);
+        if (!drainedInstances.isEmpty() && newCapacity >= activeFulfilledCapacity) {
+            // the target still covers them and the fleet would replace them, e.g. at the minimum capacity
+            setAgentsEnabled(agentManager.getAllNonElasticAgents(), drainedInstances.keySet(), true);
+            retiringInstances.keySet().removeAll(drainedInstances.keySet());
+            drainedInstances.clear();
+        }
+        return newCapacity;
+    }
 
-            // will terminate unitsPerScale instances, unless there aren't enough idle instances to terminate
-            while (terminateInstancesIterator.hasNext() && terminationCounter < numberOfInstancesToTerminate) {
-                String instanceName = terminateInstancesIterator.next();
-                instancesToTerminate.add(instanceDnsNamesToInstanceIdsMap.get(instanceName));
-                //this will indicate the instance is terminated in teardown
-                entriesToRemoveFromMap.add(instanceName);
-                terminationCounter++;
+    /**
+     * Scale-downs happen in two phases so no build is killed and the fleet doesn't launch replacements: the agents of
+     * retiring instances are disabled so no more builds are dispatched to them, and instances whose agents are all
+     * idle afterwards are drained. Their capacity comes off the target capacity, which is lowered without letting the
+     * fleet terminate instances, and they are terminated after that. Instances with busy agents are checked again
+     * next cycle
+     *
+     * @param currentTargetCapacity
+     * @param activeFulfilledCapacity
+     * @return new target capacity
+     */
+    private int drainRetiringInstances(int currentTargetCapacity, int activeFulfilledCapacity) {
+        // read the agents again after disabling, one that registered or took a build since is still seen
+        setAgentsEnabled(agentManager.getAllNonElasticAgents(), retiringInstances.keySet(), false);
+        Set<String> busyInstances = new HashSet<String>();
+        for (BuildAgent agent : agentManager.getAllNonElasticAgents()) {
+            if (agent.isBusy()) {
+                busyInstances.add(agentInstanceResolver.getInstanceKey(agent));
             }
-            TerminateInstancesRequest terminateInstancesRequest = new TerminateInstancesRequest()
-                    .withInstanceIds(instancesToTerminate);
-            for (String key: entriesToRemoveFromMap) {
-                instanceDnsNamesToInstanceIdsMap.remove(key);
+        }
+        double drainedWeight = 0;
+        for (Map.Entry<String, String> instance : retiringInstances.entrySet()) {
+            if (!busyInstances.contains(instance.getKey())) {
+                drainedInstances.put(instance.getKey(), instance.getValue());
+                drainedWeight += getWeight(instance.getKey());
             }
+        }
+        if (drainedInstances.size() < retiringInstances.size()) {
+            log("waiting for builds on " + (retiringInstances.size() - drainedInstances.size())
+                    + " draining instances to finish before terminating them");
+        }
+        if (drainedInstances.isEmpty()) {
+            return currentTargetCapacity;
+        }
+        return activeFulfilledCapacity - (int) Math.round(drainedWeight);
+    }
+
+    /**
+     * hand the drained instances over for termination once target capacity no longer includes them
+     */
+    private void scheduleDrainedTermination() {
+        pendingTerminations.putAll(drainedInstances);
+        retiringInstances.keySet().removeAll(drainedInstances.keySet());
+        drainedInstances.clear();
+    }
+
+    /**
+     * Terminate the instances taken off target capacity. Runs every cycle, so instances whose termination failed are
+     * retried even if the target doesn't change again
+     */
+    private void terminatePendingInstances() {
+        if (pendingTerminations.isEmpty()) {
+            return;
+        }
+        try {
+            TerminateInstancesRequest terminateInstancesRequest = new TerminateInstancesRequest()
+                    .withInstanceIds(new LinkedList<String>(pendingTerminations.values()));
             EC2Client.terminateInstances(terminateInstancesRequest);
-            modifier = -1;
-        }
-        int newCapacity = currentTargetCapacity;
-        if (modifier > 0) {
-            // If active > target, then a scale down has recently occurred. In this case, rather than scaling up
-            // we should instead no-op
-            if (activeFulfilledCapacity <= currentTargetCapacity) {
-                int scalingCounter = 1;
-                while (scalingCounter <= unitsPerScale
-                        && agentManager.allowNewRemoteAgents(agentsPerInstance * scalingCounter)) {
-                    // only scale up within the license restrictions. dont change target capacity if changing
-                    // activeFulfilledCapacity would not result in a change relative to the currentTargetCapacity
-                    newCapacity = Math.max(currentTargetCapacity, activeFulfilledCapacity + scalingCounter);
-                    scalingCounter++;
-                }
+        } catch (AmazonClientException e) {
+            log("could not terminate " + pendingTerminations.size() + " drained instances, retrying next cycle: "
+                    + e.getMessage());
+            return;
+        }
+        for (String instanceKey : pendingTerminations.keySet()) {
+            //removing the entry will indicate the instance is terminated in teardown
+            activeInstanceDnsNamesToInstanceIdsMap.remove(instanceKey);
+        }
+        log("terminated " + pendingTerminations.size() + " drained instances");
+        pendingTerminations.clear();
+    }
+
+    /**
+     * @param agents
+     * @param instanceKeys
+     *            instances whose agents to enable or disable
+     * @param enabled
+     */
+    private void setAgentsEnabled(List<BuildAgent> agents, Set<String> instanceKeys, boolean enabled) {
+        for (BuildAgent agent : agents) {
+            PipelineDefinition definition = agent.getDefinition();
+            // agents of instances about to be reclaimed stay disabled
+            if (definition != null && definition.isEnabled() != enabled
+                    && instanceKeys.contains(agentInstanceResolver.getInstanceKey(agent))
+                    && !(enabled && spotInterruptionDrainer.isDraining(agentInstanceResolver.getInstanceId(agent)))) {
+                definition.setEnabled(enabled);
+                agentManager.savePipeline(definition);
+            }
+        }
+    }
+
+    /**
+     * The license check is monotonic in the number of agents, so the largest allowed capacity is found with a binary
+     * search instead of checking one unit at a time
+     *
+     * @param units
+     *            capacity units wanted
+     * @param agentsPerUnit
+     * @param pendingAgents
+     *            agents of existing instances that haven't registered yet but will take up licenses
+     * @return how many of the wanted units the Bamboo license allows agents for
+     */
+    private int getLicensedUnits(int units, double agentsPerUnit, int pendingAgents) {
+        int allowed = 0;
+        int denied = units + 1;
+        while (denied - allowed > 1) {
+            int candidate = (allowed + denied) >>> 1;
+            if (agentManager.allowNewRemoteAgents(pendingAgents + (int) Math.ceil(candidate * agentsPerUnit - 1e-9))) {
+                allowed = candidate;
             } else {
-                buildLogger.addBuildLogEntry("WARNING: Tried to scale up when active capacity > target capacity. You may need to increase the time between task executions.");
+                denied = candidate;
             }
-            // if target is already greater than what we would scale to based on active, then don't scale
-            // scale down case.
-        } else if (modifier < 0) {
-            // use subListEndIndex as it's possible the idleInstance threshold was exceeded but there weren't enough
-            // idle instances to meet the maxUnitsPerScaleValue
-            newCapacity = activeFulfilledCapacity - numberOfInstancesToTerminate;
         }
-        // enforce lower bound of 1
-        newCapacity = Math.max(newCapacity, MINIMUM_TARGET_CAPACITY);
-        // enforce upper bound of 250, the maximum amount of Remote agent allowed by Bamboo
-        newCapacity = Math.min(newCapacity, MAXIMUM_TARGET_CAPACITY);
-        return newCapacity;
+        return allowed;
+    }
+
+    private double getWeight(String instanceKey) {
+        Double weight = instanceWeights.get(instanceKey);
+        return weight == null ? 1 : weight;
+    }
+
+    // whole units of target capacity, tolerating rounding in summed fractional weights
+    private static int toUnits(double weight) {
+        return (int) Math.floor(weight + 1e-9);
     }
 
     /**
-     * Tag instances as being used with Bamboo Spot Fleet Plugin
+     * Tag instances as being used with Bamboo Spot Fleet Plugin. Instances already carrying the configured tags are
+     * skipped
+     *
+     * @param fleetId
      */
-    private void tagInstances() {
-        // tag instances as being used with bamboo
-        if (activeInstanceDnsNamesToInstanceIdsMap != null && activeInstanceDnsNamesToInstanceIdsMap.size() > 0) {
-            try {
-                Tag tag = new Tag().withKey("Bamboo-Spot-Fleet-Plugin-0811").withValue("");
-                CreateTagsRequest createTagsRequest = new CreateTagsRequest()
-                        .withResources(activeInstanceDnsNamesToInstanceIdsMap.values()).withTags(tag);
-                EC2Client.createTags(createTagsRequest);
-            } catch (AmazonServiceException e) {
-                buildLogger.addBuildLogEntry(
-                        "CreateTagsRequest failed with amazon service exception code: " + e.getErrorCode());
-            } catch (AmazonClientException e) {
-                buildLogger
-                        .addBuildLogEntry("CreateTagsRequest failed with amazon client exception: " + e.getMessage());
+    private void tagInstances(String fleetId) {
+        if (activeInstanceDnsNamesToInstanceIdsMap == null || activeInstanceDnsNamesToInstanceIdsMap.isEmpty()) {
+            return;
+        }
+        FleetInventory fleetInventory = fleetInventoryRegistry.getInventory(fleetId);
+        if (planKey != null) {
+            fleetInventory.setPlanKey(planKey);
+        }
+        // instance keys to the IDs of their agents
+        Map<String, List<Long>> instanceAgentIds = new HashMap<String, List<Long>>();
+        if (instanceTagger.usesAgentIds()) {
+            for (BuildAgent agent : agentManager.getAllNonElasticAgents()) {
+                String instanceKey = agentInstanceResolver.getInstanceKey(agent);
+                if (!instanceAgentIds.containsKey(instanceKey)) {
+                    instanceAgentIds.put(instanceKey, new ArrayList<Long>());
+                }
+                instanceAgentIds.get(instanceKey).add(agent.getId());
             }
         }
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, String>> instanceTags = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, String> instance : activeInstanceDnsNamesToInstanceIdsMap.entrySet()) {
+            List<Long> agentIds = instanceAgentIds.get(instance.getKey());
+            AgentSlotTable.Slots slots = agentSlots.get(instance.getKey());
+            instanceTags.put(instance.getValue(), instanceTagger.render(fleetId, fleetInventory.getPlanKey(),
+                    agentIds == null ? Collections.<Long> emptyList() : agentIds,
+                    slots == null ? now : slots.getFirstSeen()));
+        }
+        int tagged = instanceTagger.tagInstances(EC2Client, fleetInventory, instanceTags);
+        if (tagged > 0) {
+            log("tagged " + tagged + " instances of fleet " + fleetId);
+        }
+    }
+
+    // key of the plan whose build runs the task
+    private static String getPlanKey(TaskContext taskContext) {
+        if (taskContext.getCommonContext() == null || taskContext.getCommonContext().getResultKey() == null) {
+            return null;
+        }
+        ResultKey resultKey = taskContext.getCommonContext().getResultKey();
+        if (resultKey instanceof PlanResultKey) {
+            return ((PlanResultKey) resultKey).getPlanKey().getKey();
+        }
+        return resultKey.getKey();
     }
 
     /**
      * remove offline fleet agents from Bamboo agent pool. Terminate builds executing on offline fleet agents.
      */
     private void agentTeardown() {
-        List<Long> agentIdsToRemove = new LinkedList<Long>();
+        // agent IDs to the builds orphaned on them
+        Map<Long, List<PlanResultKey>> agentsToRemove = new LinkedHashMap<Long, List<PlanResultKey>>();
         HashSet<Long> activeAgentIds = new HashSet<Long>();
-        Iterator<BuildAgent> agentIterator = agentManager.getAllNonElasticAgents().iterator();
-        while (agentIterator.hasNext()) {
-            BuildAgent currentAgent = agentIterator.next();
-            String agentName = currentAgent.getName();
+        // agents that registered since an interruption notice are disabled too
+        spotInterruptionDrainer.disableAgents();
+        long now = System.currentTimeMillis();
+        List<BuildAgent> agents = agentManager.getAllNonElasticAgents();
+        agentInstanceResolver.retainAgents(agents);
+        for (BuildAgent currentAgent : agents) {
             // in case of multiple agents per instance we only want to consider the agent's name prefix
             // e.g we dont want to consider the " (2)" in "ip-172-31-66-67.ec2.internal (2)"
-            String trueAgentName = agentName.split("\\.internal")[0] + ".internal";
-            // regex to find agent names beginning with "ip-" and ending with ".internal". All supported regions
-            // have instances with private DNS following this pattern
-            if (!activeInstanceDnsNamesToInstanceIdsMap.keySet().contains(trueAgentName)
-                    && Pattern.matches("(ip-)(.*)(\\.internal)", trueAgentName)) {
-                agentIdsToRemove.add(currentAgent.getId());
+            String trueAgentName = agentInstanceResolver.getInstanceKey(currentAgent);
+            // only agents reporting the ID of one of the fleets' instances or named after an EC2 private DNS name
+            // can belong to the fleet, agents of other fleets and plain EC2 instances are left alone
+            // agents on instances about to be reclaimed are removed before they drop offline
+            if ((!activeInstanceDnsNamesToInstanceIdsMap.keySet().contains(trueAgentName)
+                    && agentInstanceResolver.isFleetAgent(currentAgent, fleetInstanceIds))
+                    || spotInterruptionDrainer.isPastDrainDeadline(agentInstanceResolver.getInstanceId(currentAgent),
+                            now)) {
+                agentsToRemove.put(currentAgent.getId(), new LinkedList<PlanResultKey>());
             } else {
                 activeAgentIds.add(currentAgent.getId());
             }
@@ -407,23 +754,40 @@ public class SpotFleetTaskExecution implements TaskType {
         for (CurrentlyBuilding build : buildExecutionManager.getCurrentlyExecuting()) {
             if (!activeAgentIds.contains(build.getBuildAgentId())) {
                 BuildIdentifier currentBI = build.getBuildIdentifier();
-                PlanResultKey planResultKey = currentBI.getPlanResultKey();
-                buildExecutionManager.finishBuild(planResultKey);
-                try {
-                    agentManager.removeAgent(build.getBuildAgentId());
-                } catch (TimeoutException e) {
-                    buildLogger.addBuildLogEntry(
-                            "timed out removing agent with id: " + Long.toString(build.getBuildAgentId()));
+                if (!agentsToRemove.containsKey(build.getBuildAgentId())) {
+                    agentsToRemove.put(build.getBuildAgentId(), new LinkedList<PlanResultKey>());
                 }
+                agentsToRemove.get(build.getBuildAgentId()).add(currentBI.getPlanResultKey());
             }
         }
-        for (Long id : agentIdsToRemove) {
-            try {
-                agentManager.removeAgent(id);
-            } catch (TimeoutException e) {
-                buildLogger.addBuildLogEntry("failed to remove agent with id: " + Long.toString(id));
+        if (agentsToRemove.isEmpty()) {
+            return;
+        }
+        Map<Long, AgentTeardownExecutor.Outcome> outcomes = agentTeardownExecutor.teardown(agentsToRemove,
+                teardownConcurrency, (long) teardownDeadlineSeconds * MILLISECONDS_PER_SECOND);
+        int removedAgents = 0;
+        for (Map.Entry<Long, AgentTeardownExecutor.Outcome> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() == AgentTeardownExecutor.Outcome.REMOVED) {
+                removedAgents++;
+            } else {
+                log("failed to remove agent with id: " + Long.toString(outcome.getKey()) + " ("
+                        + outcome.getValue() + ")");
             }
         }
+        log("removed " + removedAgents + " of " + outcomes.size() + " offline agents");
+    }
+
+    /**
+     * write to the build log when running as a task, otherwise to the server log
+     *
+     * @param message
+     */
+    private void log(String message) {
+        if (buildLogger != null) {
+            buildLogger.addBuildLogEntry(message);
+        } else {
+            logger.info(message);
+        }
     }
 
     /**
@@ -440,23 +804,25 @@ public class SpotFleetTaskExecution implements TaskType {
                 CancelSpotFleetRequestsResult cancelSpotFleetRequestsResult = EC2Client
                         .cancelSpotFleetRequests(cancelSpotFleetRequestsRequest);
                 if (cancelSpotFleetRequestsResult.getSuccessfulFleetRequests().isEmpty()) {
-                    buildLogger.addBuildLogEntry("Cancellation of fleet failed");
+                    log("Cancellation of fleet failed");
                 } else {
-                    buildLogger.addBuildLogEntry("Cancellation of fleet succeeded");
+                    log("Cancellation of fleet succeeded");
+                    fleetInventoryRegistry.invalidate(fleetID);
+                    scalingDaemon.unregisterFleet(fleetID);
                 }
             } catch (AmazonServiceException e) {
                 if (e.getErrorCode().equals("AuthFailure")) {
                 } else if (e.getErrorCode().equals("UnauthorizedOperation")) {
-                    buildLogger.addBuildLogEntry("provided credentials could not be validated");
+                    log("provided credentials could not be validated");
                 } else if (e.getErrorCode().equals("InvalidParameterValue")) {
-                    buildLogger.addBuildLogEntry("provided fleet ID does not match regex: " + e.getErrorMessage());
+                    log("provided fleet ID does not match regex: " + e.getErrorMessage());
                 } else if (e.getErrorCode().equals("InvalidSpotFleetRequestId.NotFound")) {
-                    buildLogger.addBuildLogEntry("fleet ID not valid in current region: " + e.getErrorMessage());
+                    log("fleet ID not valid in current region: " + e.getErrorMessage());
                 } else {
-                    buildLogger.addBuildLogEntry("amazon service exception: " + e.getErrorMessage());
+                    log("amazon service exception: " + e.getErrorMessage());
                 }
             } catch (AmazonClientException e) {
-                buildLogger.addBuildLogEntry("amazon client exception: " + e.getMessage());
+                log("amazon client exception: " + e.getMessage());
             }
         }
     }
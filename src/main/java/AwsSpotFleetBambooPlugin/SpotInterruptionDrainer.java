@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Drains agents on fleet instances that received a spot interruption notice. The user data script polls the instance
+ * metadata for the notice and reports it through {@link SpotInterruptionServlet}. Agents on a draining instance are
+ * disabled so no new builds are dispatched to them; queued builds wait for other agents instead of being lost with the
+ * instance. Scaling cycles stop counting draining instances as capacity, and shortly before reclamation the agents are
+ * torn down with whatever they are still building, rather than after they drop offline.
+ */
+@Component
+public class SpotInterruptionDrainer {
+    private static final Logger logger = LoggerFactory.getLogger(SpotInterruptionDrainer.class);
+    // EC2 gives two minutes notice
+    public static final long INTERRUPTION_NOTICE_MILLISECONDS = 120000;
+    // agents are torn down this long before the instance is reclaimed
+    public static final long DRAIN_GRACE_MILLISECONDS = 15000;
+    // notices are forgotten this long after the instance was reclaimed
+    public static final long NOTICE_RETENTION_MILLISECONDS = 600000;
+
+    private AgentManager agentManager;
+    private AgentInstanceResolver agentInstanceResolver;
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    // instance ID to time the instance will be reclaimed, in milliseconds
+    private final Map<String, Long> terminationTimes = new ConcurrentHashMap<String, Long>();
+
+    @Autowired
+    public SpotInterruptionDrainer(@ComponentImport AgentManager agentManager,
+            AgentInstanceResolver agentInstanceResolver, FleetInventoryRegistry fleetInventoryRegistry) {
+        this.agentManager = agentManager;
+        this.agentInstanceResolver = agentInstanceResolver;
+        this.fleetInventoryRegistry = fleetInventoryRegistry;
+    }
+
+    /**
+     * Start draining an instance. Only instances of the fleets the notice's secret was checked against are drained, so
+     * the notice endpoint can't be used to disable other agents
+     *
+     * @param instanceId
+     * @param fleetIds
+     *            fleets the notice was authenticated for
+     * @param terminationTime
+     *            time the instance will be reclaimed in milliseconds
+     * @return whether the instance is part of one of the fleets and is now draining
+     */
+    public boolean noticeReceived(String instanceId, Collection<String> fleetIds, long terminationTime) {
+        if (!fleetInventoryRegistry.isFleetInstance(instanceId, fleetIds)) {
+            logger.warn("ignoring spot interruption notice for instance " + instanceId + " outside fleets " + fleetIds);
+            return false;
+        }
+        if (terminationTimes.put(instanceId, terminationTime) == null) {
+            logger.info("spot interruption notice received for instance " + instanceId + ", draining its agents");
+        }
+        disableAgents();
+        return true;
+    }
+
+    /**
+     * disable agents on draining instances that are still enabled, e.g. because they registered after the notice
+     */
+    public void disableAgents() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> noticeTimes = terminationTimes.values().iterator();
+        while (noticeTimes.hasNext()) {
+            if (noticeTimes.next() + NOTICE_RETENTION_MILLISECONDS < now) {
+                noticeTimes.remove();
+            }
+        }
+        if (terminationTimes.isEmpty()) {
+            return;
+        }
+        for (BuildAgent agent : agentManager.getAllNonElasticAgents()) {
+            PipelineDefinition definition = agent.getDefinition();
+            if (isDraining(agentInstanceResolver.getInstanceId(agent)) && definition != null
+                    && definition.isEnabled()) {
+                definition.setEnabled(false);
+                agentManager.savePipeline(definition);
+                logger.info("disabled agent " + agent.getName() + " ahead of spot interruption");
+            }
+        }
+    }
+
+    /**
+     * @param instanceId
+     *            may be null
+     * @return whether the instance received an interruption notice
+     */
+    public boolean isDraining(String instanceId) {
+        return instanceId != null && terminationTimes.containsKey(instanceId);
+    }
+
+    /**
+     * @param instanceId
+     *            may be null
+     * @param now
+     *            current time in milliseconds
+     * @return whether the instance is about to be reclaimed and its agents should be torn down now
+     */
+    public boolean isPastDrainDeadline(String instanceId, long now) {
+        Long terminationTime = instanceId == null ? null : terminationTimes.get(instanceId);
+        return terminationTime != null && terminationTime - DRAIN_GRACE_MILLISECONDS <= now;
+    }
+
+    /**
+     * @param instanceIds
+     * @return number of the given instances that are draining
+     */
+    public int countDraining(Collection<String> instanceIds) {
+        int draining = 0;
+        for (String instanceId : instanceIds) {
+            if (isDraining(instanceId)) {
+                draining++;
+            }
+        }
+        return draining;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Endpoint the user data script reports spot interruption notices to, at
+ * SERVER_URL/plugins/servlet/spotfleet/interruption. Takes the instance ID and the time from the instance metadata's
+ * spot/instance-action document as POST parameters, along with the fleet IDs and secret the script was rendered with,
+ * see {@link FleetNoticeSecrets}.
+ */
+public class SpotInterruptionServlet extends HttpServlet {
+    public static final String INSTANCE_ID_PARAMETER = "instanceId";
+    public static final String TIME_PARAMETER = "time";
+    public static final String FLEET_IDS_PARAMETER = "fleetIds";
+    public static final String SECRET_PARAMETER = "secret";
+    // format of the time in the instance-action document, e.g. 2017-09-18T08:22:00Z
+    public static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    private SpotInterruptionDrainer spotInterruptionDrainer;
+    private FleetNoticeSecrets fleetNoticeSecrets;
+
+    @Autowired
+    public SpotInterruptionServlet(SpotInterruptionDrainer spotInterruptionDrainer,
+            FleetNoticeSecrets fleetNoticeSecrets) {
+        this.spotInterruptionDrainer = spotInterruptionDrainer;
+        this.fleetNoticeSecrets = fleetNoticeSecrets;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String instanceId = request.getParameter(INSTANCE_ID_PARAMETER);
+        if (StringUtils.isBlank(instanceId)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing " + INSTANCE_ID_PARAMETER);
+            return;
+        }
+        String fleetIds = StringUtils.defaultString(request.getParameter(FLEET_IDS_PARAMETER)).trim();
+        if (!fleetNoticeSecrets.isValid(fleetIds, request.getParameter(SECRET_PARAMETER))) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Missing or wrong " + SECRET_PARAMETER);
+            return;
+        }
+        long terminationTime;
+        try {
+            terminationTime = parseTerminationTime(request.getParameter(TIME_PARAMETER), System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        List<String> fleets = FleetCoordinator.parseFleetIds(fleetIds);
+        if (spotInterruptionDrainer.noticeReceived(instanceId.trim(), fleets, terminationTime)) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Not an instance of the scaled fleets");
+        }
+    }
+
+    /**
+     * @param time
+     *            termination time from the instance-action document
+     * @param now
+     *            current time in milliseconds
+     * @return termination time in milliseconds, no sooner than the full notice period from now, which is also assumed
+     *         if the time is missing or malformed
+     * @throws IllegalArgumentException
+     *             if the time is more than a notice period in the past, so the instance is already gone
+     */
+    public static long parseTerminationTime(String time, long now) {
+        long earliest = now + SpotInterruptionDrainer.INTERRUPTION_NOTICE_MILLISECONDS;
+        if (StringUtils.isBlank(time)) {
+            return earliest;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long terminationTime;
+        try {
+            terminationTime = format.parse(time.trim()).getTime();
+        } catch (ParseException e) {
+            return earliest;
+        }
+        if (terminationTime < now - SpotInterruptionDrainer.INTERRUPTION_NOTICE_MILLISECONDS) {
+            throw new IllegalArgumentException("Termination time " + time + " has passed");
+        }
+        // a notice can't cut the two minutes EC2 gives short, e.g. to tear down agents right away
+        return Math.max(terminationTime, earliest);
+    }
+}
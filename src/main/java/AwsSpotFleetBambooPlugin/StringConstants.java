@@ -28,5 +28,19 @@ public class StringConstants {
     public static final String AVERAGE_QUEUE_TIME = "averageQueueTime";
     public static final String IDLE_INSTANCES = "idleInstances";
     public static final String MAXIMUM_UNITS_PER_SCALE = "maxUnitsPerScale";
+    public static final String SCALING_INTERVAL = "scalingInterval";
+    public static final String QUEUE_TIME_STATISTIC = "queueTimeStatistic";
+    public static final String PREDICTIVE_SCALING = "predictiveScaling";
+    public static final String CAPACITY_CONTROLLER = "capacityController";
+    public static final String TEARDOWN_CONCURRENCY = "teardownConcurrency";
+    public static final String TEARDOWN_DEADLINE = "teardownDeadline";
+    public static final String LAUNCH_MODE = "launchMode";
+    public static final String AGENTS_PER_INSTANCE_POLICY = "agentsPerInstancePolicy";
+    public static final String AGENTS_PER_INSTANCE = "agentsPerInstance";
+    public static final String INSTANCE_TAGS = "instanceTags";
+    // agent capability set by the user data script, replaces INSTANCE_ID_CAPABILITY in the script
+    public static final String INSTANCE_ID_CAPABILITY = "spotfleet.ec2.instanceId";
+    // agent capability set by the user data script to the agents it starts, replaces AGENT_SLOTS_CAPABILITY
+    public static final String AGENT_SLOTS_CAPABILITY = "spotfleet.ec2.agentSlots";
     public static final String USER = "user";
 }
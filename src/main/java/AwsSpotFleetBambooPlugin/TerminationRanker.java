@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders idle instances for termination when a fleet scales down. Instances that have been idle longest go first,
+ * as they are least likely to be needed soon. Two kinds of instance are kept as long as possible:
+ * <ul>
+ * <li>instances still warming up, which haven't been in the fleet for {@link #WARM_UP_MILLISECONDS} or whose agents
+ * haven't all registered yet, so their boot time isn't wasted;</li>
+ * <li>cache-hot instances, whose agents finished a build less than {@link #CACHE_HOT_MILLISECONDS} ago and left
+ * populated working directories that make the next builds of the plan faster.</li>
+ * </ul>
+ * Instances that are equally idle are ordered by free agent slots, most first.
+ */
+public class TerminationRanker {
+    public static final long WARM_UP_MILLISECONDS = 10 * SpotFleetTaskExecution.MILLISECONDS_PER_MINUTE;
+    public static final long CACHE_HOT_MILLISECONDS = 30 * SpotFleetTaskExecution.MILLISECONDS_PER_MINUTE;
+    // ranks of the groups instances are terminated in, lowest first
+    private static final int COLD = 0;
+    private static final int CACHE_HOT = 1;
+    private static final int WARMING_UP = 2;
+
+    private final AgentSlotTable agentSlots;
+    private final long now;
+
+    /**
+     * @param agentSlots
+     *            slots, idle times and first-seen times of the fleet's instances
+     * @param now
+     *            current time in milliseconds
+     */
+    public TerminationRanker(AgentSlotTable agentSlots, long now) {
+        this.agentSlots = agentSlots;
+        this.now = now;
+    }
+
+    /**
+     * @param instanceKeys
+     *            idle instances
+     * @return the instance keys, in the order they should be terminated
+     */
+    public List<String> rank(Collection<String> instanceKeys) {
+        List<String> ranked = new ArrayList<String>(instanceKeys);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                AgentSlotTable.Slots firstSlots = agentSlots.get(first);
+                AgentSlotTable.Slots secondSlots = agentSlots.get(second);
+                int byGroup = Integer.compare(getGroup(firstSlots), getGroup(secondSlots));
+                if (byGroup != 0) {
+                    return byGroup;
+                }
+                int byIdleTime = Long.compare(firstSlots.getIdleSince(), secondSlots.getIdleSince());
+                if (byIdleTime != 0) {
+                    return byIdleTime;
+                }
+                return Integer.compare(secondSlots.getFree(), firstSlots.getFree());
+            }
+        });
+        return ranked;
+    }
+
+    private int getGroup(AgentSlotTable.Slots slots) {
+        if (now - slots.getFirstSeen() < WARM_UP_MILLISECONDS || slots.getRegistered() == 0
+                || slots.getRegistered() < slots.getExpected()) {
+            return WARMING_UP;
+        }
+        if (slots.hasBuilt() && now - slots.getIdleSince() < CACHE_HOT_MILLISECONDS) {
+            return CACHE_HOT;
+        }
+        return COLD;
+    }
+}
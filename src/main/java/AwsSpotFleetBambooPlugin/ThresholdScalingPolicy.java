@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The task's scaling rules. Scales up, sized by a {@link CapacityController}, when the queue exceeds the queued builds
+ * or queue time threshold, and scales down by terminating idle instances once there are more than the idle instance
+ * threshold. Capacity still needed for predicted load is kept, and the fleet is warmed up ahead of it. Scaling steps
+ * are counted in units of target capacity, so an instance with a weight of 8 uses up 8 units of a step.
+ */
+public class ThresholdScalingPolicy implements ScalingPolicy {
+    private final CapacityController capacityController;
+
+    public ThresholdScalingPolicy() {
+        this(new ProportionalCapacityController());
+    }
+
+    public ThresholdScalingPolicy(CapacityController capacityController) {
+        this.capacityController = capacityController;
+    }
+
+    @Override
+    public ScalingDecision decide(ScalingState state) {
+        List<String> notes = new ArrayList<String>();
+        int currentTargetCapacity = state.getCurrentTargetCapacity();
+        int activeCapacity = state.getActiveCapacity();
+        double agentsPerUnit = state.getAgentsPerUnit();
+        int unitsPerScale = state.getMaxUnitsPerScale();
+        int unitsToAdd = capacityController.getUnitsToAdd(new ScalingInput(state.getQueuedBuilds(),
+                state.getQueueWaitMilliseconds(), state.getMaxQueuedBuilds(), state.getMaxQueueWaitMilliseconds(),
+                agentsPerUnit, unitsPerScale, state.getNow()));
+        // capacity needed to absorb the predicted load on top of the builds already running, 0 if not predicting
+        int predictedCapacity = 0;
+        if (state.getPredictedBuilds() > 0) {
+            predictedCapacity = state.getBusyCapacity()
+                    + ScalingInput.getUnitsFor(state.getPredictedBuilds(), agentsPerUnit);
+            notes.add("Predicted " + state.getPredictedBuilds() + " builds needing " + predictedCapacity
+                    + " units of capacity");
+        }
+        // scale down if we exceed maxIdleInstances threshold
+        // idle capacity still needed for predicted load is kept
+        List<String> candidates = state.getTerminationCandidates();
+        List<String> instancesToTerminate = new ArrayList<String>();
+        double terminatedCapacity = 0;
+        if (candidates.size() > state.getMaxIdleInstances()) {
+            // will terminate up to unitsPerScale units, unless there isn't enough idle capacity to terminate
+            double terminableCapacity = Math.min(unitsPerScale, Math.max(0, activeCapacity - predictedCapacity));
+            for (String candidate : candidates) {
+                if (terminatedCapacity + state.getWeight(candidate) <= terminableCapacity) {
+                    instancesToTerminate.add(candidate);
+                    terminatedCapacity += state.getWeight(candidate);
+                }
+            }
+        }
+        int newCapacity = currentTargetCapacity;
+        if (!instancesToTerminate.isEmpty()) {
+            newCapacity = activeCapacity - (int) Math.round(terminatedCapacity);
+        } else {
+            if (unitsToAdd > 0) {
+                // If active > target, then a scale down has recently occurred. In this case, rather than scaling up
+                // we should instead no-op
+                if (activeCapacity <= currentTargetCapacity) {
+                    newCapacity = Math.max(currentTargetCapacity, activeCapacity + unitsToAdd);
+                    if (newCapacity > currentTargetCapacity) {
+                        capacityController.scaledUp(state.getNow());
+                    }
+                } else {
+                    notes.add("WARNING: Tried to scale up when active capacity > target capacity. "
+                            + "You may need to increase the time between task executions.");
+                }
+            }
+            if (predictedCapacity > Math.max(newCapacity, activeCapacity)) {
+                // warm up ahead of predicted load, the reactive rule above stays the floor
+                newCapacity = Math.max(newCapacity,
+                        activeCapacity + Math.min(unitsPerScale, predictedCapacity - activeCapacity));
+            }
+        }
+        ScalingDecision decision = new ScalingDecision(newCapacity, instancesToTerminate);
+        for (String note : notes) {
+            decision.withNote(note);
+        }
+        return decision;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Renders the user data scripts shown in the task configuration. The scripts are read from the plugin's classpath and
+ * compiled into {@link UserDataTemplate}s once; rendered scripts are memoized per launch mode and agents per instance
+ * policy and fleets, since the task form renders one every time it is opened. The memoized scripts are dropped when
+ * the Bamboo base URL changes.
+ */
+@Component
+public class UserDataScriptRenderer {
+    private static final Logger logger = LoggerFactory.getLogger(UserDataScriptRenderer.class);
+    public static final String INSTALL_SCRIPT = "UserDataLaunchScript";
+    public static final String PREBAKED_SCRIPT = "PrebakedUserDataLaunchScript";
+    public static final String DEFAULT_JDK_PACKAGE = "java-1.8.0-openjdk-devel";
+    public static final String SCRIPT_NOT_FOUND = "User data script not found";
+    // launch modes times a handful of policies in use
+    private static final int MAXIMUM_RENDERED_SCRIPTS = 64;
+
+    private AdministrationConfigurationAccessor administrationConfigurationAccessor;
+    private FleetNoticeSecrets fleetNoticeSecrets;
+    private final LoadingCache<String, UserDataTemplate> templates = CacheBuilder.newBuilder()
+            .build(new CacheLoader<String, UserDataTemplate>() {
+                @Override
+                public UserDataTemplate load(String scriptName) throws IOException {
+                    return UserDataTemplate.compile(Resources.toString(
+                            Resources.getResource(UserDataScriptRenderer.class, "/scripts/" + scriptName),
+                            Charsets.UTF_8));
+                }
+            });
+    private final Cache<RenderKey, String> renderedScripts = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_RENDERED_SCRIPTS).build();
+    // base URL the memoized scripts were rendered with
+    private volatile String renderedBaseUrl;
+
+    @Autowired
+    public UserDataScriptRenderer(
+            @ComponentImport AdministrationConfigurationAccessor administrationConfigurationAccessor,
+            FleetNoticeSecrets fleetNoticeSecrets) {
+        this.administrationConfigurationAccessor = administrationConfigurationAccessor;
+        this.fleetNoticeSecrets = fleetNoticeSecrets;
+    }
+
+    /**
+     * @param launchMode
+     *            {@link LaunchTimingRecorder#PREBAKED_MODE} for images with the JDK and build tools already installed,
+     *            anything else installs them at boot
+     * @param agentsPerInstancePolicy
+     *            how many agents the script starts on an instance, null for the default
+     * @param fleetIds
+     *            the task's fleet IDs as stored in its configuration, null before the task is saved; the script's
+     *            interruption notices are only accepted for these fleets
+     * @return agent installation script, or {@link #SCRIPT_NOT_FOUND} if the plugin's copy can't be read
+     */
+    public String render(String launchMode, AgentsPerInstancePolicy agentsPerInstancePolicy, String fleetIds) {
+        String baseUrl = StringUtils.defaultString(
+                administrationConfigurationAccessor.getAdministrationConfiguration().getBaseUrl());
+        if (!baseUrl.equals(renderedBaseUrl)) {
+            renderedScripts.invalidateAll();
+            renderedBaseUrl = baseUrl;
+        }
+        String scriptName = LaunchTimingRecorder.PREBAKED_MODE.equals(launchMode) ? PREBAKED_SCRIPT : INSTALL_SCRIPT;
+        AgentsPerInstancePolicy policy = agentsPerInstancePolicy == null ? AgentsPerInstancePolicy.DEFAULT
+                : agentsPerInstancePolicy;
+        String fleets = StringUtils.defaultString(fleetIds);
+        RenderKey renderKey = new RenderKey(baseUrl, scriptName, policy, fleets);
+        String script = renderedScripts.getIfPresent(renderKey);
+        if (script != null) {
+            return script;
+        }
+        Map<UserDataTemplate.Placeholder, String> values = new EnumMap<UserDataTemplate.Placeholder, String>(
+                UserDataTemplate.Placeholder.class);
+        values.put(UserDataTemplate.Placeholder.SERVER_URL, baseUrl);
+        values.put(UserDataTemplate.Placeholder.JDK_PACKAGE, DEFAULT_JDK_PACKAGE);
+        values.put(UserDataTemplate.Placeholder.INSTANCE_ID_CAPABILITY, StringConstants.INSTANCE_ID_CAPABILITY);
+        values.put(UserDataTemplate.Placeholder.AGENT_SLOTS_CAPABILITY, StringConstants.AGENT_SLOTS_CAPABILITY);
+        values.put(UserDataTemplate.Placeholder.AGENT_COUNT_COMMAND, policy.getAgentCountCommand());
+        values.put(UserDataTemplate.Placeholder.NOTICE_FLEET_IDS, fleets);
+        values.put(UserDataTemplate.Placeholder.NOTICE_SECRET, fleetNoticeSecrets.getSecret(fleets));
+        try {
+            script = templates.get(scriptName).render(values);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.error("could not load user data script " + scriptName, e.getCause());
+            return SCRIPT_NOT_FOUND;
+        }
+        renderedScripts.put(renderKey, script);
+        return script;
+    }
+
+    // everything a rendered script depends on
+    private static class RenderKey {
+        private final String baseUrl;
+        private final String scriptName;
+        private final AgentsPerInstancePolicy policy;
+        private final String fleetIds;
+
+        private RenderKey(String baseUrl, String scriptName, AgentsPerInstancePolicy policy, String fleetIds) {
+            this.baseUrl = baseUrl;
+            this.scriptName = scriptName;
+            this.policy = policy;
+            this.fleetIds = fleetIds;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey key = (RenderKey) other;
+            return baseUrl.equals(key.baseUrl) && scriptName.equals(key.scriptName) && policy.equals(key.policy)
+                    && fleetIds.equals(key.fleetIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(baseUrl, scriptName, policy, fleetIds);
+        }
+    }
+}
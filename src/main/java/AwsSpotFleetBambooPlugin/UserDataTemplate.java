@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package AwsSpotFleetBambooPlugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A user data script compiled once into the literal text between its placeholders, so rendering it appends segments
+ * instead of searching the script for every placeholder. Placeholders are whole words in the script, e.g. SERVER_URL in
+ * SERVER_URL/agentServer/, so the script's own variables such as AGENT_COUNT are left alone.
+ */
+public class UserDataTemplate {
+    /**
+     * Values a script can be rendered with
+     */
+    public enum Placeholder {
+        // base URL of the Bamboo server
+        SERVER_URL,
+        // yum package of the JDK the agents run on
+        JDK_PACKAGE,
+        // capability keys agents report their instance ID and slots under
+        INSTANCE_ID_CAPABILITY,
+        AGENT_SLOTS_CAPABILITY,
+        // bash setting AGENT_COUNT, see AgentsPerInstancePolicy
+        AGENT_COUNT_COMMAND,
+        // fleets the script was rendered for and their secret, sent with interruption notices
+        NOTICE_FLEET_IDS,
+        NOTICE_SECRET
+    }
+
+    private static final Pattern PLACEHOLDER;
+    static {
+        List<String> names = new ArrayList<String>();
+        for (Placeholder placeholder : Placeholder.values()) {
+            names.add(placeholder.name());
+        }
+        PLACEHOLDER = Pattern.compile("\\b(" + StringUtils.join(names, "|") + ")\\b");
+    }
+
+    // literal text before each placeholder, and after the last one
+    private final List<String> literals;
+    private final List<Placeholder> placeholders;
+    private final int literalLength;
+
+    private UserDataTemplate(List<String> literals, List<Placeholder> placeholders) {
+        this.literals = Collections.unmodifiableList(literals);
+        this.placeholders = Collections.unmodifiableList(placeholders);
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @param script
+     *            script text with placeholders
+     * @return compiled template
+     */
+    public static UserDataTemplate compile(String script) {
+        List<String> literals = new ArrayList<String>();
+        List<Placeholder> placeholders = new ArrayList<Placeholder>();
+        Matcher matcher = PLACEHOLDER.matcher(script);
+        int literalStart = 0;
+        while (matcher.find()) {
+            literals.add(script.substring(literalStart, matcher.start()));
+            placeholders.add(Placeholder.valueOf(matcher.group(1)));
+            literalStart = matcher.end();
+        }
+        literals.add(script.substring(literalStart));
+        return new UserDataTemplate(literals, placeholders);
+    }
+
+    /**
+     * @return placeholders the script uses
+     */
+    public Set<Placeholder> getPlaceholders() {
+        Set<Placeholder> used = EnumSet.noneOf(Placeholder.class);
+        used.addAll(placeholders);
+        return used;
+    }
+
+    /**
+     * @param values
+     *            values of the placeholders the script uses
+     * @return rendered script
+     * @throws IllegalArgumentException
+     *             if the script uses a placeholder without a value
+     */
+    public String render(Map<Placeholder, String> values) {
+        StringBuilder script = new StringBuilder(literalLength + 64 * placeholders.size());
+        for (int i = 0; i < placeholders.size(); i++) {
+            String value = values.get(placeholders.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException("no value for user data placeholder " + placeholders.get(i));
+            }
+            script.append(literals.get(i)).append(value);
+        }
+        return script.append(literals.get(placeholders.size())).toString();
+    }
+}
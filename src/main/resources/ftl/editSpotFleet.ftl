@@ -1,4 +1,17 @@
 [@ww.textarea label="User data script" name="userData" required='false'/]
+[@ww.select
+	label="Agent launch mode (install tools at boot, or use an image with them pre-installed)"
+	name="launchMode"
+	list = ["install", "prebaked"]
+	required="false"
+/]
+[@ww.select
+	label="Agents per instance (a fixed number, or one per so many vCPUs or GiB of memory)"
+	name="agentsPerInstancePolicy"
+	list = ["fixed", "perVcpu", "perGib"]
+	required="false"
+/]
+[@ww.textfield label="Agents per instance, or vCPUs or GiB per agent (default 2)" name="agentsPerInstance" required='false'/]
 [@ww.textfield label="AWS User Access Key" name="accessKey" required='true'/]
 [@ww.password label="AWS User Secret Key" name="secretKey" required='true'/]
 [@ww.select
@@ -10,11 +23,30 @@
 			]
 	required="true"
 /]
-[@ww.textfield label="Fleet Request ID" name="fleetID" required='true'/]
+[@ww.textfield label="Fleet Request IDs (comma separated)" name="fleetID" required='true'/]
 [@ww.checkbox label="Terminate fleet upon completing all builds" name="terminateFleet" required='false'/]
 [@ww.label label="Autoscaling options" name="autoscale"/]
 [@ww.checkbox label="Enable autoscaling" name="enableAutoscaling" required='false'/]
 [@ww.textfield label="Maximum queued builds before scaleup" name="queuedBuilds" required='true'/]
-[@ww.textfield label="Average queue time in minutes before scaleup" name="averageQueueTime" required='true'/]
+[@ww.textfield label="Queue time in minutes before scaleup" name="averageQueueTime" required='true'/]
+[@ww.select
+	label="Queue time measured as"
+	name="queueTimeStatistic"
+	list = ["mean", "p50", "p90", "p99", "max"]
+	required="false"
+/]
+[@ww.select
+	label="Scale up by"
+	name="capacityController"
+	list = ["proportional", "pid"]
+	required="false"
+/]
 [@ww.textfield label="Maximum idle instances before scaledown" name="idleInstances" required='true'/]
 [@ww.textfield label="Maximum units per scaling action" name="maxUnitsPerScale" required='true'/]
+[@ww.checkbox label="Scale up ahead of load predicted from previous weeks" name="predictiveScaling" required='false'/]
+[@ww.textfield label="Background scaling interval in seconds (0 to only scale when this task runs)" name="scalingInterval" required='false'/]
+[@ww.label label="Teardown options" name="teardown"/]
+[@ww.textfield label="Maximum offline agents removed at once" name="teardownConcurrency" required='false'/]
+[@ww.textfield label="Time limit in seconds for removing offline agents" name="teardownDeadline" required='false'/]
+[@ww.label label="Tagging options" name="tagging"/]
+[@ww.textarea label="Instance tags, one key=value per line ({fleetId}, {planKey}, {agentIds} and {launchTime} are filled in)" name="instanceTags" required='false'/]
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+public class AgentInstanceResolverUnitTest {
+
+    private AgentInstanceResolver agentInstanceResolver;
+
+    @Before
+    public void setup() {
+        agentInstanceResolver = new AgentInstanceResolver();
+    }
+
+    private static BuildAgent agent(long id, String name) {
+        BuildAgent agent = mock(BuildAgent.class);
+        when(agent.getId()).thenReturn(id);
+        when(agent.getName()).thenReturn(name);
+        return agent;
+    }
+
+    private static BuildAgent agent(long id, String name, String instanceId) {
+        BuildAgent agent = agent(id, name);
+        PipelineDefinition definition = mock(PipelineDefinition.class);
+        CapabilitySet capabilitySet = mock(CapabilitySet.class);
+        Capability capability = mock(Capability.class);
+        when(agent.getDefinition()).thenReturn(definition);
+        when(definition.getCapabilitySet()).thenReturn(capabilitySet);
+        when(capabilitySet.getCapability(StringConstants.INSTANCE_ID_CAPABILITY)).thenReturn(capability);
+        when(capability.getValue()).thenReturn(instanceId);
+        return agent;
+    }
+
+    @Test
+    public void agentsOnTheSameInstanceResolveToItsHostNameTest() {
+        assertEquals("ip-172-31-66-67.ec2.internal",
+                agentInstanceResolver.getInstanceHostName(agent(1, "ip-172-31-66-67.ec2.internal")));
+        assertEquals("ip-172-31-66-67.ec2.internal",
+                agentInstanceResolver.getInstanceHostName(agent(2, "ip-172-31-66-67.ec2.internal (2)")));
+        assertEquals("ip-10-0-0-1.us-west-2.compute.internal",
+                agentInstanceResolver.getInstanceHostName(agent(3, "ip-10-0-0-1.us-west-2.compute.internal (3)")));
+    }
+
+    @Test
+    public void onlyPrivateDnsNamedAgentsAreFleetAgentsTest() {
+        assertTrue(agentInstanceResolver.isFleetAgent(agent(1, "ip-172-31-66-67.ec2.internal (2)"),
+                ImmutableSet.<String>of()));
+        assertFalse(agentInstanceResolver.isFleetAgent(agent(2, "build-server.internal"),
+                ImmutableSet.<String>of()));
+        assertFalse(agentInstanceResolver.isFleetAgent(agent(3, "Local agent"),
+                ImmutableSet.<String>of()));
+    }
+
+    @Test
+    public void renamedAgentIsResolvedAgainTest() {
+        BuildAgent agent = agent(1, "ip-172-31-66-67.ec2.internal");
+        agentInstanceResolver.getInstanceHostName(agent);
+        when(agent.getName()).thenReturn("ip-172-31-64-253.ec2.internal");
+        assertEquals("ip-172-31-64-253.ec2.internal", agentInstanceResolver.getInstanceHostName(agent));
+        assertEquals(1, agentInstanceResolver.size());
+    }
+
+    @Test
+    public void removedAgentsAreForgottenTest() {
+        BuildAgent agent1 = agent(1, "ip-172-31-66-67.ec2.internal");
+        BuildAgent agent2 = agent(2, "ip-172-31-66-67.ec2.internal (2)");
+        BuildAgent agent3 = agent(3, "ip-172-31-64-253.ec2.internal");
+        for (BuildAgent agent : ImmutableList.of(agent1, agent2, agent3)) {
+            agentInstanceResolver.getInstanceHostName(agent);
+        }
+        agentInstanceResolver.forget(3);
+        assertEquals(2, agentInstanceResolver.size());
+        agentInstanceResolver.retainAgents(ImmutableList.of(agent1));
+        assertEquals(1, agentInstanceResolver.size());
+    }
+
+    @Test
+    public void agentsReportingInstanceIdResolveToItRegardlessOfNameTest() {
+        BuildAgent renamedAgent = agent(1, "Build agent 1", "i-0123456789abcdef0");
+        BuildAgent legacyAgent = agent(2, "ip-172-31-66-67.ec2.internal (2)");
+        BuildAgent localAgent = agent(3, "Local agent");
+        assertEquals("i-0123456789abcdef0", agentInstanceResolver.getInstanceKey(renamedAgent));
+        assertTrue(agentInstanceResolver.isFleetAgent(renamedAgent, ImmutableSet.of("i-0123456789abcdef0")));
+        assertEquals("ip-172-31-66-67.ec2.internal", agentInstanceResolver.getInstanceKey(legacyAgent));
+        List<BuildAgent> agents = ImmutableList.of(renamedAgent, legacyAgent, localAgent);
+        assertEquals(ImmutableSet.of("i-0123456789abcdef0"), agentInstanceResolver.getReportedInstanceIds(agents));
+        assertTrue(agentInstanceResolver.hasAgentsWithoutInstanceId(agents));
+        assertFalse(agentInstanceResolver.hasAgentsWithoutInstanceId(ImmutableList.of(renamedAgent, localAgent)));
+    }
+
+    @Test
+    public void agentsReportingInstancesOfOtherFleetsAreNotFleetAgentsTest() {
+        BuildAgent otherFleetAgent = agent(1, "ip-172-31-66-67.ec2.internal", "i-0123456789abcdef0");
+        assertFalse(agentInstanceResolver.isFleetAgent(otherFleetAgent, ImmutableSet.of("i-0fedcba9876543210")));
+    }
+}
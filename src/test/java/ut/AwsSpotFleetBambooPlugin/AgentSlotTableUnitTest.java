@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.AgentSlotTable;
+import AwsSpotFleetBambooPlugin.AgentsPerInstancePolicy;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+public class AgentSlotTableUnitTest {
+
+    private static final long NOW = 1000000000;
+    private AgentSlotTable agentSlots;
+    private AgentInstanceResolver agentInstanceResolver;
+
+    @Before
+    public void setup() {
+        agentSlots = new AgentSlotTable();
+        agentInstanceResolver = new AgentInstanceResolver();
+    }
+
+    private static BuildAgent agent(long id, String name, boolean busy) {
+        BuildAgent agent = mock(BuildAgent.class);
+        when(agent.getId()).thenReturn(id);
+        when(agent.getName()).thenReturn(name);
+        when(agent.isBusy()).thenReturn(busy);
+        return agent;
+    }
+
+    @Test
+    public void slotsAreCountedPerInstanceTest() {
+        List<BuildAgent> agents = ImmutableList.of(agent(1, "ip-10-0-0-1.ec2.internal", true),
+                agent(2, "ip-10-0-0-1.ec2.internal (2)", false), agent(3, "ip-10-0-0-1.ec2.internal (3)", false),
+                agent(4, "ip-10-0-0-2.ec2.internal", false), agent(5, "ip-10-9-9-9.ec2.internal", true));
+        agentSlots.update(ImmutableSet.of("ip-10-0-0-1.ec2.internal", "ip-10-0-0-2.ec2.internal"), agents,
+                agentInstanceResolver, NOW);
+        AgentSlotTable.Slots slots = agentSlots.get("ip-10-0-0-1.ec2.internal");
+        assertEquals(3, slots.getRegistered());
+        assertEquals(1, slots.getBusy());
+        assertEquals(2, slots.getFree());
+        assertEquals(3, slots.getExpected());
+        assertEquals(1, agentSlots.get("ip-10-0-0-2.ec2.internal").getRegistered());
+        // agents of other instances aren't counted
+        assertEquals(2, agentSlots.getSlots().size());
+    }
+
+    @Test
+    public void instancesKeepExpectingTheMostAgentsTheyRanTest() {
+        BuildAgent first = agent(1, "ip-10-0-0-1.ec2.internal", false);
+        BuildAgent second = agent(2, "ip-10-0-0-1.ec2.internal (2)", false);
+        agentSlots.update(ImmutableSet.of("ip-10-0-0-1.ec2.internal"), ImmutableList.of(first, second),
+                agentInstanceResolver, NOW);
+        agentSlots.update(ImmutableSet.of("ip-10-0-0-1.ec2.internal"), ImmutableList.of(first),
+                agentInstanceResolver, NOW);
+        assertEquals(2, agentSlots.get("ip-10-0-0-1.ec2.internal").getExpected());
+        assertEquals(1, agentSlots.getPendingAgents(Collections.<String, Double>emptyMap()));
+        // instances that left the fleet are forgotten
+        agentSlots.update(Collections.<String>emptySet(), ImmutableList.of(first), agentInstanceResolver, NOW);
+        assertEquals(0, agentSlots.getSlots().size());
+    }
+
+    @Test
+    public void newInstancesAreExpectedToRunAgentsInProportionToTheirWeightTest() {
+        agentSlots.update(ImmutableSet.of("ip-10-0-0-1.ec2.internal", "ip-10-0-0-2.ec2.internal"),
+                ImmutableList.of(agent(1, "ip-10-0-0-1.ec2.internal", false),
+                        agent(2, "ip-10-0-0-1.ec2.internal (2)", false)),
+                agentInstanceResolver, NOW);
+        Map<String, Double> weights = ImmutableMap.of("ip-10-0-0-1.ec2.internal", 1.0, "ip-10-0-0-2.ec2.internal",
+                4.0);
+        assertEquals(2, agentSlots.getAgentsPerUnit(weights), 0);
+        assertEquals(8, agentSlots.getPendingAgents(weights));
+        // a fleet without agents yet runs one per unit
+        assertEquals(1, new AgentSlotTable().getAgentsPerUnit(weights), 0);
+    }
+
+    private static BuildAgent declaringAgent(long id, String instanceId, int declaredSlots) {
+        BuildAgent agent = agent(id, "agent " + id, false);
+        PipelineDefinition definition = mock(PipelineDefinition.class);
+        CapabilitySet capabilitySet = mock(CapabilitySet.class);
+        Capability instanceIdCapability = mock(Capability.class);
+        Capability slotsCapability = mock(Capability.class);
+        when(agent.getDefinition()).thenReturn(definition);
+        when(definition.getCapabilitySet()).thenReturn(capabilitySet);
+        when(capabilitySet.getCapability(StringConstants.INSTANCE_ID_CAPABILITY)).thenReturn(instanceIdCapability);
+        when(instanceIdCapability.getValue()).thenReturn(instanceId);
+        when(capabilitySet.getCapability(StringConstants.AGENT_SLOTS_CAPABILITY)).thenReturn(slotsCapability);
+        when(slotsCapability.getValue()).thenReturn(Integer.toString(declaredSlots));
+        return agent;
+    }
+
+    @Test
+    public void declaredSlotsAreExpectedBeforeAllAgentsRegisterTest() {
+        Map<String, String> instanceTypes = ImmutableMap.of("i-large", "c5.large", "i-xlarge", "c5.4xlarge",
+                "i-xlarge2", "c5.4xlarge");
+        AgentsPerInstancePolicy perVcpu = new AgentsPerInstancePolicy(AgentsPerInstancePolicy.PER_VCPU, 2);
+        agentSlots.update(instanceTypes.keySet(),
+                ImmutableList.of(declaringAgent(1, "i-large", 1), declaringAgent(2, "i-xlarge", 8)),
+                agentInstanceResolver, NOW, instanceTypes, perVcpu);
+        assertEquals(1, agentSlots.get("i-large").getExpected());
+        // one of eight agents registered
+        assertEquals(8, agentSlots.get("i-xlarge").getExpected());
+        assertEquals(8, agentSlots.get("i-xlarge").getDeclared());
+        // no agents yet, but another instance of its type declared its slots
+        assertEquals(8, agentSlots.get("i-xlarge2").getExpected());
+        assertEquals(7 + 8, agentSlots.getPendingAgents(Collections.<String, Double>emptyMap()));
+    }
+
+    @Test
+    public void fixedPolicyPredictsSlotsOfNewInstancesTest() {
+        agentSlots.update(ImmutableSet.of("i-new"), Collections.<BuildAgent>emptyList(), agentInstanceResolver, NOW,
+                Collections.<String, String>emptyMap(),
+                new AgentsPerInstancePolicy(AgentsPerInstancePolicy.FIXED, 4));
+        assertEquals(4, agentSlots.get("i-new").getExpected());
+        assertEquals(4, agentSlots.getPendingAgents(Collections.<String, Double>emptyMap()));
+    }
+
+    @Test
+    public void idleTimeRestartsWhenTheLastBusyAgentFinishesTest() {
+        BuildAgent agent = agent(1, "ip-10-0-0-1.ec2.internal", false);
+        Set<String> instanceKeys = ImmutableSet.of("ip-10-0-0-1.ec2.internal");
+        agentSlots.update(instanceKeys, ImmutableList.of(agent), agentInstanceResolver, NOW);
+        // idle since it joined the fleet
+        assertEquals(NOW, agentSlots.get("ip-10-0-0-1.ec2.internal").getIdleSince());
+        assertFalse(agentSlots.get("ip-10-0-0-1.ec2.internal").hasBuilt());
+        when(agent.isBusy()).thenReturn(true);
+        agentSlots.update(instanceKeys, ImmutableList.of(agent), agentInstanceResolver, NOW + 60000);
+        assertEquals(0, agentSlots.get("ip-10-0-0-1.ec2.internal").getIdleSince());
+        when(agent.isBusy()).thenReturn(false);
+        agentSlots.update(instanceKeys, ImmutableList.of(agent), agentInstanceResolver, NOW + 120000);
+        agentSlots.update(instanceKeys, ImmutableList.of(agent), agentInstanceResolver, NOW + 180000);
+        AgentSlotTable.Slots slots = agentSlots.get("ip-10-0-0-1.ec2.internal");
+        assertEquals(NOW + 120000, slots.getIdleSince());
+        assertEquals(NOW, slots.getFirstSeen());
+        assertTrue(slots.hasBuilt());
+    }
+}
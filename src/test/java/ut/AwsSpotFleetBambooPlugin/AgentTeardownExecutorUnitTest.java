@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.google.common.collect.ImmutableList;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.AgentTeardownExecutor;
+import AwsSpotFleetBambooPlugin.AgentTeardownExecutor.Outcome;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AgentTeardownExecutorUnitTest {
+
+    @Mock
+    private AgentManager agentManager;
+    @Mock
+    private BuildExecutionManager buildExecutionManager;
+    @Mock
+    private PlanResultKey planResultKey;
+    private AgentTeardownExecutor agentTeardownExecutor;
+    private Map<Long, List<PlanResultKey>> agents;
+
+    @Before
+    public void setup() {
+        agentTeardownExecutor = new AgentTeardownExecutor(agentManager, buildExecutionManager,
+                new AgentInstanceResolver());
+        agents = new LinkedHashMap<Long, List<PlanResultKey>>();
+    }
+
+    @After
+    public void teardown() {
+        agentTeardownExecutor.destroy();
+    }
+
+    private void addAgents(int count) {
+        for (long agentId = 1; agentId <= count; agentId++) {
+            agents.put(agentId, Collections.<PlanResultKey>emptyList());
+        }
+    }
+
+    @Test
+    public void orphanedBuildsAreFinishedBeforeTheirAgentIsRemovedTest() throws TimeoutException {
+        agents.put(1l, ImmutableList.of(planResultKey));
+        Map<Long, Outcome> outcomes = agentTeardownExecutor.teardown(agents, 4, 10000);
+        assertEquals(Outcome.REMOVED, outcomes.get(1l));
+        InOrder order = inOrder(buildExecutionManager, agentManager);
+        order.verify(buildExecutionManager).finishBuild(planResultKey);
+        order.verify(agentManager).removeAgent(1l);
+    }
+
+    @Test
+    public void agentsAreRemovedInParallelUpToTheConcurrencyLimitTest() throws TimeoutException {
+        addAgents(12);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximumRunning = new AtomicInteger();
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                int nowRunning = running.incrementAndGet();
+                synchronized (maximumRunning) {
+                    maximumRunning.set(Math.max(maximumRunning.get(), nowRunning));
+                }
+                Thread.sleep(50);
+                running.decrementAndGet();
+                return null;
+            }
+        }).when(agentManager).removeAgent(anyLong());
+        long start = System.currentTimeMillis();
+        Map<Long, Outcome> outcomes = agentTeardownExecutor.teardown(agents, 3, 10000);
+        assertEquals(12, outcomes.size());
+        for (Outcome outcome : outcomes.values()) {
+            assertEquals(Outcome.REMOVED, outcome);
+        }
+        assertTrue(maximumRunning.get() <= 3);
+        // 12 sequential removals would take at least 600 ms
+        assertTrue(System.currentTimeMillis() - start < 600);
+    }
+
+    @Test
+    public void deadlineReportsSlowAgentsAsTimedOutAndTheRestAsSkippedTest() throws TimeoutException {
+        addAgents(3);
+        final CountDownLatch neverReleased = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                neverReleased.await();
+                return null;
+            }
+        }).when(agentManager).removeAgent(1l);
+        Map<Long, Outcome> outcomes = agentTeardownExecutor.teardown(agents, 1, 200);
+        assertEquals(ImmutableList.of(1l, 2l, 3l), ImmutableList.copyOf(outcomes.keySet()));
+        assertEquals(Outcome.TIMED_OUT, outcomes.get(1l));
+        assertEquals(Outcome.SKIPPED, outcomes.get(2l));
+        assertEquals(Outcome.SKIPPED, outcomes.get(3l));
+        neverReleased.countDown();
+    }
+
+    @Test
+    public void removalsRunningAtTheDeadlineFinishUninterruptedTest() throws Exception {
+        addAgents(2);
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                finished.countDown();
+                return null;
+            }
+        }).when(agentManager).removeAgent(1l);
+        Map<Long, Outcome> outcomes = agentTeardownExecutor.teardown(agents, 1, 200);
+        released.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+        // the late removal doesn't change the outcome reported, nor does its worker go on to the next agent
+        assertEquals(Outcome.TIMED_OUT, outcomes.get(1l));
+        assertEquals(Outcome.SKIPPED, outcomes.get(2l));
+        Thread.sleep(100);
+        verify(agentManager, never()).removeAgent(2l);
+    }
+
+    @Test
+    public void failuresAreReportedPerAgentTest() throws TimeoutException {
+        addAgents(3);
+        doThrow(new TimeoutException()).when(agentManager).removeAgent(1l);
+        doThrow(new IllegalStateException()).when(agentManager).removeAgent(2l);
+        Map<Long, Outcome> outcomes = agentTeardownExecutor.teardown(agents, 2, 10000);
+        assertEquals(Outcome.TIMED_OUT, outcomes.get(1l));
+        assertEquals(Outcome.FAILED, outcomes.get(2l));
+        assertEquals(Outcome.REMOVED, outcomes.get(3l));
+    }
+}
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -36,13 +37,24 @@ import org.powermock.reflect.Whitebox;
 
 import com.atlassian.bamboo.build.BuildExecutionManager;
 import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
 import com.atlassian.bamboo.plan.PlanResultKey;
 import com.atlassian.bamboo.v2.build.BuildIdentifier;
 import com.atlassian.bamboo.v2.build.CurrentlyBuilding;
 import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.AgentTeardownExecutor;
+import AwsSpotFleetBambooPlugin.FleetInventory;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.ScalingServices;
 import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
+import AwsSpotFleetBambooPlugin.StringConstants;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AgentTeardownTest {
@@ -74,12 +86,21 @@ public class AgentTeardownTest {
     @Mock
     PlanResultKey resultKey2;
     private Map<String, String> activeInstanceDnsNamesToInstanceIdsMap;
+    private FleetInventoryRegistry fleetInventoryRegistry;
 
     @Before
     public void setup() throws TimeoutException {
-        taskExecutor = new SpotFleetTaskExecution(null, null, agentManager, buildExecutionManager);
-        agentList = new LinkedList<BuildAgent>();
-        buildList = new LinkedList<CurrentlyBuilding>();
+        AgentInstanceResolver agentInstanceResolver = new AgentInstanceResolver();
+        fleetInventoryRegistry = new FleetInventoryRegistry();
+        taskExecutor = new SpotFleetTaskExecution(ScalingServices.builder().withAgentManager(agentManager)
+                .withBuildExecutionManager(buildExecutionManager).withAgentInstanceResolver(agentInstanceResolver)
+                .withAgentTeardownExecutor(
+                        new AgentTeardownExecutor(agentManager, buildExecutionManager, agentInstanceResolver))
+                .withSpotInterruptionDrainer(new SpotInterruptionDrainer(agentManager, agentInstanceResolver, null))
+                .withFleetInventoryRegistry(fleetInventoryRegistry).build(), null);
+        // agents are torn down concurrently
+        agentList = Collections.synchronizedList(new LinkedList<BuildAgent>());
+        buildList = Collections.synchronizedList(new LinkedList<CurrentlyBuilding>());
         when(agentManager.getAllNonElasticAgents()).thenReturn(agentList);
         agentList.addAll(ImmutableList.of(fleetAgent1, fleetAgent2, agent1));
         when(fleetAgent1.getName()).thenReturn("ip-12-345-67-890.ec2.internal");
@@ -197,4 +218,40 @@ public class AgentTeardownTest {
         assertEquals(expectedRemainingBuilds, buildList);
     }
 
+    @Test
+    public void agentTeardownHoldsEveryFleetsInventoryTest() throws Exception {
+        final FleetInventory inventory1 = fleetInventoryRegistry.getInventory("sfr-1");
+        final FleetInventory inventory2 = fleetInventoryRegistry.getInventory("sfr-2");
+        final List<Boolean> locksHeld = new LinkedList<Boolean>();
+        when(buildExecutionManager.getCurrentlyExecuting()).thenAnswer(new Answer<List<CurrentlyBuilding>>() {
+            @Override
+            public List<CurrentlyBuilding> answer(InvocationOnMock invocation) {
+                locksHeld.add(Thread.holdsLock(inventory1) && Thread.holdsLock(inventory2));
+                return buildList;
+            }
+        });
+        Whitebox.invokeMethod(taskExecutor, "agentTeardown", ImmutableList.of("sfr-1", "sfr-2"), 0);
+        assertEquals(ImmutableList.of(true), locksHeld);
+    }
+
+    private static void reportInstanceId(BuildAgent agent, String instanceId) {
+        PipelineDefinition definition = Mockito.mock(PipelineDefinition.class);
+        CapabilitySet capabilitySet = Mockito.mock(CapabilitySet.class);
+        Capability capability = Mockito.mock(Capability.class);
+        when(agent.getDefinition()).thenReturn(definition);
+        when(definition.getCapabilitySet()).thenReturn(capabilitySet);
+        when(capabilitySet.getCapability(StringConstants.INSTANCE_ID_CAPABILITY)).thenReturn(capability);
+        when(capability.getValue()).thenReturn(instanceId);
+    }
+
+    @Test
+    public void agentTeardownLeavesAgentsOfOtherFleetsAloneTest() throws Exception {
+        // fleetAgent2's instance left the fleet, agent1 runs on an instance of another fleet
+        reportInstanceId(fleetAgent2, "i-departed");
+        reportInstanceId(agent1, "i-other-fleet");
+        Whitebox.setInternalState(taskExecutor, "fleetInstanceIds", ImmutableSet.of("i-departed"));
+        Whitebox.invokeMethod(taskExecutor, "agentTeardown");
+        assertEquals(ImmutableList.of(agent1), agentList);
+        assertEquals(ImmutableList.of(build2), buildList);
+    }
 }
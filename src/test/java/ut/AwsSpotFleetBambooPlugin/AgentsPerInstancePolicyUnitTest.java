@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import AwsSpotFleetBambooPlugin.AgentsPerInstancePolicy;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+public class AgentsPerInstancePolicyUnitTest {
+
+    @Test
+    public void fixedPolicyStartsTheSameAgentsEverywhereTest() {
+        AgentsPerInstancePolicy policy = new AgentsPerInstancePolicy(AgentsPerInstancePolicy.FIXED, 3);
+        assertEquals(3, policy.getFixedAgents());
+        assertEquals("AGENT_COUNT=3", policy.getAgentCountCommand());
+    }
+
+    @Test
+    public void resourcePoliciesCountAtBootTest() {
+        AgentsPerInstancePolicy perVcpu = new AgentsPerInstancePolicy(AgentsPerInstancePolicy.PER_VCPU, 2);
+        assertEquals(0, perVcpu.getFixedAgents());
+        assertTrue(perVcpu.getAgentCountCommand().startsWith("AGENT_COUNT=$(( $(nproc) / 2 ))"));
+        assertTrue(perVcpu.getAgentCountCommand().endsWith("[ \"$AGENT_COUNT\" -ge 1 ] || AGENT_COUNT=1"));
+        // 4 GiB in KiB, with half of it added to round to the nearest agent
+        String perGib = new AgentsPerInstancePolicy(AgentsPerInstancePolicy.PER_GIB, 4).getAgentCountCommand();
+        assertTrue(perGib.contains("+ 2097152) / 4194304 ))"));
+    }
+
+    @Test
+    public void policyIsReadFromTheTaskConfigurationTest() {
+        AgentsPerInstancePolicy policy = AgentsPerInstancePolicy.fromConfiguration(
+                ImmutableMap.of(StringConstants.AGENTS_PER_INSTANCE_POLICY, AgentsPerInstancePolicy.PER_GIB,
+                        StringConstants.AGENTS_PER_INSTANCE, "8"));
+        assertEquals(AgentsPerInstancePolicy.PER_GIB, policy.getPolicy());
+        assertEquals(8, policy.getAmount());
+        // tasks saved before the policy existed
+        assertNull(AgentsPerInstancePolicy.fromConfiguration(Collections.<String, String>emptyMap()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void amountMustBePositiveTest() {
+        new AgentsPerInstancePolicy(AgentsPerInstancePolicy.PER_VCPU, 0);
+    }
+}
@@ -15,9 +15,12 @@
 package ut.AwsSpotFleetBambooPlugin;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Date;
@@ -41,19 +44,35 @@ import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.atlassian.bamboo.ResultKey;
 import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
 import com.atlassian.bamboo.buildqueue.manager.AgentManager;
 import com.atlassian.bamboo.chains.ChainExecutionManager;
 import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.plan.PlanExecutionManager;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
 import com.atlassian.bamboo.v2.build.CommonContext;
 import com.atlassian.bamboo.v2.build.CurrentResult;
 import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Requirement;
+import com.atlassian.bamboo.v2.build.agent.capability.RequirementSet;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueueItemView;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.CapabilityProfile;
+import AwsSpotFleetBambooPlugin.EnqueueTimeSketch;
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+import AwsSpotFleetBambooPlugin.ScalingServices;
 import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(SpotFleetTaskExecution.class)
@@ -129,6 +148,9 @@ public class AutoscalerUnitTest {
     private List<QueuedResultKey> buildQueueResults;
     private List<BuildAgent> buildAgents;
     private SpotFleetTaskExecution taskExecutor;
+    private QueueForecaster queueForecaster;
+    // reconciled before each decision, as the daemon tick would have
+    private QueueMetrics queueMetrics;
 
     @Before
     public void setup() throws Exception {
@@ -180,8 +202,16 @@ public class AutoscalerUnitTest {
         when(commonContext2.getCurrentResult()).thenReturn(currentResult2);
         // set queue time of item to 7 minutes ago
         when(currentResult2.getTasksStartDate()).thenReturn(new Date(now.getTime() - 420000));
-        taskExecutor = new SpotFleetTaskExecution(administrationConfigurationAccessor, buildQueueManager, agentManager,
-                buildExecutionManager);
+        queueForecaster = new QueueForecaster(null);
+        queueMetrics = new QueueMetrics(buildQueueManager);
+        taskExecutor = new SpotFleetTaskExecution(ScalingServices.builder()
+                .withAdministrationConfigurationAccessor(administrationConfigurationAccessor)
+                .withBuildQueueManager(buildQueueManager).withAgentManager(agentManager)
+                .withBuildExecutionManager(buildExecutionManager).withQueueMetrics(queueMetrics)
+                .withAgentInstanceResolver(new AgentInstanceResolver())
+                .withSpotInterruptionDrainer(new SpotInterruptionDrainer(agentManager, null, null))
+                .withQueueForecaster(queueForecaster).withQueueRequirementMatcher(new QueueRequirementMatcher(null))
+                .build(), null);
         PowerMockito.whenNew(TerminateInstancesRequest.class).withNoArguments().thenReturn(terminateInstancesRequest);
         when(terminateInstancesRequest.withInstanceIds(anyString())).thenReturn(terminateInstancesRequest);
         when(EC2Client.terminateInstances(terminateInstancesRequest)).thenReturn(terminateInstancesResult);
@@ -194,6 +224,7 @@ public class AutoscalerUnitTest {
     public void noScalingChangeWhenMetricsArentMetTest() {
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -209,8 +240,11 @@ public class AutoscalerUnitTest {
         maxQueuedBuilds = 2;
         maxAverageQueueTime = 4;
         maxIdleInstances = 1;
+        // queue time is compared in milliseconds, so the edge is a mean just under 4 minutes (1:00 and 6:58)
+        when(currentResult2.getTasksStartDate()).thenReturn(new Date(new Date().getTime() - 418000));
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -234,6 +268,7 @@ public class AutoscalerUnitTest {
         when(currentResult3.getTasksStartDate()).thenReturn(new Date(now.getTime() - 180000));
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -244,12 +279,202 @@ public class AutoscalerUnitTest {
         assertEquals(currentTargetCapacity + maxUnitsPerScalingAction, newTargetCapacity);
     }
 
+    private void queueThirdBuild() {
+        QueuedResultKey qKey3 = new QueuedResultKey(resultKey3, 0);
+        buildQueueResults.add(qKey3);
+        QueueItemView<CommonContext> queueItemView3 = new QueueItemView<CommonContext>(qKey3, commonContext3);
+        when(buildQueueManager.peekContext(qKey3.getResultKey())).thenReturn(queueItemView3);
+        when(commonContext3.getCurrentResult()).thenReturn(currentResult3);
+        when(currentResult3.getTasksStartDate()).thenReturn(new Date(new Date().getTime() - 180000));
+    }
+
+    @Test
+    public void scaleUpIsSizedToTheQueueRatherThanTheMaximumStepTest() {
+        maxQueuedBuilds = 2;
+        maxUnitsPerScalingAction = 10;
+        queueThirdBuild();
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        // three queued builds at two agents per instance
+        assertEquals(currentTargetCapacity + 2, newTargetCapacity);
+    }
+
+    @Test
+    public void scaleUpStopsAtTheLicenseLimitTest() {
+        maxQueuedBuilds = 2;
+        maxUnitsPerScalingAction = 10;
+        queueThirdBuild();
+        // room for two more agents, one instance's worth
+        when(agentManager.allowNewRemoteAgents(anyInt())).thenReturn(false);
+        when(agentManager.allowNewRemoteAgents(1)).thenReturn(true);
+        when(agentManager.allowNewRemoteAgents(2)).thenReturn(true);
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        assertEquals(currentTargetCapacity + 1, newTargetCapacity);
+    }
+
+    @Test
+    public void agentsStillRegisteringCountAgainstTheLicenseTest() {
+        maxQueuedBuilds = 2;
+        maxUnitsPerScalingAction = 10;
+        queueThirdBuild();
+        // a booting instance will register two agents like the others
+        activeInstanceDNSNamesToInstanceIdsMap.put("ip-172-31-80-14.ec2.internal", "id");
+        when(agentManager.allowNewRemoteAgents(anyInt())).thenReturn(false);
+        for (int agents = 1; agents <= 4; agents++) {
+            when(agentManager.allowNewRemoteAgents(agents)).thenReturn(true);
+        }
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity + 1, activeFulfilledCapacity + 1, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        // licenses for four agents leave room for one instance once the booting one registers
+        assertEquals(currentTargetCapacity + 2, newTargetCapacity);
+    }
+
+    @Test
+    public void drainingInstancesAreReinstatedWhenTheQueueGrowsTest() {
+        maxQueuedBuilds = 2;
+        queueThirdBuild();
+        PipelineDefinition definition = mock(PipelineDefinition.class);
+        when(agent3.getDefinition()).thenReturn(definition);
+        Map<String, String> retiringInstances = new HashMap<String, String>();
+        retiringInstances.put("ip-172-31-64-253.ec2.internal", "id");
+        Whitebox.setInternalState(taskExecutor, "retiringInstances", retiringInstances);
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        verify(definition).setEnabled(true);
+        assertTrue(retiringInstances.isEmpty());
+        assertEquals(currentTargetCapacity + 2, newTargetCapacity);
+    }
+
+    @Test
+    public void buildsTheFleetsAgentsCantRunDontScaleItUpTest() {
+        maxQueuedBuilds = 2;
+        // three builds of a job needing Windows agents, the fleet's agents run Linux
+        buildQueueResults.clear();
+        for (int buildNumber = 1; buildNumber <= 3; buildNumber++) {
+            buildQueueResults.add(new QueuedResultKey(PlanKeys.getPlanResultKey("PROJ-PLAN-WIN", buildNumber), 0));
+        }
+        Requirement requirement = mock(Requirement.class);
+        when(requirement.getKey()).thenReturn("os");
+        when(requirement.getMatchValue()).thenReturn("windows");
+        RequirementSet requirementSet = mock(RequirementSet.class);
+        when(requirementSet.getRequirements()).thenReturn(ImmutableSet.of(requirement));
+        ImmutableJob job = mock(ImmutableJob.class);
+        when(job.getEffectiveRequirementSet()).thenReturn(requirementSet);
+        CachedPlanManager cachedPlanManager = mock(CachedPlanManager.class);
+        when(cachedPlanManager.getPlanByKey(PlanKeys.getPlanKey("PROJ-PLAN-WIN"), ImmutableJob.class)).thenReturn(job);
+        Whitebox.setInternalState(taskExecutor, "queueRequirementMatcher",
+                new QueueRequirementMatcher(cachedPlanManager));
+        Whitebox.setInternalState(taskExecutor, "capabilityProfile", new CapabilityProfile(
+                ImmutableSet.<Map<String, String>>of(ImmutableMap.of("os", "linux"))));
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        assertEquals(currentTargetCapacity, newTargetCapacity);
+    }
+
+    @Test
+    public void scaleUpAheadOfLoadPredictedFromLastWeekTest() {
+        // queue was 10 deep at this time last week, today it is within thresholds
+        queueForecaster.recordQueueDepth(System.currentTimeMillis() - QueueForecaster.HOURS_PER_WEEK
+                * QueueForecaster.MILLISECONDS_PER_HOUR, 10);
+        Whitebox.setInternalState(taskExecutor, "predictiveScaling", true);
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        assertEquals(currentTargetCapacity + maxUnitsPerScalingAction, newTargetCapacity);
+    }
+
+    @Test
+    public void medianQueueTimeIgnoresSingleOldBuildTest() {
+        // the mean of 1 and 7 minutes exceeds 3 minutes, the median doesn't
+        maxAverageQueueTime = 3;
+        Whitebox.setInternalState(taskExecutor, "queueTimeStatistic", EnqueueTimeSketch.P50);
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        assertEquals(currentTargetCapacity, newTargetCapacity);
+    }
+
+    @Test
+    public void scaleUpWhenMaxQueueTimeExceededTest() {
+        // the mean of 1 and 7 minutes stays under 6 minutes, the oldest build doesn't
+        maxAverageQueueTime = 6;
+        Whitebox.setInternalState(taskExecutor, "queueTimeStatistic", EnqueueTimeSketch.MAX);
+        int newTargetCapacity = 0;
+        try {
+            queueMetrics.reconcile();
+            newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
+                    currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
+                    maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+        // the two queued builds fit on one instance of two agents
+        assertEquals(currentTargetCapacity + 1, newTargetCapacity);
+    }
+
     @Test
     public void scaleUpWhenMaxAverageQueueTimeExceededTest() {
         // set to 3, expect 4
         maxAverageQueueTime = 3;
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -257,7 +482,8 @@ public class AutoscalerUnitTest {
             e.printStackTrace();
             fail();
         }
-        assertEquals(currentTargetCapacity + maxUnitsPerScalingAction, newTargetCapacity);
+        // the two queued builds fit on one instance of two agents
+        assertEquals(currentTargetCapacity + 1, newTargetCapacity);
     }
 
     @Test
@@ -273,6 +499,7 @@ public class AutoscalerUnitTest {
         when(agent10.isBusy()).thenReturn(false);
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -299,6 +526,7 @@ public class AutoscalerUnitTest {
         // this should cause no scale up despite maxQueued builds being exceeded
         activeFulfilledCapacity = currentTargetCapacity - maxUnitsPerScalingAction - 1;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -322,6 +550,7 @@ public class AutoscalerUnitTest {
         int newTargetCapacity = 0;
         activeFulfilledCapacity = currentTargetCapacity - 2;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -347,6 +576,7 @@ public class AutoscalerUnitTest {
         int newTargetCapacity = 0;
         currentTargetCapacity = 2999;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -371,6 +601,7 @@ public class AutoscalerUnitTest {
         currentTargetCapacity = 2;
         activeFulfilledCapacity = 2;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
@@ -388,6 +619,7 @@ public class AutoscalerUnitTest {
         when(agentManager.allowNewRemoteAgents(anyInt())).thenReturn(true);
         int newTargetCapacity = 0;
         try {
+            queueMetrics.reconcile();
             newTargetCapacity = org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "determineTargetCapacity",
                     currentTargetCapacity, activeFulfilledCapacity, maxQueuedBuilds, maxAverageQueueTime,
                     maxIdleInstances, maxUnitsPerScalingAction, activeInstanceDNSNamesToInstanceIdsMap);
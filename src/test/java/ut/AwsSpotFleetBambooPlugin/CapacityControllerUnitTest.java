@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import AwsSpotFleetBambooPlugin.CapacityController;
+import AwsSpotFleetBambooPlugin.CapacityControllerRegistry;
+import AwsSpotFleetBambooPlugin.PidCapacityController;
+import AwsSpotFleetBambooPlugin.ProportionalCapacityController;
+import AwsSpotFleetBambooPlugin.ScalingDecision;
+import AwsSpotFleetBambooPlugin.ScalingInput;
+import AwsSpotFleetBambooPlugin.ScalingState;
+import AwsSpotFleetBambooPlugin.ThresholdScalingPolicy;
+
+public class CapacityControllerUnitTest {
+
+    private static final long MINUTE = 60000;
+    private static final int MAX_QUEUED_BUILDS = 4;
+    private static final long MAX_QUEUE_WAIT = 5 * MINUTE;
+
+    private static ScalingInput input(int queuedBuilds, long queueWait, int maxUnitsPerScale, long now) {
+        return new ScalingInput(queuedBuilds, queueWait, MAX_QUEUED_BUILDS, MAX_QUEUE_WAIT, 2, maxUnitsPerScale, now);
+    }
+
+    @Test
+    public void proportionalControllerScalesToTheBacklogInOneStepTest() {
+        CapacityController controller = new ProportionalCapacityController();
+        assertEquals(17, controller.getUnitsToAdd(input(34, 0, 50, 0)));
+        assertEquals(10, controller.getUnitsToAdd(input(34, 0, 10, 0)));
+        // within thresholds
+        assertEquals(0, controller.getUnitsToAdd(input(4, MAX_QUEUE_WAIT, 50, 0)));
+        // a short queue waiting too long still gets an instance
+        assertEquals(1, controller.getUnitsToAdd(input(1, MAX_QUEUE_WAIT + 1, 50, 0)));
+    }
+
+    @Test
+    public void pidControllerCoolsDownAfterScalingUpTest() {
+        PidCapacityController controller = new PidCapacityController();
+        assertEquals(5, controller.getUnitsToAdd(input(10, 0, 50, 0)));
+        controller.scaledUp(0);
+        assertEquals(0, controller.getUnitsToAdd(input(10, 0, 50, MINUTE)));
+        assertTrue(controller.getUnitsToAdd(input(10, 0, 50, PidCapacityController.COOLDOWN_MILLISECONDS)) > 0);
+    }
+
+    @Test
+    public void pidControllerAddsMoreWhileTheBacklogPersistsTest() {
+        PidCapacityController controller = new PidCapacityController();
+        long later = PidCapacityController.COOLDOWN_MILLISECONDS;
+        controller.getUnitsToAdd(input(10, 0, 50, 0));
+        // the integral of 5 instances over 3 minutes, on top of the same proportional term
+        assertEquals(7, controller.getUnitsToAdd(input(10, 0, 50, later)));
+    }
+
+    @Test
+    public void pidControllerReleasesOnlyWellWithinThresholdsTest() {
+        PidCapacityController controller = new PidCapacityController();
+        long cooldown = PidCapacityController.COOLDOWN_MILLISECONDS;
+        controller.getUnitsToAdd(input(10, 0, 50, 0));
+        controller.scaledUp(0);
+        // back at the threshold but not below half of it, still engaged
+        assertEquals(2, controller.getUnitsToAdd(input(MAX_QUEUED_BUILDS, 0, 2, cooldown)));
+        // released, and a queue at the threshold doesn't engage it again
+        assertEquals(0, controller.getUnitsToAdd(input(2, 0, 50, 3 * cooldown)));
+        assertEquals(0, controller.getUnitsToAdd(input(MAX_QUEUED_BUILDS, 0, 50, 4 * cooldown)));
+    }
+
+    @Test
+    public void pidControllerCoolsDownOnlyWhenThePolicyScalesUpTest() {
+        PidCapacityController controller = new PidCapacityController();
+        ThresholdScalingPolicy policy = new ThresholdScalingPolicy(controller);
+        ScalingState state = new ScalingState().withQueuedBuilds(10).withAgentsPerUnit(2)
+                .withMaxQueuedBuilds(MAX_QUEUED_BUILDS).withMaxQueueWaitMilliseconds(MAX_QUEUE_WAIT)
+                .withMaxIdleInstances(5).withMaxUnitsPerScale(50);
+        // a scale-down is still settling, so the policy doesn't add the units the controller asked for
+        ScalingDecision decision = policy.decide(state.withCurrentTargetCapacity(2).withActiveCapacity(4).withNow(0));
+        assertEquals(2, decision.getTargetCapacity());
+        // no cooldown was started, the next cycle scales up
+        decision = policy.decide(state.withCurrentTargetCapacity(4).withActiveCapacity(4).withNow(MINUTE));
+        assertTrue(decision.getTargetCapacity() > 4);
+        assertEquals(0, controller.getUnitsToAdd(input(10, 0, 50, 2 * MINUTE)));
+    }
+
+    @Test
+    public void registryKeepsOnePidControllerPerFleetTest() {
+        CapacityControllerRegistry registry = new CapacityControllerRegistry();
+        CapacityController fleet1 = registry.getController("sfr-1", CapacityControllerRegistry.PID);
+        assertSame(fleet1, registry.getController("sfr-1", CapacityControllerRegistry.PID));
+        assertNotSame(fleet1, registry.getController("sfr-2", CapacityControllerRegistry.PID));
+        assertTrue(registry.getController("sfr-1", null) instanceof ProportionalCapacityController);
+        assertNotSame(fleet1, registry.getController("sfr-1", CapacityControllerRegistry.PID));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.SpotFleetLaunchSpecification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import AwsSpotFleetBambooPlugin.CapacityWeights;
+import AwsSpotFleetBambooPlugin.ScalingDecision;
+import AwsSpotFleetBambooPlugin.ScalingState;
+import AwsSpotFleetBambooPlugin.ThresholdScalingPolicy;
+
+public class CapacityWeightsUnitTest {
+
+    @Test
+    public void unweightedLaunchSpecificationsCountInstancesTest() {
+        CapacityWeights capacityWeights = CapacityWeights.fromLaunchSpecifications(
+                ImmutableList.of(new SpotFleetLaunchSpecification().withInstanceType("c5.large")));
+        assertEquals(1, capacityWeights.getWeight("c5.large"), 0);
+        assertEquals(1, capacityWeights.getWeight(null), 0);
+        assertEquals(1, CapacityWeights.fromLaunchSpecifications(null).getWeight("c5.large"), 0);
+    }
+
+    @Test
+    public void firstLaunchSpecificationOfAnInstanceTypeSetsItsWeightTest() {
+        CapacityWeights capacityWeights = CapacityWeights.fromLaunchSpecifications(ImmutableList.of(
+                new SpotFleetLaunchSpecification().withInstanceType("c5.4xlarge").withWeightedCapacity(8.0),
+                new SpotFleetLaunchSpecification().withInstanceType("c5.4xlarge").withWeightedCapacity(4.0),
+                new SpotFleetLaunchSpecification().withInstanceType("c5.large").withWeightedCapacity(0.5)));
+        assertEquals(8, capacityWeights.getWeight("c5.4xlarge"), 0);
+        assertEquals(0.5, capacityWeights.getWeight("c5.large"), 0);
+        assertEquals(1, capacityWeights.getWeight("m5.large"), 0);
+    }
+
+    @Test
+    public void scaleDownTerminatesIdleInstancesWithinTheUnitsPerScaleTest() {
+        // terminating the large instance would remove 8 units, more than a step of 4 allows
+        ScalingState state = new ScalingState().withCurrentTargetCapacity(11).withActiveCapacity(11)
+                .withTerminationCandidates(ImmutableList.of("large", "small1", "small2"))
+                .withInstanceWeights(ImmutableMap.of("large", 8.0, "small1", 1.0, "small2", 2.0))
+                .withMaxQueuedBuilds(2).withMaxQueueWaitMilliseconds(60000).withMaxIdleInstances(1)
+                .withMaxUnitsPerScale(4);
+        ScalingDecision decision = new ThresholdScalingPolicy().decide(state);
+        assertEquals(ImmutableList.of("small1", "small2"), decision.getInstancesToTerminate());
+        assertEquals(8, decision.getTargetCapacity());
+    }
+}
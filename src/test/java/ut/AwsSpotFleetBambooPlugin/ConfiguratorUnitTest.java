@@ -30,10 +30,17 @@ import com.atlassian.bamboo.collections.ActionParametersMap;
 import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.utils.error.SimpleErrorCollection;
+import com.atlassian.sal.api.ApplicationProperties;
 import com.google.common.collect.ImmutableMap;
 
+import AwsSpotFleetBambooPlugin.AgentsPerInstancePolicy;
+import AwsSpotFleetBambooPlugin.CapacityControllerRegistry;
+import AwsSpotFleetBambooPlugin.Ec2ClientRegistry;
+import AwsSpotFleetBambooPlugin.FleetNoticeSecrets;
+import AwsSpotFleetBambooPlugin.LaunchTimingRecorder;
 import AwsSpotFleetBambooPlugin.SpotFleetConfigurator;
 import AwsSpotFleetBambooPlugin.StringConstants;
+import AwsSpotFleetBambooPlugin.UserDataScriptRenderer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ConfiguratorUnitTest {
@@ -41,6 +48,8 @@ public class ConfiguratorUnitTest {
     @Mock
     private AdministrationConfigurationAccessor administrationConfigurationAccessor;
     @Mock
+    private ApplicationProperties applicationProperties;
+    @Mock
     private ActionParametersMap params;
     private ErrorCollection actualErrorCollection;
     private ErrorCollection expectedErrorCollection;
@@ -50,7 +59,9 @@ public class ConfiguratorUnitTest {
     public void setup() {
         actualErrorCollection = new SimpleErrorCollection();
         expectedErrorCollection = new SimpleErrorCollection();
-        spotFleetConfigurator = new SpotFleetConfigurator(administrationConfigurationAccessor);
+        spotFleetConfigurator = new SpotFleetConfigurator(
+                new UserDataScriptRenderer(administrationConfigurationAccessor,
+                        new FleetNoticeSecrets(applicationProperties)), new Ec2ClientRegistry());
         when(params.getString(StringConstants.ACCESS_KEY)).thenReturn("access");
         when(params.getString(StringConstants.SECRET_KEY)).thenReturn("secret");
         when(params.getString(StringConstants.FLEET_ID)).thenReturn("fleetid");
@@ -61,6 +72,12 @@ public class ConfiguratorUnitTest {
         when(params.getInt(StringConstants.AVERAGE_QUEUE_TIME, -1)).thenReturn(5);
         when(params.getInt(StringConstants.IDLE_INSTANCES, -1)).thenReturn(4);
         when(params.getInt(StringConstants.MAXIMUM_UNITS_PER_SCALE, -1)).thenReturn(2);
+        when(params.getInt(StringConstants.SCALING_INTERVAL, 0)).thenReturn(60);
+        when(params.getInt(StringConstants.TEARDOWN_CONCURRENCY, 8)).thenReturn(4);
+        when(params.getInt(StringConstants.TEARDOWN_DEADLINE, 120)).thenReturn(90);
+        when(params.getString(StringConstants.AGENTS_PER_INSTANCE_POLICY)).thenReturn(AgentsPerInstancePolicy.PER_VCPU);
+        when(params.getInt(StringConstants.AGENTS_PER_INSTANCE, 2)).thenReturn(4);
+        when(params.getString(StringConstants.INSTANCE_TAGS)).thenReturn("team=ci\nplan={planKey}\n");
     }
 
     @Test
@@ -72,7 +89,23 @@ public class ConfiguratorUnitTest {
                 .put(StringConstants.REGION, "us-east-1").put(StringConstants.ENABLE_AUTOSCALING, "true")
                 .put(StringConstants.TERMINATE_FLEET, "true").put(StringConstants.QUEUED_BUILDS, "6")
                 .put(StringConstants.AVERAGE_QUEUE_TIME, "5").put(StringConstants.IDLE_INSTANCES, "4")
-                .put(StringConstants.MAXIMUM_UNITS_PER_SCALE, "2").build();
+                .put(StringConstants.MAXIMUM_UNITS_PER_SCALE, "2").put(StringConstants.SCALING_INTERVAL, "60")
+                .put(StringConstants.QUEUE_TIME_STATISTIC, "mean")
+                .put(StringConstants.CAPACITY_CONTROLLER, CapacityControllerRegistry.PROPORTIONAL)
+                .put(StringConstants.PREDICTIVE_SCALING, "false")
+                .put(StringConstants.TEARDOWN_CONCURRENCY, "4")
+                .put(StringConstants.TEARDOWN_DEADLINE, "90")
+                .put(StringConstants.LAUNCH_MODE, LaunchTimingRecorder.INSTALL_MODE)
+                .put(StringConstants.AGENTS_PER_INSTANCE_POLICY, AgentsPerInstancePolicy.PER_VCPU)
+                .put(StringConstants.AGENTS_PER_INSTANCE, "4")
+                .put(StringConstants.INSTANCE_TAGS, "team=ci\nplan={planKey}").build();
         assertEquals(expectedConfigMap, actualConfigMap);
     }
+
+    @Test
+    public void generateTaskConfigMapKeepsChosenQueueTimeStatisticTest() {
+        when(params.getString(StringConstants.QUEUE_TIME_STATISTIC)).thenReturn("p90");
+        Map<String, String> actualConfigMap = spotFleetConfigurator.generateTaskConfigMap(params, null);
+        assertEquals("p90", actualConfigMap.get(StringConstants.QUEUE_TIME_STATISTIC));
+    }
 }
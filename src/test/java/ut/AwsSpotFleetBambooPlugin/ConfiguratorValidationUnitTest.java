@@ -27,9 +27,13 @@ import com.atlassian.bamboo.collections.ActionParametersMap;
 import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.utils.error.SimpleErrorCollection;
+import com.atlassian.sal.api.ApplicationProperties;
 
+import AwsSpotFleetBambooPlugin.Ec2ClientRegistry;
+import AwsSpotFleetBambooPlugin.FleetNoticeSecrets;
 import AwsSpotFleetBambooPlugin.SpotFleetConfigurator;
 import AwsSpotFleetBambooPlugin.StringConstants;
+import AwsSpotFleetBambooPlugin.UserDataScriptRenderer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ConfiguratorValidationUnitTest {
@@ -37,6 +41,8 @@ public class ConfiguratorValidationUnitTest {
     @Mock
     private AdministrationConfigurationAccessor administrationConfigurationAccessor;
     @Mock
+    private ApplicationProperties applicationProperties;
+    @Mock
     private ActionParametersMap params;
     private ErrorCollection actualErrorCollection;
     private ErrorCollection expectedErrorCollection;
@@ -46,7 +52,9 @@ public class ConfiguratorValidationUnitTest {
     public void setup() {
         actualErrorCollection = new SimpleErrorCollection();
         expectedErrorCollection = new SimpleErrorCollection();
-        spotFleetConfigurator = new SpotFleetConfigurator(administrationConfigurationAccessor);
+        spotFleetConfigurator = new SpotFleetConfigurator(
+                new UserDataScriptRenderer(administrationConfigurationAccessor,
+                        new FleetNoticeSecrets(applicationProperties)), new Ec2ClientRegistry());
         when(params.getString(StringConstants.ACCESS_KEY)).thenReturn("access");
         when(params.getString(StringConstants.SECRET_KEY)).thenReturn("secret");
         when(params.getString(StringConstants.FLEET_ID)).thenReturn("fleetid");
@@ -149,4 +157,47 @@ public class ConfiguratorValidationUnitTest {
         expectedErrorCollection.addError(StringConstants.MAXIMUM_UNITS_PER_SCALE, "Integer value must be positive");
         assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
     }
+
+    @Test
+    public void scalingIntervalShorterThanDaemonTickThrowsErrorsTest() {
+        when(params.getString(StringConstants.SCALING_INTERVAL)).thenReturn("5");
+        spotFleetConfigurator.validate(params, actualErrorCollection);
+        expectedErrorCollection.addError(StringConstants.SCALING_INTERVAL, "Must be 0 or at least 10 seconds");
+        assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
+    }
+
+    @Test
+    public void nonNumericScalingIntervalThrowsErrorsTest() {
+        when(params.getString(StringConstants.SCALING_INTERVAL)).thenReturn("often");
+        spotFleetConfigurator.validate(params, actualErrorCollection);
+        expectedErrorCollection.addError(StringConstants.SCALING_INTERVAL, "Must be an integer number of seconds");
+        assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
+    }
+
+    @Test
+    public void nonPositiveTeardownSettingsThrowErrorsTest() {
+        when(params.getString(StringConstants.TEARDOWN_CONCURRENCY)).thenReturn("0");
+        when(params.getString(StringConstants.TEARDOWN_DEADLINE)).thenReturn("soon");
+        spotFleetConfigurator.validate(params, actualErrorCollection);
+        expectedErrorCollection.addError(StringConstants.TEARDOWN_CONCURRENCY, "Integer value must be positive");
+        expectedErrorCollection.addError(StringConstants.TEARDOWN_DEADLINE, "Integer value must be positive");
+        assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
+    }
+
+    @Test
+    public void unknownQueueTimeStatisticThrowsErrorsTest() {
+        when(params.getString(StringConstants.QUEUE_TIME_STATISTIC)).thenReturn("p95");
+        spotFleetConfigurator.validate(params, actualErrorCollection);
+        expectedErrorCollection.addError(StringConstants.QUEUE_TIME_STATISTIC,
+                "Must be one of mean, p50, p90, p99, max");
+        assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
+    }
+
+    @Test
+    public void unknownCapacityControllerThrowsErrorsTest() {
+        when(params.getString(StringConstants.CAPACITY_CONTROLLER)).thenReturn("fixed");
+        spotFleetConfigurator.validate(params, actualErrorCollection);
+        expectedErrorCollection.addError(StringConstants.CAPACITY_CONTROLLER, "Must be one of proportional, pid");
+        assertEquals(expectedErrorCollection.getErrors(), actualErrorCollection.getErrors());
+    }
 }
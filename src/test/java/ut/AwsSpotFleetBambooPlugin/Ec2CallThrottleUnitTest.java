@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsResult;
+import com.google.common.collect.ImmutableList;
+
+import AwsSpotFleetBambooPlugin.Ec2CallThrottle;
+
+public class Ec2CallThrottleUnitTest {
+
+    private AmazonEC2 client;
+    private AmazonEC2 throttledClient;
+    private Ec2CallThrottle throttle;
+    // fake clock, advanced by every sleep
+    private long now;
+    private List<Long> sleeps;
+
+    @Before
+    public void setup() {
+        client = mock(AmazonEC2.class);
+        sleeps = new ArrayList<Long>();
+        throttle = new Ec2CallThrottle() {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+
+            @Override
+            protected void sleep(long milliseconds) {
+                sleeps.add(milliseconds);
+                now += TimeUnit.MILLISECONDS.toNanos(milliseconds);
+            }
+        };
+        throttledClient = throttle.wrap(client);
+    }
+
+    private static AmazonServiceException serviceException(String errorCode, int statusCode) {
+        AmazonServiceException e = new AmazonServiceException(errorCode);
+        e.setErrorCode(errorCode);
+        e.setStatusCode(statusCode);
+        return e;
+    }
+
+    @Test
+    public void callsBeyondTheBurstWaitForTokensTest() {
+        for (int i = 0; i < Ec2CallThrottle.BUCKET_CAPACITY; i++) {
+            throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+        }
+        assertTrue(sleeps.isEmpty());
+        throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+        throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+        // one token every 100ms at 10 calls per second
+        assertEquals(ImmutableList.of(100L, 100L), sleeps);
+        verify(client, times(22)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void throttledCallsAreRetriedWithJitteredBackoffTest() {
+        DescribeSpotFleetRequestsResult result = new DescribeSpotFleetRequestsResult();
+        when(client.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                .thenThrow(serviceException("RequestLimitExceeded", 503))
+                .thenThrow(serviceException("RequestLimitExceeded", 503)).thenReturn(result);
+        assertSame(result, throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest()));
+        assertEquals(2, throttle.getThrottledCalls());
+        assertEquals(2, throttle.getRetriedCalls());
+        assertEquals(0, throttle.getFailedCalls());
+        assertEquals(2, sleeps.size());
+        assertTrue(sleeps.get(0) >= 1 && sleeps.get(0) <= Ec2CallThrottle.INITIAL_BACKOFF_MILLISECONDS);
+        assertTrue(sleeps.get(1) >= 1 && sleeps.get(1) <= 2 * Ec2CallThrottle.INITIAL_BACKOFF_MILLISECONDS);
+        // halved twice, then recovering with the successful call
+        assertEquals(Ec2CallThrottle.MAXIMUM_CALLS_PER_SECOND / 4 + Ec2CallThrottle.RATE_RECOVERY,
+                throttle.getCallsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void fatalErrorsAreThrownWithoutRetryingTest() {
+        AmazonServiceException authFailure = serviceException("AuthFailure", 401);
+        when(client.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class))).thenThrow(authFailure);
+        try {
+            throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+            fail("expected the auth failure");
+        } catch (AmazonServiceException e) {
+            assertSame(authFailure, e);
+        }
+        verify(client).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+        assertEquals(0, throttle.getRetriedCalls());
+        assertEquals(1, throttle.getFailedCalls());
+    }
+
+    @Test
+    public void transientErrorsGiveUpAfterTheLastAttemptTest() {
+        when(client.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                .thenThrow(serviceException("InternalError", 500));
+        try {
+            throttledClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+            fail("expected the internal error");
+        } catch (AmazonServiceException e) {
+            assertEquals("InternalError", e.getErrorCode());
+        }
+        verify(client, times(Ec2CallThrottle.MAXIMUM_ATTEMPTS))
+                .describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+        assertEquals(Ec2CallThrottle.MAXIMUM_ATTEMPTS - 1, throttle.getRetriedCalls());
+        assertEquals(0, throttle.getThrottledCalls());
+        // server errors don't slow the rate down
+        assertEquals(Ec2CallThrottle.MAXIMUM_CALLS_PER_SECOND, throttle.getCallsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void localMethodsBypassTheThrottleTest() {
+        for (int i = 0; i < 2 * Ec2CallThrottle.BUCKET_CAPACITY; i++) {
+            throttledClient.shutdown();
+        }
+        assertTrue(sleeps.isEmpty());
+        verify(client, times(2 * Ec2CallThrottle.BUCKET_CAPACITY)).shutdown();
+    }
+
+    @Test
+    public void interruptedWaitForATokenFailsTheCallTest() {
+        Ec2CallThrottle interruptedThrottle = new Ec2CallThrottle() {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+
+            @Override
+            protected void sleep(long milliseconds) throws InterruptedException {
+                throw new InterruptedException();
+            }
+        };
+        AmazonEC2 interruptedClient = interruptedThrottle.wrap(client);
+        for (int i = 0; i < Ec2CallThrottle.BUCKET_CAPACITY; i++) {
+            interruptedClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+        }
+        try {
+            interruptedClient.describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+            fail("expected the interrupted wait to fail the call");
+        } catch (AmazonClientException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        // the interrupt is restored for the caller, clear it so it doesn't leak into other tests
+        assertTrue(Thread.interrupted());
+        verify(client, times(Ec2CallThrottle.BUCKET_CAPACITY))
+                .describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+}
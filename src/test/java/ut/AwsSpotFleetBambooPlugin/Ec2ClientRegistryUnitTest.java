@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.configuration.ConfigurationMap;
+import com.atlassian.bamboo.task.TaskContext;
+import com.atlassian.bamboo.v2.build.CurrentlyBuilding;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.CapacityControllerRegistry;
+import AwsSpotFleetBambooPlugin.Ec2CallThrottle;
+import AwsSpotFleetBambooPlugin.Ec2ClientRegistry;
+import AwsSpotFleetBambooPlugin.Ec2ClientRegistry.ThrottledClient;
+import AwsSpotFleetBambooPlugin.FleetCoordinator;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.ScalingServices;
+import AwsSpotFleetBambooPlugin.SpotFleetScalingDaemon;
+import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+@RunWith(MockitoJUnitRunner.class)
+public class Ec2ClientRegistryUnitTest {
+
+    @Mock
+    private AgentManager agentManager;
+    @Mock
+    private BuildQueueManager buildQueueManager;
+    @Mock
+    private BuildExecutionManager buildExecutionManager;
+    @Mock
+    private TaskContext taskContext;
+    @Mock
+    private ConfigurationMap configurationMap;
+    @Mock
+    private BuildLogger buildLogger;
+    @Mock
+    private SpotFleetScalingDaemon scalingDaemon;
+    private List<AmazonEC2> createdClients;
+    private Ec2ClientRegistry ec2ClientRegistry;
+
+    @Before
+    public void setup() {
+        createdClients = new LinkedList<AmazonEC2>();
+        // hand out mock clients and record every client the registry builds
+        ec2ClientRegistry = new Ec2ClientRegistry() {
+            @Override
+            protected AmazonEC2 createClient(AWSCredentials credentials, Regions region) {
+                AmazonEC2 client = mock(AmazonEC2.class);
+                AmazonServiceException authFailure = new AmazonServiceException("auth failure");
+                authFailure.setErrorCode("AuthFailure");
+                when(client.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class)))
+                        .thenThrow(authFailure);
+                // keys starting with "other" belong to another account
+                String account = credentials.getAWSAccessKeyId().startsWith("other") ? "210987654321"
+                        : "123456789012";
+                when(client.describeSecurityGroups(any(DescribeSecurityGroupsRequest.class))).thenReturn(
+                        new DescribeSecurityGroupsResult().withSecurityGroups(new SecurityGroup().withOwnerId(account)));
+                createdClients.add(client);
+                return client;
+            }
+        };
+        when(taskContext.getBuildLogger()).thenReturn(buildLogger);
+        when(taskContext.getConfigurationMap()).thenReturn(configurationMap);
+        when(configurationMap.get(StringConstants.ACCESS_KEY)).thenReturn("access");
+        when(configurationMap.get(StringConstants.SECRET_KEY)).thenReturn("secret");
+        when(configurationMap.get(StringConstants.FLEET_ID)).thenReturn("fleet");
+        when(configurationMap.get(StringConstants.REGION)).thenReturn("us-east-1");
+        when(configurationMap.get(StringConstants.TERMINATE_FLEET)).thenReturn("false");
+        when(configurationMap.get(StringConstants.ENABLE_AUTOSCALING)).thenReturn("true");
+        when(configurationMap.get(StringConstants.QUEUED_BUILDS)).thenReturn("3");
+        when(configurationMap.get(StringConstants.AVERAGE_QUEUE_TIME)).thenReturn("5");
+        when(configurationMap.get(StringConstants.IDLE_INSTANCES)).thenReturn("2");
+        when(configurationMap.get(StringConstants.MAXIMUM_UNITS_PER_SCALE)).thenReturn("2");
+        when(agentManager.getAllNonElasticAgents()).thenReturn(new LinkedList<BuildAgent>());
+        when(buildExecutionManager.getCurrentlyExecuting()).thenReturn(new LinkedList<CurrentlyBuilding>());
+    }
+
+    @Test
+    public void repeatedExecutionsWithSameConfigReuseOneClientTest() throws Exception {
+        // task instances are not shared between runs, only the registry is
+        for (int i = 0; i < 3; i++) {
+            new SpotFleetTaskExecution(ScalingServices.builder().withBuildQueueManager(buildQueueManager)
+                    .withAgentManager(agentManager).withBuildExecutionManager(buildExecutionManager)
+                    .withEc2ClientRegistry(ec2ClientRegistry).withFleetInventoryRegistry(new FleetInventoryRegistry())
+                    .withQueueMetrics(new QueueMetrics(buildQueueManager))
+                    .withAgentInstanceResolver(new AgentInstanceResolver())
+                    .withSpotInterruptionDrainer(new SpotInterruptionDrainer(agentManager, null, null))
+                    .withQueueForecaster(new QueueForecaster(null))
+                    .withCapacityControllerRegistry(new CapacityControllerRegistry())
+                    .withFleetCoordinator(new FleetCoordinator(new FleetInventoryRegistry(), null)).build(),
+                    scalingDaemon).execute(taskContext);
+        }
+        assertEquals(1, createdClients.size());
+        verify(createdClients.get(0), times(3)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void differentRegionOrCredentialsGetSeparateClientsTest() {
+        AmazonEC2 client = getClient("access", "secret", "us-east-1");
+        assertSame(client, getClient("access", "secret", "us-east-1"));
+        assertNotSame(client, getClient("access", "secret", "us-west-2"));
+        assertNotSame(client, getClient("access", "other-secret", "us-east-1"));
+        assertEquals(3, ec2ClientRegistry.size());
+    }
+
+    @Test
+    public void clientsOfAnAccountAndRegionShareOneThrottleTest() {
+        ThrottledClient throttledClient = ec2ClientRegistry.acquire("access", "secret", "us-east-1");
+        Ec2CallThrottle throttle = throttledClient.getThrottle();
+        // a second key of the same account
+        assertSame(throttle, ec2ClientRegistry.acquire("second-access", "second-secret", "us-east-1").getThrottle());
+        assertNotSame(throttle, ec2ClientRegistry.acquire("access", "secret", "us-west-2").getThrottle());
+        assertNotSame(throttle, ec2ClientRegistry.acquire("other-access", "secret", "us-east-1").getThrottle());
+        try {
+            throttledClient.getClient().describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+            fail("expected the auth failure");
+        } catch (AmazonServiceException e) {
+            // calls go through the throttle to the mock client
+            assertEquals(1, throttle.getFailedCalls());
+        }
+    }
+
+    @Test
+    public void throttleOutlivesClientEvictionTest() {
+        AmazonEC2 client = getClient("access", "secret", "us-east-1");
+        Ec2CallThrottle throttle = getThrottle("access", "secret", "us-east-1");
+        // fill the cache with other credentials until the first client is evicted
+        for (int i = 0; i < 2 * Ec2ClientRegistry.MAXIMUM_CACHED_CLIENTS; i++) {
+            getClient("access", "secret" + i, "us-east-1");
+        }
+        verify(createdClients.get(0)).shutdown();
+        ThrottledClient rebuilt = ec2ClientRegistry.acquire("access", "secret", "us-east-1");
+        assertNotSame(client, rebuilt.getClient());
+        assertSame(throttle, rebuilt.getThrottle());
+        try {
+            rebuilt.getClient().describeSpotFleetRequests(new DescribeSpotFleetRequestsRequest());
+            fail("expected the auth failure");
+        } catch (AmazonServiceException e) {
+            // the rebuilt client counts against the throttle task executions read
+            assertEquals(1, throttle.getFailedCalls());
+        }
+    }
+
+    @Test
+    public void evictedClientIsShutDownOnceNoCycleUsesItTest() {
+        ThrottledClient leased = ec2ClientRegistry.acquire("access", "secret", "us-east-1");
+        for (int i = 0; i < 2 * Ec2ClientRegistry.MAXIMUM_CACHED_CLIENTS; i++) {
+            getClient("access", "secret" + i, "us-east-1");
+        }
+        verify(createdClients.get(0), never()).shutdown();
+        ec2ClientRegistry.release(leased);
+        verify(createdClients.get(0)).shutdown();
+    }
+
+    @Test
+    public void unknownAccountIsThrottledByAccessKeyTest() {
+        ec2ClientRegistry = new Ec2ClientRegistry() {
+            @Override
+            protected AmazonEC2 createClient(AWSCredentials credentials, Regions region) {
+                AmazonEC2 client = mock(AmazonEC2.class);
+                when(client.describeSecurityGroups(any(DescribeSecurityGroupsRequest.class)))
+                        .thenThrow(new AmazonServiceException("not authorized"));
+                return client;
+            }
+        };
+        Ec2CallThrottle throttle = getThrottle("access", "secret", "us-east-1");
+        assertSame(throttle, getThrottle("access", "rotated-secret", "us-east-1"));
+        assertNotSame(throttle, getThrottle("second-access", "secret", "us-east-1"));
+    }
+
+    @Test
+    public void destroyShutsDownCachedClientsTest() {
+        getClient("access", "secret", "us-east-1");
+        getClient("access", "secret", "eu-west-1");
+        ec2ClientRegistry.destroy();
+        assertEquals(0, ec2ClientRegistry.size());
+        for (AmazonEC2 client : createdClients) {
+            verify(client).shutdown();
+        }
+    }
+
+    // lease a client and hand it back straight away
+    private AmazonEC2 getClient(String accessKey, String secretKey, String regionCode) {
+        ThrottledClient throttledClient = ec2ClientRegistry.acquire(accessKey, secretKey, regionCode);
+        ec2ClientRegistry.release(throttledClient);
+        return throttledClient.getClient();
+    }
+
+    private Ec2CallThrottle getThrottle(String accessKey, String secretKey, String regionCode) {
+        ThrottledClient throttledClient = ec2ClientRegistry.acquire(accessKey, secretKey, regionCode);
+        ec2ClientRegistry.release(throttledClient);
+        return throttledClient.getThrottle();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import AwsSpotFleetBambooPlugin.EnqueueTimeSketch;
+
+public class EnqueueTimeSketchUnitTest {
+    private static final long NOW = 1500000000000L;
+
+    @Test
+    public void emptySketchReportsNoWaitTest() {
+        EnqueueTimeSketch sketch = new EnqueueTimeSketch();
+        for (String statistic : EnqueueTimeSketch.STATISTICS) {
+            assertEquals(0, sketch.getWait(statistic, NOW));
+        }
+    }
+
+    @Test
+    public void percentilesMatchExactWaitsWithinResolutionTest() {
+        Random random = new Random(7);
+        EnqueueTimeSketch sketch = new EnqueueTimeSketch();
+        List<Long> waits = new ArrayList<Long>();
+        for (int i = 0; i < 1000; i++) {
+            long wait = (long) random.nextInt(3600000);
+            waits.add(wait);
+            sketch.add(NOW - wait);
+        }
+        Collections.sort(waits);
+        double[] quantiles = { 0.5, 0.9, 0.99, 1 };
+        for (double quantile : quantiles) {
+            long expected = waits.get((int) Math.ceil(quantile * waits.size()) - 1);
+            long actual = sketch.getWaitPercentile(quantile, NOW);
+            assertTrue("expected " + expected + " but was " + actual,
+                    actual >= expected && actual - expected < EnqueueTimeSketch.RESOLUTION_MILLISECONDS);
+        }
+        assertEquals(waits.get(waits.size() - 1), sketch.getWait(EnqueueTimeSketch.MAX, NOW), 1000);
+    }
+
+    @Test
+    public void removedBuildsNoLongerCountTest() {
+        EnqueueTimeSketch sketch = new EnqueueTimeSketch();
+        sketch.add(NOW - 600000);
+        sketch.add(NOW - 60000);
+        sketch.add(NOW - 60000);
+        assertEquals(600000, sketch.getWait(EnqueueTimeSketch.MAX, NOW));
+        assertEquals(240000, sketch.getWait(EnqueueTimeSketch.MEAN, NOW));
+
+        sketch.remove(NOW - 600000);
+        sketch.remove(NOW - 1);
+        assertEquals(2, sketch.getCount());
+        assertEquals(60000, sketch.getWait(EnqueueTimeSketch.MAX, NOW));
+        assertEquals(60000, sketch.getWait(EnqueueTimeSketch.MEAN, NOW));
+        // waits keep growing between reads without touching the sketch
+        assertEquals(120000, sketch.getWait(EnqueueTimeSketch.P50, NOW + 60000));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsResult;
+import com.amazonaws.services.ec2.model.SpotFleetLaunchSpecification;
+import com.amazonaws.services.ec2.model.SpotFleetRequestConfig;
+import com.amazonaws.services.ec2.model.SpotFleetRequestConfigData;
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+import com.atlassian.bamboo.v2.build.agent.capability.Requirement;
+import com.atlassian.bamboo.v2.build.agent.capability.RequirementSet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.CapabilityProfile;
+import AwsSpotFleetBambooPlugin.FleetCoordinator;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
+
+public class FleetCoordinatorUnitTest {
+
+    private CachedPlanManager cachedPlanManager;
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    private FleetCoordinator fleetCoordinator;
+
+    @Before
+    public void setup() {
+        cachedPlanManager = mock(CachedPlanManager.class);
+        fleetInventoryRegistry = new FleetInventoryRegistry();
+        fleetCoordinator = new FleetCoordinator(fleetInventoryRegistry, new QueueRequirementMatcher(cachedPlanManager));
+    }
+
+    @After
+    public void teardown() {
+        fleetCoordinator.destroy();
+    }
+
+    private static SpotFleetRequestConfigData fleet(String spotPrice, int targetCapacity) {
+        return new SpotFleetRequestConfigData().withSpotPrice(spotPrice).withTargetCapacity(targetCapacity)
+                .withLaunchSpecifications(new SpotFleetLaunchSpecification().withInstanceType("m4.large"));
+    }
+
+    private static List<ResultKey> queueBuilds(String jobKey, int count) {
+        List<ResultKey> queuedBuilds = new ArrayList<ResultKey>();
+        for (int buildNumber = 1; buildNumber <= count; buildNumber++) {
+            queuedBuilds.add(PlanKeys.getPlanResultKey(jobKey, buildNumber));
+        }
+        return queuedBuilds;
+    }
+
+    private void requireOperatingSystem(String jobKey, String operatingSystem) {
+        Requirement requirement = mock(Requirement.class);
+        when(requirement.getKey()).thenReturn("os");
+        when(requirement.getMatchValue()).thenReturn(operatingSystem);
+        RequirementSet requirementSet = mock(RequirementSet.class);
+        when(requirementSet.getRequirements()).thenReturn(ImmutableSet.of(requirement));
+        ImmutableJob job = mock(ImmutableJob.class);
+        when(job.getEffectiveRequirementSet()).thenReturn(requirementSet);
+        when(cachedPlanManager.getPlanByKey(PlanKeys.getPlanKey(jobKey), ImmutableJob.class)).thenReturn(job);
+    }
+
+    private void profileAgents(String fleetId, String operatingSystem) {
+        fleetInventoryRegistry.getInventory(fleetId).setCapabilityProfile(new CapabilityProfile(
+                ImmutableSet.<Map<String, String>>of(ImmutableMap.of("os", operatingSystem))));
+    }
+
+    // splits demand between fleets that were all described
+    private Map<String, FleetCoordinator.DemandShare> splitDemand(Map<String, SpotFleetRequestConfigData> fleets,
+            List<ResultKey> queuedBuilds, int predictedBuilds) {
+        return fleetCoordinator.splitDemand(ImmutableList.copyOf(fleets.keySet()), fleets, queuedBuilds,
+                predictedBuilds);
+    }
+
+    @Test
+    public void fleetIdsAreSplitOnCommasAndWhitespaceTest() {
+        assertEquals(ImmutableList.of("sfr-a", "sfr-b", "sfr-c"),
+                FleetCoordinator.parseFleetIds(" sfr-a, sfr-b\nsfr-c,,sfr-a "));
+        assertEquals(ImmutableList.of(), FleetCoordinator.parseFleetIds(null));
+    }
+
+    @Test
+    public void unitPriceAccountsForWeightsAndOwnPricesTest() {
+        SpotFleetRequestConfigData fleetConfig = new SpotFleetRequestConfigData().withSpotPrice("0.40")
+                .withLaunchSpecifications(new SpotFleetLaunchSpecification().withWeightedCapacity(4.0),
+                        new SpotFleetLaunchSpecification().withSpotPrice("0.05"));
+        assertEquals(0.05, FleetCoordinator.getUnitPrice(fleetConfig), 1e-9);
+        // the fleet's price is per unit already, whatever the weight
+        fleetConfig.getLaunchSpecifications().get(1).setSpotPrice(null);
+        assertEquals(0.40, FleetCoordinator.getUnitPrice(fleetConfig), 1e-9);
+    }
+
+    @Test
+    public void unitPriceOfMixedWeightedAndUnweightedSpecificationsTest() {
+        SpotFleetRequestConfigData fleetConfig = new SpotFleetRequestConfigData().withSpotPrice("0.10")
+                .withLaunchSpecifications(
+                        new SpotFleetLaunchSpecification().withSpotPrice("0.80").withWeightedCapacity(4.0),
+                        new SpotFleetLaunchSpecification().withSpotPrice("0.30"));
+        // the fleet's price only stands in for specifications without one, it doesn't cap theirs
+        assertEquals(0.20, FleetCoordinator.getUnitPrice(fleetConfig), 1e-9);
+        fleetConfig.getLaunchSpecifications().add(new SpotFleetLaunchSpecification().withWeightedCapacity(2.0));
+        assertEquals(0.10, FleetCoordinator.getUnitPrice(fleetConfig), 1e-9);
+        assertEquals(0.10, FleetCoordinator.getUnitPrice(new SpotFleetRequestConfigData().withSpotPrice("0.10")),
+                1e-9);
+    }
+
+    @Test
+    public void cheapestFleetTakesBuildsUpToItsHeadroomTest() {
+        Map<String, SpotFleetRequestConfigData> fleets = new LinkedHashMap<String, SpotFleetRequestConfigData>();
+        fleets.put("expensive", fleet("0.50", 0));
+        fleets.put("cheap", fleet("0.10", SpotFleetTaskExecution.MAXIMUM_TARGET_CAPACITY - 2));
+        Map<String, FleetCoordinator.DemandShare> shares = splitDemand(fleets,
+                queueBuilds("PROJ-PLAN-JOB", 5), 1);
+        assertEquals(2, shares.get("cheap").getQueuedBuilds());
+        assertEquals(3, shares.get("expensive").getQueuedBuilds());
+        // predicted builds only get the headroom the queued ones left
+        assertEquals(0, shares.get("cheap").getPredictedBuilds());
+        assertEquals(1, shares.get("expensive").getPredictedBuilds());
+    }
+
+    @Test
+    public void buildsNoFleetHasRoomForGoToTheCheapestTest() {
+        Map<String, SpotFleetRequestConfigData> fleets = new LinkedHashMap<String, SpotFleetRequestConfigData>();
+        fleets.put("expensive", fleet("0.50", SpotFleetTaskExecution.MAXIMUM_TARGET_CAPACITY));
+        fleets.put("cheap", fleet("0.10", SpotFleetTaskExecution.MAXIMUM_TARGET_CAPACITY));
+        Map<String, FleetCoordinator.DemandShare> shares = splitDemand(fleets,
+                queueBuilds("PROJ-PLAN-JOB", 4), 0);
+        assertEquals(4, shares.get("cheap").getQueuedBuilds());
+        assertEquals(0, shares.get("expensive").getQueuedBuilds());
+    }
+
+    @Test
+    public void buildsOnlyGoToFleetsWhoseAgentsCanRunThemTest() {
+        requireOperatingSystem("PROJ-PLAN-WIN", "windows");
+        requireOperatingSystem("PROJ-PLAN-MAC", "macos");
+        profileAgents("linux", "linux");
+        profileAgents("windows", "windows");
+        Map<String, SpotFleetRequestConfigData> fleets = new LinkedHashMap<String, SpotFleetRequestConfigData>();
+        fleets.put("linux", fleet("0.10", 0));
+        fleets.put("windows", fleet("0.50", 0));
+        List<ResultKey> queuedBuilds = new ArrayList<ResultKey>(queueBuilds("PROJ-PLAN-WIN", 3));
+        queuedBuilds.addAll(queueBuilds("PROJ-PLAN-MAC", 2));
+        // jobs without requirements run anywhere
+        queuedBuilds.addAll(queueBuilds("PROJ-PLAN-ANY", 1));
+        Map<String, FleetCoordinator.DemandShare> shares = splitDemand(fleets, queuedBuilds, 0);
+        assertEquals(1, shares.get("linux").getQueuedBuilds());
+        assertEquals(3, shares.get("windows").getQueuedBuilds());
+    }
+
+    @Test
+    public void fleetsThatCantBeDescribedAreLeftOutTest() {
+        AmazonEC2 EC2Client = mock(AmazonEC2.class);
+        final SpotFleetRequestConfigData workingConfig = fleet("0.10", 3);
+        when(EC2Client.describeSpotFleetRequests(argThat(describes("sfr-working"))))
+                .thenReturn(new DescribeSpotFleetRequestsResult().withSpotFleetRequestConfigs(
+                        new SpotFleetRequestConfig().withSpotFleetRequestConfig(workingConfig)));
+        when(EC2Client.describeSpotFleetRequests(argThat(describes("sfr-broken"))))
+                .thenThrow(new AmazonServiceException("InvalidSpotFleetRequestId.NotFound"));
+        Map<String, SpotFleetRequestConfigData> fleets = fleetCoordinator.describeFleets(EC2Client,
+                ImmutableList.of("sfr-broken", "sfr-working"));
+        assertEquals(1, fleets.size());
+        assertEquals(workingConfig, fleets.get("sfr-working"));
+        assertFalse(fleets.containsKey("sfr-broken"));
+    }
+
+    @Test
+    public void fleetsThatCantBeDescribedGetNoShareTest() {
+        AmazonEC2 EC2Client = mock(AmazonEC2.class);
+        when(EC2Client.describeSpotFleetRequests(argThat(describes("sfr-working"))))
+                .thenReturn(new DescribeSpotFleetRequestsResult().withSpotFleetRequestConfigs(
+                        new SpotFleetRequestConfig().withSpotFleetRequestConfig(fleet("0.10", 3))));
+        when(EC2Client.describeSpotFleetRequests(argThat(describes("sfr-broken"))))
+                .thenThrow(new AmazonServiceException("RequestLimitExceeded"));
+        List<String> fleetIds = ImmutableList.of("sfr-broken", "sfr-working");
+        Map<String, FleetCoordinator.DemandShare> shares = fleetCoordinator.splitDemand(fleetIds,
+                fleetCoordinator.describeFleets(EC2Client, fleetIds), queueBuilds("PROJ-PLAN-JOB", 4), 2);
+        assertEquals(0, shares.get("sfr-broken").getQueuedBuilds());
+        assertEquals(0, shares.get("sfr-broken").getPredictedBuilds());
+        assertEquals(4, shares.get("sfr-working").getQueuedBuilds());
+        assertEquals(2, shares.get("sfr-working").getPredictedBuilds());
+    }
+
+    private static ArgumentMatcher<DescribeSpotFleetRequestsRequest> describes(final String fleetId) {
+        return new ArgumentMatcher<DescribeSpotFleetRequestsRequest>() {
+            @Override
+            public boolean matches(Object request) {
+                return request != null && ((DescribeSpotFleetRequestsRequest) request).getSpotFleetRequestIds()
+                        .contains(fleetId);
+            }
+        };
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.ActiveInstance;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.FleetInventory;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FleetInventoryUnitTest {
+
+    // small page sizes so a modest fleet spans several pages
+    private static final int FLEET_PAGE_SIZE = 3;
+    private static final int RESERVATIONS_PER_PAGE = 2;
+
+    @Mock
+    private AmazonEC2 EC2Client;
+    private List<String> fleetInstanceIds;
+    private List<DescribeInstancesRequest> describeInstancesRequests;
+    private FleetInventory fleetInventory;
+
+    @Before
+    public void setup() {
+        fleetInstanceIds = new ArrayList<String>();
+        describeInstancesRequests = new LinkedList<DescribeInstancesRequest>();
+        // fake EC2: DescribeSpotFleetInstances pages through fleetInstanceIds using the index as NextToken
+        when(EC2Client.describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class)))
+                .thenAnswer(new Answer<DescribeSpotFleetInstancesResult>() {
+                    @Override
+                    public DescribeSpotFleetInstancesResult answer(InvocationOnMock invocation) {
+                        DescribeSpotFleetInstancesRequest request = (DescribeSpotFleetInstancesRequest) invocation
+                                .getArguments()[0];
+                        int start = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+                        int end = Math.min(start + FLEET_PAGE_SIZE, fleetInstanceIds.size());
+                        List<ActiveInstance> page = new ArrayList<ActiveInstance>();
+                        for (String instanceId : fleetInstanceIds.subList(start, end)) {
+                            page.add(new ActiveInstance().withInstanceId(instanceId).withInstanceType("c5.large"));
+                        }
+                        return new DescribeSpotFleetInstancesResult().withActiveInstances(page)
+                                .withNextToken(end < fleetInstanceIds.size() ? Integer.toString(end) : null);
+                    }
+                });
+        // fake EC2: DescribeInstances returns one instance per reservation, RESERVATIONS_PER_PAGE per page
+        when(EC2Client.describeInstances(any(DescribeInstancesRequest.class)))
+                .thenAnswer(new Answer<DescribeInstancesResult>() {
+                    @Override
+                    public DescribeInstancesResult answer(InvocationOnMock invocation) {
+                        DescribeInstancesRequest request = (DescribeInstancesRequest) invocation.getArguments()[0];
+                        describeInstancesRequests.add(request);
+                        List<String> requestedIds = request.getInstanceIds();
+                        int start = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+                        int end = Math.min(start + RESERVATIONS_PER_PAGE, requestedIds.size());
+                        List<Reservation> page = new ArrayList<Reservation>();
+                        for (String instanceId : requestedIds.subList(start, end)) {
+                            page.add(new Reservation().withInstances(new Instance().withInstanceId(instanceId)
+                                    .withPrivateDnsName("ip-" + instanceId + ".ec2.internal")));
+                        }
+                        return new DescribeInstancesResult().withReservations(page)
+                                .withNextToken(end < requestedIds.size() ? Integer.toString(end) : null);
+                    }
+                });
+        fleetInventory = new FleetInventory("fleet");
+    }
+
+    private void createFleet(int size) {
+        for (int i = 0; i < size; i++) {
+            fleetInstanceIds.add("i-" + i);
+        }
+    }
+
+    private List<String> describedInstanceIds() {
+        List<String> describedInstanceIds = new ArrayList<String>();
+        for (DescribeInstancesRequest request : describeInstancesRequests) {
+            if (request.getNextToken() == null) {
+                describedInstanceIds.addAll(request.getInstanceIds());
+            }
+        }
+        return describedInstanceIds;
+    }
+
+    @Test
+    public void activeInstancesAreReadFromEveryPageTest() {
+        createFleet(10);
+        assertEquals(fleetInstanceIds, FleetInventory.describeActiveInstanceIds(EC2Client, "fleet"));
+    }
+
+    @Test
+    public void instanceTypesOfActiveInstancesAreKeptTest() {
+        createFleet(3);
+        fleetInventory.refresh(EC2Client);
+        assertEquals("c5.large", fleetInventory.getInstanceType("i-2"));
+        fleetInstanceIds.remove("i-2");
+        fleetInventory.refresh(EC2Client);
+        assertNull(fleetInventory.getInstanceType("i-2"));
+    }
+
+    @Test
+    public void allInstancePagesAreMappedToDnsNamesTest() {
+        createFleet(7);
+        Map<String, String> dnsNamesToInstanceIds = fleetInventory.refresh(EC2Client);
+        assertEquals(7, dnsNamesToInstanceIds.size());
+        assertEquals(7, fleetInventory.getActiveInstanceCount());
+        for (String instanceId : fleetInstanceIds) {
+            assertEquals(instanceId, dnsNamesToInstanceIds.get("ip-" + instanceId + ".ec2.internal"));
+        }
+    }
+
+    @Test
+    public void describeInstancesIsBatchedTest() {
+        createFleet(FleetInventory.DESCRIBE_INSTANCES_BATCH_SIZE * 2 + 1);
+        Map<String, String> instanceIdsToDnsNames = new HashMap<String, String>();
+        FleetInventory.describePrivateDnsNames(EC2Client, fleetInstanceIds, instanceIdsToDnsNames);
+        assertEquals(fleetInstanceIds.size(), instanceIdsToDnsNames.size());
+        for (DescribeInstancesRequest request : describeInstancesRequests) {
+            assertTrue(request.getInstanceIds().size() <= FleetInventory.DESCRIBE_INSTANCES_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void emptyFleetDoesntDescribeInstancesTest() {
+        assertTrue(fleetInventory.refresh(EC2Client).isEmpty());
+        // an unfiltered DescribeInstances would return every instance in the account
+        verify(EC2Client, never()).describeInstances(any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void unchangedFleetIsNotDescribedAgainTest() {
+        createFleet(5);
+        fleetInventory.refresh(EC2Client);
+        describeInstancesRequests.clear();
+        assertEquals(5, fleetInventory.refresh(EC2Client).size());
+        assertTrue(describeInstancesRequests.isEmpty());
+    }
+
+    @Test
+    public void onlyNewInstancesAreDescribedAndRemovedInstancesDroppedTest() {
+        createFleet(5);
+        fleetInventory.refresh(EC2Client);
+        describeInstancesRequests.clear();
+        fleetInstanceIds.remove("i-0");
+        fleetInstanceIds.add("i-new");
+        Map<String, String> dnsNamesToInstanceIds = fleetInventory.refresh(EC2Client);
+        assertEquals(ImmutableList.of("i-new"), describedInstanceIds());
+        assertEquals(5, dnsNamesToInstanceIds.size());
+        assertFalse(dnsNamesToInstanceIds.containsValue("i-0"));
+        assertEquals("i-new", dnsNamesToInstanceIds.get("ip-i-new.ec2.internal"));
+    }
+
+    @Test
+    public void reportedInstancesAreKeyedByIdWithoutDescribingTest() {
+        createFleet(4);
+        Map<String, String> instanceKeysToInstanceIds = fleetInventory.refresh(EC2Client,
+                ImmutableSet.of("i-0", "i-1", "i-other-fleet"), true);
+        // only instances whose agents don't report an ID are matched by DNS name
+        assertEquals(ImmutableList.of("i-2", "i-3"), describedInstanceIds());
+        assertEquals(4, instanceKeysToInstanceIds.size());
+        assertEquals("i-0", instanceKeysToInstanceIds.get("i-0"));
+        assertEquals("i-1", instanceKeysToInstanceIds.get("i-1"));
+        assertEquals("i-2", instanceKeysToInstanceIds.get("ip-i-2.ec2.internal"));
+        assertFalse(instanceKeysToInstanceIds.containsKey("i-other-fleet"));
+    }
+
+    @Test
+    public void noInstancesAreDescribedWhenAllAgentsReportIdsTest() {
+        createFleet(3);
+        Map<String, String> instanceKeysToInstanceIds = fleetInventory.refresh(EC2Client,
+                ImmutableSet.of("i-0"), false);
+        verify(EC2Client, never()).describeInstances(any(DescribeInstancesRequest.class));
+        // instances without agents yet are still counted, keyed by their ID
+        assertEquals(3, instanceKeysToInstanceIds.size());
+        assertEquals(3, fleetInventory.getActiveInstanceCount());
+        assertEquals("i-2", instanceKeysToInstanceIds.get("i-2"));
+    }
+
+    @Test
+    public void departedInstancesStayFleetInstancesWhileTheirAgentsReportThemTest() {
+        createFleet(3);
+        fleetInventory.refresh(EC2Client, ImmutableSet.of("i-0", "i-1"), false);
+        fleetInstanceIds.remove("i-0");
+        fleetInstanceIds.remove("i-2");
+        fleetInventory.refresh(EC2Client, ImmutableSet.of("i-0", "i-1", "i-other-fleet"), false);
+        // i-0's agent is still registered, i-2 never had one
+        assertEquals(ImmutableSet.of("i-0", "i-1"), fleetInventory.getFleetInstanceIds());
+        // once the agent is gone the instance is forgotten
+        fleetInventory.refresh(EC2Client, ImmutableSet.of("i-1"), false);
+        assertEquals(ImmutableSet.of("i-1"), fleetInventory.getFleetInstanceIds());
+    }
+
+    @Test
+    public void slotsAndRetirementFollowInstancesRekeyedByIdTest() {
+        createFleet(2);
+        fleetInventory.refresh(EC2Client, Collections.<String>emptySet(), true);
+        fleetInventory.getAgentSlots().update(ImmutableSet.of("ip-i-0.ec2.internal", "ip-i-1.ec2.internal"),
+                Collections.<BuildAgent>emptyList(), null, 1000);
+        fleetInventory.getRetiringInstances().put("ip-i-0.ec2.internal", "i-0");
+        // i-0's agents start reporting its instance ID
+        Map<String, String> instanceKeysToInstanceIds = fleetInventory.refresh(EC2Client, ImmutableSet.of("i-0"),
+                true);
+        assertEquals("i-0", instanceKeysToInstanceIds.get("i-0"));
+        assertEquals(ImmutableMap.of("i-0", "i-0"), fleetInventory.getRetiringInstances());
+        assertEquals(ImmutableSet.of("i-0", "ip-i-1.ec2.internal"),
+                fleetInventory.getAgentSlots().getSlots().keySet());
+        assertEquals(1000, fleetInventory.getAgentSlots().get("i-0").getFirstSeen());
+    }
+
+    @Test
+    public void inventorySurvivesBetweenLookupsAndIsKeyedByFleetTest() {
+        FleetInventoryRegistry fleetInventoryRegistry = new FleetInventoryRegistry();
+        createFleet(3);
+        fleetInventoryRegistry.getInventory("fleet").refresh(EC2Client);
+        assertSame(fleetInventoryRegistry.getInventory("fleet"), fleetInventoryRegistry.getInventory("fleet"));
+        assertEquals(3, fleetInventoryRegistry.getInventory("fleet").getDnsNamesToInstanceIds().size());
+        // a different fleet ID never sees the previous fleet's instances
+        assertTrue(fleetInventoryRegistry.getInventory("other-fleet").getDnsNamesToInstanceIds().isEmpty());
+        fleetInventoryRegistry.invalidate("fleet");
+        assertTrue(fleetInventoryRegistry.getInventory("fleet").getDnsNamesToInstanceIds().isEmpty());
+    }
+
+    @Test
+    public void inventoryIsKeptHoweverManyFleetsThereAreTest() {
+        FleetInventoryRegistry fleetInventoryRegistry = new FleetInventoryRegistry();
+        FleetInventory fleetInventory = fleetInventoryRegistry.getInventory("fleet");
+        fleetInventory.getRetiringInstances().put("i-0", "i-0");
+        for (int i = 0; i < 1000; i++) {
+            fleetInventoryRegistry.getInventory("fleet-" + i);
+        }
+        // draining state and the fleet's lock must not be lost to an eviction
+        assertSame(fleetInventory, fleetInventoryRegistry.getInventory("fleet"));
+        assertEquals(ImmutableMap.of("i-0", "i-0"),
+                fleetInventoryRegistry.getInventory("fleet").getRetiringInstances());
+    }
+}
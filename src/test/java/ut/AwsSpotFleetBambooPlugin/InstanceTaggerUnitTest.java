@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.ActiveInstance;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import AwsSpotFleetBambooPlugin.FleetInventory;
+import AwsSpotFleetBambooPlugin.InstanceTagger;
+
+public class InstanceTaggerUnitTest {
+
+    private AmazonEC2 EC2Client;
+    private FleetInventory fleetInventory;
+
+    @Before
+    public void setup() {
+        EC2Client = mock(AmazonEC2.class);
+        List<ActiveInstance> activeInstances = new ArrayList<ActiveInstance>();
+        for (int i = 0; i < 150; i++) {
+            activeInstances.add(new ActiveInstance().withInstanceId("i-" + i).withInstanceType("c4.large"));
+        }
+        when(EC2Client.describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class)))
+                .thenReturn(new DescribeSpotFleetInstancesResult().withActiveInstances(activeInstances));
+        fleetInventory = new FleetInventory("fleet");
+        fleetInventory.refresh(EC2Client, Collections.<String> emptySet(), false);
+    }
+
+    private Map<String, Map<String, String>> tagAll(InstanceTagger instanceTagger, int count) {
+        Map<String, Map<String, String>> instanceTags = new HashMap<String, Map<String, String>>();
+        for (int i = 0; i < count; i++) {
+            instanceTags.put("i-" + i,
+                    instanceTagger.render("fleet", "PROJ-PLAN", Collections.<Long> emptyList(), 0));
+        }
+        return instanceTags;
+    }
+
+    @Test
+    public void templateVariablesAreFilledInTest() {
+        InstanceTagger instanceTagger = new InstanceTagger("fleet={fleetId}\nplan = {planKey}\nagents={agentIds}\n\n"
+                + "launched={launchTime}");
+        assertTrue(instanceTagger.usesAgentIds());
+        Map<String, String> tags = instanceTagger.render("sfr-1", "PROJ-PLAN", ImmutableList.of(7L, 3L),
+                1505722920000L);
+        assertEquals(ImmutableMap.of("fleet", "sfr-1", "plan", "PROJ-PLAN", "agents", "3,7", "launched",
+                "2017-09-18T08:22:00Z"), tags);
+        assertFalse(new InstanceTagger(null).usesAgentIds());
+        assertEquals(ImmutableMap.of("Bamboo-Spot-Fleet-Plugin-0811", ""),
+                new InstanceTagger(null).render("sfr-1", null, Collections.<Long> emptyList(), 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reservedKeysAreRejectedTest() {
+        new InstanceTagger("aws:cloudformation:stack-name=x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void linesWithoutKeyAreRejectedTest() {
+        new InstanceTagger("team");
+    }
+
+    @Test
+    public void instancesAreTaggedInBatchesOnlyOnceTest() {
+        InstanceTagger instanceTagger = new InstanceTagger("team=ci");
+        assertEquals(150, instanceTagger.tagInstances(EC2Client, fleetInventory, tagAll(instanceTagger, 150)));
+        ArgumentCaptor<CreateTagsRequest> requests = ArgumentCaptor.forClass(CreateTagsRequest.class);
+        verify(EC2Client, times(2)).createTags(requests.capture());
+        assertEquals(InstanceTagger.RESOURCES_PER_REQUEST, requests.getAllValues().get(0).getResources().size());
+        assertEquals(50, requests.getAllValues().get(1).getResources().size());
+        // nothing changed, nothing is sent
+        assertEquals(0, instanceTagger.tagInstances(EC2Client, fleetInventory, tagAll(instanceTagger, 150)));
+        verify(EC2Client, times(2)).createTags(any(CreateTagsRequest.class));
+    }
+
+    @Test
+    public void onlyChangedValuesAreSentTest() {
+        new InstanceTagger("team=ci\nplan={planKey}").tagInstances(EC2Client, fleetInventory,
+                tagAll(new InstanceTagger("team=ci\nplan={planKey}"), 1));
+        Map<String, Map<String, String>> instanceTags = new HashMap<String, Map<String, String>>();
+        instanceTags.put("i-0", ImmutableMap.of("team", "ci", "plan", "PROJ-OTHER"));
+        new InstanceTagger(null).tagInstances(EC2Client, fleetInventory, instanceTags);
+        ArgumentCaptor<CreateTagsRequest> requests = ArgumentCaptor.forClass(CreateTagsRequest.class);
+        verify(EC2Client, times(2)).createTags(requests.capture());
+        assertEquals(ImmutableList.of(new Tag().withKey("plan").withValue("PROJ-OTHER")),
+                requests.getAllValues().get(1).getTags());
+    }
+
+    @Test
+    public void failedInstancesAreTaggedNextTimeTest() {
+        AmazonServiceException denied = new AmazonServiceException("denied");
+        denied.setErrorCode("UnauthorizedOperation");
+        denied.setStatusCode(403);
+        doThrow(denied).doNothing().when(EC2Client).createTags(any(CreateTagsRequest.class));
+        InstanceTagger instanceTagger = new InstanceTagger("team=ci");
+        assertEquals(0, instanceTagger.tagInstances(EC2Client, fleetInventory, tagAll(instanceTagger, 1)));
+        // tried again next cycle
+        assertEquals(1, instanceTagger.tagInstances(EC2Client, fleetInventory, tagAll(instanceTagger, 1)));
+    }
+
+    @Test
+    public void terminatedInstancesAreForgottenTest() {
+        InstanceTagger instanceTagger = new InstanceTagger("team=ci");
+        instanceTagger.tagInstances(EC2Client, fleetInventory, tagAll(instanceTagger, 1));
+        when(EC2Client.describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class)))
+                .thenReturn(new DescribeSpotFleetInstancesResult());
+        fleetInventory.refresh(EC2Client, Collections.<String> emptySet(), false);
+        assertEquals(ImmutableMap.of("team", "ci"), fleetInventory.getTagChanges("i-0",
+                ImmutableMap.of("team", "ci")));
+        verify(EC2Client, never()).describeInstances(any(DescribeInstancesRequest.class));
+    }
+}
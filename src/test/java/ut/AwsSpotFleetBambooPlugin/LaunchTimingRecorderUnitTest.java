@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.LaunchTimingRecorder;
+import AwsSpotFleetBambooPlugin.LaunchTimingServlet;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LaunchTimingRecorderUnitTest {
+
+    @Mock
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    private LaunchTimingRecorder launchTimingRecorder;
+
+    @Before
+    public void setup() {
+        when(fleetInventoryRegistry.isFleetInstance("i-baked1")).thenReturn(true);
+        when(fleetInventoryRegistry.isFleetInstance("i-baked2")).thenReturn(true);
+        when(fleetInventoryRegistry.isFleetInstance("i-installed")).thenReturn(true);
+        launchTimingRecorder = new LaunchTimingRecorder(fleetInventoryRegistry);
+    }
+
+    @Test
+    public void timingsAreSummarizedPerLaunchModeTest() {
+        launchTimingRecorder.launchReported("i-installed", LaunchTimingRecorder.INSTALL_MODE, 20, 240);
+        launchTimingRecorder.launchReported("i-baked1", LaunchTimingRecorder.PREBAKED_MODE, 20, 50);
+        launchTimingRecorder.launchReported("i-baked2", LaunchTimingRecorder.PREBAKED_MODE, 30, 70);
+        String[] lines = launchTimingRecorder.getSummary().split(System.lineSeparator());
+        assertEquals(2, lines.length);
+        assertEquals("install: 1 launches, script start mean 20.0s, agent online mean 240.0s max 240.0s", lines[0]);
+        assertEquals("prebaked: 2 launches, script start mean 25.0s, agent online mean 60.0s max 70.0s", lines[1]);
+    }
+
+    @Test
+    public void repeatedReportsOfAnInstanceCountOnceTest() {
+        assertTrue(launchTimingRecorder.launchReported("i-baked1", LaunchTimingRecorder.PREBAKED_MODE, 20, 50));
+        assertTrue(launchTimingRecorder.launchReported("i-baked1", LaunchTimingRecorder.PREBAKED_MODE, 20, 900));
+        assertTrue(launchTimingRecorder.getSummary().startsWith("prebaked: 1 launches"));
+    }
+
+    @Test
+    public void reportsForUnknownInstancesAreIgnoredTest() {
+        assertFalse(launchTimingRecorder.launchReported("i-elsewhere", LaunchTimingRecorder.INSTALL_MODE, 20, 50));
+        assertEquals("", launchTimingRecorder.getSummary());
+    }
+
+    @Test
+    public void servletRejectsMalformedTimingsTest() throws IOException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(request.getParameter(LaunchTimingServlet.INSTANCE_ID_PARAMETER)).thenReturn("i-baked1");
+        when(request.getParameter(LaunchTimingServlet.MODE_PARAMETER)).thenReturn(LaunchTimingRecorder.PREBAKED_MODE);
+        when(request.getParameter(LaunchTimingServlet.SCRIPT_SECONDS_PARAMETER)).thenReturn("12.5");
+        TestableLaunchTimingServlet servlet = new TestableLaunchTimingServlet(launchTimingRecorder);
+        servlet.post(request, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+        when(request.getParameter(LaunchTimingServlet.ONLINE_SECONDS_PARAMETER)).thenReturn("48.31");
+        servlet.post(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+        assertTrue(launchTimingRecorder.getSummary().startsWith("prebaked: 1 launches"));
+    }
+
+    // exposes doPost, which HttpServlet keeps protected
+    private static class TestableLaunchTimingServlet extends LaunchTimingServlet {
+        private TestableLaunchTimingServlet(LaunchTimingRecorder launchTimingRecorder) {
+            super(launchTimingRecorder);
+        }
+
+        private void post(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            doPost(request, response);
+        }
+    }
+}
@@ -14,10 +14,14 @@
  */
 package ut.AwsSpotFleetBambooPlugin;
 
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -32,12 +36,14 @@ import java.util.Set;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.MockitoAnnotations.Mock;
 import org.mockito.internal.util.reflection.Whitebox;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.ActiveInstance;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
@@ -46,10 +52,12 @@ import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetInstancesResult;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsResult;
+import com.amazonaws.services.ec2.model.ExcessCapacityTerminationPolicy;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.ModifySpotFleetRequestRequest;
 import com.amazonaws.services.ec2.model.ModifySpotFleetRequestResult;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotFleetLaunchSpecification;
 import com.amazonaws.services.ec2.model.SpotFleetRequestConfig;
 import com.amazonaws.services.ec2.model.SpotFleetRequestConfigData;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
@@ -57,6 +65,7 @@ import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.atlassian.bamboo.ResultKey;
 import com.atlassian.bamboo.build.BuildExecutionManager;
 import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
 import com.atlassian.bamboo.buildqueue.manager.AgentManager;
 import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
 import com.atlassian.bamboo.v2.build.CommonContext;
@@ -67,7 +76,15 @@ import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueueItemView;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
 import com.google.common.collect.ImmutableList;
 
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.FleetInventory;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+import AwsSpotFleetBambooPlugin.ScalingServices;
 import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(SpotFleetTaskExecution.class)
@@ -87,8 +104,6 @@ public class MakeScalingDecisionUnitTest {
     @Mock
     SpotFleetRequestConfigData spotFleetRequestConfigData;
     @Mock
-    private DescribeSpotFleetInstancesRequest describeSpotfleetInstancesRequest;
-    @Mock
     private DescribeSpotFleetInstancesResult describeSpotFleetInstancesResult;
     List<ActiveInstance> instanceList;
     @Mock
@@ -98,8 +113,6 @@ public class MakeScalingDecisionUnitTest {
     @Mock
     ActiveInstance instance3;
     @Mock
-    private DescribeInstancesRequest describeInstancesRequest;
-    @Mock
     private DescribeInstancesResult describeInstancesResult;
     private List<Reservation> reservations;
     @Mock
@@ -176,6 +189,8 @@ public class MakeScalingDecisionUnitTest {
     private List<QueuedResultKey> buildQueueResults;
     private List<BuildAgent> buildAgents;
     private SpotFleetTaskExecution taskExecutor;
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    private QueueMetrics queueMetrics;
     private boolean enableAutoscale = true;
 
     @Before
@@ -185,30 +200,28 @@ public class MakeScalingDecisionUnitTest {
                 .thenReturn(describeSpotFleetRequestsRequest);
         when(describeSpotFleetRequestsRequest.withSpotFleetRequestIds(anyString()))
                 .thenReturn(describeSpotFleetRequestsRequest);
-        PowerMockito.whenNew(DescribeSpotFleetInstancesRequest.class).withNoArguments()
-                .thenReturn(describeSpotfleetInstancesRequest);
-        when(describeSpotfleetInstancesRequest.withSpotFleetRequestId(anyString()))
-                .thenReturn(describeSpotfleetInstancesRequest);
-        PowerMockito.whenNew(DescribeInstancesRequest.class).withNoArguments().thenReturn(describeInstancesRequest);
-        when(describeInstancesRequest.withInstanceIds(anyCollectionOf(String.class)))
-                .thenReturn(describeInstancesRequest);
         when(EC2Client.describeSpotFleetRequests(describeSpotFleetRequestsRequest))
                 .thenReturn(describeSpotFleetRequestsResult);
         when(describeSpotFleetRequestsResult.getSpotFleetRequestConfigs())
                 .thenReturn(ImmutableList.of(spotFleetRequestConfig));
         when(spotFleetRequestConfig.getSpotFleetRequestConfig()).thenReturn(spotFleetRequestConfigData);
         when(spotFleetRequestConfigData.getTargetCapacity()).thenReturn(currentTargetCapacity);
-        when(EC2Client.describeSpotFleetInstances(describeSpotfleetInstancesRequest))
+        // fleet inventory builds its own paginated requests
+        when(EC2Client.describeSpotFleetInstances(any(DescribeSpotFleetInstancesRequest.class)))
                 .thenReturn(describeSpotFleetInstancesResult);
         instanceList = ImmutableList.of(instance1, instance2, instance3);
         when(instance1.getInstanceId()).thenReturn("i-0111605f74c7ab82a");
         when(instance2.getInstanceId()).thenReturn("i-0155104068b16f6a1");
         when(instance3.getInstanceId()).thenReturn("i-0acd407a8d0c055b8");
         when(describeSpotFleetInstancesResult.getActiveInstances()).thenReturn(instanceList);
-        when(EC2Client.describeInstances(describeInstancesRequest)).thenReturn(describeInstancesResult);
+        when(EC2Client.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(describeInstancesResult);
         reservations = ImmutableList.of(reservation);
         when(describeInstancesResult.getReservations()).thenReturn(reservations);
         reservationInstanceList = ImmutableList.of(reservationInstance1, reservationInstance2, reservationInstance3);
+        // described instances are matched to the fleet's active instances by ID
+        when(reservationInstance1.getInstanceId()).thenReturn("i-0111605f74c7ab82a");
+        when(reservationInstance2.getInstanceId()).thenReturn("i-0155104068b16f6a1");
+        when(reservationInstance3.getInstanceId()).thenReturn("i-0acd407a8d0c055b8");
         when(reservationInstance1.getPrivateDnsName()).thenReturn("ip-172-31-66-67.ec2.internal");
         when(reservationInstance2.getPrivateDnsName()).thenReturn("ip-172-31-64-253.ec2.internal");
         when(reservationInstance3.getPrivateDnsName()).thenReturn("ip-172-31-73-206.ec2.internal");
@@ -262,13 +275,14 @@ public class MakeScalingDecisionUnitTest {
         when(commonContext2.getCurrentResult()).thenReturn(currentResult2);
         // set queue time of item to 7 minutes ago
         when(currentResult2.getTasksStartDate()).thenReturn(new Date(now.getTime() - 420000));
-        taskExecutor = new SpotFleetTaskExecution(administrationConfigurationAccessor, buildQueueManager, agentManager,
-                buildExecutionManager);
+        fleetInventoryRegistry = new FleetInventoryRegistry();
+        queueMetrics = new QueueMetrics(buildQueueManager);
+        // as the daemon tick would have
+        queueMetrics.reconcile();
+        taskExecutor = newTaskExecutor();
         PowerMockito.whenNew(TerminateInstancesRequest.class).withNoArguments().thenReturn(terminateInstancesRequest);
         when(terminateInstancesRequest.withInstanceIds(anyString())).thenReturn(terminateInstancesRequest);
         when(EC2Client.terminateInstances(terminateInstancesRequest)).thenReturn(terminateInstancesResult);
-        Whitebox.setInternalState(taskExecutor, "EC2Client", EC2Client);
-        Whitebox.setInternalState(taskExecutor, "buildLogger", buildLogger);
 
         PowerMockito.whenNew(ModifySpotFleetRequestRequest.class).withNoArguments()
                 .thenReturn(modifySpotFleetRequestRequest);
@@ -278,6 +292,24 @@ public class MakeScalingDecisionUnitTest {
         when(EC2Client.modifySpotFleetRequest(modifySpotFleetRequestRequest)).thenReturn(modifySpotFleetRequestResult);
     }
 
+    // task executions are created per run and share the plugin-scoped registries
+    private SpotFleetTaskExecution newTaskExecutor() {
+        SpotFleetTaskExecution newTaskExecutor = new SpotFleetTaskExecution(ScalingServices.builder()
+                .withAdministrationConfigurationAccessor(administrationConfigurationAccessor)
+                .withBuildQueueManager(buildQueueManager).withAgentManager(agentManager)
+                .withBuildExecutionManager(buildExecutionManager)
+                .withFleetInventoryRegistry(fleetInventoryRegistry)
+                .withQueueMetrics(queueMetrics)
+                .withAgentInstanceResolver(new AgentInstanceResolver())
+                .withSpotInterruptionDrainer(new SpotInterruptionDrainer(agentManager, new AgentInstanceResolver(),
+                        new FleetInventoryRegistry()))
+                .withQueueForecaster(new QueueForecaster(null))
+                .withQueueRequirementMatcher(new QueueRequirementMatcher(null)).build(), null);
+        Whitebox.setInternalState(newTaskExecutor, "EC2Client", EC2Client);
+        Whitebox.setInternalState(newTaskExecutor, "buildLogger", buildLogger);
+        return newTaskExecutor;
+    }
+
     @Test
     public void noScalingDecisionDoesntMakeModifyFleetRequestTest() throws Exception {
         // if a modify spot fleet request is made then the decision to scale was made
@@ -329,4 +361,119 @@ public class MakeScalingDecisionUnitTest {
             fail("Test failed due to unknown exception");
         }
     }
+
+    @Test
+    public void weightedFleetScalesInCapacityUnitsTest() throws Exception {
+        // a c5.4xlarge weighted 8 and two c5.large weighted 1 fulfil a target of 10 with 6 agents
+        when(spotFleetRequestConfigData.getTargetCapacity()).thenReturn(10);
+        when(spotFleetRequestConfigData.getLaunchSpecifications()).thenReturn(ImmutableList.of(
+                new SpotFleetLaunchSpecification().withInstanceType("c5.large").withWeightedCapacity(1.0),
+                new SpotFleetLaunchSpecification().withInstanceType("c5.4xlarge").withWeightedCapacity(8.0)));
+        when(instance1.getInstanceType()).thenReturn("c5.4xlarge");
+        when(instance2.getInstanceType()).thenReturn("c5.large");
+        when(instance3.getInstanceType()).thenReturn("c5.large");
+        maxQueuedBuilds = 1;
+        when(modifySpotFleetRequestResult.isReturn()).thenReturn(true);
+        try {
+            org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                    maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Test failed due to unexpected exception");
+        }
+        // 2 queued builds at 0.6 agents per unit need 4 units, limited to 2 per scaling action
+        verify(modifySpotFleetRequestRequest).withTargetCapacity(12);
+    }
+
+    // the second instance's agents are idle, with no idle instances allowed it is scaled down
+    private PipelineDefinition idleInstanceDefinition() {
+        PipelineDefinition definition = mock(PipelineDefinition.class);
+        when(definition.isEnabled()).thenReturn(true);
+        when(agent3.getDefinition()).thenReturn(definition);
+        maxIdleAgents = 0;
+        when(modifySpotFleetRequestResult.isReturn()).thenReturn(true);
+        return definition;
+    }
+
+    @Test
+    public void scaleDownDisablesAgentsAndLowersTargetBeforeTerminatingTest() throws Exception {
+        PipelineDefinition definition = idleInstanceDefinition();
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        InOrder inOrder = inOrder(definition, modifySpotFleetRequestRequest, EC2Client);
+        inOrder.verify(definition).setEnabled(false);
+        inOrder.verify(modifySpotFleetRequestRequest).withTargetCapacity(currentTargetCapacity - 1);
+        inOrder.verify(modifySpotFleetRequestRequest)
+                .setExcessCapacityTerminationPolicy(ExcessCapacityTerminationPolicy.NoTermination);
+        inOrder.verify(EC2Client).modifySpotFleetRequest(modifySpotFleetRequestRequest);
+        inOrder.verify(EC2Client).terminateInstances(any(TerminateInstancesRequest.class));
+        verify(agentManager).savePipeline(definition);
+    }
+
+    @Test
+    public void instanceThatTookABuildIsTerminatedOnceItFinishesTest() throws Exception {
+        idleInstanceDefinition();
+        // a build was dispatched before the agent was disabled, and has finished by the next cycle
+        when(agent3.isBusy()).thenReturn(false, true, false);
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(EC2Client, never()).modifySpotFleetRequest(any(ModifySpotFleetRequestRequest.class));
+        verify(EC2Client, never()).terminateInstances(any(TerminateInstancesRequest.class));
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(modifySpotFleetRequestRequest).withTargetCapacity(currentTargetCapacity - 1);
+        verify(EC2Client).terminateInstances(any(TerminateInstancesRequest.class));
+    }
+
+    @Test
+    public void failedTerminationIsRetriedNextCycleTest() throws Exception {
+        PipelineDefinition definition = idleInstanceDefinition();
+        when(spotFleetRequestConfigData.getTargetCapacity()).thenReturn(currentTargetCapacity,
+                currentTargetCapacity - 1);
+        when(EC2Client.terminateInstances(any(TerminateInstancesRequest.class)))
+                .thenThrow(new AmazonServiceException("Request limit exceeded")).thenReturn(terminateInstancesResult);
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(modifySpotFleetRequestRequest).withTargetCapacity(currentTargetCapacity - 1);
+        // the instance is out of the target, so it stays drained and is terminated again
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(EC2Client, times(2)).terminateInstances(any(TerminateInstancesRequest.class));
+        verify(definition, never()).setEnabled(true);
+        FleetInventory fleetInventory = fleetInventoryRegistry.getInventory("fleet");
+        assertTrue(fleetInventory.getPendingTerminations().isEmpty());
+        assertTrue(fleetInventory.getRetiringInstances().isEmpty());
+    }
+
+    @Test
+    public void failedTerminationIsRetriedByTheNextTaskRunTest() throws Exception {
+        PipelineDefinition definition = idleInstanceDefinition();
+        when(spotFleetRequestConfigData.getTargetCapacity()).thenReturn(currentTargetCapacity,
+                currentTargetCapacity - 1);
+        when(EC2Client.terminateInstances(any(TerminateInstancesRequest.class)))
+                .thenThrow(new AmazonServiceException("Request limit exceeded")).thenReturn(terminateInstancesResult);
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        // other tasks' fleets come and go before the task runs again, the pending termination is kept regardless
+        for (int i = 0; i < 1000; i++) {
+            fleetInventoryRegistry.getInventory("other-fleet-" + i);
+        }
+        org.powermock.reflect.Whitebox.invokeMethod(newTaskExecutor(), "makeScalingDecision", "fleet",
+                maxQueuedBuilds, maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(EC2Client, times(2)).terminateInstances(any(TerminateInstancesRequest.class));
+        verify(definition, never()).setEnabled(true);
+        assertTrue(fleetInventoryRegistry.getInventory("fleet").getPendingTerminations().isEmpty());
+    }
+
+    @Test
+    public void drainedInstanceAlreadyOutOfTheTargetIsTerminatedTest() throws Exception {
+        PipelineDefinition definition = idleInstanceDefinition();
+        // an earlier cycle lowered the target without terminating the instance
+        when(spotFleetRequestConfigData.getTargetCapacity()).thenReturn(currentTargetCapacity - 1);
+        org.powermock.reflect.Whitebox.invokeMethod(taskExecutor, "makeScalingDecision", "fleet", maxQueuedBuilds,
+                maxAverageQueueTime, maxIdleAgents, unitsPerScalingAction, enableAutoscale);
+        verify(EC2Client, never()).modifySpotFleetRequest(any(ModifySpotFleetRequestRequest.class));
+        verify(EC2Client).terminateInstances(any(TerminateInstancesRequest.class));
+        verify(definition, never()).setEnabled(true);
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.atlassian.sal.api.ApplicationProperties;
+
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+
+public class QueueForecasterUnitTest {
+
+    private static final long HOUR = QueueForecaster.MILLISECONDS_PER_HOUR;
+    private static final long WEEK = QueueForecaster.HOURS_PER_WEEK * HOUR;
+    // start of an hour, so windows line up with slots
+    private static final long NOW = 1000000 * HOUR;
+
+    @Rule
+    public TemporaryFolder homeDirectory = new TemporaryFolder();
+    private ApplicationProperties applicationProperties;
+
+    @Before
+    public void setup() {
+        applicationProperties = mock(ApplicationProperties.class);
+        when(applicationProperties.getHomeDirectory()).thenReturn(homeDirectory.getRoot());
+    }
+
+    private QueueForecaster startForecaster() {
+        QueueForecaster queueForecaster = new QueueForecaster(applicationProperties);
+        queueForecaster.afterPropertiesSet();
+        return queueForecaster;
+    }
+
+    @Test
+    public void noHistoryPredictsNothingTest() {
+        assertEquals(0, startForecaster().getPredictedDemand(NOW, HOUR));
+    }
+
+    @Test
+    public void peakDepthIsAveragedOverPreviousWeeksTest() {
+        QueueForecaster queueForecaster = startForecaster();
+        queueForecaster.recordQueueDepth(NOW - WEEK, 4);
+        queueForecaster.recordQueueDepth(NOW - WEEK, 10);
+        queueForecaster.recordQueueDepth(NOW - 2 * WEEK, 6);
+        // peaks of 10 and 6
+        assertEquals(8, queueForecaster.getPredictedDemand(NOW, HOUR / 2));
+        // an hour later than last week's rush is unaffected by it
+        assertEquals(0, queueForecaster.getPredictedDemand(NOW + HOUR, HOUR / 2));
+    }
+
+    @Test
+    public void arrivalsArePredictedForTheWindowOnlyTest() {
+        QueueForecaster queueForecaster = startForecaster();
+        for (int i = 0; i < 40; i++) {
+            queueForecaster.recordArrival(NOW - WEEK + HOUR + i);
+        }
+        // the next hour had 40 arrivals last week, a window covering a quarter of it expects 10
+        assertEquals(10, queueForecaster.getPredictedDemand(NOW + 3 * HOUR / 4, HOUR / 2));
+    }
+
+    @Test
+    public void slotsOlderThanTheRingAreOverwrittenTest() {
+        QueueForecaster queueForecaster = startForecaster();
+        queueForecaster.recordQueueDepth(NOW - QueueForecaster.WEEKS_OF_HISTORY * WEEK, 50);
+        // reuses the slot of the oldest week
+        queueForecaster.recordQueueDepth(NOW, 2);
+        assertEquals(2, queueForecaster.getPredictedDemand(NOW + WEEK, HOUR / 2));
+    }
+
+    @Test
+    public void historySurvivesRestartsTest() throws IOException {
+        QueueForecaster queueForecaster = startForecaster();
+        queueForecaster.recordArrival(NOW - WEEK);
+        queueForecaster.recordQueueDepth(NOW - WEEK, 7);
+        queueForecaster.destroy();
+        File forecastFile = new File(homeDirectory.getRoot(), QueueForecaster.FORECAST_FILE_NAME);
+        assertTrue(forecastFile.isFile());
+        assertEquals(7, startForecaster().getPredictedDemand(NOW, HOUR / 2));
+    }
+
+    @Test
+    public void historyIsWrittenWhenTheHourRollsOverTest() {
+        QueueForecaster queueForecaster = startForecaster();
+        queueForecaster.recordQueueDepth(NOW - WEEK, 7);
+        queueForecaster.recordQueueDepth(NOW - WEEK + HOUR / 2, 9);
+        File forecastFile = new File(homeDirectory.getRoot(), QueueForecaster.FORECAST_FILE_NAME);
+        // cycles within the hour don't touch the disk
+        assertFalse(forecastFile.exists());
+        queueForecaster.recordQueueDepth(NOW - WEEK + HOUR, 1);
+        assertTrue(forecastFile.isFile());
+        // another server reading the file sees the finished hour without a shutdown
+        assertEquals(9, startForecaster().getPredictedDemand(NOW, HOUR / 2));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.atlassian.bamboo.v2.build.BuildIdentifier;
+import com.atlassian.bamboo.v2.build.CommonContext;
+import com.atlassian.bamboo.v2.build.CurrentResult;
+import com.atlassian.bamboo.v2.build.CurrentlyBuilding;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueueItemView;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.CapabilityProfile;
+import AwsSpotFleetBambooPlugin.EnqueueTimeSketch;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueueMetricsUnitTest {
+
+    private static final long NOW = 1000000000L;
+
+    @Mock
+    private BuildQueueManager buildQueueManager;
+    private List<QueuedResultKey> buildQueue;
+    private QueueMetrics queueMetrics;
+
+    @Before
+    public void setup() {
+        buildQueue = new LinkedList<QueuedResultKey>();
+        when(buildQueueManager.getQueuedExecutables()).thenReturn(buildQueue);
+        queueMetrics = new QueueMetrics(buildQueueManager);
+    }
+
+    // put a build in the queue that was queued minutesAgo before NOW
+    private ResultKey queueBuild(int minutesAgo) {
+        ResultKey resultKey = mock(ResultKey.class);
+        QueuedResultKey queuedResultKey = new QueuedResultKey(resultKey, 0);
+        CommonContext context = mock(CommonContext.class);
+        CurrentResult currentResult = mock(CurrentResult.class);
+        when(context.getCurrentResult()).thenReturn(currentResult);
+        when(currentResult.getTasksStartDate()).thenReturn(new Date(NOW - minutesAgo * 60000L));
+        when(buildQueueManager.peekContext(resultKey))
+                .thenReturn(new QueueItemView<CommonContext>(queuedResultKey, context));
+        buildQueue.add(queuedResultKey);
+        return resultKey;
+    }
+
+    @Test
+    public void emptyQueueHasNoWaitTest() {
+        queueMetrics.reconcile();
+        assertEquals(0, queueMetrics.getQueuedBuildCount());
+        assertEquals(0, queueMetrics.getAverageWaitMilliseconds(NOW));
+    }
+
+    @Test
+    public void buildsQueuedWithoutEventsArePickedUpTest() {
+        queueBuild(1);
+        queueBuild(7);
+        queueMetrics.reconcile();
+        assertEquals(2, queueMetrics.getQueuedBuildCount());
+        assertEquals(4 * 60000L, queueMetrics.getAverageWaitMilliseconds(NOW));
+    }
+
+    @Test
+    public void buildsSeenThroughEventsAreNotLookedUpTest() {
+        ResultKey resultKey = queueBuild(2);
+        queueMetrics.enqueued(resultKey, NOW - 120000);
+        queueMetrics.reconcile();
+        verify(buildQueueManager, never()).peekContext(any(ResultKey.class));
+        assertEquals(1, queueMetrics.getQueuedBuildCount());
+        assertEquals(120000, queueMetrics.getAverageWaitMilliseconds(NOW));
+    }
+
+    @Test
+    public void buildsLeavingTheQueueAreDroppedTest() {
+        queueBuild(1);
+        queueBuild(3);
+        queueMetrics.reconcile();
+        buildQueue.remove(1);
+        queueMetrics.reconcile();
+        assertEquals(1, queueMetrics.getQueuedBuildCount());
+        assertEquals(60000, queueMetrics.getAverageWaitMilliseconds(NOW));
+    }
+
+    @Test
+    public void repeatedEnqueueKeepsOriginalTimeTest() {
+        ResultKey resultKey = mock(ResultKey.class);
+        queueMetrics.enqueued(resultKey, NOW - 60000);
+        queueMetrics.enqueued(resultKey, NOW);
+        assertEquals(1, queueMetrics.getQueuedBuildCount());
+        assertEquals(60000, queueMetrics.getAverageWaitMilliseconds(NOW));
+    }
+
+    @Test
+    public void buildsStartedOnAnAgentLeaveTheQueueWithoutWalkingItTest() {
+        PlanResultKey started = PlanKeys.getPlanResultKey("PROJ-PLAN-JOB", 1);
+        PlanResultKey waiting = PlanKeys.getPlanResultKey("PROJ-PLAN-JOB", 2);
+        queueMetrics.enqueued(started, NOW - 180000);
+        queueMetrics.enqueued(waiting, NOW - 60000);
+        queueMetrics.dequeueStarted(ImmutableList.of(currentlyBuilding(started, 1L), currentlyBuilding(waiting, null)));
+        assertEquals(1, queueMetrics.getQueuedBuildCount());
+        assertEquals(60000, queueMetrics.getAverageWaitMilliseconds(NOW));
+        queueMetrics.dequeued(waiting);
+        assertEquals(0, queueMetrics.getQueuedBuildCount());
+        verify(buildQueueManager, never()).getQueuedExecutables();
+    }
+
+    @Test
+    public void runnableBuildsAreFilteredPerJobTest() {
+        PlanKey windowsJob = PlanKeys.getPlanKey("PROJ-PLAN-WIN");
+        CapabilityProfile linuxProfile = new CapabilityProfile(
+                ImmutableSet.<Map<String, String>>of(ImmutableMap.of("os", "linux")));
+        QueueRequirementMatcher queueRequirementMatcher = mock(QueueRequirementMatcher.class);
+        when(queueRequirementMatcher.canRun(any(PlanKey.class), eq(linuxProfile))).thenReturn(true);
+        when(queueRequirementMatcher.canRun(windowsJob, linuxProfile)).thenReturn(false);
+        for (int buildNumber = 1; buildNumber <= 20; buildNumber++) {
+            queueMetrics.enqueued(PlanKeys.getPlanResultKey("PROJ-PLAN-WIN", buildNumber), NOW - 600000);
+        }
+        queueMetrics.enqueued(PlanKeys.getPlanResultKey("PROJ-PLAN-JOB", 1), NOW - 60000);
+        EnqueueTimeSketch runnableBuilds = queueMetrics.getRunnableBuilds(queueRequirementMatcher, linuxProfile);
+        assertEquals(1, runnableBuilds.getCount());
+        assertEquals(60000, runnableBuilds.getWait(EnqueueTimeSketch.MAX, NOW));
+        // once per job, not per queued build
+        verify(queueRequirementMatcher).canRun(windowsJob, linuxProfile);
+    }
+
+    private static CurrentlyBuilding currentlyBuilding(PlanResultKey resultKey, Long agentId) {
+        CurrentlyBuilding build = mock(CurrentlyBuilding.class);
+        BuildIdentifier buildIdentifier = mock(BuildIdentifier.class);
+        when(buildIdentifier.getPlanResultKey()).thenReturn(resultKey);
+        when(build.getBuildIdentifier()).thenReturn(buildIdentifier);
+        when(build.getBuildAgentId()).thenReturn(agentId);
+        return build;
+    }
+}
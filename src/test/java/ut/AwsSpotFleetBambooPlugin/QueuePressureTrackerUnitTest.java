@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.v2.build.BuildContext;
+import com.atlassian.bamboo.v2.build.events.AgentOfflineEvent;
+import com.atlassian.bamboo.v2.build.events.BuildQueuedEvent;
+import com.atlassian.event.api.EventPublisher;
+
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueuePressureTracker;
+import AwsSpotFleetBambooPlugin.SpotFleetScalingDaemon;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueuePressureTrackerUnitTest {
+
+    private static final long TEST_DEBOUNCE_MILLISECONDS = 200;
+    private static final long WAIT_MILLISECONDS = 5000;
+
+    @Mock
+    private EventPublisher eventPublisher;
+    @Mock
+    private SpotFleetScalingDaemon scalingDaemon;
+    @Mock
+    private BuildQueuedEvent buildQueuedEvent;
+    @Mock
+    private AgentOfflineEvent agentOfflineEvent;
+    @Mock
+    private QueueMetrics queueMetrics;
+    @Mock
+    private QueueForecaster queueForecaster;
+    @Mock
+    private BuildContext buildContext;
+    @Mock
+    private ResultKey resultKey;
+    private QueuePressureTracker queuePressureTracker;
+
+    @Before
+    public void setup() {
+        queuePressureTracker = new QueuePressureTracker(eventPublisher, scalingDaemon, queueMetrics,
+                queueForecaster) {
+            @Override
+            protected long getDebounceMilliseconds() {
+                return TEST_DEBOUNCE_MILLISECONDS;
+            }
+        };
+        queuePressureTracker.afterPropertiesSet();
+    }
+
+    @After
+    public void teardown() {
+        queuePressureTracker.destroy();
+    }
+
+    @Test
+    public void trackerSubscribesToEventsTest() {
+        verify(eventPublisher).register(queuePressureTracker);
+        queuePressureTracker.destroy();
+        verify(eventPublisher).unregister(queuePressureTracker);
+    }
+
+    @Test
+    public void burstOfEventsIsCoalescedIntoOneEvaluationTest() throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            queuePressureTracker.onBuildQueued(buildQueuedEvent);
+        }
+        queuePressureTracker.onAgentOffline(agentOfflineEvent);
+        assertTrue(queuePressureTracker.isEvaluationPending());
+        verify(scalingDaemon, timeout(WAIT_MILLISECONDS)).requestEvaluation();
+        // give a wrongly scheduled second evaluation the chance to run
+        Thread.sleep(TEST_DEBOUNCE_MILLISECONDS * 2);
+        verify(scalingDaemon, times(1)).requestEvaluation();
+        assertFalse(queuePressureTracker.isEvaluationPending());
+    }
+
+    @Test
+    public void eventsAfterAnEvaluationTriggerANewOneTest() {
+        queuePressureTracker.onBuildQueued(buildQueuedEvent);
+        verify(scalingDaemon, timeout(WAIT_MILLISECONDS)).requestEvaluation();
+        queuePressureTracker.onAgentOffline(agentOfflineEvent);
+        verify(scalingDaemon, timeout(WAIT_MILLISECONDS).times(2)).requestEvaluation();
+    }
+
+    @Test
+    public void queuedBuildIsRecordedInQueueMetricsTest() {
+        when(buildQueuedEvent.getContext()).thenReturn(buildContext);
+        when(buildContext.getResultKey()).thenReturn(resultKey);
+        queuePressureTracker.onBuildQueued(buildQueuedEvent);
+        verify(queueMetrics).enqueued(eq(resultKey), anyLong());
+    }
+}
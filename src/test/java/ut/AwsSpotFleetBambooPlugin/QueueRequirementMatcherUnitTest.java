@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bamboo.ResultKey;
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.atlassian.bamboo.v2.build.agent.capability.Requirement;
+import com.atlassian.bamboo.v2.build.agent.capability.RequirementSet;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.CapabilityProfile;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+public class QueueRequirementMatcherUnitTest {
+
+    private CachedPlanManager cachedPlanManager;
+    private QueueRequirementMatcher queueRequirementMatcher;
+    private CapabilityProfile linuxProfile;
+
+    @Before
+    public void setup() {
+        cachedPlanManager = mock(CachedPlanManager.class);
+        queueRequirementMatcher = new QueueRequirementMatcher(cachedPlanManager);
+        linuxProfile = new CapabilityProfile(ImmutableSet.<Map<String, String>>of(
+                ImmutableMap.of("os", "linux", "system.jdk.JDK 1.8", "/usr/lib/jvm/java-8")));
+    }
+
+    private static Requirement requirement(String key, String matchValue, boolean regexMatch) {
+        Requirement requirement = mock(Requirement.class);
+        when(requirement.getKey()).thenReturn(key);
+        when(requirement.getMatchValue()).thenReturn(matchValue);
+        when(requirement.isRegexMatch()).thenReturn(regexMatch);
+        return requirement;
+    }
+
+    private static RequirementSet requirementSet(Requirement... requirements) {
+        RequirementSet requirementSet = mock(RequirementSet.class);
+        when(requirementSet.getRequirements()).thenReturn(ImmutableSet.copyOf(requirements));
+        return requirementSet;
+    }
+
+    private void defineJob(String jobKey, RequirementSet requirementSet) {
+        ImmutableJob job = mock(ImmutableJob.class);
+        when(job.getEffectiveRequirementSet()).thenReturn(requirementSet);
+        when(cachedPlanManager.getPlanByKey(PlanKeys.getPlanKey(jobKey), ImmutableJob.class)).thenReturn(job);
+    }
+
+    @Test
+    public void requirementsMatchExactlyOrByRegexTest() {
+        assertTrue(linuxProfile.canRun(requirementSet(requirement("os", "linux", false))));
+        assertFalse(linuxProfile.canRun(requirementSet(requirement("os", "windows", false))));
+        // Bamboo's "exists" requirements match any value
+        assertTrue(linuxProfile.canRun(requirementSet(requirement("system.jdk.JDK 1.8", ".*", true))));
+        assertFalse(linuxProfile.canRun(requirementSet(requirement("system.jdk.JDK 1.8", ".*", true),
+                requirement("gpu", ".*", true))));
+    }
+
+    @Test
+    public void anyAgentMeetingAllRequirementsIsEnoughTest() {
+        CapabilityProfile mixedProfile = new CapabilityProfile(ImmutableSet.<Map<String, String>>of(
+                ImmutableMap.of("os", "linux"), ImmutableMap.of("os", "linux", "gpu", "true")));
+        assertTrue(mixedProfile.canRun(requirementSet(requirement("os", "linux", false),
+                requirement("gpu", "true", false))));
+    }
+
+    @Test
+    public void matchesAreMemoizedPerJobTest() {
+        defineJob("PROJ-PLAN-WIN", requirementSet(requirement("os", "windows", false)));
+        defineJob("PROJ-PLAN-JOB", requirementSet(requirement("os", "linux", false)));
+        QueueMetrics queueMetrics = new QueueMetrics(mock(BuildQueueManager.class));
+        for (int buildNumber = 1; buildNumber <= 50; buildNumber++) {
+            queueMetrics.enqueued(PlanKeys.getPlanResultKey("PROJ-PLAN-WIN", buildNumber), 0L);
+            queueMetrics.enqueued(PlanKeys.getPlanResultKey("PROJ-PLAN-JOB", buildNumber), 0L);
+        }
+        assertEquals(50, queueMetrics.getRunnableBuilds(queueRequirementMatcher, linuxProfile).getCount());
+        // an equal profile rebuilt on the next cycle reuses the outcome
+        CapabilityProfile rebuiltProfile = new CapabilityProfile(ImmutableSet.<Map<String, String>>of(
+                ImmutableMap.of("os", "linux", "system.jdk.JDK 1.8", "/usr/lib/jvm/java-8")));
+        assertEquals(50, queueMetrics.getRunnableBuilds(queueRequirementMatcher, rebuiltProfile).getCount());
+        verify(cachedPlanManager, times(2)).getPlanByKey(any(PlanKey.class), eq(ImmutableJob.class));
+    }
+
+    @Test
+    public void buildsAreCountedWhenTheProfileOrJobIsUnknownTest() {
+        ResultKey unknownJob = PlanKeys.getPlanResultKey("PROJ-PLAN-GONE", 1);
+        assertTrue(queueRequirementMatcher.canRun(unknownJob, linuxProfile));
+        defineJob("PROJ-PLAN-WIN", requirementSet(requirement("os", "windows", false)));
+        assertTrue(queueRequirementMatcher.canRun(PlanKeys.getPlanResultKey("PROJ-PLAN-WIN", 1), null));
+    }
+
+    @Test
+    public void profileLeavesOutTheInstanceIdTest() {
+        BuildAgent first = agentWithCapabilities(ImmutableMap.of("os", "linux",
+                StringConstants.INSTANCE_ID_CAPABILITY, "i-1"));
+        BuildAgent second = agentWithCapabilities(ImmutableMap.of("os", "linux",
+                StringConstants.INSTANCE_ID_CAPABILITY, "i-2"));
+        CapabilityProfile capabilityProfile = CapabilityProfile.fromAgents(ImmutableList.of(first, second));
+        assertEquals(1, capabilityProfile.size());
+        assertEquals(new CapabilityProfile(ImmutableSet.<Map<String, String>>of(ImmutableMap.of("os", "linux"))),
+                capabilityProfile);
+        assertNull(CapabilityProfile.fromAgents(ImmutableList.of(mock(BuildAgent.class))));
+    }
+
+    private static BuildAgent agentWithCapabilities(Map<String, String> capabilities) {
+        ImmutableSet.Builder<Capability> capabilityBuilder = ImmutableSet.builder();
+        for (Map.Entry<String, String> entry : capabilities.entrySet()) {
+            Capability capability = mock(Capability.class);
+            when(capability.getKey()).thenReturn(entry.getKey());
+            when(capability.getValue()).thenReturn(entry.getValue());
+            capabilityBuilder.add(capability);
+        }
+        Set<Capability> capabilitySet = capabilityBuilder.build();
+        CapabilitySet agentCapabilities = mock(CapabilitySet.class);
+        when(agentCapabilities.getCapabilities()).thenReturn(capabilitySet);
+        PipelineDefinition definition = mock(PipelineDefinition.class);
+        when(definition.getCapabilitySet()).thenReturn(agentCapabilities);
+        BuildAgent agent = mock(BuildAgent.class);
+        when(agent.getDefinition()).thenReturn(definition);
+        return agent;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import AwsSpotFleetBambooPlugin.ScalingDecision;
+import AwsSpotFleetBambooPlugin.ScalingSimulator;
+import AwsSpotFleetBambooPlugin.ScalingSimulator.Event;
+import AwsSpotFleetBambooPlugin.ScalingSimulator.Report;
+import AwsSpotFleetBambooPlugin.ScalingState;
+import AwsSpotFleetBambooPlugin.ThresholdScalingPolicy;
+
+public class ScalingSimulatorUnitTest {
+
+    private static List<Event> trace(String trace) throws IOException {
+        return ScalingSimulator.parseTrace(new StringReader(trace));
+    }
+
+    private static ScalingSimulator simulator() {
+        return new ScalingSimulator().withThresholds(2, 5, 1, 2).withAgentsPerInstance(1).withBootMinutes(5)
+                .withInitialCapacity(1);
+    }
+
+    @Test
+    public void buildWithinCapacityCostsOnlyTheRunningInstanceTest() throws IOException {
+        Report report = simulator().run(trace("# one short build\n0,build,3\n"));
+        assertEquals(1, report.getBuildsCompleted());
+        assertEquals(4, report.getInstanceMinutes());
+        assertEquals(0, report.getMeanWaitMilliseconds());
+        assertEquals(0, report.getScalingActions());
+    }
+
+    @Test
+    public void interruptedBuildIsQueuedAgainAndTheFleetScalesUpTest() throws IOException {
+        // booting instances have no busy agents, so they would count against a lower idle threshold
+        Report report = simulator().withThresholds(2, 5, 2, 2).withBootMinutes(8)
+                .run(trace("2, interruption\n0, build, 10\n"));
+        assertEquals(1, report.getInterruptions());
+        assertEquals(1, report.getBuildsCompleted());
+        assertEquals(0, report.getUnfinishedBuilds());
+        // queued again at minute 2, the replacement takes it at minute 10 after the wait threshold scaled up
+        assertEquals((0 + 8 * 60000) / 2, report.getMeanWaitMilliseconds());
+        // the replacement, then one instance for each of the two cycles the build waited too long
+        assertEquals(3, report.getInstancesLaunched());
+        // up twice, then two idle instances terminated once the build finished
+        assertEquals(3, report.getScalingActions());
+        assertEquals(2, report.getInstancesTerminated());
+        assertEquals(42, report.getInstanceMinutes());
+    }
+
+    @Test
+    public void replaysAreDeterministicTest() throws IOException {
+        StringBuilder trace = new StringBuilder();
+        for (int minute = 0; minute < 120; minute += 3) {
+            trace.append(minute).append(",build,").append(5 + minute % 17).append('\n');
+            if (minute % 40 == 0) {
+                trace.append(minute).append(",interruption\n");
+            }
+        }
+        String first = simulator().withThresholds(1, 3, 0, 4).run(trace(trace.toString())).toString();
+        assertEquals(first, simulator().withThresholds(1, 3, 0, 4).run(trace(trace.toString())).toString());
+    }
+
+    @Test
+    public void malformedTraceLineIsRejectedTest() throws IOException {
+        try {
+            trace("0,build,5\n3,reboot\n");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("malformed trace line 2: 3,reboot", e.getMessage());
+        }
+    }
+
+    @Test
+    public void policyKeepsIdleInstancesNeededForPredictedLoadTest() {
+        ScalingState state = new ScalingState().withCurrentTargetCapacity(4).withActiveCapacity(4)
+                .withTerminationCandidates(ImmutableList.of("a", "b", "c")).withBusyCapacity(1)
+                .withAgentsPerUnit(2).withPredictedBuilds(4).withMaxQueuedBuilds(2)
+                .withMaxQueueWaitMilliseconds(60000).withMaxIdleInstances(0).withMaxUnitsPerScale(5);
+        ScalingDecision decision = new ThresholdScalingPolicy().decide(state);
+        // one busy instance plus two for the predicted builds
+        assertEquals(ImmutableList.of("a"), decision.getInstancesToTerminate());
+        assertEquals(3, decision.getTargetCapacity());
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotFleetRequestsRequest;
+import com.atlassian.bamboo.build.BuildDefinition;
+import com.atlassian.bamboo.build.BuildExecutionManager;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.plan.cache.CachedPlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableChain;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+import com.atlassian.bamboo.task.TaskDefinition;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
+import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
+import com.atlassian.sal.api.scheduling.PluginScheduler;
+import com.google.common.collect.ImmutableList;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.CapacityControllerRegistry;
+import AwsSpotFleetBambooPlugin.Ec2ClientRegistry;
+import AwsSpotFleetBambooPlugin.FleetCoordinator;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.QueueForecaster;
+import AwsSpotFleetBambooPlugin.QueueMetrics;
+import AwsSpotFleetBambooPlugin.QueueRequirementMatcher;
+import AwsSpotFleetBambooPlugin.ScalingServices;
+import AwsSpotFleetBambooPlugin.SpotFleetScalingDaemon;
+import AwsSpotFleetBambooPlugin.SpotFleetScalingJob;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpotFleetScalingDaemonUnitTest {
+
+    @Mock
+    private PluginScheduler pluginScheduler;
+    @Mock
+    private AgentManager agentManager;
+    @Mock
+    private BuildQueueManager buildQueueManager;
+    @Mock
+    private BuildExecutionManager buildExecutionManager;
+    private AmazonEC2 EC2Client;
+    private ScalingServices services;
+    private SpotFleetScalingDaemon scalingDaemon;
+    private Map<String, String> configuration;
+    // jobs with saved scaling tasks, the daemon's only source of registrations
+    private List<ImmutableJob> savedJobs;
+    private TaskDefinition taskDefinition;
+
+    @Before
+    public void setup() {
+        // every cycle stops at the fleet status check, which is enough to observe that it ran
+        EC2Client = mock(AmazonEC2.class);
+        AmazonServiceException authFailure = new AmazonServiceException("auth failure");
+        authFailure.setErrorCode("AuthFailure");
+        when(EC2Client.describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class))).thenThrow(authFailure);
+        Ec2ClientRegistry ec2ClientRegistry = new Ec2ClientRegistry() {
+            @Override
+            protected AmazonEC2 createClient(AWSCredentials credentials, Regions region) {
+                return EC2Client;
+            }
+        };
+        when(buildQueueManager.getQueuedExecutables()).thenReturn(new LinkedList<QueuedResultKey>());
+        QueueRequirementMatcher queueRequirementMatcher = new QueueRequirementMatcher(null);
+        services = ScalingServices.builder()
+                .withBuildQueueManager(buildQueueManager).withAgentManager(agentManager)
+                .withBuildExecutionManager(buildExecutionManager).withEc2ClientRegistry(ec2ClientRegistry)
+                .withFleetInventoryRegistry(new FleetInventoryRegistry())
+                .withQueueMetrics(new QueueMetrics(buildQueueManager))
+                .withAgentInstanceResolver(new AgentInstanceResolver())
+                .withSpotInterruptionDrainer(new SpotInterruptionDrainer(agentManager, null, null))
+                .withQueueForecaster(new QueueForecaster(null))
+                .withCapacityControllerRegistry(new CapacityControllerRegistry())
+                .withFleetCoordinator(new FleetCoordinator(new FleetInventoryRegistry(), queueRequirementMatcher))
+                .withQueueRequirementMatcher(queueRequirementMatcher).build();
+        configuration = new HashMap<String, String>();
+        configuration.put(StringConstants.ACCESS_KEY, "access");
+        configuration.put(StringConstants.SECRET_KEY, "secret");
+        configuration.put(StringConstants.FLEET_ID, "fleet");
+        configuration.put(StringConstants.REGION, "us-east-1");
+        configuration.put(StringConstants.TERMINATE_FLEET, "false");
+        configuration.put(StringConstants.ENABLE_AUTOSCALING, "true");
+        configuration.put(StringConstants.QUEUED_BUILDS, "3");
+        configuration.put(StringConstants.AVERAGE_QUEUE_TIME, "5");
+        configuration.put(StringConstants.IDLE_INSTANCES, "2");
+        configuration.put(StringConstants.MAXIMUM_UNITS_PER_SCALE, "2");
+        configuration.put(StringConstants.SCALING_INTERVAL, "60");
+        taskDefinition = mock(TaskDefinition.class);
+        savedJobs = new LinkedList<ImmutableJob>();
+        savedJobs.add(savedTask(taskDefinition));
+        CachedPlanManager cachedPlanManager = mock(CachedPlanManager.class);
+        when(cachedPlanManager.getPlans(ImmutableJob.class)).thenReturn(savedJobs);
+        scalingDaemon = new SpotFleetScalingDaemon(pluginScheduler, cachedPlanManager, services);
+    }
+
+    @Test
+    public void registeredFleetIsScaledOncePerIntervalTest() {
+        // the first tick registers the saved task, e.g. after a server restart
+        scalingDaemon.runDueFleets();
+        assertTrue(scalingDaemon.isRegistered("fleet"));
+        verify(EC2Client, times(1)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+        // the next tick comes well within the 60 second interval
+        scalingDaemon.runDueFleets();
+        verify(EC2Client, times(1)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void requestedEvaluationRunsFleetBeforeIntervalTest() {
+        scalingDaemon.runDueFleets();
+        scalingDaemon.requestEvaluation();
+        // the request is served by the next tick, not by the caller
+        verify(EC2Client, times(1)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+        scalingDaemon.runDueFleets();
+        verify(EC2Client, times(2)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+        // the request is served once, later ticks respect the interval again
+        scalingDaemon.runDueFleets();
+        verify(EC2Client, times(2)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void zeroIntervalTaskIsNotScaledTest() {
+        configuration.put(StringConstants.SCALING_INTERVAL, "0");
+        scalingDaemon.runDueFleets();
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+        verify(EC2Client, never()).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void registrationIsNotAffectedByLaterConfigurationChangesTest() {
+        scalingDaemon.reconcile();
+        configuration.put(StringConstants.SCALING_INTERVAL, "0");
+        assertTrue(scalingDaemon.isRegistered("fleet"));
+    }
+
+    @Test
+    public void unregisteringOneFleetStopsItsWholeTaskTest() {
+        configuration.put(StringConstants.FLEET_ID, "fleet,other");
+        scalingDaemon.reconcile();
+        assertTrue(scalingDaemon.isRegistered("other"));
+        scalingDaemon.unregisterFleet("fleet");
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+        assertFalse(scalingDaemon.isRegistered("other"));
+    }
+
+    @Test
+    public void daemonSchedulesAndUnschedulesItsJobTest() {
+        scalingDaemon.afterPropertiesSet();
+        verify(pluginScheduler).scheduleJob(eq(SpotFleetScalingDaemon.JOB_KEY), eq(SpotFleetScalingJob.class),
+                anyMapOf(String.class, Object.class), any(Date.class),
+                eq(SpotFleetScalingDaemon.TICK_INTERVAL_MILLISECONDS));
+        scalingDaemon.reconcile();
+        scalingDaemon.destroy();
+        verify(pluginScheduler).unscheduleJob(SpotFleetScalingDaemon.JOB_KEY);
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+    }
+
+    // a job with one saved scaling task for the configuration, enabled unless the test suspends it
+    private ImmutableJob savedTask(TaskDefinition taskDefinition) {
+        ImmutableJob job = mock(ImmutableJob.class);
+        ImmutableChain plan = mock(ImmutableChain.class);
+        BuildDefinition buildDefinition = mock(BuildDefinition.class);
+        when(job.getParent()).thenReturn(plan);
+        when(job.getBuildDefinition()).thenReturn(buildDefinition);
+        when(buildDefinition.getTaskDefinitions()).thenReturn(ImmutableList.of(taskDefinition));
+        when(taskDefinition.getPluginKey()).thenReturn(SpotFleetScalingDaemon.TASK_PLUGIN_KEY);
+        when(taskDefinition.isEnabled()).thenReturn(true);
+        when(taskDefinition.getConfiguration()).thenReturn(configuration);
+        return job;
+    }
+
+    @Test
+    public void fleetsOfDeletedTasksStopScalingTest() {
+        scalingDaemon.runDueFleets();
+        savedJobs.clear();
+        scalingDaemon.reconcile();
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+        scalingDaemon.requestEvaluation();
+        scalingDaemon.runDueFleets();
+        verify(EC2Client, times(1)).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void fleetsAreOnlyRegisteredFromSavedTasksTest() {
+        // without saved task definitions to read nothing is scaled, whatever tasks ran or were submitted
+        scalingDaemon = new SpotFleetScalingDaemon(pluginScheduler, null, services);
+        scalingDaemon.runDueFleets();
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+        verify(EC2Client, never()).describeSpotFleetRequests(any(DescribeSpotFleetRequestsRequest.class));
+    }
+
+    @Test
+    public void savedTasksAreRegisteredUntilTheirPlanIsDisabledTest() {
+        scalingDaemon.reconcile();
+        assertTrue(scalingDaemon.isRegistered("fleet"));
+        when(savedJobs.get(0).getParent().isSuspendedFromBuilding()).thenReturn(true);
+        scalingDaemon.reconcile();
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+        when(savedJobs.get(0).getParent().isSuspendedFromBuilding()).thenReturn(false);
+        when(taskDefinition.isEnabled()).thenReturn(false);
+        scalingDaemon.reconcile();
+        assertFalse(scalingDaemon.isRegistered("fleet"));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.atlassian.sal.api.ApplicationProperties;
+import com.google.common.collect.ImmutableList;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.FleetNoticeSecrets;
+import AwsSpotFleetBambooPlugin.SpotInterruptionDrainer;
+import AwsSpotFleetBambooPlugin.SpotInterruptionServlet;
+import AwsSpotFleetBambooPlugin.StringConstants;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpotInterruptionDrainerUnitTest {
+    private static final List<String> FLEETS = ImmutableList.of("sfr-1");
+
+    @Mock
+    private AgentManager agentManager;
+    @Mock
+    private FleetInventoryRegistry fleetInventoryRegistry;
+    @Mock
+    private BuildAgent interruptedAgent;
+    @Mock
+    private PipelineDefinition interruptedDefinition;
+    @Mock
+    private BuildAgent otherAgent;
+    @Mock
+    private PipelineDefinition otherDefinition;
+    @Mock
+    private ApplicationProperties applicationProperties;
+    private SpotInterruptionDrainer spotInterruptionDrainer;
+    private FleetNoticeSecrets fleetNoticeSecrets;
+
+    @Before
+    public void setup() {
+        when(fleetInventoryRegistry.isFleetInstance("i-interrupted", FLEETS)).thenReturn(true);
+        when(fleetInventoryRegistry.isFleetInstance("i-other", FLEETS)).thenReturn(true);
+        reportInstanceId(interruptedAgent, interruptedDefinition, 1, "i-interrupted");
+        reportInstanceId(otherAgent, otherDefinition, 2, "i-other");
+        when(agentManager.getAllNonElasticAgents())
+                .thenReturn(ImmutableList.of(interruptedAgent, otherAgent));
+        spotInterruptionDrainer = new SpotInterruptionDrainer(agentManager, new AgentInstanceResolver(),
+                fleetInventoryRegistry);
+        // no home directory, the key is kept in memory
+        fleetNoticeSecrets = new FleetNoticeSecrets(applicationProperties);
+    }
+
+    private static void reportInstanceId(BuildAgent agent, PipelineDefinition definition, long id,
+            String instanceId) {
+        CapabilitySet capabilitySet = mock(CapabilitySet.class);
+        Capability capability = mock(Capability.class);
+        when(agent.getId()).thenReturn(id);
+        when(agent.getName()).thenReturn("agent " + id);
+        when(agent.getDefinition()).thenReturn(definition);
+        when(definition.isEnabled()).thenReturn(true);
+        when(definition.getCapabilitySet()).thenReturn(capabilitySet);
+        when(capabilitySet.getCapability(StringConstants.INSTANCE_ID_CAPABILITY)).thenReturn(capability);
+        when(capability.getValue()).thenReturn(instanceId);
+    }
+
+    @Test
+    public void noticeDisablesOnlyAgentsOfTheInterruptedInstanceTest() {
+        assertTrue(spotInterruptionDrainer.noticeReceived("i-interrupted", FLEETS,
+                System.currentTimeMillis() + 120000));
+        verify(interruptedDefinition).setEnabled(false);
+        verify(agentManager).savePipeline(interruptedDefinition);
+        verify(otherDefinition, never()).setEnabled(false);
+        assertTrue(spotInterruptionDrainer.isDraining("i-interrupted"));
+        assertEquals(1, spotInterruptionDrainer.countDraining(ImmutableList.of("i-interrupted", "i-other")));
+    }
+
+    @Test
+    public void staleNoticesAreForgottenTest() {
+        long reclaimedLongAgo = System.currentTimeMillis() - SpotInterruptionDrainer.NOTICE_RETENTION_MILLISECONDS - 1;
+        spotInterruptionDrainer.noticeReceived("i-interrupted", FLEETS, reclaimedLongAgo);
+        assertFalse(spotInterruptionDrainer.isDraining("i-interrupted"));
+    }
+
+    @Test
+    public void noticeForUnknownInstanceIsIgnoredTest() {
+        assertFalse(spotInterruptionDrainer.noticeReceived("i-elsewhere", FLEETS, System.currentTimeMillis() + 120000));
+        assertFalse(spotInterruptionDrainer.isDraining("i-elsewhere"));
+        verify(agentManager, never()).savePipeline(any(PipelineDefinition.class));
+    }
+
+    @Test
+    public void agentsAreTornDownOnlyWithinTheGracePeriodTest() {
+        long now = System.currentTimeMillis();
+        spotInterruptionDrainer.noticeReceived("i-interrupted", FLEETS, now + 120000);
+        assertFalse(spotInterruptionDrainer.isPastDrainDeadline("i-interrupted", now));
+        assertTrue(spotInterruptionDrainer.isPastDrainDeadline("i-interrupted",
+                now + 120000 - SpotInterruptionDrainer.DRAIN_GRACE_MILLISECONDS));
+        assertFalse(spotInterruptionDrainer.isPastDrainDeadline(null, now));
+    }
+
+    private HttpServletRequest noticeRequest(String instanceId, String fleetIds, String secret, long time) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        SimpleDateFormat format = new SimpleDateFormat(SpotInterruptionServlet.TIME_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        when(request.getParameter(SpotInterruptionServlet.INSTANCE_ID_PARAMETER)).thenReturn(instanceId);
+        when(request.getParameter(SpotInterruptionServlet.TIME_PARAMETER)).thenReturn(format.format(new Date(time)));
+        when(request.getParameter(SpotInterruptionServlet.FLEET_IDS_PARAMETER)).thenReturn(fleetIds);
+        when(request.getParameter(SpotInterruptionServlet.SECRET_PARAMETER)).thenReturn(secret);
+        return request;
+    }
+
+    @Test
+    public void servletReportsNoticesWithTheirTerminationTimeTest() throws IOException {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        long terminationTime = (System.currentTimeMillis() / 1000 + 300) * 1000;
+        new TestableSpotInterruptionServlet(spotInterruptionDrainer, fleetNoticeSecrets).post(
+                noticeRequest("i-interrupted", "sfr-1", fleetNoticeSecrets.getSecret("sfr-1"), terminationTime),
+                response);
+        verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+        assertTrue(spotInterruptionDrainer.isDraining("i-interrupted"));
+        assertFalse(spotInterruptionDrainer.isPastDrainDeadline("i-interrupted",
+                terminationTime - SpotInterruptionDrainer.DRAIN_GRACE_MILLISECONDS - 1));
+        assertTrue(spotInterruptionDrainer.isPastDrainDeadline("i-interrupted",
+                terminationTime - SpotInterruptionDrainer.DRAIN_GRACE_MILLISECONDS));
+    }
+
+    @Test
+    public void servletRejectsNoticesWithoutTheFleetsSecretTest() throws IOException {
+        long terminationTime = System.currentTimeMillis() + 120000;
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        TestableSpotInterruptionServlet servlet = new TestableSpotInterruptionServlet(spotInterruptionDrainer,
+                fleetNoticeSecrets);
+        servlet.post(noticeRequest("i-interrupted", "sfr-1", null, terminationTime), response);
+        servlet.post(noticeRequest("i-interrupted", "sfr-1", fleetNoticeSecrets.getSecret("sfr-2"), terminationTime),
+                response);
+        verify(response, times(2)).sendError(eq(HttpServletResponse.SC_FORBIDDEN), any(String.class));
+        // another fleet's secret can't drain this fleet's instances
+        servlet.post(noticeRequest("i-interrupted", "sfr-2", fleetNoticeSecrets.getSecret("sfr-2"), terminationTime),
+                response);
+        verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), any(String.class));
+        assertFalse(spotInterruptionDrainer.isDraining("i-interrupted"));
+        verify(agentManager, never()).savePipeline(any(PipelineDefinition.class));
+    }
+
+    @Test
+    public void terminationTimeIsNeverSoonerThanTheNoticePeriodTest() {
+        long now = 1505722920000L;
+        long noticePeriod = SpotInterruptionDrainer.INTERRUPTION_NOTICE_MILLISECONDS;
+        assertEquals(now + 300000, SpotInterruptionServlet.parseTerminationTime("2017-09-18T08:27:00Z", now));
+        assertEquals(now + noticePeriod, SpotInterruptionServlet.parseTerminationTime("2017-09-18T08:22:00Z", now));
+        assertEquals(now + noticePeriod, SpotInterruptionServlet.parseTerminationTime("soon", now));
+        assertEquals(now + noticePeriod, SpotInterruptionServlet.parseTerminationTime(null, now));
+        try {
+            SpotInterruptionServlet.parseTerminationTime("2017-09-18T08:00:00Z", now);
+            fail("termination times long past are rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // exposes doPost, which HttpServlet keeps protected
+    private static class TestableSpotInterruptionServlet extends SpotInterruptionServlet {
+        private TestableSpotInterruptionServlet(SpotInterruptionDrainer spotInterruptionDrainer,
+                FleetNoticeSecrets fleetNoticeSecrets) {
+            super(spotInterruptionDrainer, fleetNoticeSecrets);
+        }
+
+        private void post(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            doPost(request, response);
+        }
+    }
+}
@@ -42,6 +42,10 @@ import com.atlassian.bamboo.v2.build.queue.BuildQueueManager;
 import com.atlassian.bamboo.v2.build.queue.BuildQueueManager.QueuedResultKey;
 import com.google.common.collect.ImmutableList;
 
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.FleetInventoryRegistry;
+import AwsSpotFleetBambooPlugin.ScalingServices;
+import AwsSpotFleetBambooPlugin.SpotFleetScalingDaemon;
 import AwsSpotFleetBambooPlugin.SpotFleetTaskExecution;
 
 @RunWith(PowerMockRunner.class)
@@ -61,6 +65,8 @@ public class TerminateFleetUnitTest {
     @Mock
     private BuildQueueManager buildQueueManager;
     @Mock
+    private SpotFleetScalingDaemon scalingDaemon;
+    @Mock
     private CancelSpotFleetRequestsResult cancelSpotFleetRequestsResult;
     private List<CancelSpotFleetRequestsSuccessItem> cancelRequestsList;
     @Mock
@@ -82,7 +88,10 @@ public class TerminateFleetUnitTest {
         when(buildQueueManager.getQueuedExecutables()).thenReturn(new LinkedList<QueuedResultKey>());
         cancelRequestsList = ImmutableList.of(cancelSpotFleetRequestsSuccessItem);
         when(cancelSpotFleetRequestsResult.getSuccessfulFleetRequests()).thenReturn(cancelRequestsList);
-        taskExecutor = new SpotFleetTaskExecution(null, buildQueueManager, agentManager, buildExecutionManager);
+        taskExecutor = new SpotFleetTaskExecution(ScalingServices.builder().withBuildQueueManager(buildQueueManager)
+                .withAgentManager(agentManager).withBuildExecutionManager(buildExecutionManager)
+                .withFleetInventoryRegistry(new FleetInventoryRegistry())
+                .withAgentInstanceResolver(new AgentInstanceResolver()).build(), scalingDaemon);
         Whitebox.setInternalState(taskExecutor, "buildLogger", buildLogger);
         Whitebox.setInternalState(taskExecutor, "EC2Client", EC2Client);
     }
@@ -97,6 +106,8 @@ public class TerminateFleetUnitTest {
         }
         // fail if fleet cancellation success message isn't logged
         verify(buildLogger).addBuildLogEntry("Cancellation of fleet succeeded");
+        // a cancelled fleet is no longer scaled in the background
+        verify(scalingDaemon).unregisterFleet("fleet");
     }
 
     @Test
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import AwsSpotFleetBambooPlugin.AgentInstanceResolver;
+import AwsSpotFleetBambooPlugin.AgentSlotTable;
+import AwsSpotFleetBambooPlugin.TerminationRanker;
+
+public class TerminationRankerUnitTest {
+
+    private static final long MINUTE = 60000;
+    private static final long START = 1000000000;
+
+    private AgentSlotTable agentSlots;
+    private AgentInstanceResolver agentInstanceResolver;
+
+    @Before
+    public void setup() {
+        agentSlots = new AgentSlotTable();
+        agentInstanceResolver = new AgentInstanceResolver();
+    }
+
+    private BuildAgent agent(String instanceId) {
+        BuildAgent agent = mock(BuildAgent.class);
+        when(agent.getId()).thenReturn((long) instanceId.hashCode());
+        when(agent.getName()).thenReturn("ip-" + instanceId + ".ec2.internal");
+        return agent;
+    }
+
+    private void update(Set<String> instances, List<BuildAgent> agents, long now) {
+        agentSlots.update(instances, agents, agentInstanceResolver, now);
+    }
+
+    @Test
+    public void longestIdleInstancesAreTerminatedFirstTest() {
+        BuildAgent old = agent("old");
+        BuildAgent recent = agent("recent");
+        Set<String> instances = ImmutableSet.of("ip-old.ec2.internal", "ip-recent.ec2.internal");
+        when(old.isBusy()).thenReturn(true);
+        when(recent.isBusy()).thenReturn(true);
+        update(instances, ImmutableList.of(old, recent), START);
+        when(old.isBusy()).thenReturn(false);
+        update(instances, ImmutableList.of(old, recent), START + 20 * MINUTE);
+        when(recent.isBusy()).thenReturn(false);
+        update(instances, ImmutableList.of(old, recent), START + 60 * MINUTE);
+        long now = START + 120 * MINUTE;
+        assertEquals(ImmutableList.of("ip-old.ec2.internal", "ip-recent.ec2.internal"),
+                new TerminationRanker(agentSlots, now)
+                        .rank(ImmutableList.of("ip-recent.ec2.internal", "ip-old.ec2.internal")));
+    }
+
+    @Test
+    public void warmingUpAndCacheHotInstancesAreTerminatedLastTest() {
+        BuildAgent hot = agent("hot");
+        BuildAgent cold = agent("cold");
+        BuildAgent booting = agent("booting");
+        Set<String> instances = ImmutableSet.of("ip-hot.ec2.internal", "ip-cold.ec2.internal");
+        when(hot.isBusy()).thenReturn(true);
+        update(instances, ImmutableList.of(hot, cold), START);
+        when(hot.isBusy()).thenReturn(false);
+        update(instances, ImmutableList.of(hot, cold), START + 20 * MINUTE);
+        // the booting instance has been idle for less time than the others, it has no agents yet
+        instances = ImmutableSet.of("ip-hot.ec2.internal", "ip-cold.ec2.internal", "ip-booting.ec2.internal");
+        update(instances, ImmutableList.of(hot, cold), START + 21 * MINUTE);
+        long now = START + 40 * MINUTE;
+        // the cache-hot instance went idle 20 minutes ago, the cold one never built
+        assertEquals(ImmutableList.of("ip-cold.ec2.internal", "ip-hot.ec2.internal", "ip-booting.ec2.internal"),
+                new TerminationRanker(agentSlots, now).rank(instances));
+        // once its agent registers and the warm-up period is over, the booting instance is the coldest
+        update(instances, ImmutableList.of(hot, cold, booting), START + 45 * MINUTE);
+        now = START + 45 * MINUTE;
+        assertEquals(ImmutableList.of("ip-cold.ec2.internal", "ip-booting.ec2.internal", "ip-hot.ec2.internal"),
+                new TerminationRanker(agentSlots, now).rank(instances));
+    }
+}
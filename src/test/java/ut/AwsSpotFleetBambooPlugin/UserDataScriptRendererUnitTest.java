@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package ut.AwsSpotFleetBambooPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.EnumSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.atlassian.bamboo.configuration.AdministrationConfiguration;
+import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
+import com.atlassian.sal.api.ApplicationProperties;
+import com.google.common.collect.ImmutableMap;
+
+import AwsSpotFleetBambooPlugin.AgentsPerInstancePolicy;
+import AwsSpotFleetBambooPlugin.FleetNoticeSecrets;
+import AwsSpotFleetBambooPlugin.LaunchTimingRecorder;
+import AwsSpotFleetBambooPlugin.StringConstants;
+import AwsSpotFleetBambooPlugin.UserDataScriptRenderer;
+import AwsSpotFleetBambooPlugin.UserDataTemplate;
+import AwsSpotFleetBambooPlugin.UserDataTemplate.Placeholder;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserDataScriptRendererUnitTest {
+
+    @Mock
+    private AdministrationConfigurationAccessor administrationConfigurationAccessor;
+    @Mock
+    private AdministrationConfiguration administrationConfiguration;
+    @Mock
+    private ApplicationProperties applicationProperties;
+    private FleetNoticeSecrets fleetNoticeSecrets;
+    private UserDataScriptRenderer userDataScriptRenderer;
+
+    @Before
+    public void setup() {
+        when(administrationConfigurationAccessor.getAdministrationConfiguration())
+                .thenReturn(administrationConfiguration);
+        when(administrationConfiguration.getBaseUrl()).thenReturn("http://bamboo.example.com:8085");
+        fleetNoticeSecrets = new FleetNoticeSecrets(applicationProperties);
+        userDataScriptRenderer = new UserDataScriptRenderer(administrationConfigurationAccessor, fleetNoticeSecrets);
+    }
+
+    @Test
+    public void scriptsAreRenderedFromTheClasspathTest() {
+        String script = userDataScriptRenderer.render(LaunchTimingRecorder.INSTALL_MODE,
+                new AgentsPerInstancePolicy(AgentsPerInstancePolicy.FIXED, 3), "sfr-1,sfr-2");
+        assertTrue(script.startsWith("#!/bin/bash\n"));
+        assertTrue(script.contains("http://bamboo.example.com:8085/agentServer/"));
+        assertTrue(script.contains("yum -y install " + UserDataScriptRenderer.DEFAULT_JDK_PACKAGE));
+        assertTrue(script.contains("AGENT_COUNT=3\n"));
+        assertTrue(script.contains(StringConstants.AGENT_SLOTS_CAPABILITY + "=$AGENT_COUNT"));
+        assertTrue(script.contains("&fleetIds=sfr-1,sfr-2&secret=" + fleetNoticeSecrets.getSecret("sfr-1,sfr-2")));
+        // the script's own variables aren't placeholders
+        assertTrue(script.contains("for i in $(seq 1 $AGENT_COUNT)"));
+        for (Placeholder placeholder : Placeholder.values()) {
+            assertFalse(script.contains(placeholder.name()));
+        }
+        assertFalse(script.equals(userDataScriptRenderer.render(LaunchTimingRecorder.PREBAKED_MODE, null,
+                "sfr-1,sfr-2")));
+    }
+
+    @Test
+    public void renderedScriptsAreMemoizedUntilTheBaseUrlChangesTest() {
+        String script = userDataScriptRenderer.render(LaunchTimingRecorder.INSTALL_MODE, null, "sfr-1");
+        assertSame(script, userDataScriptRenderer.render(LaunchTimingRecorder.INSTALL_MODE,
+                new AgentsPerInstancePolicy(AgentsPerInstancePolicy.FIXED, 2), "sfr-1"));
+        // each fleet's script carries its own secret
+        assertFalse(script.equals(userDataScriptRenderer.render(LaunchTimingRecorder.INSTALL_MODE, null, "sfr-2")));
+        when(administrationConfiguration.getBaseUrl()).thenReturn("https://ci.example.com");
+        String moved = userDataScriptRenderer.render(LaunchTimingRecorder.INSTALL_MODE, null, "sfr-1");
+        assertNotSame(script, moved);
+        assertTrue(moved.contains("https://ci.example.com/agentServer/"));
+    }
+
+    @Test
+    public void placeholdersAreWholeWordsTest() {
+        UserDataTemplate template = UserDataTemplate.compile("curl SERVER_URL/x; echo $SERVER_URL_2 AGENT_COUNT");
+        assertEquals(EnumSet.of(Placeholder.SERVER_URL), template.getPlaceholders());
+        Map<Placeholder, String> values = ImmutableMap.of(Placeholder.SERVER_URL, "http://b");
+        assertEquals("curl http://b/x; echo $SERVER_URL_2 AGENT_COUNT", template.render(values));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void placeholdersWithoutValuesAreRejectedTest() {
+        UserDataTemplate.compile("SERVER_URL JDK_PACKAGE")
+                .render(ImmutableMap.of(Placeholder.SERVER_URL, "http://b"));
+    }
+}